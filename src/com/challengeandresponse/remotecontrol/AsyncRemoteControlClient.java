@@ -0,0 +1,271 @@
+package com.challengeandresponse.remotecontrol;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.security.SecureRandom;
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.challengeandresponse.configfilereader.ElementNotFoundException;
+
+/**
+ * A client library for programs that call methods on RemoteControl hosts, where RemoteControlClient is for people at a console.
+ *
+ * <p>connect() opens and authenticates a RemoteSession to one of the remotes in a RemoteControlClientConfig file.
+ * Each RemoteSession.call() returns a CompletableFuture that completes with the method's Response, and
+ * RemoteSession.stream() returns a Flow.Publisher of its output lines as they arrive. Calls may be made from any thread
+ * and any number may be outstanding on a session at once; the host runs them in the order they were sent.</p>
+ *
+ * <p>All the sockets of all the sessions are handled by a single thread, with non-blocking I/O, so one client can keep
+ * many remotes open without a thread for each. Futures are completed and subscribers are called on 'callbackExecutor'
+ * (the common ForkJoinPool unless one is given), never on the I/O thread, so a slow callback cannot hold up other sessions.
+ * Calls use the tagged exec command (@), so the host must be one that supports it.</p>
+ *
+ * <pre>
+ * AsyncRemoteControlClient client = new AsyncRemoteControlClient("/path/to/RemoteControlClient.xml");
+ * RemoteSession session = client.connect("localhost").get();
+ * session.call("streamText", 1, 2, 3).thenAccept(r -&gt; System.out.println(r.getOutput()));
+ * </pre>
+ *
+ * @author jim
+ *
+ */
+public class AsyncRemoteControlClient
+implements Runnable {
+
+	private static final int NONCE_BYTE_LENGTH = 16;
+	private static final AtomicLong clientCount = new AtomicLong(0L);
+
+	private final RemoteControlClientConfig config;
+	private final Executor callbackExecutor;
+	private final SecureRandom sr;
+	private final Selector selector;
+	private final Thread ioThread;
+	private final ConcurrentLinkedQueue <Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+	private volatile boolean running;
+
+
+	/**
+	 * @param configFilePath a RemoteControlClient config file listing the remotes
+	 */
+	public AsyncRemoteControlClient(String configFilePath)
+	throws ElementNotFoundException, RemoteControlException {
+		this(new RemoteControlClientConfig(configFilePath), ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * @param callbackExecutor where futures are completed and stream subscribers are called
+	 * @throws RemoteControlException if the selector cannot be opened
+	 */
+	public AsyncRemoteControlClient(RemoteControlClientConfig config, Executor callbackExecutor)
+	throws RemoteControlException {
+		this.config = config;
+		this.callbackExecutor = callbackExecutor;
+		sr = new SecureRandom();
+		try {
+			selector = Selector.open();
+		}
+		catch (IOException e) {
+			throw new RemoteControlException("Cannot open selector: "+e.getMessage(), e);
+		}
+		running = true;
+		ioThread = new Thread(this, "RemoteControlClient.io-"+clientCount.incrementAndGet());
+		ioThread.setDaemon(true);
+		ioThread.start();
+	}
+
+
+	/**
+	 * Connect to the remote labelled 'label' and authenticate. No timeout is applied; use the future's orTimeout() for one.
+	 * @return a future that completes with the session once the host has accepted the credentials, or exceptionally
+	 * with a RemoteControlException if it refuses them, or an IOException if it cannot be reached
+	 */
+	public CompletableFuture<RemoteSession> connect(final String label) {
+		final CompletableFuture<RemoteSession> connected = new CompletableFuture<RemoteSession>();
+		if (! config.hasLabel(label)) {
+			connected.completeExceptionally(new RemoteControlException("No remote labelled "+label+" in the config"));
+			return connected;
+		}
+		if (! running) {
+			connected.completeExceptionally(new IOException("client is closed"));
+			return connected;
+		}
+		runOnSelector(new Runnable() {
+			public void run() {
+				open(label, connected);
+			}
+		});
+		return connected;
+	}
+
+	public RemoteControlClientConfig getConfig() {
+		return config;
+	}
+
+
+	/**
+	 * Close every session, failing whatever is outstanding on them, and stop the I/O thread
+	 */
+	public void close() {
+		running = false;
+		selector.wakeup();
+	}
+
+
+	/**
+	 * The I/O thread. Returns after close().
+	 */
+	public void run() {
+		while (running) {
+			try {
+				selector.select();
+			}
+			catch (IOException e) {
+				break;
+			}
+			Runnable task;
+			while ((task = tasks.poll()) != null)
+				task.run();
+			Iterator <SelectionKey> it = selector.selectedKeys().iterator();
+			while (it.hasNext()) {
+				SelectionKey key = it.next();
+				it.remove();
+				if (! key.isValid())
+					continue;
+				RemoteSession session = (RemoteSession) key.attachment();
+				try {
+					if (key.isConnectable())
+						session.onConnectable();
+					if (key.isValid() && key.isReadable())
+						session.onReadable();
+					if (key.isValid() && key.isWritable())
+						session.flushOutput();
+				}
+				catch (IOException e) {
+					session.closeNow(e);
+				}
+				catch (CancelledKeyException e) {
+					session.closeNow(new IOException("connection closed"));
+				}
+			}
+		}
+		running = false;
+		for (SelectionKey key : selector.keys())
+			((RemoteSession) key.attachment()).closeNow(new IOException("client is closed"));
+		try {
+			selector.close();
+		}
+		catch (IOException e) {
+		}
+		// anything handed over after the last pass
+		Runnable task;
+		while ((task = tasks.poll()) != null)
+			task.run();
+	}
+
+
+	/**
+	 * Start connecting. Runs on the I/O thread.
+	 */
+	private void open(String label, CompletableFuture<RemoteSession> connected) {
+		if (! running) {
+			connected.completeExceptionally(new IOException("client is closed"));
+			return;
+		}
+		SocketChannel channel = null;
+		try {
+			String unixSocket = config.getUnixSocket(label);
+			SocketAddress address;
+			TlsChannel tls = null;
+			if (unixSocket != null) {
+				channel = SocketChannel.open(StandardProtocolFamily.UNIX);
+				address = UnixDomainSocketAddress.of(unixSocket);
+			}
+			else {
+				channel = SocketChannel.open();
+				channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+				address = new InetSocketAddress(config.getHost(label), config.getPort(label));
+				if (config.isTls(label))
+					// the shared context keeps the session cache, so later connections to this remote can resume
+					tls = new TlsChannel(channel, TlsSupport.newClientEngine(
+							TlsSupport.getClientContext(config.getTruststore(label), config.getTruststorePassword(label), config.getTruststoreType(label)),
+							config.getHostName(label), config.getPort(label)));
+			}
+			channel.configureBlocking(false);
+			RemoteSession session = new RemoteSession(this, label, channel, tls, connected);
+			boolean done = channel.connect(address);
+			session.setKey(channel.register(selector, done ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT, session));
+			session.authenticate(config.getID(label), generateNonce(), config.getSecret(label));
+			if (done)
+				session.onConnectable();
+		}
+		catch (IOException e) {
+			closeQuietly(channel);
+			connected.completeExceptionally(e);
+		}
+		catch (RemoteControlException e) {
+			closeQuietly(channel);
+			connected.completeExceptionally(e);
+		}
+	}
+
+	private static void closeQuietly(SocketChannel channel) {
+		try {
+			if (channel != null)
+				channel.close();
+		}
+		catch (IOException e) {
+		}
+	}
+
+	private String generateNonce() {
+		byte[] a = new byte[NONCE_BYTE_LENGTH];
+		sr.nextBytes(a);
+		return SHA1.encode(a);
+	}
+
+
+	/**
+	 * Run 'task' on the I/O thread
+	 */
+	void runOnSelector(Runnable task) {
+		tasks.add(task);
+		selector.wakeup();
+		// closed while the task was being added: the I/O thread may already be past its last pass
+		if ((! running) && (! ioThread.isAlive())) {
+			Runnable t;
+			while ((t = tasks.poll()) != null)
+				t.run();
+		}
+	}
+
+	/**
+	 * Run 'task' on the callback executor, or right here if the executor will not take it
+	 */
+	void callback(Runnable task) {
+		try {
+			callbackExecutor.execute(task);
+		}
+		catch (RejectedExecutionException e) {
+			task.run();
+		}
+	}
+
+	boolean isRunning() {
+		return running;
+	}
+
+}
@@ -0,0 +1,127 @@
+package com.challengeandresponse.remotecontrol;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Publish/subscribe for streamed state. The host app calls RemoteControl.publish(topic, message);
+ * every session that has sent 'subscribe topic' receives "PUB topic message".
+ *
+ * <p>A message is encoded once per framing (text line, WebSocket frame), on first need, and the same byte array
+ * is queued for every subscriber, so publishing to thousands of dashboards costs one encoding, not thousands.
+ * Broadcasts never block the publisher: a subscriber whose output queue is full misses the message.</p>
+ *
+ * @author jim
+ *
+ */
+public class Broadcaster {
+
+	private final ConcurrentHashMap <String,Set<CRLFServer>> topics;
+	private final RemoteControlMetrics metrics;
+
+	Broadcaster(RemoteControlMetrics metrics) {
+		this.metrics = metrics;
+		topics = new ConcurrentHashMap<String,Set<CRLFServer>>();
+	}
+
+
+	void subscribe(String topic, CRLFServer session) {
+		Set <CRLFServer> subscribers = topics.get(topic);
+		if (subscribers == null) {
+			Set <CRLFServer> fresh = new CopyOnWriteArraySet<CRLFServer>();
+			subscribers = topics.putIfAbsent(topic, fresh);
+			if (subscribers == null)
+				subscribers = fresh;
+		}
+		subscribers.add(session);
+	}
+
+	/**
+	 * @return true if 'session' was subscribed to 'topic'
+	 */
+	boolean unsubscribe(String topic, CRLFServer session) {
+		Set <CRLFServer> subscribers = topics.get(topic);
+		return (subscribers != null) && subscribers.remove(session);
+	}
+
+	/**
+	 * @return true if 'session' is subscribed to any topic
+	 */
+	boolean isSubscribed(CRLFServer session) {
+		for (Set <CRLFServer> subscribers : topics.values())
+			if (subscribers.contains(session))
+				return true;
+		return false;
+	}
+
+	void unsubscribeAll(CRLFServer session) {
+		for (Set <CRLFServer> subscribers : topics.values())
+			subscribers.remove(session);
+	}
+
+
+	/**
+	 * Send 'message' to every subscriber of 'topic'
+	 * @return the number of subscribers it was queued for
+	 */
+	public int publish(String topic, String message) {
+		metrics.increment(RemoteControlMetrics.BROADCASTS_PUBLISHED);
+		Set <CRLFServer> subscribers = topics.get(topic);
+		if ((subscribers == null) || subscribers.isEmpty())
+			return 0;
+		Broadcast b = new Broadcast(RemoteControlLib.CRLF_PUBLISH_RESPONSE+" "+topic+" "+message);
+		int delivered = 0;
+		for (CRLFServer session : subscribers)
+			if (session.deliver(b))
+				delivered++;
+		metrics.add(RemoteControlMetrics.BROADCASTS_DELIVERED, delivered);
+		metrics.add(RemoteControlMetrics.BROADCASTS_DROPPED, subscribers.size() - delivered);
+		return delivered;
+	}
+
+	/**
+	 * @return the number of sessions subscribed to 'topic'
+	 */
+	public int getSubscriberCount(String topic) {
+		Set <CRLFServer> subscribers = topics.get(topic);
+		return (subscribers == null) ? 0 : subscribers.size();
+	}
+
+	/**
+	 * @return topics that have had subscribers, in order
+	 */
+	public List <String> getTopics() {
+		ArrayList <String> al = new ArrayList<String>(topics.keySet());
+		Collections.sort(al);
+		return al;
+	}
+
+
+
+	/**
+	 * One published message, with its encoding for each framing made once on first need and then shared
+	 */
+	static class Broadcast {
+
+		private final String line;
+		private final AtomicReferenceArray <byte[]> encoded;
+
+		Broadcast(String line) {
+			this.line = line;
+			encoded = new AtomicReferenceArray<byte[]>(MessageFraming.values().length);
+		}
+
+		byte[] getEncoded(MessageFraming framing) {
+			byte[] b = encoded.get(framing.ordinal());
+			if (b == null) {
+				// two threads may both encode; either result is fine, and later callers share the winner
+				encoded.compareAndSet(framing.ordinal(), null, framing.encode(line));
+				b = encoded.get(framing.ordinal());
+			}
+			return b;
+		}
+	}
+
+}
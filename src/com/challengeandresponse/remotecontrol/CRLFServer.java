@@ -2,10 +2,16 @@ package com.challengeandresponse.remotecontrol;
 
 import java.io.*;
 import java.lang.reflect.InvocationTargetException;
-import java.net.Socket;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
 
 import com.challengeandresponse.eventlogger.EventLoggerI;
+import com.challengeandresponse.remotecontrol.HashedTimingWheel.Timeout;
 
 
 /**
@@ -21,43 +27,147 @@ import com.challengeandresponse.eventlogger.EventLoggerI;
  * RemoteControl is just a shell for registering and calling methods, and launching
  * server instances
  * 
+ * Commands fall into two classes. Bulk commands (exec) run on RemoteControl's shared FairScheduler,
+ * one at a time and in order for each session, and their output goes to the bulk lane of the
+ * session's output queue. Everything else, including disconnect, cancel and stats, is handled on
+ * the reading thread as soon as it arrives, and answered on the control lane ahead of any queued
+ * bulk output.
+ * 
+ * A tagged exec (@ tag method args) runs the same way, but each line of its output is sent as
+ * "DATA tag line", and it ends with "END tag OK" or "END tag ERROR message", so that a program
+ * can tell where its output stops and match it to the call, whatever else arrives on the control lane.
+ * 
+ * A batch (batch tag seq|par method args ; method args ; ...) carries several calls in one request and is
+ * answered like a tagged exec, with "RESULT tag n OK" or "RESULT tag n ERROR message" after the output of
+ * call n, in batch order. 'seq' runs the calls one after another and stops at the first that fails; 'par' says
+ * they are independent, and runs them side by side on the scheduler.
+ * 
+ * The profile command (profile seconds [hz]) samples the host's thread stacks for that long and answers with them
+ * folded, one stack per line, ready for flame graph tools. It queues and runs like an exec, so it is answered in order
+ * and can be cancelled; as "@ tag profile seconds [hz]" it is answered like a tagged exec. See StackProfiler.
+ * 
+ * A session may ask for its output to be compressed (compress deflate | deflate-fast). The writer compresses
+ * everything after the "COMPRESSED codec" line, both lanes alike, with one compressor for the life of the session
+ * and a sync flush whenever the queue runs dry, which is the end of a response or of a burst of streamed output.
+ * 
+ * A session either runs on a thread of its own, reading from its Connection (run()), or is driven by a
+ * transport that reads for it and feeds it lines (startDriven(), processLine(), endDriven()), as WebSocketServer
+ * does for browser sessions. Both go through the same command handling.
+ * 
  * @author jim
  *
  */
 public class CRLFServer 
 implements Runnable {
 
-	private Socket socket;
+	private Connection connection;
 	private RemoteControl rc;
 	private EventLoggerI eventLogger;
+	private final MessageFraming framing;
+	private final String name;
+
+	private volatile boolean running;
+	private final CountDownLatch closed = new CountDownLatch(1);
 
-	private String line;
-	private boolean running;
+	// session timeouts, all kept on the RemoteControl's timer wheel
+	private volatile long lastActivity;
+	private Timeout authTimeout = null;
+	private Timeout idleTimeout = null;
+	private Timeout heartbeatTimeout = null;
 
-	private static final long READ_NOT_READY_DELAY_MSEC = 200;
+	// authentication state offered by the client
+	private String id = null;
+	private String nonce = null;
+	private String hash = null;
+	private long time = 0L;
+	private volatile boolean hashWasChecked = false;
 
-	CRLFServer(Socket socket, RemoteControl rc, EventLoggerI el) {
-		this.socket=socket;
+	// everything sent to the client goes through this queue, and a writer thread drains it to the socket
+	private SessionOutputQueue outQueue = null;
+	private Thread writerThread = null;
+	private PrintStream netOut = null;	// control lane
+	private PrintStream bulkOut = null;	// bulk lane, handed to methods
+	private PrintStream endOut = null;	// bulk lane, for END and RESULT lines, which are never dropped
+	// the writer compresses everything after this chunk, the answer to a compress command
+	private volatile byte[] compressAfter = null;
+	private volatile String compressCodec = null;
+	private volatile StreamCompression.DeflatingOutputStream compressor = null;
+
+	// exec commands run on the shared scheduler, one at a time and in order, so the reading thread is never tied up
+	// by a method. Each is handed to the scheduler when the one before it is done.
+	private final ArrayDeque <ExecTask> execQueue = new ArrayDeque<ExecTask>();
+	private boolean execActive = false;	// guarded by execQueue
+	private final Set <Future<?>> execs = Collections.newSetFromMap(new ConcurrentHashMap<Future<?>,Boolean>());
+	private final AtomicInteger pendingExecs = new AtomicInteger(0);
+	private volatile boolean usedTaggedExecs = false;
+	private volatile Thread execThread = null;
+	private volatile Thread sessionThread = null;
+	// when the session ends: cancel outstanding execs (reap, force) or let them finish (disconnect, EOF, shutdown)
+	private volatile boolean cancelOnExit = false;
+
+	private static final long WRITER_DRAIN_MSEC = 1000;
+	private static final String RATE_LIMITED = "rate limit exceeded, try again later";
+	// what the scheduler knows a task by that only writes output already made, so it is not costed as the method
+	private static final String OUTPUT_TASK = "[output]";
+	private static final String NEWLINE = System.getProperty("line.separator");
+	private static final AtomicLong sessionCount = new AtomicLong(0L);
+	private static final String COMMAND_LISTING = "commands: " + RemoteControlLib.CRLF_DISCONNECT_COMMAND +
+			" | " + RemoteControlLib.CRLF_LIST_COMMANDS_COMMAND +
+			" | " + RemoteControlLib.CRLF_EXEC_COMMAND + " | " + RemoteControlLib.CRLF_EXEC_TAGGED_COMMAND +
+			" | " + RemoteControlLib.CRLF_BATCH_COMMAND +
+			" | " + RemoteControlLib.CRLF_EXEC_ASYNC_COMMAND + " | " + RemoteControlLib.CRLF_JOB_COMMAND +
+			" | " + RemoteControlLib.CRLF_STATS_COMMAND + " | " + RemoteControlLib.CRLF_CANCEL_COMMAND +
+			" | " + RemoteControlLib.CRLF_SUBSCRIBE_COMMAND + " | " + RemoteControlLib.CRLF_UNSUBSCRIBE_COMMAND +
+			" | " + RemoteControlLib.CRLF_PROFILE_COMMAND + " | " + RemoteControlLib.CRLF_COMPRESS_COMMAND +
+			" | " + RemoteControlLib.CRLF_ID_COMMAND +
+			" | " + RemoteControlLib.CRLF_NONCE_COMMAND + " | " + RemoteControlLib.CRLF_HASH_COMMAND +
+			" | " + RemoteControlLib.CRLF_TIME_COMMAND;
+
+	/**
+	 * @param connection the accepted connection, from any Transport. Its open() (e.g. a TLS handshake) is called in run().
+	 */
+	CRLFServer(Connection connection, RemoteControl rc, EventLoggerI el) {
+		this(connection, MessageFraming.LINE, rc, el);
+	}
+
+	/**
+	 * @param framing how output lines are put on the wire
+	 */
+	CRLFServer(Connection connection, MessageFraming framing, RemoteControl rc, EventLoggerI el) {
+		this.connection = connection;
+		this.framing = framing;
 		this.rc = rc;
 		this.eventLogger = el;
+		this.name = "CRLFServer"+sessionCount.incrementAndGet();
 		running = false;
 	}
 
 
+	/**
+	 * Thread-per-session mode: read lines from the connection until the session ends
+	 */
 	public void run () {
-		String id = null;
-		String nonce = null;
-		String hash = null;
-		long time = 0L;
-
-		PrintStream netOut = null;
 		BufferedReader netIn = null;
 
 		running = true;
+		sessionThread = Thread.currentThread();
 
+		// before the handshake, so that the auth deadline also covers clients that never finish it
+		startTimeouts();
 		try {
-			netIn = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-			netOut = new PrintStream(socket.getOutputStream());
+			try {
+				connection.open();
+			}
+			catch (IOException e) {
+				if (connection.isSecure())
+					rc.getMetrics().increment(RemoteControlMetrics.TLS_HANDSHAKE_FAILURES);
+				throw e;
+			}
+			if (connection.isSecure())
+				rc.getMetrics().increment(RemoteControlMetrics.TLS_HANDSHAKES);
+			netIn = new BufferedReader(new InputStreamReader(connection.getInputStream()));
+			openOutput(null);
+			startWriter(connection.getOutputStream());
 			netOut.println(RemoteControlLib.CRLF_CONNECTION_OPEN);
 		} 
 		catch (IOException e) {
@@ -66,179 +176,1163 @@ implements Runnable {
 		}
 
 
-		boolean hashWasChecked = false;
 //		 while (running && ((line = netIn.readLine()) != null)) {
 		while (running) {
 			try {
-				if (netIn.ready())
-					line = netIn.readLine();
-				else {
-					try {
-						Thread.sleep(READ_NOT_READY_DELAY_MSEC);
-					} 
-					catch (InterruptedException e) {
-					}
-					continue;
-				}
+				String line = netIn.readLine();
 				if (line == null) {
 					running = false;
 					continue;
 				}
-				eventLogger.addEvent("Server thread processing line:"+line);
-				// tokenize the line into: command, args[]
-				StringTokenizer st = new StringTokenizer(line);
-				String command = null;
-				ArrayList <String> args = new ArrayList<String> ();
-				if (st.hasMoreTokens())
-					command = st.nextToken().toLowerCase();
-				else
-					continue;
-				while (st.hasMoreTokens())
-					args.add(st.nextToken());
-
-				if (RemoteControlLib.CRLF_ID_COMMAND.equals(command))
-					id = args.get(0);
-				else if (RemoteControlLib.CRLF_NONCE_COMMAND.equals(command)) {
-					if (id == null) {
-						netOut.println(RemoteControlLib.CRLF_ERROR_RESPONSE+" 'id' is required before setting nonce");
-						continue;
-					}
-					if (! rc.checkNonce(args.get(0),id)) {
-						netOut.println(RemoteControlLib.CRLF_ERROR_RESPONSE+" nonce:"+args.get(0)+" is not unique. Replay prohibited.");
-						running = false;
-						continue;
-					}
-					nonce = args.get(0);
+				processLine(line);
+			} // end of try
+			catch (IOException ioe) {
+				eventLogger.addEvent("SocketServer: IOException on socket listen: " + ioe);
+				running = false;
+			}
+		} // end of while
+
+		endSession(netIn);
+	}
+
+
+	/**
+	 * Event-driven mode, for transports that read the input themselves (WebSocketServer): no session thread and no writer thread.
+	 * The transport feeds lines to processLine(), drains getOutputQueue() when 'outputReady' fires,
+	 * and calls endDriven() once isRunning() goes false or the peer goes away.
+	 * @param outputReady called whenever there is output to send. Must not block.
+	 */
+	void startDriven(Runnable outputReady) {
+		running = true;
+		startTimeouts();
+		openOutput(outputReady);
+		netOut.println(RemoteControlLib.CRLF_CONNECTION_OPEN);
+	}
+
+	/**
+	 * End an event-driven session. Waits for queued execs to finish (unless cancelled) and for output to be taken,
+	 * so call it on a thread that may block, not on the transport's selector thread.
+	 */
+	void endDriven() {
+		endSession(null);
+	}
+
+	/**
+	 * The peer showed it is there without sending a line (e.g. a WebSocket ping or pong): the session is not idle
+	 */
+	void touch() {
+		lastActivity = System.currentTimeMillis();
+	}
+
+	/**
+	 * @return false once the session has ended or is ending
+	 */
+	boolean isRunning() {
+		return running;
+	}
+
+
+	/**
+	 * Handle one line of input. Commands other than exec are answered at once on the control lane; exec is queued.
+	 */
+	void processLine(String line) {
+		lastActivity = System.currentTimeMillis();
+		eventLogger.addEvent("Server thread processing line:"+line);
+		// tokenize the line into: command, args[]
+		StringTokenizer st = new StringTokenizer(line);
+		String command = null;
+		ArrayList <String> args = new ArrayList<String> ();
+		if (st.hasMoreTokens())
+			command = st.nextToken().toLowerCase();
+		else
+			return;
+		while (st.hasMoreTokens())
+			args.add(st.nextToken());
+
+		if ((RemoteControlLib.CRLF_ID_COMMAND.equals(command) || RemoteControlLib.CRLF_NONCE_COMMAND.equals(command) ||
+				RemoteControlLib.CRLF_TIME_COMMAND.equals(command) || RemoteControlLib.CRLF_HASH_COMMAND.equals(command)) && hashWasChecked) {
+			// the id the limits, the scheduler and job ownership go by is fixed once it has been proved
+			netOut.println(RemoteControlLib.CRLF_ERROR_RESPONSE+" session is already authenticated as "+id);
+			return;
+		}
+		if (RemoteControlLib.CRLF_ID_COMMAND.equals(command)) {
+			id = args.get(0);
+			authorizeIfComplete(netOut);
+		}
+		else if (RemoteControlLib.CRLF_NONCE_COMMAND.equals(command)) {
+			if (id == null) {
+				netOut.println(RemoteControlLib.CRLF_ERROR_RESPONSE+" 'id' is required before setting nonce");
+				return;
+			}
+			if (! rc.checkNonce(args.get(0),id)) {
+				netOut.println(RemoteControlLib.CRLF_ERROR_RESPONSE+" nonce:"+args.get(0)+" is not unique. Replay prohibited.");
+				running = false;
+				return;
+			}
+			nonce = args.get(0);
+			authorizeIfComplete(netOut);
+		}
+		else if (RemoteControlLib.CRLF_HASH_COMMAND.equals(command)) {
+			hash = args.get(0);
+			hashWasChecked = false;
+			authorizeIfComplete(netOut);
+		}
+		else if (RemoteControlLib.CRLF_TIME_COMMAND.equals(command)) {
+			try {
+				time = Long.valueOf(args.get(0));
+			}
+			catch (NumberFormatException e) {
+				netOut.println(RemoteControlLib.CRLF_ERROR_RESPONSE+" 'time' value was not valid");
+				return;
+			}
+			if (! rc.validTime(time)) {
+				netOut.println(RemoteControlLib.CRLF_ERROR_RESPONSE+" 'time' value was not valid. Max clock skew limit exceeded.");
+				return;
+			}
+			authorizeIfComplete(netOut);
+		}
+		else if (RemoteControlLib.CRLF_DISCONNECT_COMMAND.equals(command)) {
+			// like end of stream: execs already sent run to completion and their output goes out. 'cancel' is the fast stop.
+			running = false;
+			return;
+		}
+		else if (RemoteControlLib.CRLF_CANCEL_COMMAND.equals(command)) {
+			int cancelled = cancelExecs();
+			netOut.println(RemoteControlLib.CRLF_CANCELLED_RESPONSE+" "+cancelled);
+		}
+		else if (RemoteControlLib.CRLF_LIST_COMMANDS_COMMAND.equals(command)) {
+			netOut.println(COMMAND_LISTING);
+			// '? namespace' lists just that namespace's methods
+			netOut.println("methods: "+rc.getMethodListing((args.size() > 0) ? args.get(0) : null));
+		}
+		else if (RemoteControlLib.CRLF_EXEC_COMMAND.equals(command)) {
+			if (! authorized(netOut))
+				return;
+			if (args.size() < 1) {
+				netOut.println(RemoteControlLib.CRLF_ERROR_RESPONSE+" "+RemoteControlLib.CRLF_EXEC_COMMAND+" must include the method to run");
+				return;
+			}
+			if (! rc.allowExec(id)) {
+				netOut.println(RemoteControlLib.CRLF_ERROR_RESPONSE+" "+RATE_LIMITED);
+				return;
+			}
+
+			dispatchExec(line, args, null);
+		}
+		else if (RemoteControlLib.CRLF_EXEC_TAGGED_COMMAND.equals(command)) {
+			if (args.size() < 1) {
+				netOut.println(RemoteControlLib.CRLF_ERROR_RESPONSE+" "+RemoteControlLib.CRLF_EXEC_TAGGED_COMMAND+" must include a tag");
+				return;
+			}
+			String tag = args.remove(0);
+			String error = authorizationError();
+			if ((error == null) && (args.size() < 1)) {
+				// no method: just a check that the session is up and authenticated
+				netOut.println(RemoteControlLib.CRLF_END_RESPONSE+" "+tag+" "+RemoteControlLib.CRLF_OK_RESPONSE);
+				return;
+			}
+			if ((error == null) && (! rc.allowExec(id)))
+				error = RATE_LIMITED;
+			StackProfiler profiler = null;
+			if ((error == null) && RemoteControlLib.CRLF_PROFILE_COMMAND.equals(args.get(0))) {
+				try {
+					profiler = newProfiler(args.subList(1, args.size()));
 				}
-				else if (RemoteControlLib.CRLF_HASH_COMMAND.equals(command)) {
-					hash = args.get(0);
-					hashWasChecked = false;
+				catch (RemoteControlException e) {
+					error = e.getMessage();
 				}
-				else if (RemoteControlLib.CRLF_TIME_COMMAND.equals(command)) {
+			}
+			if (error != null) {
+				netOut.println(RemoteControlLib.CRLF_END_RESPONSE+" "+tag+" "+RemoteControlLib.CRLF_ERROR_RESPONSE+" "+error);
+				return;
+			}
+			if (profiler != null)
+				dispatchProfile(profiler, tag);
+			else
+				dispatchExec(line, args, tag);
+		}
+		else if (RemoteControlLib.CRLF_BATCH_COMMAND.equals(command)) {
+			if (args.size() < 1) {
+				netOut.println(RemoteControlLib.CRLF_ERROR_RESPONSE+" "+RemoteControlLib.CRLF_BATCH_COMMAND+" must include a tag");
+				return;
+			}
+			String tag = args.remove(0);
+			String error = authorizationError();
+			String mode = (args.size() > 0) ? args.remove(0).toLowerCase() : "";
+			boolean parallel = RemoteControlLib.CRLF_BATCH_PARALLEL.equals(mode);
+			List <List<String>> calls = splitBatch(args);
+			if ((error == null) && (! parallel) && (! RemoteControlLib.CRLF_BATCH_SEQUENTIAL.equals(mode)))
+				error = RemoteControlLib.CRLF_BATCH_COMMAND+" must say "+RemoteControlLib.CRLF_BATCH_SEQUENTIAL+" or "+RemoteControlLib.CRLF_BATCH_PARALLEL;
+			if ((error == null) && calls.isEmpty())
+				error = RemoteControlLib.CRLF_BATCH_COMMAND+" must include the methods to run";
+			// each call costs what it would have cost on its own, taken all at once so a refused batch costs nothing
+			if ((error == null) && (! rc.allowExec(id, calls.size())))
+				error = RATE_LIMITED;
+			if (error != null) {
+				netOut.println(RemoteControlLib.CRLF_END_RESPONSE+" "+tag+" "+RemoteControlLib.CRLF_ERROR_RESPONSE+" "+error);
+				return;
+			}
+			dispatchBatch(line, calls, parallel, tag);
+		}
+		else if (RemoteControlLib.CRLF_EXEC_ASYNC_COMMAND.equals(command)) {
+			if (! authorized(netOut))
+				return;
+			if (args.size() < 1) {
+				netOut.println(RemoteControlLib.CRLF_ERROR_RESPONSE+" "+RemoteControlLib.CRLF_EXEC_ASYNC_COMMAND+" must include the method to run");
+				return;
+			}
+			if (! rc.allowExec(id)) {
+				netOut.println(RemoteControlLib.CRLF_ERROR_RESPONSE+" "+RATE_LIMITED);
+				return;
+			}
+			try {
+				Job job = rc.getJobRegistry().submit(id, args.get(0), args.toArray());
+				netOut.println(RemoteControlLib.CRLF_JOB_RESPONSE+" "+job.getJobID()+" "+job.getState());
+			}
+			catch (RemoteControlException e) {
+				eventLogger.addEvent("RemoteControlException:"+line+" "+e.getMessage());
+				netOut.println(RemoteControlLib.CRLF_ERROR_RESPONSE+" "+e.getMessage());
+			}
+		}
+		else if (RemoteControlLib.CRLF_STATS_COMMAND.equals(command)) {
+			if (! authorized(netOut))
+				return;
+			for (Map.Entry<String,Long> e : rc.getMetrics().snapshot().entrySet())
+				netOut.println(RemoteControlLib.CRLF_STAT_RESPONSE+" "+e.getKey()+" "+e.getValue());
+			for (Map.Entry<String,Long> e : rc.getScheduler().snapshot().entrySet())
+				netOut.println(RemoteControlLib.CRLF_STAT_RESPONSE+" "+e.getKey()+" "+e.getValue());
+			for (Map.Entry<String,Long> e : rc.getResultCache().snapshot().entrySet())
+				netOut.println(RemoteControlLib.CRLF_STAT_RESPONSE+" "+e.getKey()+" "+e.getValue());
+			netOut.println(RemoteControlLib.CRLF_STAT_RESPONSE+" session.outqueue.policy "+outQueue.getPolicy());
+			netOut.println(RemoteControlLib.CRLF_STAT_RESPONSE+" session.outqueue.depthbytes "+outQueue.getDepthBytes());
+			netOut.println(RemoteControlLib.CRLF_STAT_RESPONSE+" session.outqueue.depthchunks "+outQueue.getDepthChunks());
+			netOut.println(RemoteControlLib.CRLF_STAT_RESPONSE+" session.outqueue.controldepthbytes "+outQueue.getControlDepthBytes());
+			netOut.println(RemoteControlLib.CRLF_STAT_RESPONSE+" session.outqueue.highwaterbytes "+outQueue.getHighWaterBytes());
+			netOut.println(RemoteControlLib.CRLF_STAT_RESPONSE+" session.outqueue.droppedchunks "+outQueue.getDroppedChunks());
+			netOut.println(RemoteControlLib.CRLF_STAT_RESPONSE+" session.outqueue.droppedbytes "+outQueue.getDroppedBytes());
+			StreamCompression.DeflatingOutputStream c = compressor;
+			if (c != null) {
+				netOut.println(RemoteControlLib.CRLF_STAT_RESPONSE+" session.compress.bytesin "+c.getBytesIn());
+				netOut.println(RemoteControlLib.CRLF_STAT_RESPONSE+" session.compress.bytesout "+c.getBytesOut());
+				netOut.println(RemoteControlLib.CRLF_STAT_RESPONSE+" session.compress.cpuusec "+(c.getDeflateNanos() / 1000L));
+			}
+			netOut.flush();
+		}
+		else if (RemoteControlLib.CRLF_JOB_COMMAND.equals(command)) {
+			if (! authorized(netOut))
+				return;
+			handleJobCommand(netOut, args);
+		}
+		else if (RemoteControlLib.CRLF_SUBSCRIBE_COMMAND.equals(command)) {
+			if (! authorized(netOut))
+				return;
+			if (args.size() < 1) {
+				netOut.println(RemoteControlLib.CRLF_ERROR_RESPONSE+" "+RemoteControlLib.CRLF_SUBSCRIBE_COMMAND+" must include the topic");
+				return;
+			}
+			rc.getBroadcaster().subscribe(args.get(0), this);
+			netOut.println(RemoteControlLib.CRLF_SUBSCRIBED_RESPONSE+" "+args.get(0));
+		}
+		else if (RemoteControlLib.CRLF_UNSUBSCRIBE_COMMAND.equals(command)) {
+			if (args.size() < 1) {
+				netOut.println(RemoteControlLib.CRLF_ERROR_RESPONSE+" "+RemoteControlLib.CRLF_UNSUBSCRIBE_COMMAND+" must include the topic");
+				return;
+			}
+			rc.getBroadcaster().unsubscribe(args.get(0), this);
+			netOut.println(RemoteControlLib.CRLF_UNSUBSCRIBED_RESPONSE+" "+args.get(0));
+		}
+		else if (RemoteControlLib.CRLF_PROFILE_COMMAND.equals(command)) {
+			if (! authorized(netOut))
+				return;
+			if (! rc.allowExec(id)) {
+				netOut.println(RemoteControlLib.CRLF_ERROR_RESPONSE+" "+RATE_LIMITED);
+				return;
+			}
+			try {
+				dispatchProfile(newProfiler(args), null);
+			}
+			catch (RemoteControlException e) {
+				netOut.println(RemoteControlLib.CRLF_ERROR_RESPONSE+" "+e.getMessage());
+			}
+		}
+		else if (RemoteControlLib.CRLF_COMPRESS_COMMAND.equals(command)) {
+			if (! authorized(netOut))
+				return;
+			String codec = (args.size() > 0) ? args.get(0).toLowerCase() : "";
+			if (! rc.getConfig().isCompression())
+				netOut.println(RemoteControlLib.CRLF_ERROR_RESPONSE+" compression is turned off on this server");
+			else if (writerThread == null)
+				netOut.println(RemoteControlLib.CRLF_ERROR_RESPONSE+" compression is not available on this transport");
+			else if (compressCodec != null)
+				netOut.println(RemoteControlLib.CRLF_ERROR_RESPONSE+" output is already compressed with "+compressCodec);
+			else if (! StreamCompression.isSupported(codec))
+				netOut.println(RemoteControlLib.CRLF_ERROR_RESPONSE+" unknown codec '"+codec+"'. Codecs: "+StreamCompression.CODECS);
+			else
+				startCompression(codec);
+		}
+	}
+
+
+	private void endSession(BufferedReader netIn) {
+		running = false;
+		cancelTimeouts();
+		rc.getBroadcaster().unsubscribeAll(this);
+		if (cancelOnExit)
+			cancelExecs();
+		else
+			drainExecs();
+		eventLogger.addEvent("Server thread closing in and out streams");
+		// let the writer send whatever is still queued (e.g. a final error message) before the connection goes
+		stopWriter();
+		try {
+			if (netIn != null)
+				netIn.close();
+		} 
+		catch (IOException e) {
+			eventLogger.addEvent("IOException closing network connections:"+e.getMessage());
+		}
+
+		eventLogger.addEvent("Server thread closing connection from:"+connection.getPeerDescription());
+		connection.close();
+		// tell the boss i'm gone
+		rc.delistServer(this);
+		eventLogger.addEvent("CRLFServer exit");
+		closed.countDown();
+	}
+
+
+
+	/**
+	 * Once all four authentication values are in, check them right away rather than waiting for the first exec,
+	 * so that the session counts as authenticated for the auth deadline.
+	 */
+	private void authorizeIfComplete(PrintStream netOut) {
+		if ((id != null) && (nonce != null) && (hash != null) && (time != 0L) && (! hashWasChecked))
+			authorized(netOut);
+	}
+
+
+	/**
+	 * Check that all the authentication values have been offered and that the hash validates.
+	 * The hash is only validated once per offered hash. If the check fails, the reason is sent to the client.
+	 * @param netOut where to send the error, if any
+	 * @return true if the session is authorized to run methods
+	 */
+	private boolean authorized(PrintStream netOut) {
+		String error = authorizationError();
+		if (error != null)
+			netOut.println(RemoteControlLib.CRLF_ERROR_RESPONSE+" "+error);
+		return (error == null);
+	}
+
+	/**
+	 * The check behind authorized(), for callers that report the failure their own way
+	 * @return null if the session is authorized to run methods, otherwise why not
+	 */
+	private String authorizationError() {
+		if (hash == null)
+			return "'hash' is required";
+		if (nonce == null)
+			return "'nonce' is required";
+		if (id == null)
+			return "'id' is required";
+		if (time == 0L)
+			return "'time' is required";
+		if (! hashWasChecked) {
+			// failures are limited per source address, so that guessing costs the guesser time and, once the
+			// guesser is over the limit, costs us no hashing
+			String source = connection.getSourceAddress();
+			if (! rc.allowAuthAttempt(source))
+				return "too many authentication attempts, try again later";
+			if (! rc.validateHash(id, nonce, time, hash)) {
+				rc.authAttemptFailed(source);
+				return "'hash' did not validate";
+			}
+			hashWasChecked = true;
+		}
+		return null;
+	}
+
+
+	/**
+	 * job list | job status (id) | job tail (id) [lines] | job cancel (id)
+	 */
+	private void handleJobCommand(PrintStream netOut, List <String> args) {
+		JobRegistry jobs = rc.getJobRegistry();
+		String sub = (args.size() > 0) ? args.get(0).toLowerCase() : RemoteControlLib.CRLF_JOB_LIST;
+		boolean admin = rc.getConfig().isJobAdmin(id);
+		if (RemoteControlLib.CRLF_JOB_LIST.equals(sub)) {
+			for (Job job : jobs.getJobs())
+				if (admin || id.equals(job.getOwner()))
+					netOut.println(RemoteControlLib.CRLF_JOB_RESPONSE+" "+job.describe());
+			netOut.flush();
+			return;
+		}
+
+		if (args.size() < 2) {
+			netOut.println(RemoteControlLib.CRLF_ERROR_RESPONSE+" "+RemoteControlLib.CRLF_JOB_COMMAND+" "+sub+" must include the job id");
+			return;
+		}
+		Job job = null;
+		try {
+			job = jobs.getJob(Long.parseLong(args.get(1)));
+		}
+		catch (NumberFormatException e) {
+		}
+		// someone else's job is reported as missing, so its id tells a non-admin nothing
+		if ((job == null) || ((! admin) && (! id.equals(job.getOwner())))) {
+			netOut.println(RemoteControlLib.CRLF_ERROR_RESPONSE+" no such job:"+args.get(1));
+			return;
+		}
+
+		if (RemoteControlLib.CRLF_JOB_STATUS.equals(sub)) {
+			netOut.println(RemoteControlLib.CRLF_JOB_RESPONSE+" "+job.describe());
+		}
+		else if (RemoteControlLib.CRLF_JOB_TAIL.equals(sub)) {
+			int lines = RemoteControlLib.CRLF_JOB_TAIL_DEFAULT_LINES;
+			if (args.size() > 2) {
+				try {
+					lines = Integer.parseInt(args.get(2));
+				}
+				catch (NumberFormatException e) {
+					netOut.println(RemoteControlLib.CRLF_ERROR_RESPONSE+" line count was not valid");
+					return;
+				}
+			}
+			for (String s : job.tail(lines))
+				netOut.println(s);
+			netOut.flush();
+		}
+		else if (RemoteControlLib.CRLF_JOB_CANCEL.equals(sub)) {
+			boolean cancelled = job.cancel();
+			eventLogger.addEvent("Job "+job.getJobID()+" cancel requested by:"+id+" cancelled:"+cancelled);
+			netOut.println(RemoteControlLib.CRLF_JOB_RESPONSE+" "+job.getJobID()+" "+job.getState());
+		}
+		else {
+			netOut.println(RemoteControlLib.CRLF_ERROR_RESPONSE+" unknown job command:"+sub);
+		}
+	}
+
+
+
+	/**
+	 * Queue an exec to run after any this session already has queued. Its output, and any error, goes to the bulk lane.
+	 * @param tag for a tagged exec, the client's tag for it; null for a plain exec
+	 */
+	private void dispatchExec(String execLine, List <String> args, String tag) {
+		pendingExecs.incrementAndGet();
+		if (tag != null)
+			usedTaggedExecs = true;
+		queueExec(new ExecTask(new ExecBody(execLine, args), tag));
+	}
+
+	/**
+	 * Queue a batch to run, as one exec, after any this session already has queued
+	 */
+	private void dispatchBatch(String execLine, List <List<String>> calls, boolean parallel, String tag) {
+		pendingExecs.incrementAndGet();
+		usedTaggedExecs = true;
+		queueExec(new ExecTask(new BatchBody(execLine, calls, parallel), tag));
+	}
+
+	/**
+	 * Queue a profile to run, as an exec, after any this session already has queued
+	 */
+	private void dispatchProfile(StackProfiler profiler, String tag) {
+		pendingExecs.incrementAndGet();
+		if (tag != null)
+			usedTaggedExecs = true;
+		queueExec(new ExecTask(new ProfileBody(profiler), tag));
+	}
+
+	/**
+	 * @param args the profile command's arguments: seconds, and optionally the rate in samples per second
+	 * @throws RemoteControlException if profiling is turned off or the arguments are not valid
+	 */
+	private StackProfiler newProfiler(List <String> args)
+	throws RemoteControlException {
+		if (! rc.getConfig().isProfiling())
+			throw new RemoteControlException("profiling is turned off on this server");
+		if (args.size() < 1)
+			throw new RemoteControlException(RemoteControlLib.CRLF_PROFILE_COMMAND+" must include the seconds to sample, and may include the rate in hz (default "+StackProfiler.DEFAULT_HZ+")");
+		try {
+			int seconds = Integer.parseInt(args.get(0));
+			int hz = (args.size() > 1) ? Integer.parseInt(args.get(1)) : StackProfiler.DEFAULT_HZ;
+			return new StackProfiler(seconds, hz);
+		}
+		catch (NumberFormatException e) {
+			throw new RemoteControlException(RemoteControlLib.CRLF_PROFILE_COMMAND+" seconds and hz must be whole numbers");
+		}
+		catch (IllegalArgumentException e) {
+			throw new RemoteControlException(RemoteControlLib.CRLF_PROFILE_COMMAND+" "+e.getMessage());
+		}
+	}
+
+	private void queueExec(ExecTask task) {
+		execs.add(task);
+		synchronized (execQueue) {
+			execQueue.add(task);
+		}
+		submitNextExec(false);
+	}
+
+	/**
+	 * Hand the next queued exec to the scheduler, unless one of this session's is already there.
+	 * A single-flight exec that matches one already queued or running elsewhere waits for that one's output instead.
+	 * @param previousDone true if called because the exec that was with the scheduler has finished
+	 */
+	private void submitNextExec(boolean previousDone) {
+		final ExecTask next;
+		synchronized (execQueue) {
+			if (previousDone)
+				execActive = false;
+			if (execActive)
+				return;
+			ExecTask t;
+			// skip any cancelled while they waited
+			while (((t = execQueue.poll()) != null) && t.isDone())
+				;
+			if (t == null)
+				return;
+			next = t;
+			execActive = true;
+		}
+		// answered from the result cache without calling the host object, but still written on the scheduler:
+		// this may be the reading thread, or the selector thread of every WebSocket session, which must not wait on a full lane
+		final byte[] cached = next.method ? rc.getCachedResult(next.methodName, next.args) : null;
+		if (cached != null) {
+			schedule(next, OUTPUT_TASK, new Runnable() {
+				public void run() {
+					if (next.isDone())
+						return;
+					writeCached(next.out, cached);
+					finishExec(next, null);
+					next.finishShared();
+				}
+			});
+			return;
+		}
+		if (next.method && rc.isSingleFlight(next.methodName)) {
+			SharedExecWaiter waiter = new SharedExecWaiter(next);
+			next.waiter = waiter;
+			SingleFlight.Call call = rc.joinSharedCall(next.methodName, next.args, waiter);
+			if (call == null)
+				return;	// the waiter carries on from here
+			next.sharedCall = call;
+			if (next.isDone()) {
+				// cancelled before it could see the call
+				rc.abandonSharedCall(call);
+				submitNextExec(true);
+				return;
+			}
+		}
+		scheduleExec(next);
+	}
+
+	/**
+	 * Write cached output, which is UTF-8, to an exec's output without decoding it when this session's charset is UTF-8 too
+	 */
+	private void writeCached(PrintStream out, byte[] cached) {
+		if (StandardCharsets.UTF_8.equals(framing.getCharset()))
+			out.write(cached, 0, cached.length);
+		else
+			out.print(new String(cached, StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * An exec has produced all its output. A plain exec's error, if any, follows its output;
+	 * a tagged exec gets its END line, with the error if there was one. The END line goes in through endOut, behind the
+	 * exec's output, so no overflow policy can drop it and leave the client waiting.
+	 */
+	private void finishExec(ExecTask task, Throwable failure) {
+		if (task.tagged == null) {
+			// a last line left without its line end is held back until now
+			bulkOut.flush();
+			if (failure != null)
+				bulkOut.println(failure.getMessage());
+			bulkOut.flush();
+			return;
+		}
+		// a cancelled exec that ran on regardless has already had its END
+		if (! task.ended.compareAndSet(false, true))
+			return;
+		task.out.flush();
+		task.tagged.finish();
+		if (failure == null)
+			endOut.println(RemoteControlLib.CRLF_END_RESPONSE+" "+task.tag+" "+RemoteControlLib.CRLF_OK_RESPONSE);
+		else
+			endOut.println(RemoteControlLib.CRLF_END_RESPONSE+" "+task.tag+" "+RemoteControlLib.CRLF_ERROR_RESPONSE+" "+failureMessage(failure));
+	}
+
+	/**
+	 * @return what went wrong, on one line: for a method that threw, what it threw
+	 */
+	private static String failureMessage(Throwable t) {
+		if ((t instanceof InvocationTargetException) && (t.getCause() != null))
+			t = t.getCause();
+		String message = (t.getMessage() != null) ? t.getMessage() : t.toString();
+		return message.replace('\r', ' ').replace('\n', ' ');
+	}
+
+	private void scheduleExec(ExecTask next) {
+		schedule(next, next.methodName, next);
+	}
+
+	/**
+	 * Have the scheduler run 'work' for 'next', then move on to this session's next exec
+	 * @param costName what the scheduler estimates the cost of 'work' by
+	 */
+	private void schedule(final ExecTask next, String costName, final Runnable work) {
+		try {
+			rc.getScheduler().submit(id, costName, new Runnable() {
+				public void run() {
 					try {
-						time = Long.valueOf(args.get(0));
+						work.run();
 					}
-					catch (NumberFormatException e) {
-						netOut.println(RemoteControlLib.CRLF_ERROR_RESPONSE+" 'time' value was not valid");
-						continue;
-					}
-					if (! rc.validTime(time)) {
-						netOut.println(RemoteControlLib.CRLF_ERROR_RESPONSE+" 'time' value was not valid. Max clock skew limit exceeded.");
-						continue;
+					finally {
+						submitNextExec(true);
 					}
 				}
-				else if (RemoteControlLib.CRLF_DISCONNECT_COMMAND.equals(command)) {
-					running = false;
-					continue;
+			});
+		}
+		catch (RemoteControlException e) {
+			finishExec(next, e);
+			next.cancel(false);
+			submitNextExec(true);
+		}
+	}
+
+	/**
+	 * @param sharedCall if not null, the single-flight call this exec opened, to be run for everyone who joined it
+	 */
+	private void runExec(ExecTask task, String execLine, List <String> args, SingleFlight.Call sharedCall) {
+		execThread = Thread.currentThread();
+		Throwable failure;
+		try {
+			failure = invoke(execLine, args, task.out, sharedCall);
+		}
+		finally {
+			execThread = null;
+		}
+		finishExec(task, failure);
+	}
+
+	/**
+	 * Run one method, sending its output to 'out'
+	 * @return what went wrong, or null if the method ran and returned normally
+	 */
+	private Throwable invoke(String execLine, List <String> args, PrintStream out, SingleFlight.Call sharedCall) {
+		try {
+			eventLogger.addEvent("Invoking method:"+args.get(0)+" with args:"+args);
+			// block here while the called method does its thing, sending output to the bulk lane
+			if (sharedCall != null)
+				rc.invokeSharedCall(sharedCall, args.get(0), out, args.toArray());
+			else
+				rc.invokeUncached(args.get(0), out, args.toArray());
+			return null;
+		} 
+		catch (IllegalArgumentException e) {
+			eventLogger.addEvent("IllegalArgumentException:"+execLine+" "+e.getMessage());
+			return e;
+		} 
+		catch (IllegalAccessException e) {
+			eventLogger.addEvent("IllegalAccessException:"+execLine+" "+e.getMessage());
+			return e;
+		} 
+		catch (InvocationTargetException e) {
+			eventLogger.addEvent("InvocationTargetException:"+execLine+" "+e.getMessage());
+			return e;
+		} 
+		catch (RemoteControlException e) {
+			eventLogger.addEvent("RemoteControlException:"+execLine+" "+e.getMessage());
+			return e;
+		}
+	}
+
+
+	/**
+	 * Sample for the profile's time on its own thread, then send the folded stacks
+	 */
+	private void runProfile(ExecTask task, StackProfiler profiler) {
+		execThread = Thread.currentThread();
+		try {
+			profiler.run(task.out);
+		}
+		catch (InterruptedException e) {
+			// cancelled; done() sends the END
+			return;
+		}
+		catch (RemoteControlException e) {
+			finishExec(task, e);
+			return;
+		}
+		finally {
+			execThread = null;
+		}
+		RemoteControlMetrics metrics = rc.getMetrics();
+		metrics.increment(RemoteControlMetrics.PROFILES_RUN);
+		metrics.add(RemoteControlMetrics.PROFILE_SAMPLES, profiler.getSamples());
+		metrics.add(RemoteControlMetrics.PROFILE_CPU_USEC, profiler.getCpuNanos() / 1000L);
+		eventLogger.addEvent("Profile for:"+id+" "+profiler.getSeconds()+" sec at "+profiler.getHz()+" hz: "+profiler.getTicks()+" ticks ("+
+				profiler.getMissedTicks()+" missed), "+profiler.getSamples()+" samples, "+profiler.getStackCount()+" stacks, sampler cpu "+
+				(profiler.getCpuNanos() / 1000000L)+" msec");
+		finishExec(task, null);
+	}
+
+	/**
+	 * Split a batch's tokens into its calls, each a method and its arguments. The separator may stand on its own
+	 * or be written against a token ("a 1; b 2").
+	 */
+	private static List <List<String>> splitBatch(List <String> tokens) {
+		ArrayList <List<String>> calls = new ArrayList<List<String>>();
+		ArrayList <String> call = new ArrayList<String>();
+		for (String token : tokens) {
+			String[] parts = token.split(Pattern.quote(RemoteControlLib.CRLF_BATCH_SEPARATOR), -1);
+			for (int i = 0; i < parts.length; i++) {
+				if ((i > 0) && (! call.isEmpty())) {
+					calls.add(call);
+					call = new ArrayList<String>();
 				}
-				else if (RemoteControlLib.CRLF_LIST_COMMANDS_COMMAND.equals(command)) {
-					StringBuilder sb =
-						new StringBuilder("commands: " + RemoteControlLib.CRLF_DISCONNECT_COMMAND +
-								" | " + RemoteControlLib.CRLF_LIST_COMMANDS_COMMAND +
-								" | " + RemoteControlLib.CRLF_EXEC_COMMAND);
-					sb.append(" | " + RemoteControlLib.CRLF_ID_COMMAND + 
-							" | " + RemoteControlLib.CRLF_NONCE_COMMAND + " | " + RemoteControlLib.CRLF_HASH_COMMAND + 
-							" | " + RemoteControlLib.CRLF_TIME_COMMAND);
-					netOut.println(sb.toString());
-					sb = new StringBuilder("methods: ");
-					List <String> m = rc.getRegisteredMethods();
-					for (String s : m) 
-						sb.append(s+" ");
-					netOut.println(sb.toString());
-				}
-				else if (RemoteControlLib.CRLF_EXEC_COMMAND.equals(command)) {
-					if (hash == null) {
-						netOut.println(RemoteControlLib.CRLF_ERROR_RESPONSE+" 'hash' is required");
-						continue;
-					}
-					if (nonce == null) {
-						netOut.println(RemoteControlLib.CRLF_ERROR_RESPONSE+" 'nonce' is required");
-						continue;
-					}
-					if (id == null) {
-						netOut.println(RemoteControlLib.CRLF_ERROR_RESPONSE+" 'id' is required");
-						continue;
-					}
-					if (time == 0L) {
-						netOut.println(RemoteControlLib.CRLF_ERROR_RESPONSE+" 'time' is required");
-						continue;
-					}
-					if (args.size() < 1) {
-						netOut.println(RemoteControlLib.CRLF_ERROR_RESPONSE+" "+RemoteControlLib.CRLF_EXEC_COMMAND+" must include the method to run");
-						continue;
-					}
+				if (! parts[i].isEmpty())
+					call.add(parts[i]);
+			}
+		}
+		if (! call.isEmpty())
+			calls.add(call);
+		return calls;
+	}
 
-					if (! hashWasChecked) {
-						if (! rc.validateHash(id, nonce, time, hash)) {
-							netOut.println(RemoteControlLib.CRLF_ERROR_RESPONSE+" 'hash' did not validate");
-							continue;
-						}
-						hashWasChecked = true;
-					}
+	/**
+	 * Run a batch's calls and send their output, each call's followed by its RESULT line, in batch order; then the END.
+	 */
+	private void runBatch(ExecTask task, BatchBody batch) {
+		execThread = Thread.currentThread();
+		try {
+			if (batch.parallel)
+				runBatchParallel(task, batch);
+			else
+				runBatchInOrder(task, batch);
+		}
+		catch (InterruptedException e) {
+			// cancelled; done() sends the END
+			return;
+		}
+		finally {
+			execThread = null;
+		}
+		if (task.isCancelled())
+			return;
+		if ((batch.failed == 0) && (batch.notRun == 0))
+			finishExec(task, null);
+		else
+			finishExec(task, new RemoteControlException(batch.failed+" of "+batch.calls.size()+" calls failed"+
+					((batch.notRun > 0) ? ", "+batch.notRun+" not run" : "")));
+	}
 
-					try {
-						eventLogger.addEvent("Invoking method:"+args.get(0)+" with PipedReader to connect to, and args:(null for now)");
-						// /// block here while the called method does its thing, sending output to netOut
-						rc.invokeMethod(args.get(0),netOut, args.toArray());
-					} 
-					catch (IllegalArgumentException e) {
-						eventLogger.addEvent("IllegalArgumentException:"+line+" "+e.getMessage());
-						netOut.println(e.getMessage());
-					} 
-					catch (IllegalAccessException e) {
-						eventLogger.addEvent("IllegalAccessException:"+line+" "+e.getMessage());
-						netOut.println(e.getMessage());
-					} 
-					catch (InvocationTargetException e) {
-						eventLogger.addEvent("InvocationTargetException:"+line+" "+e.getMessage());
-						netOut.println(e.getMessage());
-					} 
-					catch (RemoteControlException e) {
-						eventLogger.addEvent("RemoteControlException:"+line+" "+e.getMessage());
-						netOut.println(e.getMessage());
-					}
+	/**
+	 * One call after another, each streaming its output as it goes. After a failure the rest are not run.
+	 */
+	private void runBatchInOrder(ExecTask task, BatchBody batch) {
+		for (int i = 0; i < batch.calls.size(); i++) {
+			if (task.isCancelled())
+				return;
+			List <String> call = batch.calls.get(i);
+			if (batch.failed > 0) {
+				endBatchCall(task, batch, i, false, null);
+				continue;
+			}
+			Throwable failure = null;
+			byte[] cached = rc.getCachedResult(call.get(0), call.toArray());
+			if (cached != null)
+				writeCached(task.out, cached);
+			else
+				failure = invoke(batch.execLine, call, task.out, null);
+			endBatchCall(task, batch, i, true, failure);
+		}
+	}
+
+	/**
+	 * All the calls side by side. Helpers on the scheduler take calls as they get a worker, and this thread takes them too,
+	 * so the batch finishes even if no helper ever gets one. Each call's output is held until those before it are sent.
+	 * Once the batch is cancelled, calls not yet started are skipped; those running on a helper run to the end.
+	 */
+	private void runBatchParallel(final ExecTask task, final BatchBody batch)
+	throws InterruptedException {
+		final int n = batch.calls.size();
+		final BatchCall[] results = new BatchCall[n];
+		for (int i = 0; i < n; i++)
+			results[i] = new BatchCall(batch.execLine, batch.calls.get(i));
+		final AtomicInteger next = new AtomicInteger(0);
+		Runnable worker = new Runnable() {
+			public void run() {
+				int i;
+				while ((i = next.getAndIncrement()) < n) {
+					if (task.isDone())
+						results[i].skip();
+					else
+						results[i].run();
 				}
-			} // end of try
-			catch (IOException ioe) {
-				eventLogger.addEvent("SocketServer: IOException on socket listen: " + ioe);
 			}
-		} // end of while
+		};
+		for (int i = 1; i < n; i++) {
+			try {
+				rc.getScheduler().submit(id, batch.calls.get(i).get(0), worker);
+			}
+			catch (RemoteControlException e) {
+				break;	// shutting down: this thread does the rest
+			}
+		}
+		worker.run();
+		// every call has been taken by now; wait for those still running on a helper
+		for (int i = 0; i < n; i++) {
+			results[i].done.await();
+			if (task.isCancelled())
+				return;
+			byte[] output = results[i].output.toByteArray();
+			task.out.write(output, 0, output.length);
+			endBatchCall(task, batch, i, results[i].ran, results[i].failure);
+		}
+	}
 
+	/**
+	 * Send the RESULT line of call 'i' of a batch, after the rest of its output
+	 * @param ran false if the call was not run
+	 */
+	private void endBatchCall(ExecTask task, BatchBody batch, int i, boolean ran, Throwable failure) {
+		task.out.flush();
+		task.tagged.finish();
+		String result;
+		if (! ran) {
+			batch.notRun++;
+			result = RemoteControlLib.CRLF_ERROR_RESPONSE+" not run";
+		}
+		else if (failure != null) {
+			batch.failed++;
+			result = RemoteControlLib.CRLF_ERROR_RESPONSE+" "+failureMessage(failure);
+		}
+		else {
+			result = RemoteControlLib.CRLF_OK_RESPONSE;
+		}
+		endOut.println(RemoteControlLib.CRLF_RESULT_RESPONSE+" "+task.tag+" "+(i + 1)+" "+result);
+	}
 
+	/**
+	 * Interrupt the running exec, drop any that are waiting, and throw away bulk output not yet sent.
+	 * A session that has used tagged execs keeps its bulk output, since it holds the END lines of execs that did finish.
+	 * @return the number of execs cancelled
+	 */
+	private int cancelExecs() {
+		int cancelled = 0;
+		for (Future<?> f : execs.toArray(new Future<?>[0]))
+			if (f.cancel(true))
+				cancelled++;
+		if ((outQueue != null) && (! usedTaggedExecs))
+			outQueue.clearBulk();
+		return cancelled;
+	}
 
-		eventLogger.addEvent("Server thread closing in and out streams");
+	/**
+	 * Let execs already queued run to completion. forceClose() interrupts the wait.
+	 */
+	private void drainExecs() {
+		synchronized (execQueue) {
+			while ((pendingExecs.get() > 0) && (! cancelOnExit)) {
+				try {
+					execQueue.wait(WRITER_DRAIN_MSEC);
+				}
+				catch (InterruptedException e) {
+					break;
+				}
+			}
+		}
+		cancelExecs();
+	}
+
+	/**
+	 * @return true if 'thread' is this session's own thread, or the thread currently running a method for it
+	 */
+	boolean isExecutingOn(Thread thread) {
+		return (thread != null) && ((thread == execThread) || (thread == sessionThread));
+	}
+
+	/**
+	 * Wait for the session to end
+	 * @return true if it has ended
+	 */
+	boolean awaitClosed(long timeoutMsec)
+	throws InterruptedException {
+		return closed.await(timeoutMsec, TimeUnit.MILLISECONDS);
+	}
+
+	public String getName() {
+		return name;
+	}
+
+
+	/**
+	 * Queue a broadcast for this session, in the encoding for its framing. Never blocks.
+	 * @return true if it was queued, false if the session's output queue had no room or the session is closing
+	 */
+	boolean deliver(Broadcaster.Broadcast b) {
+		SessionOutputQueue q = outQueue;
+		if ((! running) || (q == null))
+			return false;
 		try {
-			if (netIn != null)
-				netIn.close();
-			if (netOut != null)
-				netOut.close();
-		} 
+			return q.offer(b.getEncoded(framing), false);
+		}
 		catch (IOException e) {
-			eventLogger.addEvent("IOException closing network connections:"+e.getMessage());
+			return false;
 		}
+	}
+
 
-		eventLogger.addEvent("Server thread closing socket");
+	/**
+	 * Set up the outbound queue for this session, and the control and bulk streams that write into it
+	 * @param outputReady for event-driven sessions, called when there is output to take. Null if a writer thread drains the queue.
+	 */
+	private void openOutput(Runnable outputReady) {
+		RemoteControlConfig rcc = rc.getConfig();
+		outQueue = new SessionOutputQueue(rcc.getOutQueueBytes(), rcc.getOutQueuePolicy(), rcc.getOutQueueBlockMsec(),
+				new Runnable() {
+					public void run() {
+						reap("client is not reading its output fast enough", RemoteControlMetrics.SESSIONS_CLOSED_SLOW_CLIENT);
+					}
+				});
+		outQueue.setReadyListener(outputReady);
 		try {
-			socket.close();
-			eventLogger.addEvent("Socket closed:"+socket.isClosed());
-			socket = null;
+			netOut = new PrintStream(framing.wrap(outQueue.getControlOutputStream()), false, framing.getCharset().name());
+			// whole lines only, so control output goes in between lines of a method's output, never inside one
+			bulkOut = new PrintStream(new LineOutputStream(framing.wrap(outQueue.getOutputStream())), false, framing.getCharset().name());
+			endOut = new PrintStream(framing.wrap(outQueue.getEndOutputStream()), false, framing.getCharset().name());
+		}
+		catch (UnsupportedEncodingException e) {
+			// the charsets come from the JVM itself
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Start the thread that drains the outbound queue to 'socketOut'
+	 */
+	private void startWriter(final OutputStream socketOut) {
+		writerThread = new Thread(new Runnable() {
+			public void run() {
+				try {
+					writeOutput(socketOut);
+				}
+				catch (IOException e) {
+					reap("write failed: "+e.getMessage(), RemoteControlMetrics.SESSIONS_REAPED_DEAD_PEER);
+				}
+				catch (InterruptedException e) {
+				}
+			}
+		}, name+".writer");
+		writerThread.setDaemon(true);
+		writerThread.start();
+	}
+
+	/**
+	 * The writer thread: send queued chunks to 'socketOut', flushing whenever the queue runs dry,
+	 * and compressing everything after the chunk that answers a compress command
+	 */
+	private void writeOutput(OutputStream socketOut)
+	throws IOException, InterruptedException {
+		OutputStream out = new BufferedOutputStream(socketOut);
+		try {
+			byte[] chunk;
+			while ((chunk = outQueue.take()) != null) {
+				out.write(chunk);
+				if (chunk == compressAfter) {
+					out.flush();
+					compressor = new StreamCompression.DeflatingOutputStream(out, compressCodec);
+					out = compressor;
+				}
+				if (outQueue.isEmpty())
+					out.flush();
+			}
+			out.flush();
+		}
+		finally {
+			StreamCompression.DeflatingOutputStream c = compressor;
+			if (c != null)
+				c.end();
+		}
+	}
+
+	/**
+	 * Answer a compress command. The writer switches to compressed output right after the answer goes out,
+	 * so everything queued before it, and the answer itself, is sent as it is.
+	 */
+	private void startCompression(String codec) {
+		netOut.flush();
+		byte[] ack = framing.encode(RemoteControlLib.CRLF_COMPRESSED_RESPONSE+" "+codec);
+		compressCodec = codec;
+		compressAfter = ack;
+		boolean queued = false;
+		try {
+			queued = outQueue.offerControl(ack);
 		}
 		catch (IOException e) {
-			eventLogger.addEvent("IOException when closing socket:"+e.getMessage());
+			// the session is closing
 		}
-		// tell the boss i'm gone
-		rc.delistServer(this);
-		eventLogger.addEvent("CRLFServer exit");
-		
-		this.rc = null;
-		this.socket = null;
+		if (! queued) {
+			// nothing was said, so nothing changes
+			compressAfter = null;
+			compressCodec = null;
+		}
+	}
+
+	/**
+	 * Close the outbound queue and give the writer (or, for an event-driven session, the transport) a moment to drain it.
+	 * Counts this session's drops in the metrics.
+	 */
+	private void stopWriter() {
+		if (outQueue == null)
+			return;
+		netOut.flush();
+		bulkOut.flush();
+		endOut.flush();
+		outQueue.close();
+		try {
+			if (writerThread != null)
+				writerThread.join(WRITER_DRAIN_MSEC);
+			else
+				outQueue.awaitDrained(WRITER_DRAIN_MSEC);
+		}
+		catch (InterruptedException e) {
+		}
+		rc.getMetrics().add(RemoteControlMetrics.OUT_QUEUE_DROPPED_CHUNKS, outQueue.getDroppedChunks());
+		rc.getMetrics().add(RemoteControlMetrics.OUT_QUEUE_DROPPED_BYTES, outQueue.getDroppedBytes());
+		StreamCompression.DeflatingOutputStream c = compressor;
+		if (c != null) {
+			rc.getMetrics().increment(RemoteControlMetrics.COMPRESSED_SESSIONS);
+			rc.getMetrics().add(RemoteControlMetrics.COMPRESS_BYTES_IN, c.getBytesIn());
+			rc.getMetrics().add(RemoteControlMetrics.COMPRESS_BYTES_OUT, c.getBytesOut());
+			rc.getMetrics().add(RemoteControlMetrics.COMPRESS_CPU_USEC, c.getDeflateNanos() / 1000L);
+		}
+	}
+
+	/**
+	 * @return this session's outbound queue, for its depth and drop counters. Null before the session starts.
+	 */
+	public SessionOutputQueue getOutputQueue() {
+		return outQueue;
+	}
+
+
+	/**
+	 * Arm the auth deadline, idle timeout and heartbeat for this session, as configured
+	 */
+	private void startTimeouts() {
+		RemoteControlConfig rcc = rc.getConfig();
+		lastActivity = System.currentTimeMillis();
+		if (rcc.getAuthTimeoutMsec() > 0)
+			authTimeout = rc.getTimers().schedule(new Runnable() {
+				public void run() {
+					if (! hashWasChecked)
+						reap("not authenticated within the auth timeout", RemoteControlMetrics.SESSIONS_REAPED_AUTH);
+				}
+			}, rcc.getAuthTimeoutMsec());
+		if (rcc.getIdleTimeoutMsec() > 0)
+			scheduleIdleCheck(rcc.getIdleTimeoutMsec());
+		if (rcc.getHeartbeatIntervalMsec() > 0) {
+			connection.setKeepAlive(true);
+			scheduleHeartbeat(rcc.getHeartbeatIntervalMsec());
+		}
+	}
+
+	private void scheduleIdleCheck(long delayMsec) {
+		idleTimeout = rc.getTimers().schedule(new Runnable() {
+			public void run() {
+				checkIdle();
+			}
+		}, delayMsec);
+	}
+
+	/**
+	 * Runs on the timer thread. A session that is running a method is never idle, nor is one subscribed to a topic,
+	 * which may only ever receive; a subscriber that has gone away is found by the heartbeat or its full queue.
+	 */
+	private void checkIdle() {
+		RemoteControl rc = this.rc;
+		if ((! running) || (rc == null))
+			return;
+		long idleTimeoutMsec = rc.getConfig().getIdleTimeoutMsec();
+		long idleFor = System.currentTimeMillis() - lastActivity;
+		if ((pendingExecs.get() > 0) || rc.getBroadcaster().isSubscribed(this))
+			scheduleIdleCheck(idleTimeoutMsec);
+		else if (idleFor < idleTimeoutMsec)
+			scheduleIdleCheck(idleTimeoutMsec - idleFor);
+		else
+			reap("idle for "+idleFor+" msec", RemoteControlMetrics.SESSIONS_REAPED_IDLE);
+	}
+
+	private void scheduleHeartbeat(final long intervalMsec) {
+		heartbeatTimeout = rc.getTimers().schedule(new Runnable() {
+			public void run() {
+				PrintStream out = netOut;
+				if ((! running) || (out == null))
+					return;
+				// the control lane never blocks, so this is safe on the timer thread.
+				// A dead peer shows up as a write failure on the writer thread, which reaps the session.
+				out.println(RemoteControlLib.CRLF_HEARTBEAT);
+				rc.getMetrics().increment(RemoteControlMetrics.HEARTBEATS_SENT);
+				scheduleHeartbeat(intervalMsec);
+			}
+		}, intervalMsec);
+	}
+
+	private void cancelTimeouts() {
+		if (authTimeout != null)
+			authTimeout.cancel();
+		if (idleTimeout != null)
+			idleTimeout.cancel();
+		if (heartbeatTimeout != null)
+			heartbeatTimeout.cancel();
 	}
 
 
+	/**
+	 * Close the session now, without waiting for running methods. Used once the shutdown drain deadline has passed.
+	 */
+	void forceClose() {
+		cancelOnExit = true;
+		running = false;
+		cancelExecs();
+		connection.close();
+		Thread t = sessionThread;
+		if (t != null)
+			t.interrupt();
+	}
+
+
+	/**
+	 * Close the session from outside the session thread (e.g. from a timeout), counting the reason in the metrics.
+	 * Closing the connection does not wait on the session's own I/O: a TLS connection skips its close_notify if a write or
+	 * handshake is under way, so the socket is closed at once, and that breaks the session thread and its writer out of
+	 * any read, write or handshake they are blocked in. Safe to call from the timer thread and from a method's thread.
+	 */
+	void reap(String reason, String metricName) {
+		RemoteControl rc = this.rc;
+		if ((! running) || (rc == null))
+			return;
+		running = false;
+		cancelOnExit = true;
+		eventLogger.addEvent("CRLFServer reaping session: "+reason);
+		rc.getMetrics().increment(metricName);
+		connection.close();
+	}
 
+
+	/**
+	 * Stop reading commands. Methods that are already running or queued are allowed to finish,
+	 * then the session closes. See forceClose() for the impatient version.
+	 */
 	public void shutdown() {
 		eventLogger.addEvent("CRLFServer shutting down");
 		this.running = false;
+		// wake the reading thread, which is blocked in readLine()
+		connection.shutdownInput();
 	}
 
 	@Override
@@ -248,4 +1342,367 @@ implements Runnable {
 		this.running = false;
 	}
 
-}
\ No newline at end of file
+
+
+	/**
+	 * An exec waiting for, or running on, the scheduler
+	 */
+	private class ExecTask
+	extends FutureTask<Void> {
+
+		final String methodName;
+		final Object[] args;
+		final boolean method;	// a call of one registered method, which may be answered from the cache or shared
+		// the single-flight call this exec leads, if any
+		volatile SingleFlight.Call sharedCall = null;
+		// waiting on another session's single-flight call, if it is
+		volatile SharedExecWaiter waiter = null;
+		// where the method writes: the bulk lane, or for a tagged exec a stream that tags each line on its way there
+		final PrintStream out;
+		final String tag;
+		final TaggedLineOutputStream tagged;
+		final AtomicBoolean ended = new AtomicBoolean(false);	// a tagged exec's END has been sent, or is being
+
+		ExecTask(ExecBody body, String tag) {
+			this(body, body.args.get(0), body.args.toArray(), true, tag);
+			body.task = this;
+		}
+
+		ExecTask(BatchBody body, String tag) {
+			this(body, RemoteControlLib.CRLF_BATCH_COMMAND, new Object[0], false, tag);
+			body.task = this;
+		}
+
+		ExecTask(ProfileBody body, String tag) {
+			this(body, RemoteControlLib.CRLF_PROFILE_COMMAND, new Object[0], false, tag);
+			body.task = this;
+		}
+
+		private ExecTask(Runnable body, String methodName, Object[] args, boolean method, String tag) {
+			super(body, null);
+			this.methodName = methodName;
+			this.args = args;
+			this.method = method;
+			this.tag = tag;
+			if (tag != null) {
+				tagged = new TaggedLineOutputStream(bulkOut, (RemoteControlLib.CRLF_DATA_RESPONSE+" "+tag+" ").getBytes(framing.getCharset()));
+				out = new PrintStream(tagged, false, framing.getCharset());
+			}
+			else {
+				tagged = null;
+				out = bulkOut;
+			}
+		}
+
+		/**
+		 * Complete with output that another session's exec produced
+		 */
+		void finishShared() {
+			set(null);
+		}
+
+		@Override
+		protected void done() {
+			// runs on completion and on cancellation, started or not
+			execs.remove(this);
+			pendingExecs.decrementAndGet();
+			lastActivity = System.currentTimeMillis();
+			// a shared call this exec will now never run is handed to one of the sessions waiting on it
+			SingleFlight.Call call = sharedCall;
+			if (call != null)
+				rc.abandonSharedCall(call);
+			// a tagged exec cancelled before it could finish is still owed its END, behind the DATA it did send
+			if ((tagged != null) && isCancelled() && ended.compareAndSet(false, true)) {
+				out.flush();
+				tagged.finish();
+				endOut.println(RemoteControlLib.CRLF_END_RESPONSE+" "+tag+" "+RemoteControlLib.CRLF_ERROR_RESPONSE+" cancelled");
+			}
+			synchronized (execQueue) {
+				execQueue.notifyAll();
+			}
+			// one cancelled while it waits on another session's call lets the session's next exec go now
+			SharedExecWaiter w = waiter;
+			if ((w != null) && isCancelled())
+				w.release();
+		}
+	}
+
+	private class ExecBody
+	implements Runnable {
+
+		private final String execLine;
+		private final List <String> args;
+		private ExecTask task;
+
+		ExecBody(String execLine, List <String> args) {
+			this.execLine = execLine;
+			this.args = args;
+		}
+
+		public void run() {
+			runExec(task, execLine, args, task.sharedCall);
+		}
+	}
+
+	private class BatchBody
+	implements Runnable {
+
+		private final String execLine;
+		private final List <List<String>> calls;
+		private final boolean parallel;
+		private ExecTask task;
+		// counted by the thread running the batch
+		int failed = 0;
+		int notRun = 0;
+
+		BatchBody(String execLine, List <List<String>> calls, boolean parallel) {
+			this.execLine = execLine;
+			this.calls = calls;
+			this.parallel = parallel;
+		}
+
+		public void run() {
+			runBatch(task, this);
+		}
+	}
+
+	private class ProfileBody
+	implements Runnable {
+
+		private final StackProfiler profiler;
+		private ExecTask task;
+
+		ProfileBody(StackProfiler profiler) {
+			this.profiler = profiler;
+		}
+
+		public void run() {
+			runProfile(task, profiler);
+		}
+	}
+
+	/**
+	 * One call of a parallel batch, with its output held until it is its turn to be sent
+	 */
+	private class BatchCall {
+
+		private final String execLine;
+		private final List <String> args;
+		final ByteArrayOutputStream output = new ByteArrayOutputStream();
+		// set before 'done' counts down
+		Throwable failure = null;
+		boolean ran = false;
+		final CountDownLatch done = new CountDownLatch(1);
+
+		BatchCall(String execLine, List <String> args) {
+			this.execLine = execLine;
+			this.args = args;
+		}
+
+		void run() {
+			PrintStream ps = new PrintStream(output, false, framing.getCharset());
+			try {
+				byte[] cached = rc.getCachedResult(args.get(0), args.toArray());
+				if (cached != null)
+					writeCached(ps, cached);
+				else
+					failure = invoke(execLine, args, ps, null);
+				ran = true;
+			}
+			finally {
+				ps.flush();
+				done.countDown();
+			}
+		}
+
+		void skip() {
+			done.countDown();
+		}
+	}
+
+	/**
+	 * A single-flight exec waiting on the identical one another session opened. Takes no thread while it waits.
+	 * The shared output is written on a task of this session's own, so a waiter with a full lane holds up no one else.
+	 */
+	private class SharedExecWaiter
+	implements SingleFlight.Waiter {
+
+		private final ExecTask task;
+		// set by whichever comes first of the call's end, its lead, and the exec's cancellation; that one moves the session on
+		private final AtomicBoolean claimed = new AtomicBoolean(false);
+
+		SharedExecWaiter(ExecTask task) {
+			this.task = task;
+		}
+
+		/**
+		 * The exec was cancelled while it waited: this session need not wait for the call to end
+		 */
+		void release() {
+			if (claimed.compareAndSet(false, true))
+				submitNextExec(true);
+		}
+
+		public void done(final String output, final Throwable failure) {
+			if (! claimed.compareAndSet(false, true))
+				return;
+			schedule(task, OUTPUT_TASK, new Runnable() {
+				public void run() {
+					if (task.isDone())
+						return;
+					task.out.print(output);
+					finishExec(task, failure);
+					task.finishShared();
+				}
+			});
+		}
+
+		public void lead(SingleFlight.Call call) {
+			if (! claimed.compareAndSet(false, true)) {
+				// cancelled and released already; pass the call on
+				rc.abandonSharedCall(call);
+				return;
+			}
+			task.sharedCall = call;
+			if (task.isDone()) {
+				// cancelled while it waited; pass the call on
+				rc.abandonSharedCall(call);
+				submitNextExec(true);
+			}
+			else {
+				scheduleExec(task);
+			}
+		}
+	}
+
+
+	/**
+	 * Passes on only whole lines, holding a line back until its line end arrives. flush() sends a partial line as it is,
+	 * and so does a line longer than MAX_LINE_BYTES, so that a method that never ends a line cannot fill the heap.
+	 */
+	private static class LineOutputStream
+	extends OutputStream {
+
+		private static final int MAX_LINE_BYTES = 65536;
+
+		private final OutputStream out;
+		private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+
+		LineOutputStream(OutputStream out) {
+			this.out = out;
+		}
+
+		public synchronized void write(int b)
+		throws IOException {
+			line.write(b);
+			if ((b == '\n') || (line.size() >= MAX_LINE_BYTES))
+				emit();
+		}
+
+		public synchronized void write(byte[] b, int off, int len)
+		throws IOException {
+			int end = off + len;
+			int last = end - 1;
+			while ((last >= off) && (b[last] != '\n'))
+				last--;
+			if (last >= off) {
+				// whole lines go straight through when nothing is held back
+				if (line.size() == 0) {
+					out.write(b, off, last + 1 - off);
+				}
+				else {
+					line.write(b, off, last + 1 - off);
+					emit();
+				}
+				off = last + 1;
+			}
+			line.write(b, off, end - off);
+			if (line.size() >= MAX_LINE_BYTES)
+				emit();
+		}
+
+		public synchronized void flush()
+		throws IOException {
+			if (line.size() > 0)
+				emit();
+			out.flush();
+		}
+
+		public void close()
+		throws IOException {
+			flush();
+			out.close();
+		}
+
+		private void emit()
+		throws IOException {
+			byte[] b = line.toByteArray();
+			line.reset();
+			out.write(b, 0, b.length);
+		}
+	}
+
+	/**
+	 * Puts a tagged exec's output on the bulk lane a whole line at a time, each line behind the tag's prefix.
+	 * Writing whole lines keeps control-lane output from landing in the middle of one.
+	 */
+	private static class TaggedLineOutputStream
+	extends OutputStream {
+
+		private final OutputStream out;
+		private final byte[] prefix;
+		private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+
+		TaggedLineOutputStream(OutputStream out, byte[] prefix) {
+			this.out = out;
+			this.prefix = prefix;
+		}
+
+		public synchronized void write(int b)
+		throws IOException {
+			line.write(b);
+			if (b == '\n')
+				emit();
+		}
+
+		public synchronized void write(byte[] b, int off, int len)
+		throws IOException {
+			int end = off + len;
+			for (int i = off; i < end; i++) {
+				if (b[i] == '\n') {
+					line.write(b, off, i + 1 - off);
+					emit();
+					off = i + 1;
+				}
+			}
+			line.write(b, off, end - off);
+		}
+
+		/**
+		 * Send a last line that was left without its line end
+		 */
+		synchronized void finish() {
+			if (line.size() == 0)
+				return;
+			byte[] eol = NEWLINE.getBytes(StandardCharsets.ISO_8859_1);
+			line.write(eol, 0, eol.length);
+			try {
+				emit();
+			}
+			catch (IOException e) {
+				// the session's output is closed
+				line.reset();
+			}
+		}
+
+		private void emit()
+		throws IOException {
+			byte[] b = new byte[prefix.length + line.size()];
+			System.arraycopy(prefix, 0, b, 0, prefix.length);
+			System.arraycopy(line.toByteArray(), 0, b, prefix.length, line.size());
+			line.reset();
+			out.write(b, 0, b.length);
+		}
+	}
+
+}
@@ -0,0 +1,146 @@
+package com.challengeandresponse.remotecontrol;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.UnixDomainSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/**
+ * A Connection over a blocking SocketChannel, which may be TCP or a Unix domain socket, optionally with TLS on top.
+ * Used by TcpTransport and UnixDomainTransport on the server side, and by RemoteControlClient.
+ *
+ * <p>The streams go straight to the channel's read() and write(). (The streams from java.nio.channels.Channels
+ * are not used because they lock the channel for both directions, so a blocked reader would stall the writer.)</p>
+ *
+ * @author jim
+ *
+ */
+public class ChannelConnection
+implements Connection {
+
+	private final SocketChannel channel;
+	private final TlsChannel tls;	// null if not TLS
+	private final String peer;
+
+	/**
+	 * @param channel a connected channel, in blocking mode
+	 * @param tls if not null, all traffic goes through this TLS channel over 'channel'. The handshake is done in open().
+	 * @param peer description of the other end, for logging
+	 */
+	public ChannelConnection(SocketChannel channel, TlsChannel tls, String peer) {
+		this.channel = channel;
+		this.tls = tls;
+		this.peer = peer;
+	}
+
+
+	public void open()
+	throws IOException {
+		if (tls != null)
+			tls.handshake();
+	}
+
+	public InputStream getInputStream() {
+		if (tls != null)
+			return tls.getInputStream();
+		return new InputStream() {
+			public int read()
+			throws IOException {
+				byte[] b = new byte[1];
+				return (read(b, 0, 1) < 0) ? -1 : (b[0] & 0xff);
+			}
+
+			public int read(byte[] b, int off, int len)
+			throws IOException {
+				if (len == 0)
+					return 0;
+				return channel.read(ByteBuffer.wrap(b, off, len));
+			}
+		};
+	}
+
+	public OutputStream getOutputStream() {
+		if (tls != null)
+			return tls.getOutputStream();
+		return new OutputStream() {
+			public void write(int b)
+			throws IOException {
+				write(new byte[] { (byte) b }, 0, 1);
+			}
+
+			public void write(byte[] b, int off, int len)
+			throws IOException {
+				ByteBuffer bb = ByteBuffer.wrap(b, off, len);
+				while (bb.hasRemaining())
+					channel.write(bb);
+			}
+		};
+	}
+
+	public boolean isSecure() {
+		return (tls != null);
+	}
+
+	public String getPeerDescription() {
+		return peer;
+	}
+
+	public String getSourceAddress() {
+		try {
+			SocketAddress sa = channel.getRemoteAddress();
+			if (sa instanceof InetSocketAddress)
+				return ((InetSocketAddress) sa).getAddress().getHostAddress();
+			if (sa instanceof UnixDomainSocketAddress)
+				return null;
+		}
+		catch (IOException e) {
+		}
+		return peer;
+	}
+
+	public void setKeepAlive(boolean on) {
+		try {
+			channel.setOption(StandardSocketOptions.SO_KEEPALIVE, on);
+		}
+		catch (UnsupportedOperationException e) {
+			// Unix domain sockets have no keepalive; a dead peer still shows up as a failed write
+		}
+		catch (IOException e) {
+		}
+	}
+
+	public void shutdownInput() {
+		try {
+			channel.shutdownInput();
+		}
+		catch (IOException e) {
+		}
+	}
+
+	public void close() {
+		try {
+			if (tls != null)
+				tls.close();
+			channel.close();
+		}
+		catch (IOException e) {
+		}
+	}
+
+	/**
+	 * @return true until the channel is closed
+	 */
+	public boolean isOpen() {
+		return channel.isOpen();
+	}
+
+	public SocketChannel getChannel() {
+		return channel;
+	}
+
+}
@@ -0,0 +1,62 @@
+package com.challengeandresponse.remotecontrol;
+
+import java.net.InetAddress;
+import java.util.*;
+
+/**
+ * The part of RemoteControlConfig that is consulted on every connection and login: client secrets and allowed hosts.
+ * A snapshot never changes once made. RemoteControlConfig publishes a new one through an AtomicReference whenever a secret
+ * or host is added or the config file is reloaded, so readers never lock and never see a half-applied change.
+ *
+ * @author jim
+ *
+ */
+public final class ConfigSnapshot {
+
+	private final Map <String,String> namesToSecrets;
+	private final Set <InetAddress> allowedHosts;
+	private final long createdAt;
+
+	ConfigSnapshot(Map <String,String> namesToSecrets, Collection <InetAddress> allowedHosts) {
+		this.namesToSecrets = Collections.unmodifiableMap(new HashMap<String,String>(namesToSecrets));
+		this.allowedHosts = Collections.unmodifiableSet(new HashSet<InetAddress>(allowedHosts));
+		createdAt = System.currentTimeMillis();
+	}
+
+
+	static ConfigSnapshot empty() {
+		return new ConfigSnapshot(Collections.<String,String>emptyMap(), Collections.<InetAddress>emptySet());
+	}
+
+
+	/**
+	 * @return the shared secret for 'clientID', or null if there is none
+	 */
+	public String getSecret(String clientID) {
+		return namesToSecrets.get(clientID);
+	}
+
+	public boolean isAllowedHost(InetAddress ia) {
+		return allowedHosts.contains(ia);
+	}
+
+	public Set <InetAddress> getAllowedHosts() {
+		return allowedHosts;
+	}
+
+	public Set <String> getClientIDs() {
+		return namesToSecrets.keySet();
+	}
+
+	/**
+	 * @return when this snapshot was made, in msec since the epoch
+	 */
+	public long getCreatedAt() {
+		return createdAt;
+	}
+
+	public String toString() {
+		return namesToSecrets.size()+" clients, "+allowedHosts.size()+" allowed hosts";
+	}
+
+}
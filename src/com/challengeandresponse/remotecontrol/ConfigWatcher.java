@@ -0,0 +1,116 @@
+package com.challengeandresponse.remotecontrol;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.TimeUnit;
+
+import com.challengeandresponse.configfilereader.ElementNotFoundException;
+import com.challengeandresponse.eventlogger.EventLoggerI;
+
+/**
+ * Watches the config file a RemoteControlConfig was loaded from, and calls its reload() when the file changes,
+ * on the watcher's own thread.
+ *
+ * <p>The directory is watched rather than the file, so that editors and deploy tools that replace the file
+ * (write a new one, then rename it over the old) are seen too. Changes are collected for DEBOUNCE_MSEC after the first,
+ * so a file written in several steps is read once, when it is complete. A reload that fails is logged and the
+ * previous snapshot stays in force.</p>
+ *
+ * @author jim
+ *
+ */
+class ConfigWatcher
+implements Runnable {
+
+	static final long DEBOUNCE_MSEC = 250;
+
+	private final RemoteControlConfig rcc;
+	private final EventLoggerI eventLogger;
+	private final Path file;
+	private final WatchService watchService;
+	private final Thread thread;
+
+	/**
+	 * Start watching rcc's config file
+	 * @throws IOException if the directory cannot be watched
+	 */
+	ConfigWatcher(RemoteControlConfig rcc, EventLoggerI el)
+	throws IOException {
+		this.rcc = rcc;
+		this.eventLogger = el;
+		file = Paths.get(rcc.getFilePath()).toAbsolutePath();
+		watchService = FileSystems.getDefault().newWatchService();
+		file.getParent().register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+		thread = new Thread(this, "RemoteControl.configwatcher");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+
+	public void run() {
+		try {
+			while (true) {
+				WatchKey key = watchService.take();
+				boolean changed = collect(key);
+				// let the writer finish, and fold the rest of its events into one reload
+				while ((key = watchService.poll(DEBOUNCE_MSEC, TimeUnit.MILLISECONDS)) != null)
+					changed |= collect(key);
+				if (changed)
+					reload();
+			}
+		}
+		catch (ClosedWatchServiceException e) {
+			// close() was called
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * @return true if any of 'key's events are for the config file
+	 */
+	private boolean collect(WatchKey key) {
+		boolean changed = false;
+		for (WatchEvent<?> event : key.pollEvents()) {
+			Object context = event.context();
+			if ((event.kind() == StandardWatchEventKinds.OVERFLOW) || ((context instanceof Path) && file.getFileName().equals(context)))
+				changed = true;
+		}
+		key.reset();
+		return changed;
+	}
+
+	private void reload() {
+		try {
+			ConfigSnapshot cs = rcc.reload();
+			eventLogger.addEvent("RemoteControl: reloaded "+file+": "+cs);
+		}
+		catch (RemoteControlException e) {
+			eventLogger.addEvent("RemoteControl: cannot reload "+file+", keeping the current clients and hosts: "+e.getMessage());
+		}
+		catch (ElementNotFoundException e) {
+			eventLogger.addEvent("RemoteControl: cannot reload "+file+", keeping the current clients and hosts: "+e.getMessage());
+		}
+	}
+
+	/**
+	 * Stop watching
+	 */
+	void close() {
+		try {
+			watchService.close();
+		}
+		catch (IOException e) {
+			eventLogger.addEvent("RemoteControl: IOException closing the config watcher: "+e.getMessage());
+		}
+	}
+
+}
@@ -0,0 +1,66 @@
+package com.challengeandresponse.remotecontrol;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * One accepted connection, as handed to a CRLFServer by a Transport.
+ * The protocol layer only sees these streams, so it does not care whether the bytes
+ * arrive over TCP, TLS, a Unix domain socket, or anything else a Transport can supply.
+ *
+ * <p>The input stream is read by the session thread while the output stream is written by the
+ * session's writer thread, so implementations must allow the two to be used at the same time.</p>
+ *
+ * @author jim
+ *
+ */
+public interface Connection {
+
+	/**
+	 * Finish setting up the connection, e.g. a TLS handshake. Called on the session's own thread
+	 * before the streams are used, so a slow peer only holds up its own session.
+	 * @throws IOException if the connection cannot be set up
+	 */
+	public void open()
+	throws IOException;
+
+	public InputStream getInputStream()
+	throws IOException;
+
+	public OutputStream getOutputStream()
+	throws IOException;
+
+	/**
+	 * @return true if the connection is encrypted (e.g. TLS)
+	 */
+	public boolean isSecure();
+
+	/**
+	 * @return who is on the other end, for logging. e.g. an IP address or a socket path
+	 */
+	public String getPeerDescription();
+
+	/**
+	 * @return the address the connection came from, as a key for per-source limits. e.g. an IP address. Null for a
+	 * Unix socket: its peers are all on this host, and the socket file's permissions already say who may connect.
+	 */
+	public String getSourceAddress();
+
+	/**
+	 * Ask the transport to probe for dead peers, if it can. Transports that cannot simply ignore this.
+	 */
+	public void setKeepAlive(boolean on);
+
+	/**
+	 * Stop reading, so that a thread blocked reading sees end of stream. Output is left alone.
+	 */
+	public void shutdownInput();
+
+	/**
+	 * Close the connection. Threads blocked reading or writing get an IOException. Must not wait for them to finish first:
+	 * this is how a session stuck on a peer that sends or reads nothing is broken off.
+	 */
+	public void close();
+
+}
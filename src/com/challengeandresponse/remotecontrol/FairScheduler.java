@@ -0,0 +1,250 @@
+package com.challengeandresponse.remotecontrol;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Runs exec commands for all sessions on one pool of worker threads, sharing the pool fairly between client ids
+ * ("tenants") rather than first come, first served.
+ *
+ * <p>Each client id has its own queue. When a worker is free, the next queue to serve is picked by deficit round robin:
+ * each tenant earns credit in proportion to its weight every round, and a method is started when its tenant has
+ * credit for it. A method's cost is the running average of how long that method has taken before, so a tenant
+ * calling heavy methods gets fewer of them per round than one calling light ones.</p>
+ *
+ * <p>A tenant may not hold more than its weighted share of the workers while others are waiting, and one worker is
+ * always kept back from a tenant that has the pool to itself. A health check from one client therefore starts
+ * promptly even while another client's bulk job has every other worker busy.</p>
+ *
+ * <p>Queueing delay (from submit to start) is kept per tenant and reported by snapshot(), which the 'stats' command prints.</p>
+ *
+ * @author jim
+ *
+ */
+public class FairScheduler {
+
+	private static final String THREAD_NAME_PREFIX = "RemoteControl.exec-";
+	// credit earned per round by a tenant of weight 1, in msec of estimated run time
+	private static final long QUANTUM_MSEC = 10;
+	// cost assumed for a method that has not run yet
+	private static final long DEFAULT_COST_MSEC = 1;
+
+	private final RemoteControlConfig rcc;
+	private final int threads;
+	private final Thread[] workers;
+
+	private final HashMap <String,Tenant> tenants;	// every tenant seen, for stats; guarded by 'this'
+	private final ArrayList <Tenant> ring;			// tenants with queued work, in round robin order; guarded by 'this'
+	private int cursor = 0;
+	private boolean shutdown = false;
+
+	// running average run time of each method, in msec
+	private final ConcurrentHashMap <String,Long> costs;
+
+	/**
+	 * @param rcc config holding the number of workers and the weight of each client id
+	 */
+	FairScheduler(RemoteControlConfig rcc) {
+		this.rcc = rcc;
+		threads = Math.max(1, rcc.getExecThreads());
+		tenants = new HashMap<String,Tenant>();
+		ring = new ArrayList<Tenant>();
+		costs = new ConcurrentHashMap<String,Long>();
+		workers = new Thread[threads];
+		for (int i = 0; i < threads; i++) {
+			workers[i] = new Thread(new Runnable() {
+				public void run() {
+					work();
+				}
+			}, THREAD_NAME_PREFIX + (i + 1));
+			workers[i].setDaemon(true);
+			workers[i].start();
+		}
+	}
+
+
+	/**
+	 * Queue 'task' to run for 'clientID'. Tasks for one client id may run concurrently with each other;
+	 * callers that need ordering submit the next task when the previous one is done.
+	 * @param methodName the method 'task' runs, used to estimate its cost
+	 * @throws RemoteControlException if the scheduler has been shut down
+	 */
+	public synchronized void submit(String clientID, String methodName, Runnable task)
+	throws RemoteControlException {
+		if (shutdown)
+			throw new RemoteControlException("RemoteControl is shutting down");
+		Tenant t = tenants.get(clientID);
+		if (t == null) {
+			t = new Tenant(clientID);
+			tenants.put(clientID, t);
+		}
+		t.weight = Math.max(1, rcc.getClientExecWeight(clientID));
+		if (t.queue.isEmpty())
+			ring.add(t);
+		t.queue.add(new Entry(task, methodName));
+		notify();
+	}
+
+	/**
+	 * Stop the workers once the queues are empty. Tasks already queued still run; cancel them first if they should not.
+	 */
+	public synchronized void shutdown() {
+		shutdown = true;
+		notifyAll();
+	}
+
+
+	private void work() {
+		while (true) {
+			Entry e;
+			synchronized (this) {
+				while ((e = next()) == null) {
+					if (shutdown && ring.isEmpty())
+						return;
+					try {
+						wait();
+					}
+					catch (InterruptedException ie) {
+						// a cancelled task's interrupt can land here; keep serving
+					}
+				}
+			}
+			long start = System.nanoTime();
+			try {
+				e.task.run();
+			}
+			catch (RuntimeException re) {
+				// FutureTasks catch their own; anything else must not take the worker down
+			}
+			long msec = (System.nanoTime() - start) / 1000000L;
+			// clear an interrupt meant for the task, so it does not hit the next one
+			Thread.interrupted();
+			Long old = costs.get(e.methodName);
+			costs.put(e.methodName, (old == null) ? Math.max(DEFAULT_COST_MSEC, msec) : Math.max(DEFAULT_COST_MSEC, (old * 7 + msec) / 8));
+			synchronized (this) {
+				e.tenant.running--;
+				e.tenant.executed++;
+				// a freed slot may make a capped tenant eligible again
+				notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Deficit round robin over the tenants that have work and are under their share of the workers.
+	 * Caller holds the lock.
+	 * @return the task to run next, or null if none may start now
+	 */
+	private Entry next() {
+		if (ring.isEmpty())
+			return null;
+		int busyWeight = 0;
+		for (Tenant t : tenants.values())
+			if ((! t.queue.isEmpty()) || (t.running > 0))
+				busyWeight += t.weight;
+
+		while (true) {
+			long minRounds = Long.MAX_VALUE;
+			int n = ring.size();
+			for (int i = 0; i < n; i++) {
+				int index = (cursor + i) % n;
+				Tenant t = ring.get(index);
+				if (t.running >= share(t, busyWeight))
+					continue;
+				Entry head = t.queue.peek();
+				long cost = cost(head.methodName);
+				if (t.deficit >= cost) {
+					t.deficit -= cost;
+					t.queue.poll();
+					t.running++;
+					cursor = index;
+					if (t.queue.isEmpty()) {
+						// an idle tenant keeps no credit, as in DRR
+						t.deficit = 0;
+						ring.remove(index);
+						if (cursor >= ring.size())
+							cursor = 0;
+					}
+					head.tenant = t;
+					long delay = System.nanoTime() - head.queuedAt;
+					t.delayTotalNanos += delay;
+					t.delayMaxNanos = Math.max(t.delayMaxNanos, delay);
+					return head;
+				}
+				long quantum = QUANTUM_MSEC * t.weight;
+				minRounds = Math.min(minRounds, (cost - t.deficit + quantum - 1) / quantum);
+			}
+			if (minRounds == Long.MAX_VALUE)
+				return null;	// every tenant with work is at its share
+			// no one can afford their next method: play as many rounds as it takes for someone to
+			for (Tenant t : ring)
+				if (t.running < share(t, busyWeight))
+					t.deficit += minRounds * QUANTUM_MSEC * t.weight;
+		}
+	}
+
+	/**
+	 * @return how many workers 't' may use at once: its weighted share of all but one worker, and at least one
+	 */
+	private int share(Tenant t, int busyWeight) {
+		if (threads == 1)
+			return 1;
+		return Math.max(1, (int) Math.ceil((double) (threads - 1) * t.weight / Math.max(1, busyWeight)));
+	}
+
+	private long cost(String methodName) {
+		Long c = costs.get(methodName);
+		return (c == null) ? DEFAULT_COST_MSEC : c.longValue();
+	}
+
+
+	/**
+	 * @return per-tenant counts and queueing delays, keyed "scheduler.&lt;clientid&gt;.&lt;name&gt;"
+	 */
+	public synchronized SortedMap <String,Long> snapshot() {
+		TreeMap <String,Long> tm = new TreeMap<String,Long>();
+		tm.put("scheduler.threads", (long) threads);
+		for (Tenant t : tenants.values()) {
+			String prefix = "scheduler."+t.clientID+".";
+			tm.put(prefix+"weight", (long) t.weight);
+			tm.put(prefix+"waiting", (long) t.queue.size());
+			tm.put(prefix+"running", (long) t.running);
+			tm.put(prefix+"executed", t.executed);
+			long started = t.executed + t.running;
+			tm.put(prefix+"queuedelay.avgmsec", (started == 0) ? 0L : t.delayTotalNanos / started / 1000000L);
+			tm.put(prefix+"queuedelay.maxmsec", t.delayMaxNanos / 1000000L);
+		}
+		return tm;
+	}
+
+
+
+	private static class Tenant {
+		final String clientID;
+		final ArrayDeque <Entry> queue = new ArrayDeque<Entry>();
+		int weight = 1;
+		int running = 0;
+		long deficit = 0;
+		long executed = 0;
+		long delayTotalNanos = 0;
+		long delayMaxNanos = 0;
+
+		Tenant(String clientID) {
+			this.clientID = clientID;
+		}
+	}
+
+	private static class Entry {
+		final Runnable task;
+		final String methodName;
+		final long queuedAt;
+		Tenant tenant;
+
+		Entry(Runnable task, String methodName) {
+			this.task = task;
+			this.methodName = methodName;
+			this.queuedAt = System.nanoTime();
+		}
+	}
+
+}
@@ -0,0 +1,199 @@
+package com.challengeandresponse.remotecontrol;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.regex.Pattern;
+
+/**
+ * Runs one command on many remotes at once, for RemoteControlClient's fan-out mode.
+ *
+ * <p>At most 'parallel' remotes are worked on at a time; as each finishes the next is started, so a sweep takes about as
+ * long as its slowest remotes rather than the sum of them all. Each remote gets 'timeoutMsec' for its connect, login and call
+ * together. Each remote's output is printed as soon as it is in, every line prefixed with the remote's label, and a
+ * summary of successes, failures and latencies is printed at the end.</p>
+ *
+ * @author jim
+ *
+ */
+public class FanOut {
+
+	public static final int PARALLEL = 32;
+	public static final long TIMEOUT_MSEC = 30000;
+
+	private final AsyncRemoteControlClient client;
+	private final int parallel;
+	private final long timeoutMsec;
+
+
+	public FanOut(AsyncRemoteControlClient client, int parallel, long timeoutMsec) {
+		this.client = client;
+		this.parallel = Math.max(1, parallel);
+		this.timeoutMsec = timeoutMsec;
+	}
+
+
+	/**
+	 * The labels in 'config' that 'spec' selects: a comma-separated list of labels, each of which may be a glob using * and ?
+	 * @return the matching labels, sorted, each once
+	 */
+	public static List <String> matchLabels(RemoteControlClientConfig config, String spec) {
+		ArrayList <String> matched = new ArrayList<String>();
+		for (String part : spec.split(",")) {
+			part = part.trim();
+			if (part.isEmpty())
+				continue;
+			Pattern p = Pattern.compile(globToRegex(part));
+			for (String label : config.getLabels())
+				if (p.matcher(label).matches() && (! matched.contains(label)))
+					matched.add(label);
+		}
+		Collections.sort(matched);
+		return matched;
+	}
+
+	private static String globToRegex(String glob) {
+		StringBuilder sb = new StringBuilder();
+		for (String literal : glob.split("((?<=[*?])|(?=[*?]))")) {
+			if (literal.equals("*"))
+				sb.append(".*");
+			else if (literal.equals("?"))
+				sb.append('.');
+			else if (! literal.isEmpty())
+				sb.append(Pattern.quote(literal));
+		}
+		return sb.toString();
+	}
+
+
+	/**
+	 * Run 'method' with 'args' on every remote in 'labels', printing to 'out' as results come in, then a summary
+	 * @return the number of remotes that did not succeed
+	 */
+	public int run(List <String> labels, final String method, final Object[] args, final PrintWriter out)
+	throws InterruptedException {
+		final long started = System.nanoTime();
+		final Summary summary = new Summary();
+		final CountDownLatch finished = new CountDownLatch(labels.size());
+		final List <String> queue = new ArrayList<String>(labels);
+		final AtomicInteger next = new AtomicInteger(0);
+
+		Runnable worker = new Runnable() {
+			public void run() {
+				int i = next.getAndIncrement();
+				if (i >= queue.size())
+					return;
+				final Runnable self = this;
+				final String label = queue.get(i);
+				final long t0 = System.nanoTime();
+				final CompletableFuture<RemoteSession> connecting = client.connect(label);
+				connecting.thenCompose(new Function<RemoteSession,CompletionStage<Response>>() {
+					public CompletionStage<Response> apply(RemoteSession session) {
+						return session.call(method, args);
+					}
+				}).orTimeout(timeoutMsec, TimeUnit.MILLISECONDS).whenComplete(new BiConsumer<Response,Throwable>() {
+					public void accept(Response r, Throwable t) {
+						long msec = (System.nanoTime() - t0) / 1000000L;
+						report(out, summary, label, r, t, msec);
+						// whenever the connect finishes, even after a timeout, the session is closed
+						connecting.thenAccept(new Consumer<RemoteSession>() {
+							public void accept(RemoteSession session) {
+								session.close();
+							}
+						});
+						finished.countDown();
+						self.run();
+					}
+				});
+			}
+		};
+		for (int i = 0; i < Math.min(parallel, labels.size()); i++)
+			worker.run();
+		finished.await();
+
+		long elapsed = (System.nanoTime() - started) / 1000000L;
+		summary.print(out, labels.size(), elapsed);
+		return labels.size() - summary.ok;
+	}
+
+	private void report(PrintWriter out, Summary summary, String label, Response r, Throwable t, long msec) {
+		synchronized (out) {
+			if (t != null) {
+				while ((t.getCause() != null) && (! (t instanceof TimeoutException)))
+					t = t.getCause();
+				if (t instanceof TimeoutException) {
+					out.println(label+": TIMEOUT after "+timeoutMsec+" msec");
+					summary.add(label, false, true, msec);
+				}
+				else {
+					out.println(label+": "+RemoteControlLib.CRLF_ERROR_RESPONSE+" "+t.getMessage());
+					summary.add(label, false, false, msec);
+				}
+			}
+			else {
+				for (String line : r.getLines())
+					out.println(label+": "+line);
+				if (! r.isOk())
+					out.println(label+": "+RemoteControlLib.CRLF_ERROR_RESPONSE+" "+r.getError());
+				summary.add(label, r.isOk(), false, msec);
+			}
+			out.flush();
+		}
+	}
+
+
+
+	/**
+	 * Counts and latencies, added to under the output's lock
+	 */
+	private static class Summary {
+		int ok = 0;
+		int failed = 0;
+		int timedOut = 0;
+		final ArrayList <Long> latencies = new ArrayList<Long>();
+		final ArrayList <String> failedLabels = new ArrayList<String>();
+
+		void add(String label, boolean success, boolean timeout, long msec) {
+			if (success) {
+				ok++;
+				latencies.add(msec);
+			}
+			else {
+				if (timeout)
+					timedOut++;
+				else
+					failed++;
+				failedLabels.add(label);
+			}
+		}
+
+		void print(PrintWriter out, int total, long elapsedMsec) {
+			synchronized (out) {
+				out.println("fanout: "+total+" remotes, "+ok+" ok, "+failed+" failed, "+timedOut+" timed out, "+elapsedMsec+" msec");
+				if (! latencies.isEmpty()) {
+					Collections.sort(latencies);
+					out.println("fanout: latency msec min "+latencies.get(0)+
+							" median "+latencies.get(latencies.size() / 2)+
+							" p95 "+latencies.get(Math.min(latencies.size() - 1, (int) (latencies.size() * 0.95)))+
+							" max "+latencies.get(latencies.size() - 1));
+				}
+				if (! failedLabels.isEmpty()) {
+					Collections.sort(failedLabels);
+					out.println("fanout: not ok: "+failedLabels);
+				}
+				out.flush();
+			}
+		}
+	}
+
+}
@@ -0,0 +1,169 @@
+package com.challengeandresponse.remotecontrol;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A hashed timing wheel (after Varghese and Lauck) for the many coarse timeouts that RemoteControl keeps
+ * per session, such as idle and authentication deadlines and heartbeats. One thread services all of them,
+ * rather than one timer per socket. Scheduling and cancelling are O(1); the price is that a timeout fires
+ * up to one tick late.
+ *
+ * <p>Tasks run on the wheel's own thread, so they must be short and must never block.
+ * Anything that may block should just flag the owner to do the work.</p>
+ *
+ * @author jim
+ *
+ */
+public class HashedTimingWheel
+implements Runnable {
+
+	private final long tickMsec;
+	private final ArrayList <Set<Timeout>> wheel;
+	private final ConcurrentLinkedQueue <Timeout> pending; // scheduled, but not yet placed into the wheel
+	private final String threadName;
+
+	private volatile boolean running = false;
+	private Thread thread = null;
+	private long tick = 0L; // only touched by the wheel thread
+	private long startTime;
+
+	/**
+	 * @param tickMsec resolution of the wheel
+	 * @param wheelSize number of buckets. Timeouts further away than tickMsec*wheelSize wrap around and take extra rounds
+	 * @param threadName name for the wheel's thread
+	 */
+	public HashedTimingWheel(long tickMsec, int wheelSize, String threadName) {
+		this.tickMsec = Math.max(1L, tickMsec);
+		this.wheel = new ArrayList<Set<Timeout>>(Math.max(1, wheelSize));
+		for (int i = 0; i < Math.max(1, wheelSize); i++)
+			wheel.add(new HashSet<Timeout>());
+		this.pending = new ConcurrentLinkedQueue<Timeout>();
+		this.threadName = threadName;
+	}
+
+
+	public synchronized void start() {
+		if (running)
+			return;
+		running = true;
+		startTime = System.currentTimeMillis();
+		thread = new Thread(this, threadName);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	public synchronized void stop() {
+		running = false;
+		if (thread != null)
+			thread.interrupt();
+		thread = null;
+	}
+
+
+	/**
+	 * Run 'task' on the wheel thread after about 'delayMsec' milliseconds
+	 * @param task must not block
+	 * @param delayMsec
+	 * @return a handle that can be used to cancel the timeout
+	 */
+	public Timeout schedule(Runnable task, long delayMsec) {
+		Timeout t = new Timeout(task, System.currentTimeMillis() + Math.max(0L, delayMsec));
+		pending.add(t);
+		return t;
+	}
+
+
+	public void run() {
+		while (running) {
+			long deadline = startTime + ((tick + 1) * tickMsec);
+			long sleep = deadline - System.currentTimeMillis();
+			if (sleep > 0) {
+				try {
+					Thread.sleep(sleep);
+				}
+				catch (InterruptedException e) {
+					continue;
+				}
+			}
+			transferPending();
+			expire(wheel.get((int) (tick % wheel.size())));
+			tick++;
+		}
+	}
+
+
+	private void transferPending() {
+		Timeout t;
+		while ((t = pending.poll()) != null) {
+			if (t.cancelled)
+				continue;
+			long ticks = Math.max(0L, (t.deadline - startTime) / tickMsec);
+			// never place a timeout into a bucket that has already been passed
+			ticks = Math.max(ticks, tick);
+			t.remainingRounds = (ticks - tick) / wheel.size();
+			wheel.get((int) (ticks % wheel.size())).add(t);
+		}
+	}
+
+
+	private void expire(Set<Timeout> bucket) {
+		Iterator <Timeout> it = bucket.iterator();
+		while (it.hasNext()) {
+			Timeout t = it.next();
+			if (t.cancelled) {
+				it.remove();
+			}
+			else if (t.remainingRounds <= 0) {
+				it.remove();
+				t.expired = true;
+				try {
+					t.task.run();
+				}
+				catch (RuntimeException e) {
+					// a bad task must not take the wheel down with it
+				}
+			}
+			else {
+				t.remainingRounds--;
+			}
+		}
+	}
+
+
+
+	/**
+	 * Handle for a scheduled task
+	 */
+	public static class Timeout {
+		private final Runnable task;
+		private final long deadline;
+		private volatile boolean cancelled = false;
+		private volatile boolean expired = false;
+		private long remainingRounds; // wheel thread only
+
+		private Timeout(Runnable task, long deadline) {
+			this.task = task;
+			this.deadline = deadline;
+		}
+
+		/**
+		 * Cancel the timeout. It is removed from the wheel lazily, when its bucket next comes around.
+		 */
+		public void cancel() {
+			cancelled = true;
+		}
+
+		public boolean isCancelled() {
+			return cancelled;
+		}
+
+		public boolean isExpired() {
+			return expired;
+		}
+	}
+
+}
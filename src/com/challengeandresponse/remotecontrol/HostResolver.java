@@ -0,0 +1,211 @@
+package com.challengeandresponse.remotecontrol;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.challengeandresponse.eventlogger.EventLoggerI;
+
+/**
+ * Keeps the allowhost names resolved, off the startup and accept paths.
+ *
+ * <p>Names are looked up in parallel on a few daemon threads, and again every TTL so that hosts whose addresses change
+ * are followed. A name whose lookup fails keeps the addresses it last resolved to, and is tried again at the next refresh.
+ * IP address literals are taken as they are, at once, without a lookup. Each time the addresses change, RemoteControlConfig
+ * is called back to publish a new ConfigSnapshot; the accept path only ever reads that.</p>
+ *
+ * <p>Until a host name has been resolved, connections from it are refused. Call awaitResolved() to wait for the first lookups.</p>
+ *
+ * @author jim
+ *
+ */
+class HostResolver {
+
+	private static final int THREADS = 4;
+	private static final AtomicInteger threadCount = new AtomicInteger(0);
+
+	private final Runnable onChange;
+	// last good addresses of each name being kept resolved
+	private final ConcurrentHashMap <String,Set<InetAddress>> resolved;
+	private volatile Set <String> names;
+	private volatile long ttlMsec;
+	private volatile EventLoggerI eventLogger = null;
+
+	private ScheduledThreadPoolExecutor executor = null;	// started when there is a name to look up; guarded by 'this'
+	private int pending = 0;	// lookups queued or running; guarded by 'this'
+
+	/**
+	 * @param onChange called, on a resolver thread, each time a name resolves to different addresses
+	 */
+	HostResolver(long ttlMsec, Runnable onChange) {
+		this.ttlMsec = ttlMsec;
+		this.onChange = onChange;
+		resolved = new ConcurrentHashMap<String,Set<InetAddress>>();
+		names = Collections.emptySet();
+	}
+
+
+	/**
+	 * Keep exactly 'names' resolved. Literals are resolved before this returns; new host names are queued for lookup,
+	 * and names no longer wanted are dropped.
+	 */
+	void setNames(Collection <String> wanted) {
+		Set <String> next = Collections.unmodifiableSet(new LinkedHashSet<String>(wanted));
+		names = next;
+		resolved.keySet().retainAll(next);
+		for (String name : next) {
+			if (resolved.containsKey(name))
+				continue;
+			if (isLiteral(name)) {
+				try {
+					// no lookup is made for a literal
+					resolved.put(name, Collections.singleton(InetAddress.getByName(name)));
+				}
+				catch (UnknownHostException e) {
+					log("RemoteControl: invalid allowhost address "+name+": "+e.getMessage());
+				}
+			}
+			else {
+				submit(name);
+			}
+		}
+	}
+
+	/**
+	 * @return every address the names currently resolve to
+	 */
+	Set <InetAddress> getAddresses() {
+		HashSet <InetAddress> all = new HashSet<InetAddress>();
+		for (String name : names) {
+			Set <InetAddress> addresses = resolved.get(name);
+			if (addresses != null)
+				all.addAll(addresses);
+		}
+		return all;
+	}
+
+	/**
+	 * Wait until no lookups are queued or running
+	 * @return true if they all finished within 'timeoutMsec'
+	 */
+	synchronized boolean awaitResolved(long timeoutMsec)
+	throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeoutMsec;
+		while (pending > 0) {
+			long remaining = deadline - System.currentTimeMillis();
+			if (remaining <= 0L)
+				return false;
+			wait(remaining);
+		}
+		return true;
+	}
+
+	void setTtlMsec(long ttlMsec) {
+		this.ttlMsec = ttlMsec;
+	}
+
+	void setEventLogger(EventLoggerI el) {
+		this.eventLogger = el;
+	}
+
+	/**
+	 * Stop looking names up. Addresses already resolved are kept; setNames() starts the threads again if need be.
+	 */
+	synchronized void shutdown() {
+		if (executor != null)
+			executor.shutdownNow();
+		executor = null;
+		pending = 0;
+		notifyAll();
+	}
+
+
+	private synchronized void submit(final String name) {
+		if (executor == null)
+			start();
+		pending++;
+		executor.execute(new Runnable() {
+			public void run() {
+				try {
+					resolve(name);
+				}
+				finally {
+					done();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Start the threads and the periodic refresh. Caller holds the lock.
+	 */
+	private void start() {
+		executor = new ScheduledThreadPoolExecutor(THREADS, new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "RemoteControl.resolver-"+threadCount.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		long period = Math.max(1000L, ttlMsec);
+		executor.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				refresh();
+			}
+		}, period, period, TimeUnit.MILLISECONDS);
+	}
+
+	private synchronized void refresh() {
+		// shut down since this run was scheduled
+		if (executor == null)
+			return;
+		for (String name : names)
+			if (! isLiteral(name))
+				submit(name);
+	}
+
+	private synchronized void done() {
+		if (pending > 0)
+			pending--;
+		if (pending == 0)
+			notifyAll();
+	}
+
+	private void resolve(String name) {
+		Set <InetAddress> addresses;
+		try {
+			addresses = new HashSet<InetAddress>(Arrays.asList(InetAddress.getAllByName(name)));
+		}
+		catch (UnknownHostException e) {
+			log("RemoteControl: cannot resolve allowhost "+name+(resolved.containsKey(name) ? ", keeping its last addresses" : "")+": "+e.getMessage());
+			return;
+		}
+		// the name may have been dropped while it was being looked up
+		if (! names.contains(name))
+			return;
+		Set <InetAddress> previous = resolved.put(name, Collections.unmodifiableSet(addresses));
+		if (! addresses.equals(previous))
+			onChange.run();
+	}
+
+	private void log(String message) {
+		EventLoggerI el = eventLogger;
+		if (el != null)
+			el.addEvent(message);
+	}
+
+	/**
+	 * @return true if 'name' is an IPv4 or IPv6 address literal, which InetAddress takes without a lookup
+	 */
+	static boolean isLiteral(String name) {
+		if (name.indexOf(':') >= 0)
+			return true;
+		return name.matches("\\d{1,3}(\\.\\d{1,3}){3}");
+	}
+
+}
@@ -0,0 +1,266 @@
+package com.challengeandresponse.remotecontrol;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Future;
+
+/**
+ * One background invocation of a registered method, as started by the exec-async command.
+ * The job's output goes into a capped ring buffer rather than to the session that started it,
+ * so the job survives the session and its output can be read back later from any session
+ * with the 'job' commands.
+ *
+ * @author jim
+ *
+ */
+public class Job {
+
+	public enum State { QUEUED, RUNNING, DONE, FAILED, CANCELLED }
+
+	private final long jobID;
+	private final String owner;
+	private final String methodName;
+	private final Object[] args;
+
+	private volatile State state;
+	private volatile String failure;
+	private final long submitTime;
+	private volatile long startTime;
+	private volatile long endTime;
+
+	private final RingBuffer output;
+	private final PrintStream ps;
+	private volatile Future<?> future;
+
+	Job(long jobID, String owner, String methodName, Object[] args, int maxOutputBytes) {
+		this.jobID = jobID;
+		this.owner = owner;
+		this.methodName = methodName;
+		this.args = args;
+		this.state = State.QUEUED;
+		this.submitTime = System.currentTimeMillis();
+		this.output = new RingBuffer(maxOutputBytes);
+		this.ps = new PrintStream(output, true);
+	}
+
+
+	public long getJobID() {
+		return jobID;
+	}
+
+	public String getOwner() {
+		return owner;
+	}
+
+	public String getMethodName() {
+		return methodName;
+	}
+
+	Object[] getArgs() {
+		return args;
+	}
+
+	public State getState() {
+		return state;
+	}
+
+	public String getFailure() {
+		return failure;
+	}
+
+	public boolean isFinished() {
+		return (state == State.DONE) || (state == State.FAILED) || (state == State.CANCELLED);
+	}
+
+	/**
+	 * @return the time this job stopped running, or 0 if it has not finished yet
+	 */
+	public long getEndTime() {
+		return endTime;
+	}
+
+	/**
+	 * @return milliseconds spent running so far (or in total if finished); 0 if the job has not started
+	 */
+	public long getElapsedMsec() {
+		if (startTime == 0L)
+			return 0L;
+		long end = (endTime == 0L) ? System.currentTimeMillis() : endTime;
+		return end - startTime;
+	}
+
+	/**
+	 * @return total number of output bytes written by the job, including any that have already been pushed out of the buffer
+	 */
+	public long getOutputBytes() {
+		return output.getTotalWritten();
+	}
+
+	/**
+	 * @return number of output bytes that were discarded because the buffer cap was reached
+	 */
+	public long getDroppedBytes() {
+		return output.getDropped();
+	}
+
+	PrintStream getPrintStream() {
+		return ps;
+	}
+
+	void setFuture(Future<?> future) {
+		this.future = future;
+	}
+
+
+	synchronized void markStarted() {
+		if (state == State.QUEUED) {
+			state = State.RUNNING;
+			startTime = System.currentTimeMillis();
+		}
+	}
+
+	synchronized void markFinished(State finalState, String failure) {
+		if (isFinished())
+			return;
+		this.state = finalState;
+		this.failure = failure;
+		this.endTime = System.currentTimeMillis();
+		if (startTime == 0L)
+			startTime = endTime;
+		ps.flush();
+	}
+
+	/**
+	 * Cancel the job. A queued job will never run; a running job's thread is interrupted,
+	 * and it is up to the method to notice that.
+	 * @return true if the job was cancelled, false if it had already finished
+	 */
+	public boolean cancel() {
+		if (isFinished())
+			return false;
+		Future<?> f = future;
+		if (f != null)
+			f.cancel(true);
+		markFinished(State.CANCELLED, null);
+		return true;
+	}
+
+
+	/**
+	 * @param maxLines the maximum number of lines to return
+	 * @return the last 'maxLines' lines of output that are still in the buffer
+	 */
+	public List <String> tail(int maxLines) {
+		String[] all = new String(output.toByteArray()).split("\r?\n", -1);
+		int end = all.length;
+		// a trailing line break leaves an empty last element
+		if ((end > 0) && (all[end-1].length() == 0))
+			end--;
+		int start = Math.max(0, end - maxLines);
+		ArrayList <String> al = new ArrayList<String>();
+		for (int i = start; i < end; i++)
+			al.add(all[i]);
+		return al;
+	}
+
+
+	/**
+	 * @return a one-line summary of the job suitable for sending to a client
+	 */
+	public String describe() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(jobID).append(" ").append(state).append(" method:").append(methodName);
+		sb.append(" owner:").append(owner);
+		sb.append(" elapsedmsec:").append(getElapsedMsec());
+		sb.append(" outputbytes:").append(getOutputBytes());
+		if (getDroppedBytes() > 0)
+			sb.append(" droppedbytes:").append(getDroppedBytes());
+		if (failure != null)
+			sb.append(" failure:").append(failure);
+		return sb.toString();
+	}
+
+
+
+	/**
+	 * Byte ring with a capacity. It starts small and doubles as output comes in, so a job that writes little holds
+	 * little; once it reaches the capacity, the oldest bytes are overwritten, so memory per job never exceeds the cap.
+	 */
+	private static class RingBuffer
+	extends OutputStream {
+
+		private static final int INITIAL_BYTES = 256;
+
+		private final int capacity;
+		private byte[] buf;
+		private int head = 0; // next write position
+		private int count = 0;
+		private long totalWritten = 0L;
+
+		RingBuffer(int capacity) {
+			this.capacity = Math.max(1, capacity);
+			buf = new byte[Math.min(this.capacity, INITIAL_BYTES)];
+		}
+
+		/**
+		 * Make room for 'len' more bytes, up to the capacity. The ring only wraps at full size, so until then
+		 * its bytes run from 0 to 'count' and can be copied as they are.
+		 */
+		private void grow(int len) {
+			if ((buf.length == capacity) || (count + len <= buf.length))
+				return;
+			int size = buf.length;
+			while ((size < count + len) && (size < capacity))
+				size = (int) Math.min((long) capacity, size * 2L);
+			buf = Arrays.copyOf(buf, size);
+			head = count % size;
+		}
+
+		@Override
+		public synchronized void write(int b) {
+			grow(1);
+			buf[head] = (byte) b;
+			head = (head + 1) % buf.length;
+			if (count < buf.length)
+				count++;
+			totalWritten++;
+		}
+
+		@Override
+		public synchronized void write(byte[] b, int off, int len) {
+			grow(len);
+			totalWritten += len;
+			// only the last buf.length bytes can survive
+			if (len > buf.length) {
+				off += len - buf.length;
+				len = buf.length;
+			}
+			int first = Math.min(len, buf.length - head);
+			System.arraycopy(b, off, buf, head, first);
+			System.arraycopy(b, off + first, buf, 0, len - first);
+			head = (head + len) % buf.length;
+			count = Math.min(buf.length, count + len);
+		}
+
+		synchronized byte[] toByteArray() {
+			byte[] result = new byte[count];
+			int start = (head - count + buf.length) % buf.length;
+			int first = Math.min(count, buf.length - start);
+			System.arraycopy(buf, start, result, 0, first);
+			System.arraycopy(buf, 0, result, first, count - first);
+			return result;
+		}
+
+		synchronized long getTotalWritten() {
+			return totalWritten;
+		}
+
+		synchronized long getDropped() {
+			return totalWritten - count;
+		}
+	}
+
+}
@@ -0,0 +1,195 @@
+package com.challengeandresponse.remotecontrol;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.challengeandresponse.eventlogger.EventLoggerI;
+
+/**
+ * Keeps track of background jobs started with the exec-async command, and runs them on a
+ * bounded pool of threads that is separate from the CRLFServer session threads.
+ * Jobs are kept after they finish so their status and output can be fetched from a later session,
+ * until they are older than the retention period or more than the retained count have finished since.
+ *
+ * @author jim
+ *
+ */
+public class JobRegistry {
+
+	private static final String THREAD_NAME_PREFIX = "RemoteControlJob-";
+
+	private final RemoteControl rc;
+	private final EventLoggerI eventLogger;
+	private final int maxOutputBytes;
+	private final long retentionMsec;
+	private final int maxRetained;
+
+	private final ConcurrentHashMap <Long,Job> jobs;
+	private final AtomicLong nextJobID;
+	private final ThreadPoolExecutor executor;
+
+	/**
+	 * @param rc the RemoteControl whose registered methods will be run
+	 * @param rcc config holding the pool size, queue length, output cap, and retention period
+	 * @param el an EventLogger to post interesting events to
+	 */
+	JobRegistry(RemoteControl rc, RemoteControlConfig rcc, EventLoggerI el) {
+		this.rc = rc;
+		this.eventLogger = el;
+		this.maxOutputBytes = rcc.getJobOutputBytes();
+		this.retentionMsec = (long) rcc.getJobRetentionSec() * 1000L;
+		this.maxRetained = Math.max(0, rcc.getJobRetained());
+		jobs = new ConcurrentHashMap<Long,Job>();
+		nextJobID = new AtomicLong(1L);
+
+		final AtomicLong threadCount = new AtomicLong(0L);
+		int threads = Math.max(1, rcc.getJobThreads());
+		executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(Math.max(1, rcc.getJobQueueSize())),
+				new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, THREAD_NAME_PREFIX + threadCount.incrementAndGet());
+						t.setDaemon(true);
+						return t;
+					}
+				});
+		executor.allowCoreThreadTimeOut(true);
+	}
+
+
+	/**
+	 * Queue a method invocation as a background job.
+	 * @param owner the client id that started the job
+	 * @param methodName the registered method to run
+	 * @param args arguments to pass to the method, as they would be passed by the exec command
+	 * @return the new Job
+	 * @throws RemoteControlException if the method is not registered or the job queue is full
+	 */
+	public Job submit(String owner, String methodName, Object[] args)
+	throws RemoteControlException {
+		if (! rc.isRegisteredMethod(methodName))
+			throw new RemoteControlException("Method "+methodName+" not found. Cannot start job");
+		purgeExpired();
+		final Job job = new Job(nextJobID.getAndIncrement(), owner, methodName, args, maxOutputBytes);
+		jobs.put(job.getJobID(), job);
+		try {
+			job.setFuture(executor.submit(new Runnable() {
+				public void run() {
+					runJob(job);
+				}
+			}));
+		}
+		catch (RejectedExecutionException e) {
+			jobs.remove(job.getJobID());
+			throw new RemoteControlException("Job queue is full or shutting down. Cannot start job for method "+methodName);
+		}
+		eventLogger.addEvent("RemoteControl: queued job "+job.getJobID()+" method:"+methodName+" owner:"+owner);
+		return job;
+	}
+
+
+	private void runJob(Job job) {
+		if (job.isFinished()) // cancelled while it was queued
+			return;
+		job.markStarted();
+		try {
+			rc.invokeMethod(job.getMethodName(), job.getPrintStream(), job.getArgs());
+			job.markFinished(Job.State.DONE, null);
+		}
+		catch (InvocationTargetException e) {
+			Throwable cause = (e.getCause() != null) ? e.getCause() : e;
+			job.markFinished(Job.State.FAILED, cause.toString());
+		}
+		catch (IllegalAccessException e) {
+			job.markFinished(Job.State.FAILED, e.getMessage());
+		}
+		catch (IllegalArgumentException e) {
+			job.markFinished(Job.State.FAILED, e.getMessage());
+		}
+		catch (RemoteControlException e) {
+			job.markFinished(Job.State.FAILED, e.getMessage());
+		}
+		eventLogger.addEvent("RemoteControl: job "+job.getJobID()+" finished:"+job.getState());
+	}
+
+
+	/**
+	 * @param jobID
+	 * @return the job with id 'jobID', or null if there is no such job (or it has expired)
+	 */
+	public Job getJob(long jobID) {
+		return jobs.get(jobID);
+	}
+
+	/**
+	 * @return all retained jobs, in order of job id
+	 */
+	public List <Job> getJobs() {
+		purgeExpired();
+		ArrayList <Job> al = new ArrayList<Job>(jobs.values());
+		Collections.sort(al, new Comparator<Job>() {
+			public int compare(Job a, Job b) {
+				return Long.compare(a.getJobID(), b.getJobID());
+			}
+		});
+		return al;
+	}
+
+
+	/**
+	 * Drop finished jobs whose retention period has passed, then the oldest finished jobs past the retained count.
+	 * Called on every submit, so the number of jobs kept never grows past the running and queued ones plus that count.
+	 */
+	private void purgeExpired() {
+		long cutoff = System.currentTimeMillis() - retentionMsec;
+		ArrayList <Job> finished = new ArrayList<Job>();
+		Iterator <Job> it = jobs.values().iterator();
+		while (it.hasNext()) {
+			Job job = it.next();
+			if (! job.isFinished())
+				continue;
+			if (job.getEndTime() < cutoff)
+				it.remove();
+			else
+				finished.add(job);
+		}
+		if (finished.size() <= maxRetained)
+			return;
+		Collections.sort(finished, new Comparator<Job>() {
+			public int compare(Job a, Job b) {
+				return Long.compare(a.getJobID(), b.getJobID());
+			}
+		});
+		for (int i = 0; i < finished.size() - maxRetained; i++)
+			jobs.remove(finished.get(i).getJobID());
+	}
+
+
+	/**
+	 * Stop taking new jobs and drop the ones that have not started. Running jobs carry on.
+	 */
+	void beginShutdown() {
+		executor.shutdown();
+		for (Job job : jobs.values())
+			if (job.getState() == Job.State.QUEUED)
+				job.cancel();
+	}
+
+	/**
+	 * Wait up to 'timeoutMsec' for running jobs to finish, then cancel whatever is left and stop the pool
+	 */
+	void awaitShutdown(long timeoutMsec) {
+		try {
+			executor.awaitTermination(timeoutMsec, TimeUnit.MILLISECONDS);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		for (Job job : jobs.values())
+			job.cancel();
+		executor.shutdownNow();
+	}
+
+}
@@ -0,0 +1,63 @@
+package com.challengeandresponse.remotecontrol;
+
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * How a session's output lines are put on the wire: as text lines (the CRLF protocol over TCP,
+ * TLS or Unix sockets) or as one WebSocket text frame per line.
+ * Broadcasts are encoded once per framing and the same bytes are queued for every subscriber that uses it.
+ *
+ * @author jim
+ *
+ */
+public enum MessageFraming {
+
+	LINE {
+		public OutputStream wrap(OutputStream out) {
+			return out;
+		}
+
+		public Charset getCharset() {
+			return Charset.defaultCharset();
+		}
+
+		public byte[] encode(String line) {
+			return (line + NEWLINE).getBytes(getCharset());
+		}
+	},
+
+	WEBSOCKET {
+		public OutputStream wrap(OutputStream out) {
+			return new WebSocketCodec.LineFramingOutputStream(out);
+		}
+
+		public Charset getCharset() {
+			return StandardCharsets.UTF_8;
+		}
+
+		public byte[] encode(String line) {
+			return WebSocketCodec.textFrame(line);
+		}
+	};
+
+	// what PrintStream.println() ends lines with, so broadcasts look like the rest of the output
+	private static final String NEWLINE = System.getProperty("line.separator");
+
+	/**
+	 * @return a stream that frames what is written to it and passes the frames on to 'out'
+	 */
+	public abstract OutputStream wrap(OutputStream out);
+
+	/**
+	 * @return the charset for text written by this session
+	 */
+	public abstract Charset getCharset();
+
+	/**
+	 * @return 'line' framed as one complete message
+	 */
+	public abstract byte[] encode(String line);
+
+}
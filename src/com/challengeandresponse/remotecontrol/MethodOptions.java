@@ -0,0 +1,68 @@
+package com.challengeandresponse.remotecontrol;
+
+/**
+ * How RemoteControl runs a registered method, given at registerMethod(name, options).
+ * The defaults (from the no-argument constructor) run every call on its own, as registerMethod(name) does.
+ *
+ * <pre>
+ * MethodOptions mo = new MethodOptions();
+ * mo.setSingleFlight(true);
+ * rc.registerMethod("clusterStatus", mo);
+ * 
+ * MethodOptions cached = new MethodOptions();
+ * cached.setCacheTtlMsec(5000);
+ * rc.registerMethod("versionInfo", cached);
+ * </pre>
+ *
+ * @author jim
+ *
+ */
+public class MethodOptions {
+
+	private boolean singleFlight;
+	private long cacheTtlMsec;
+
+	public MethodOptions() {
+		singleFlight = false;
+		cacheTtlMsec = 0L;
+	}
+
+
+	/**
+	 * @return true if concurrent calls with the same arguments share one execution
+	 */
+	public boolean isSingleFlight() {
+		return singleFlight;
+	}
+
+	/**
+	 * Coalesce concurrent identical calls. While a call is running, any call to the same method with the same
+	 * arguments waits for it instead of invoking the method again, and gets a copy of its output (or its error).
+	 * Output is not stale beyond that: a call arriving after the running one has finished runs the method afresh.
+	 * The output of a single-flight method is buffered and sent when the method returns, rather than as it is written.
+	 */
+	public void setSingleFlight(boolean singleFlight) {
+		this.singleFlight = singleFlight;
+	}
+
+	/**
+	 * @return how long the method's output may be served from the result cache, or 0 if it is not cached
+	 */
+	public long getCacheTtlMsec() {
+		return cacheTtlMsec;
+	}
+
+	/**
+	 * Serve the method's output from RemoteControl's ResultCache for up to 'cacheTtlMsec' after it was produced,
+	 * for calls with the same arguments. Only for methods whose output may be that stale and that change nothing.
+	 * Failed calls are not cached. 0 (the default) turns caching off.
+	 */
+	public void setCacheTtlMsec(long cacheTtlMsec) {
+		this.cacheTtlMsec = cacheTtlMsec;
+	}
+
+	public String toString() {
+		return "singleflight="+singleFlight+" cachettlmsec="+cacheTtlMsec;
+	}
+
+}
@@ -0,0 +1,178 @@
+package com.challengeandresponse.remotecontrol;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Token buckets keyed by a string (a client id, or a source address), with a default limit and optional
+ * per-key limits. Checking a bucket is a few reads and one compare-and-set: no locks, and nothing is
+ * computed for a request that is turned away.
+ *
+ * <p>Each bucket is kept in its "theoretical arrival time" form (GCRA): a single timestamp that moves forward
+ * by one emission interval per request. A request is allowed if that timestamp would stay within 'burst'
+ * intervals of now. This is exactly a token bucket of size 'burst' refilled at 'ratePerSec', in one AtomicLong.</p>
+ *
+ * @author jim
+ *
+ */
+public class RateLimiter {
+
+	private final Limit defaultLimit;
+	private final Map <String,Limit> limits;
+	private final ConcurrentHashMap <String,TokenBucket> buckets;
+
+	/**
+	 * @param defaultLimit the limit for keys not in 'limits'. Null for no limit.
+	 * @param limits per-key limits. May be null.
+	 */
+	public RateLimiter(Limit defaultLimit, Map <String,Limit> limits) {
+		this.defaultLimit = defaultLimit;
+		this.limits = (limits != null) ? new ConcurrentHashMap<String,Limit>(limits) : new ConcurrentHashMap<String,Limit>();
+		buckets = new ConcurrentHashMap<String,TokenBucket>();
+	}
+
+
+	/**
+	 * Take one token from the bucket for 'key'
+	 * @return true if the request may go ahead, false if 'key' is over its limit
+	 */
+	public boolean tryAcquire(String key) {
+		return tryAcquire(key, 1);
+	}
+
+	/**
+	 * Take 'n' tokens from the bucket for 'key', all or none. More than the key's burst are never granted.
+	 * @return true if the 'n' requests may go ahead, false if 'key' does not have that many tokens; then none are taken
+	 */
+	public boolean tryAcquire(String key, int n) {
+		if (key == null)
+			key = "";
+		TokenBucket bucket = buckets.get(key);
+		if (bucket == null) {
+			Limit limit = limits.get(key);
+			if (limit == null)
+				limit = defaultLimit;
+			if ((limit == null) || (limit.ratePerSec <= 0.0))
+				return true;
+			TokenBucket fresh = new TokenBucket(limit);
+			bucket = buckets.putIfAbsent(key, fresh);
+			if (bucket == null)
+				bucket = fresh;
+		}
+		return bucket.tryAcquire(System.nanoTime(), n);
+	}
+
+
+	/**
+	 * @return true if tryAcquire('key') would succeed now. Takes no token.
+	 */
+	public boolean hasToken(String key) {
+		if (key == null)
+			key = "";
+		TokenBucket bucket = buckets.get(key);
+		return (bucket == null) || bucket.hasToken(System.nanoTime());
+	}
+
+
+	/**
+	 * Drop buckets that have refilled completely; they would behave the same as new ones. Keeps the map from
+	 * growing without bound when keys are source addresses.
+	 * @return the number of buckets dropped
+	 */
+	public int purgeIdle() {
+		long now = System.nanoTime();
+		int purged = 0;
+		Iterator <TokenBucket> it = buckets.values().iterator();
+		while (it.hasNext()) {
+			if (it.next().isFull(now)) {
+				it.remove();
+				purged++;
+			}
+		}
+		return purged;
+	}
+
+	public int size() {
+		return buckets.size();
+	}
+
+
+
+	/**
+	 * A rate and a burst size
+	 */
+	public static class Limit {
+
+		public final double ratePerSec;
+		public final int burst;
+
+		/**
+		 * @param ratePerSec sustained requests per second. 0 or less for no limit.
+		 * @param burst requests that may be made at once after a quiet spell. At least 1.
+		 */
+		public Limit(double ratePerSec, int burst) {
+			this.ratePerSec = ratePerSec;
+			this.burst = Math.max(1, burst);
+		}
+
+		/**
+		 * Parse "rate" or "rate,burst", as written in a config file. Without a burst, the burst is one second's worth.
+		 * @return the Limit, or null if 's' is not valid
+		 */
+		public static Limit parse(String s) {
+			if (s == null)
+				return null;
+			try {
+				String[] parts = s.trim().split("\\s*,\\s*");
+				double rate = Double.parseDouble(parts[0]);
+				int burst = (parts.length > 1) ? Integer.parseInt(parts[1]) : (int) Math.ceil(rate);
+				return new Limit(rate, burst);
+			}
+			catch (NumberFormatException e) {
+				return null;
+			}
+		}
+
+		public String toString() {
+			return ratePerSec+","+burst;
+		}
+	}
+
+
+
+	static class TokenBucket {
+
+		private final long intervalNanos;	// time to earn one token
+		private final long burstNanos;		// how far ahead of now the arrival time may run
+		private final AtomicLong tat;		// theoretical arrival time of the next request
+
+		TokenBucket(Limit limit) {
+			intervalNanos = Math.max(1L, (long) (1e9 / limit.ratePerSec));
+			burstNanos = intervalNanos * limit.burst;
+			tat = new AtomicLong(System.nanoTime());
+		}
+
+		boolean tryAcquire(long now, int n) {
+			long cost = intervalNanos * Math.max(1, n);
+			while (true) {
+				long t = tat.get();
+				long next = Math.max(t, now) + cost;
+				if (next - now > burstNanos)
+					return false;
+				if (tat.compareAndSet(t, next))
+					return true;
+			}
+		}
+
+		boolean hasToken(long now) {
+			return Math.max(tat.get(), now) + intervalNanos - now <= burstNanos;
+		}
+
+		boolean isFull(long now) {
+			return tat.get() - now <= 0L;
+		}
+	}
+
+}
@@ -0,0 +1,334 @@
+package com.challengeandresponse.remotecontrol;
+
+import java.io.PrintStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+
+/**
+ * A method in RemoteControl's registry: the name clients call it by (dotted if it is in a namespace),
+ * the object it is called against, and how it is to be run.
+ *
+ * <p>A method either takes the raw command line, as method(PrintStream ps, Object[] args) with the method name in args[0],
+ * or typed parameters after the PrintStream, e.g. resize(PrintStream ps, String pool, int size). For a typed method a
+ * Converter for each parameter is picked when the method is registered, and on each call the arguments are converted
+ * and counted before the host's code runs, so a malformed call is turned away with an IllegalArgumentException
+ * naming the bad argument. Parameters may be String, int, long, double, boolean (or their wrappers) and enums.</p>
+ *
+ * <p>A method found by resolve() is called through a MethodHandle bound to the target when it is registered, not looked up
+ * per call. A method registered from a generated RemoteCommandIndex (see RemoteCommand) is called directly by generated code.</p>
+ *
+ * @author jim
+ *
+ */
+class RegisteredMethod {
+
+	// every registered method is called through a handle of this type
+	private static final MethodType INVOKER_TYPE = MethodType.methodType(void.class, PrintStream.class, Object[].class);
+
+	private final String name;
+	private final Object target;
+	private final RemoteCommandIndex.Invoker invoker;
+	private final Converter[] converters;	// null if the method takes the raw Object[] args
+	private final MethodOptions options;
+
+	private RegisteredMethod(String name, Object target, RemoteCommandIndex.Invoker invoker, Converter[] converters, MethodOptions options) {
+		this.name = name;
+		this.target = target;
+		this.invoker = invoker;
+		this.converters = converters;
+		this.options = options;
+	}
+
+
+	/**
+	 * Find the public method 'methodName' of 'target' whose first parameter is a PrintStream, and resolve how to call it
+	 * @param name the name clients will call it by
+	 * @throws RemoteControlException if there is no such method, more than one typed one, or a parameter of a type that cannot be converted
+	 */
+	static RegisteredMethod resolve(String name, Object target, String methodName, MethodOptions options)
+	throws RemoteControlException {
+		Method raw = null;
+		ArrayList <Method> typed = new ArrayList<Method>();
+		try {
+			for (Method m : target.getClass().getMethods()) {
+				Class<?>[] params = m.getParameterTypes();
+				if ((! m.getName().equals(methodName)) || (params.length == 0) || (params[0] != PrintStream.class))
+					continue;
+				if ((params.length == 2) && (params[1] == Object[].class))
+					raw = m;
+				else
+					typed.add(m);
+			}
+		}
+		catch (SecurityException e) {
+			throw new RemoteControlException("Cannot register method: "+name+"; SecurityException:"+e.getMessage());
+		}
+		if ((raw == null) && typed.isEmpty())
+			throw new RemoteControlException("Cannot register method: "+name+"; no public method "+methodName+"(PrintStream, ...) in "+target.getClass().getName());
+		if ((raw == null) && (typed.size() > 1))
+			throw new RemoteControlException("Cannot register method: "+name+"; "+methodName+" is overloaded, so the parameter types to convert to are ambiguous");
+
+		Method m = (raw != null) ? raw : typed.get(0);
+		Converter[] converters = null;
+		if (raw == null) {
+			Class<?>[] params = m.getParameterTypes();
+			converters = converters(name, Arrays.copyOfRange(params, 1, params.length));
+		}
+
+		MethodHandle mh;
+		try {
+			mh = MethodHandles.publicLookup().unreflect(m);
+		}
+		catch (IllegalAccessException e) {
+			throw new RemoteControlException("Cannot register method: "+name+"; IllegalAccessException:"+e.getMessage());
+		}
+		if (! Modifier.isStatic(m.getModifiers()))
+			mh = mh.bindTo(target);
+		if (converters != null)
+			mh = mh.asSpreader(Object[].class, converters.length);
+		final MethodHandle handle = mh.asType(INVOKER_TYPE);
+		RemoteCommandIndex.Invoker invoker = new RemoteCommandIndex.Invoker() {
+			public void invoke(PrintStream ps, Object[] args)
+			throws Throwable {
+				handle.invokeExact(ps, args);
+			}
+		};
+		return new RegisteredMethod(name, target, invoker, converters, options);
+	}
+
+	/**
+	 * A method whose call was generated at compile time, so that nothing needs to be looked up
+	 * @param parameterTypes the types of the parameters after the PrintStream, or null if it takes the raw Object[] args
+	 * @throws RemoteControlException if a parameter is of a type that cannot be converted
+	 */
+	static RegisteredMethod bind(String name, Object target, Class<?>[] parameterTypes, MethodOptions options, RemoteCommandIndex.Invoker invoker)
+	throws RemoteControlException {
+		Converter[] converters = (parameterTypes != null) ? converters(name, parameterTypes) : null;
+		return new RegisteredMethod(name, target, invoker, converters, options);
+	}
+
+	private static Converter[] converters(String name, Class<?>[] parameterTypes)
+	throws RemoteControlException {
+		Converter[] converters = new Converter[parameterTypes.length];
+		for (int i = 0; i < parameterTypes.length; i++) {
+			converters[i] = converterFor(parameterTypes[i]);
+			if (converters[i] == null)
+				throw new RemoteControlException("Cannot register method: "+name+"; cannot convert arguments to "+parameterTypes[i].getName());
+		}
+		return converters;
+	}
+
+
+	/**
+	 * Call the method with the command line in 'args' (the method name, then its arguments)
+	 * @throws IllegalArgumentException if a typed method is given the wrong number of arguments, or one that does not convert
+	 * @throws InvocationTargetException wrapping anything the method throws
+	 */
+	void invoke(PrintStream ps, Object[] args)
+	throws IllegalArgumentException, IllegalAccessException, InvocationTargetException {
+		Object[] callArgs = (converters == null) ? args : convert(args);
+		try {
+			invoker.invoke(ps, callArgs);
+		}
+		catch (Throwable t) {
+			throw new InvocationTargetException(t);
+		}
+	}
+
+	private Object[] convert(Object[] args)
+	throws IllegalArgumentException {
+		int given = Math.max(0, args.length - 1);
+		if (given != converters.length)
+			throw new IllegalArgumentException(name+" takes "+converters.length+" argument"+((converters.length == 1) ? "" : "s")+
+					" "+getParameterList()+", got "+given);
+		Object[] converted = new Object[converters.length];
+		for (int i = 0; i < converters.length; i++) {
+			String s = String.valueOf(args[i + 1]);
+			try {
+				converted[i] = converters[i].convert(s);
+			}
+			catch (IllegalArgumentException e) {
+				throw new IllegalArgumentException(name+": argument "+(i + 1)+" '"+s+"' is not "+converters[i].describe());
+			}
+		}
+		return converted;
+	}
+
+	/**
+	 * @return the parameter types after the PrintStream, e.g. "(String,int)"; "" for a method that takes the raw args
+	 */
+	String getParameterList() {
+		if (converters == null)
+			return "";
+		StringBuilder sb = new StringBuilder("(");
+		for (int i = 0; i < converters.length; i++) {
+			if (i > 0)
+				sb.append(',');
+			sb.append(converters[i].typeName());
+		}
+		return sb.append(')').toString();
+	}
+
+	String getName() {
+		return name;
+	}
+
+	Object getTarget() {
+		return target;
+	}
+
+	MethodOptions getOptions() {
+		return options;
+	}
+
+
+
+	/**
+	 * Turns one argument token into a parameter value
+	 */
+	interface Converter {
+		/**
+		 * @throws IllegalArgumentException if 's' is not a valid value
+		 */
+		Object convert(String s)
+		throws IllegalArgumentException;
+
+		String typeName();
+
+		/**
+		 * @return what a valid value is, for error messages, e.g. "an int"
+		 */
+		String describe();
+	}
+
+	private static final Converter STRING = new Converter() {
+		public Object convert(String s) {
+			return s;
+		}
+		public String typeName() {
+			return "String";
+		}
+		public String describe() {
+			return "a string";
+		}
+	};
+
+	private static final Converter INT = new Converter() {
+		public Object convert(String s) {
+			return Integer.valueOf(s);
+		}
+		public String typeName() {
+			return "int";
+		}
+		public String describe() {
+			return "an int";
+		}
+	};
+
+	private static final Converter LONG = new Converter() {
+		public Object convert(String s) {
+			return Long.valueOf(s);
+		}
+		public String typeName() {
+			return "long";
+		}
+		public String describe() {
+			return "a long";
+		}
+	};
+
+	private static final Converter DOUBLE = new Converter() {
+		public Object convert(String s) {
+			return Double.valueOf(s);
+		}
+		public String typeName() {
+			return "double";
+		}
+		public String describe() {
+			return "a number";
+		}
+	};
+
+	private static final Converter BOOLEAN = new Converter() {
+		public Object convert(String s) {
+			if ("true".equalsIgnoreCase(s))
+				return Boolean.TRUE;
+			if ("false".equalsIgnoreCase(s))
+				return Boolean.FALSE;
+			throw new IllegalArgumentException(s);
+		}
+		public String typeName() {
+			return "boolean";
+		}
+		public String describe() {
+			return "true or false";
+		}
+	};
+
+	/**
+	 * @return the Converter for parameters of type 'c', or null if there is none
+	 */
+	static Converter converterFor(Class<?> c) {
+		if (c == String.class)
+			return STRING;
+		if ((c == int.class) || (c == Integer.class))
+			return INT;
+		if ((c == long.class) || (c == Long.class))
+			return LONG;
+		if ((c == double.class) || (c == Double.class))
+			return DOUBLE;
+		if ((c == boolean.class) || (c == Boolean.class))
+			return BOOLEAN;
+		if (c.isEnum())
+			return new EnumConverter(c);
+		return null;
+	}
+
+	/**
+	 * Matches constant names without regard to case
+	 */
+	private static class EnumConverter
+	implements Converter {
+		private final String typeName;
+		private final HashMap <String,Object> constants;	// by upper case name
+		private final String names;
+
+		EnumConverter(Class<?> c) {
+			typeName = c.getSimpleName();
+			constants = new HashMap<String,Object>();
+			StringBuilder sb = new StringBuilder();
+			for (Object o : c.getEnumConstants()) {
+				String constant = ((Enum<?>) o).name();
+				constants.put(constant.toUpperCase(Locale.ROOT), o);
+				if (sb.length() > 0)
+					sb.append('|');
+				sb.append(constant);
+			}
+			names = sb.toString();
+		}
+
+		public Object convert(String s) {
+			Object o = constants.get(s.toUpperCase(Locale.ROOT));
+			if (o == null)
+				throw new IllegalArgumentException(s);
+			return o;
+		}
+
+		public String typeName() {
+			return typeName;
+		}
+
+		public String describe() {
+			return "one of "+names;
+		}
+	}
+
+}
@@ -0,0 +1,53 @@
+package com.challengeandresponse.remotecontrol;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a method to be called remotely. At compile time RemoteCommandProcessor checks the signature and generates a
+ * RemoteCommandIndex for the class, so that all its commands are registered with one call and no reflection:
+ *
+ * <pre>
+ * public class Host {
+ *    &#64;RemoteCommand
+ *    public void flush(PrintStream ps) { ... }
+ *
+ *    &#64;RemoteCommand(value="resize", singleFlight=true)
+ *    public void resizePool(PrintStream ps, String pool, int size) { ... }
+ * }
+ *
+ * rc.registerCommands("cache", new Host());	// registers cache.flush and cache.resize
+ * </pre>
+ *
+ * <p>The method must be public, in a public class (a nested class must also be static), and take a PrintStream
+ * followed either by Object[] args or by parameters of the types RegisteredMethod can convert: String, int, long,
+ * double, boolean, their wrappers, and enums. Anything else is a compile error. Compile with the RemoteControl jar
+ * on the classpath; javac finds the processor through META-INF/services/javax.annotation.processing.Processor.</p>
+ *
+ * @author jim
+ *
+ */
+@Documented
+@Retention(RetentionPolicy.CLASS)
+@Target(ElementType.METHOD)
+public @interface RemoteCommand {
+
+	/**
+	 * The name clients call the method by, if not the method's own name
+	 */
+	String value() default "";
+
+	/**
+	 * @see MethodOptions#setSingleFlight(boolean)
+	 */
+	boolean singleFlight() default false;
+
+	/**
+	 * @see MethodOptions#setCacheTtlMsec(long)
+	 */
+	long cacheTtlMsec() default 0L;
+
+}
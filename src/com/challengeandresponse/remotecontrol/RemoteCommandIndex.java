@@ -0,0 +1,39 @@
+package com.challengeandresponse.remotecontrol;
+
+import java.io.PrintStream;
+
+/**
+ * The dispatch table for one class's @RemoteCommand methods. Implementations are generated at compile time by
+ * RemoteCommandProcessor, one per class, named after it with "RemoteCommands" appended (Host becomes HostRemoteCommands,
+ * Outer.Host becomes Outer_HostRemoteCommands), and listed in META-INF/services so that
+ * RemoteControl.registerCommands(namespace, target) can find them.
+ *
+ * @author jim
+ *
+ */
+public interface RemoteCommandIndex {
+
+	/**
+	 * @return the class whose commands this index registers
+	 */
+	Class<?> getTargetClass();
+
+	/**
+	 * Register every @RemoteCommand method of 'target' with 'rc', under 'namespace'
+	 * @param namespace prefix for the names, without the dot. Null or empty for none.
+	 */
+	void register(RemoteControl rc, String namespace, Object target)
+	throws RemoteControlException;
+
+
+
+	/**
+	 * A call of one method, with its arguments already converted to the parameter types
+	 * (or, for a method that takes the raw Object[] args, the command line as given)
+	 */
+	interface Invoker {
+		void invoke(PrintStream ps, Object[] args)
+		throws Throwable;
+	}
+
+}
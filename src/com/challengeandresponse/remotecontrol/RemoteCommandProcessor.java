@@ -0,0 +1,313 @@
+package com.challengeandresponse.remotecontrol;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.*;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.NestingKind;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.ArrayType;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.tools.Diagnostic;
+import javax.tools.FileObject;
+import javax.tools.StandardLocation;
+
+/**
+ * Generates a RemoteCommandIndex for each class with @RemoteCommand methods, and lists them all in
+ * META-INF/services/com.challengeandresponse.remotecontrol.RemoteCommandIndex.
+ *
+ * <p>Each method's signature is checked here, so a method RemoteControl could not call (not public, no PrintStream,
+ * a parameter type with no converter, two commands of the same name) is a compile error rather than a failure at startup.
+ * The generated code calls each method directly, with its arguments cast to the parameter types, so registering
+ * the commands needs no reflection.</p>
+ *
+ * <p>The services file is written from the classes compiled in one javac run, so a build that compiles only some of the
+ * annotated classes should compile them all together (as a clean build does).</p>
+ *
+ * @author jim
+ *
+ */
+@SupportedAnnotationTypes("com.challengeandresponse.remotecontrol.RemoteCommand")
+public class RemoteCommandProcessor
+extends AbstractProcessor {
+
+	static final String INDEX_SUFFIX = "RemoteCommands";
+	private static final String SERVICES_FILE = "META-INF/services/" + RemoteCommandIndex.class.getName();
+
+	// generated index class names, for the services file
+	private final TreeSet <String> generated = new TreeSet<String>();
+
+
+	@Override
+	public SourceVersion getSupportedSourceVersion() {
+		return SourceVersion.latestSupported();
+	}
+
+	@Override
+	public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+		if (roundEnv.processingOver()) {
+			writeServicesFile();
+			return false;
+		}
+		// annotated methods by class, in source order
+		LinkedHashMap <TypeElement,List<ExecutableElement>> byClass = new LinkedHashMap<TypeElement,List<ExecutableElement>>();
+		for (Element e : roundEnv.getElementsAnnotatedWith(RemoteCommand.class)) {
+			if (e.getKind() != ElementKind.METHOD)
+				continue;
+			TypeElement owner = (TypeElement) e.getEnclosingElement();
+			List <ExecutableElement> methods = byClass.get(owner);
+			if (methods == null) {
+				methods = new ArrayList<ExecutableElement>();
+				byClass.put(owner, methods);
+			}
+			methods.add((ExecutableElement) e);
+		}
+		for (Map.Entry <TypeElement,List<ExecutableElement>> me : byClass.entrySet())
+			generate(me.getKey(), me.getValue());
+		return true;
+	}
+
+
+	private void generate(TypeElement owner, List <ExecutableElement> methods) {
+		boolean ok = checkClass(owner);
+		HashSet <String> names = new HashSet<String>();
+		StringBuilder body = new StringBuilder();
+		for (ExecutableElement m : methods) {
+			RemoteCommand rc = m.getAnnotation(RemoteCommand.class);
+			String name = (rc.value().length() > 0) ? rc.value() : m.getSimpleName().toString();
+			if (! names.add(name)) {
+				error(m, "@RemoteCommand: there is already a command named '"+name+"' in "+owner.getQualifiedName());
+				ok = false;
+				continue;
+			}
+			if ((name.length() == 0) || name.matches(".*\\s.*")) {
+				error(m, "@RemoteCommand: command names cannot contain whitespace");
+				ok = false;
+				continue;
+			}
+			if (rc.cacheTtlMsec() < 0L) {
+				error(m, "@RemoteCommand: cacheTtlMsec cannot be negative");
+				ok = false;
+				continue;
+			}
+			String call = call(owner, m);
+			if (call == null) {
+				ok = false;
+				continue;
+			}
+			body.append("\n");
+			body.append("\t\tmo = new com.challengeandresponse.remotecontrol.MethodOptions();\n");
+			body.append("\t\tmo.setSingleFlight(").append(rc.singleFlight()).append(");\n");
+			body.append("\t\tmo.setCacheTtlMsec(").append(rc.cacheTtlMsec()).append("L);\n");
+			body.append("\t\trc.registerCommand(namespace, \"").append(name).append("\", target, ").append(parameterTypes(m)).append(", mo,\n");
+			body.append("\t\t\t\tnew com.challengeandresponse.remotecontrol.RemoteCommandIndex.Invoker() {\n");
+			body.append("\t\t\tpublic void invoke(java.io.PrintStream ps, Object[] args)\n");
+			body.append("\t\t\tthrows Throwable {\n");
+			body.append("\t\t\t\t").append(call).append(";\n");
+			body.append("\t\t\t}\n");
+			body.append("\t\t});\n");
+		}
+		if (! ok)
+			return;
+
+		String packageName = packageOf(owner).getQualifiedName().toString();
+		String simpleName = flatName(owner) + INDEX_SUFFIX;
+		String className = (packageName.length() > 0) ? packageName + "." + simpleName : simpleName;
+		String ownerName = owner.getQualifiedName().toString();
+		try {
+			Writer w = processingEnv.getFiler().createSourceFile(className, owner).openWriter();
+			PrintWriter pw = new PrintWriter(w);
+			if (packageName.length() > 0)
+				pw.println("package "+packageName+";");
+			pw.println();
+			pw.println("/**");
+			pw.println(" * Generated by RemoteCommandProcessor from the @RemoteCommand methods of "+ownerName+". Do not edit.");
+			pw.println(" */");
+			pw.println("public final class "+simpleName);
+			pw.println("implements com.challengeandresponse.remotecontrol.RemoteCommandIndex {");
+			pw.println();
+			pw.println("\tpublic Class<?> getTargetClass() {");
+			pw.println("\t\treturn "+ownerName+".class;");
+			pw.println("\t}");
+			pw.println();
+			pw.println("\tpublic void register(com.challengeandresponse.remotecontrol.RemoteControl rc, String namespace, Object o)");
+			pw.println("\tthrows com.challengeandresponse.remotecontrol.RemoteControlException {");
+			pw.println("\t\tfinal "+ownerName+" target = ("+ownerName+") o;");
+			pw.println("\t\tcom.challengeandresponse.remotecontrol.MethodOptions mo;");
+			pw.print(body);
+			pw.println("\t}");
+			pw.println();
+			pw.println("}");
+			pw.close();
+			generated.add(className);
+		}
+		catch (IOException e) {
+			error(owner, "@RemoteCommand: cannot write "+className+": "+e.getMessage());
+		}
+	}
+
+	/**
+	 * @return true if generated code in the same package can name 'owner' and call its public methods
+	 */
+	private boolean checkClass(TypeElement owner) {
+		for (Element e = owner; e instanceof TypeElement; e = e.getEnclosingElement()) {
+			TypeElement te = (TypeElement) e;
+			if (! te.getModifiers().contains(Modifier.PUBLIC)) {
+				error(owner, "@RemoteCommand: "+te.getQualifiedName()+" must be public");
+				return false;
+			}
+			if ((te.getNestingKind() == NestingKind.MEMBER) && (te.getKind() == ElementKind.CLASS) && (! te.getModifiers().contains(Modifier.STATIC))) {
+				error(owner, "@RemoteCommand: "+te.getQualifiedName()+" must be static");
+				return false;
+			}
+			if ((te.getNestingKind() == NestingKind.LOCAL) || (te.getNestingKind() == NestingKind.ANONYMOUS)) {
+				error(owner, "@RemoteCommand: commands must be in a top level or member class");
+				return false;
+			}
+		}
+		if (! owner.getTypeParameters().isEmpty()) {
+			error(owner, "@RemoteCommand: "+owner.getQualifiedName()+" cannot be generic");
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @return the Java expression calling 'm' with the converted 'args', or null (after reporting why) if it cannot be called
+	 */
+	private String call(TypeElement owner, ExecutableElement m) {
+		if (! m.getModifiers().contains(Modifier.PUBLIC)) {
+			error(m, "@RemoteCommand: "+m.getSimpleName()+" must be public");
+			return null;
+		}
+		List <? extends VariableElement> params = m.getParameters();
+		if (params.isEmpty() || (! isClass(params.get(0).asType(), "java.io.PrintStream"))) {
+			error(m, "@RemoteCommand: the first parameter of "+m.getSimpleName()+" must be a java.io.PrintStream");
+			return null;
+		}
+		StringBuilder sb = new StringBuilder();
+		if (m.getModifiers().contains(Modifier.STATIC))
+			sb.append(owner.getQualifiedName());
+		else
+			sb.append("target");
+		sb.append('.').append(m.getSimpleName()).append("(ps");
+		if (isRaw(m)) {
+			sb.append(", args)");
+			return sb.toString();
+		}
+		for (int i = 1; i < params.size(); i++) {
+			String boxed = boxedType(params.get(i).asType());
+			if (boxed == null) {
+				error(params.get(i), "@RemoteCommand: cannot convert arguments to "+params.get(i).asType()+
+						"; parameters may be String, int, long, double, boolean, their wrappers, enums, or a single Object[]");
+				return null;
+			}
+			sb.append(", (").append(boxed).append(") args[").append(i - 1).append(']');
+		}
+		return sb.append(')').toString();
+	}
+
+	/**
+	 * @return the Class[] expression naming the parameter types after the PrintStream, or "null" for the raw Object[] form
+	 */
+	private String parameterTypes(ExecutableElement m) {
+		if (isRaw(m))
+			return "null";
+		StringBuilder sb = new StringBuilder("new Class<?>[] {");
+		List <? extends VariableElement> params = m.getParameters();
+		for (int i = 1; i < params.size(); i++) {
+			sb.append((i > 1) ? ", " : " ");
+			sb.append(processingEnv.getTypeUtils().erasure(params.get(i).asType())).append(".class");
+		}
+		return sb.append(" }").toString();
+	}
+
+	private boolean isRaw(ExecutableElement m) {
+		List <? extends VariableElement> params = m.getParameters();
+		if (params.size() != 2)
+			return false;
+		TypeMirror t = params.get(1).asType();
+		return (t.getKind() == TypeKind.ARRAY) && isClass(((ArrayType) t).getComponentType(), "java.lang.Object");
+	}
+
+	/**
+	 * @return the type to cast a converted argument to for a parameter of type 't', or null if RegisteredMethod has no converter for it
+	 */
+	private String boxedType(TypeMirror t) {
+		switch (t.getKind()) {
+		case INT:
+			return "java.lang.Integer";
+		case LONG:
+			return "java.lang.Long";
+		case DOUBLE:
+			return "java.lang.Double";
+		case BOOLEAN:
+			return "java.lang.Boolean";
+		case DECLARED:
+			Element e = ((DeclaredType) t).asElement();
+			String name = ((TypeElement) e).getQualifiedName().toString();
+			if (e.getKind() == ElementKind.ENUM)
+				return name;
+			if (name.equals("java.lang.String") || name.equals("java.lang.Integer") || name.equals("java.lang.Long") ||
+					name.equals("java.lang.Double") || name.equals("java.lang.Boolean"))
+				return name;
+			return null;
+		default:
+			return null;
+		}
+	}
+
+	private static boolean isClass(TypeMirror t, String qualifiedName) {
+		return (t.getKind() == TypeKind.DECLARED) &&
+			((TypeElement) ((DeclaredType) t).asElement()).getQualifiedName().contentEquals(qualifiedName);
+	}
+
+	private static PackageElement packageOf(Element e) {
+		while (! (e instanceof PackageElement))
+			e = e.getEnclosingElement();
+		return (PackageElement) e;
+	}
+
+	/**
+	 * @return the class name without its package, with nested classes joined by '_', e.g. "Outer_Host"
+	 */
+	private static String flatName(TypeElement owner) {
+		String name = owner.getSimpleName().toString();
+		for (Element e = owner.getEnclosingElement(); e instanceof TypeElement; e = e.getEnclosingElement())
+			name = e.getSimpleName() + "_" + name;
+		return name;
+	}
+
+	private void writeServicesFile() {
+		if (generated.isEmpty())
+			return;
+		try {
+			FileObject fo = processingEnv.getFiler().createResource(StandardLocation.CLASS_OUTPUT, "", SERVICES_FILE);
+			PrintWriter pw = new PrintWriter(fo.openWriter());
+			for (String className : generated)
+				pw.println(className);
+			pw.close();
+		}
+		catch (IOException e) {
+			processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, "@RemoteCommand: cannot write "+SERVICES_FILE+": "+e.getMessage());
+		}
+	}
+
+	private void error(Element e, String message) {
+		processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, message, e);
+	}
+
+}
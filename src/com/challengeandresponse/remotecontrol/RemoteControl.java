@@ -1,12 +1,14 @@
 package com.challengeandresponse.remotecontrol;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
 import java.net.*;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import com.challengeandresponse.eventlogger.EventLoggerI;
 import com.challengeandresponse.timedtokencache.TimedTokenCache;
@@ -20,15 +22,14 @@ import com.challengeandresponse.timedtokencache.TimedTokenCacheString;
 
 // TODO if startup fails due to e.g. can't register method, app does not terminate -- it should!
 // TODO maxConnections config item doesn't do anything right now. all connections are accepted.
-// TODO Shutdown is still locking up due to callback from child of this to shutdown method over in caller
 // TODO Make this simpler. Make the client just issue one command, receive a response, and terminate.
 
 /**
  * RemoteControl allows over-the-wire control of server apps (such as SK).
  * It also allows apps to stream performance, state, or event data back to listening apps such as a Flash front-end (as with SK).
  * <p>RemoteControl at present provides for basic authentication via a shared secret, for replay detection, and for 
- * limits on controllers based on IP address or host name. AT present it's all TCP over a plain TCP link, but I hope it is generic
- * enough to be retrofitted in the future to be transport-agnostic - supporting web, chat or other interfaces.
+ * limits on controllers based on IP address or host name. Connections come in through Transports: TCP (optionally with TLS)
+ * and Unix domain sockets are built in, and others can be added with addTransport(). The protocol layer only sees a Connection's streams.
  * 
  * <p>
  * RemoteControl has these components:<br />
@@ -41,6 +42,16 @@ import com.challengeandresponse.timedtokencache.TimedTokenCacheString;
  * <p>
  * Methods registered for remote calls must have this signature:<br />
  * public void method(PrintStream ps, Object[] args)<br />
+ * where args[0] is the method name and the rest are the arguments as given, or take typed parameters after the PrintStream:<br />
+ * public void method(PrintStream ps, String pool, int size)<br />
+ * Typed arguments are converted, and malformed ones turned away, before the method is called (see RegisteredMethod).
+ * </p>
+ * <p>
+ * Methods of the object given to the constructor are registered with registerMethod(name). Methods of other objects are
+ * registered under a namespace with register(namespace, target, names...), and clients call them by the dotted name,
+ * e.g. "cache.flush", over the same listener and authentication as the rest. '? namespace' lists one namespace's methods.
+ * Methods marked @RemoteCommand have their signatures checked at compile time, and are all registered by registerCommands(namespace, target)
+ * with no reflection (see RemoteCommand).
  * </p>
  * 
  * <p>
@@ -65,7 +76,30 @@ import com.challengeandresponse.timedtokencache.TimedTokenCacheString;
  * </p>
  * 
  * 
- * TODO Should eventually use TLS for communications, but for now, we just open a plain TCP connection.
+ * <p>
+ * TCP listens on 'port' unless turned off with &lt;tcp&gt;false&lt;/tcp&gt;. If &lt;unixsocket&gt; names a path, a Unix domain socket
+ * is opened there as well, for agents on the same host. The allowhost list applies to TCP only; access to the Unix socket
+ * is controlled by the permissions on its file (&lt;unixsocketpermissions&gt;, owner-only by default).
+ * </p>
+ * 
+ * <p>
+ * Browser dashboards can connect over WebSocket if &lt;websocketport&gt; is set (see WebSocketServer). They use the same
+ * commands and authentication, one command per message, and are served by a single selector thread however many there are.
+ * The host app streams state to dashboards, or to any other session, with publish(topic, message); sessions receive
+ * what is published to the topics they 'subscribe' to.
+ * </p>
+ * 
+ * <p>
+ * Client secrets and allowed hosts can be changed without a restart: edit the config file and RemoteControl reloads them
+ * (unless &lt;watchconfig&gt; is false). Sessions already logged in carry on; new logins and connections use the new settings.
+ * </p>
+ * 
+ * <p>
+ * TCP connections are plain unless TLS is turned on in the config, in which case every connection is TLS.
+ * TLS runs on SSLEngine, with one SSLContext (and so one session cache) shared by all connections, so that
+ * returning clients can resume their sessions rather than doing a full handshake each time.
+ * </p>
+ * 
  * @author jim  
  *
  */
@@ -74,22 +108,50 @@ implements Runnable {
 
 	// list of hosts that are allowed to control this RemoteControl instance
 	private TimedTokenCache usedNonces;
-	private ConcurrentHashMap <String,Method> methods;
-
-	private Object obj; // remote control methods will be called against methods of this object
+	// registered methods by the name clients call them, "namespace.method" for those in a namespace
+	private ConcurrentHashMap <String,RegisteredMethod> methods;
+	// the '?' method listing, by namespace ("" for all), built on first use after each change to 'methods'
+	private ConcurrentHashMap <String,String> listings;
+	private SingleFlight singleFlight;
+	private ResultCache resultCache;
+
+	private Object obj; // methods registered without a target object are called against this object
 	private RemoteControlConfig rcc;
 	private EventLoggerI eventLogger;
 
-	private boolean running = false;
-	private static final int SOCKET_TIMEOUT_MSEC = 1000;
+	private volatile boolean running = false;
+	// transports added by the host app, plus those built from the config when run() starts
+	private final List <Transport> transports = new CopyOnWriteArrayList<Transport>();
 
 	// child thread management
 	private ThreadGroup serverThreads = null;
 	private static final String THREAD_GROUP_NAME = "THREADS";
-	private ConcurrentHashMap <CRLFServer,Thread> serverThreadList;
+	// every open session, whether it has a thread of its own or is driven by the WebSocket selector
+	private Set <CRLFServer> sessions;
+	private volatile WebSocketServer webSocketServer = null;
+	// reloads the clients and allowed hosts when the config file changes; null if not watching
+	private volatile ConfigWatcher configWatcher = null;
+
+	// background jobs started by exec-async
+	private JobRegistry jobs;
+	// exec commands from every session, shared fairly between client ids
+	private FairScheduler scheduler;
+
+	// one timer wheel serves every session's idle, auth and heartbeat timeouts
+	private HashedTimingWheel timers;
+	private static final long TIMER_TICK_MSEC = 100;
+	private static final int TIMER_WHEEL_SIZE = 512;
+
+	private RemoteControlMetrics metrics;
+	private Broadcaster broadcaster;
+
+	// exec requests are limited per client id, failed hash checks per source address
+	private RateLimiter execLimiter;
+	private RateLimiter authLimiter;
 
 	/**
-	 * @param obj the object to call the methods against
+	 * @param obj the object to call methods registered with registerMethod() against. May be null if all methods are
+	 * registered with register() instead.
 	 * @param rcc the RemoteControlConfig with all the settings for this instance in it
 	 * @param el an EventLogger to post interesting events to
 	 */
@@ -99,23 +161,36 @@ implements Runnable {
 		this.eventLogger = el;
 		this.running = false;
 		usedNonces = new TimedTokenCache();
-		methods = new ConcurrentHashMap<String,Method>();
+		methods = new ConcurrentHashMap<String,RegisteredMethod>();
+		listings = new ConcurrentHashMap<String,String>();
+		singleFlight = new SingleFlight();
 
 		usedNonces.startCleaner(rcc.getCacheCleaningIntervalSec(),"RemoteControl.usedNonces");
 		serverThreads = new ThreadGroup(THREAD_GROUP_NAME);
-		serverThreadList = new ConcurrentHashMap <CRLFServer,Thread>();
+		sessions = Collections.newSetFromMap(new ConcurrentHashMap<CRLFServer,Boolean>());
+		jobs = new JobRegistry(this,rcc,el);
+		scheduler = new FairScheduler(rcc);
+		metrics = new RemoteControlMetrics();
+		resultCache = new ResultCache(rcc.getResultCacheBytes(), metrics);
+		broadcaster = new Broadcaster(metrics);
+		timers = new HashedTimingWheel(TIMER_TICK_MSEC, TIMER_WHEEL_SIZE, "RemoteControl.timers");
+		timers.start();
+		rcc.getHostResolver().setEventLogger(el);
+		execLimiter = new RateLimiter(rcc.getExecRateLimit(), rcc.getClientExecRateLimits());
+		authLimiter = new RateLimiter(rcc.getAuthRateLimit(), null);
+		scheduleLimiterPurge();
 	}
 
 
 	/**
 	 * Add a host that is allowed to control this instance of RemoteControl
-	 * @param host may be either a host name or dotted IP address; will be resolved by InetAddress.getByName() so follow those rules
-	 * @throws UnknownHostException if the host cannot be identified via DNS lookup or if the address is not valid
+	 * @param host may be either a host name or an IP address. Names are looked up in the background and kept up to date
+	 * (see RemoteControlConfig.addAllowedHost(String)), so this returns at once and the host is admitted once its name resolves.
+	 * @throws UnknownHostException no longer thrown, since lookups happen later; failed lookups are logged
 	 */
 	public void allowHost(String host)
 	throws UnknownHostException {
-		InetAddress ia = InetAddress.getByName(host);
-		rcc.addAllowedHost(ia);
+		rcc.addAllowedHost(host);
 	}
 
 
@@ -131,42 +206,271 @@ implements Runnable {
 	}
 
 
-	private void registerMethod(String methodName, Method m) {
-		methods.put(methodName,m);
+	public void registerMethod(String methodName)
+	throws RemoteControlException {
+		registerMethod(methodName, new MethodOptions());
 	}
 
-	public void registerMethod(String methodName)
+	/**
+	 * Register 'methodName' to be run as 'options' say, e.g. with concurrent identical calls coalesced
+	 */
+	public void registerMethod(String methodName, MethodOptions options)
 	throws RemoteControlException {
-		Method m;
-		try {
-			m = obj.getClass().getMethod(methodName, PrintStream.class, Object[].class);
-		}
-		catch (SecurityException e) {
-			throw new RemoteControlException("Cannot register method: "+methodName+"; SecurityException:"+e.getMessage());
-		} 
-		catch (NoSuchMethodException e) {
-			throw new RemoteControlException("Cannot register method: "+methodName+"; NoSuchMethodException:"+e.getMessage());
+		if (obj == null)
+			throw new RemoteControlException("Cannot register method: "+methodName+"; there is no default object to call it against. Use register()");
+		register(null, obj, options, methodName);
+	}
+
+	/**
+	 * Register methods of 'target' under 'namespace', so that clients call them as "namespace.method".
+	 * One RemoteControl can serve any number of target objects this way, on one listener and one authentication path.
+	 * @param namespace prefix for the names, without the dot. Null or empty for none.
+	 * @param methodNames public methods of 'target' taking a PrintStream and then either Object[] args or typed parameters
+	 */
+	public void register(String namespace, Object target, String... methodNames)
+	throws RemoteControlException {
+		register(namespace, target, new MethodOptions(), methodNames);
+	}
+
+	/**
+	 * Register methods of 'target' under 'namespace', all to be run as 'options' say
+	 */
+	public void register(String namespace, Object target, MethodOptions options, String... methodNames)
+	throws RemoteControlException {
+		if ((namespace != null) && (namespace.length() > 0) && (! isValidName(namespace)))
+			throw new RemoteControlException("Cannot register namespace: '"+namespace+"'; names cannot contain whitespace");
+		// look everything up first, so that a bad name registers nothing
+		ArrayList <RegisteredMethod> found = new ArrayList<RegisteredMethod>();
+		for (String methodName : methodNames)
+			found.add(RegisteredMethod.resolve(qualifiedName(namespace, methodName), target, methodName, options));
+		for (RegisteredMethod rm : found)
+			put(rm);
+	}
+
+	/**
+	 * Register every @RemoteCommand method of 'target' under 'namespace', through the RemoteCommandIndex generated for its
+	 * class at compile time (found with ServiceLoader), so that no methods are looked up by reflection.
+	 * @param namespace prefix for the names, without the dot. Null or empty for none.
+	 * @throws RemoteControlException if no index was generated for the class of 'target' or any superclass
+	 */
+	public void registerCommands(String namespace, Object target)
+	throws RemoteControlException {
+		if ((namespace != null) && (namespace.length() > 0) && (! isValidName(namespace)))
+			throw new RemoteControlException("Cannot register namespace: '"+namespace+"'; names cannot contain whitespace");
+		HashMap <Class<?>,RemoteCommandIndex> indexes = new HashMap<Class<?>,RemoteCommandIndex>();
+		for (RemoteCommandIndex index : ServiceLoader.load(RemoteCommandIndex.class, target.getClass().getClassLoader()))
+			indexes.put(index.getTargetClass(), index);
+		for (Class<?> c = target.getClass(); c != null; c = c.getSuperclass()) {
+			RemoteCommandIndex index = indexes.get(c);
+			if (index != null) {
+				index.register(this, namespace, target);
+				return;
+			}
 		}
-		registerMethod(methodName,m);
+		throw new RemoteControlException("Cannot register commands of "+target.getClass().getName()+"; no RemoteCommandIndex was generated for it. "+
+				"Is it compiled with RemoteCommandProcessor, and does it have @RemoteCommand methods?");
+	}
+
+	/**
+	 * Register one command whose call was generated at compile time. For use by generated RemoteCommandIndex classes.
+	 * @param parameterTypes the types of the parameters after the PrintStream, or null if it takes the raw Object[] args
+	 * @param invoker calls the method with the converted arguments
+	 */
+	public void registerCommand(String namespace, String commandName, Object target, Class<?>[] parameterTypes,
+			MethodOptions options, RemoteCommandIndex.Invoker invoker)
+	throws RemoteControlException {
+		put(RegisteredMethod.bind(qualifiedName(namespace, commandName), target, parameterTypes, options, invoker));
+	}
+
+	private void put(RegisteredMethod rm) {
+		methods.put(rm.getName(), rm);
+		resultCache.invalidate(SingleFlight.keyPrefix(rm.getName()));
+		listings.clear();
 	}
 
 	public void unregisterMethod(String methodName) {
 		methods.remove(methodName);
+		resultCache.invalidate(SingleFlight.keyPrefix(methodName));
+		listings.clear();
 	}
 
+	/**
+	 * Unregister every method in 'namespace'
+	 */
+	public void unregister(String namespace) {
+		String prefix = namespace + ".";
+		for (String name : methods.keySet())
+			if (name.startsWith(prefix))
+				unregisterMethod(name);
+	}
+
+	/**
+	 * @return true if clients can call 'methodName'
+	 */
+	public boolean isRegisteredMethod(String methodName) {
+		return methods.containsKey(methodName);
+	}
+
+	/**
+	 * @return every registered name, in order
+	 */
 	public List <String> getRegisteredMethods() {
-		ArrayList<String> al = new ArrayList<String> ();
-		Enumeration <String> en = methods.keys();
-		while (en.hasMoreElements())
-			al.add(en.nextElement());
+		ArrayList<String> al = new ArrayList<String> (methods.keySet());
+		Collections.sort(al);
 		return al;
 	}
 
+	/**
+	 * The '?' listing: registered names separated by spaces, in order, with the parameter types of typed methods,
+	 * e.g. "cache.resize(String,int)". Built once and kept until the registry next changes.
+	 * @param namespace only names in this namespace. Null or empty for all.
+	 */
+	public String getMethodListing(String namespace) {
+		String key = (namespace == null) ? "" : namespace;
+		String listing = listings.get(key);
+		if (listing == null) {
+			StringBuilder sb = new StringBuilder();
+			String prefix = key + ".";
+			for (String name : getRegisteredMethods()) {
+				RegisteredMethod rm = methods.get(name);
+				if ((rm == null) || ((key.length() > 0) && (! name.startsWith(prefix))))
+					continue;
+				if (sb.length() > 0)
+					sb.append(' ');
+				sb.append(name).append(rm.getParameterList());
+			}
+			listing = sb.toString();
+			listings.put(key, listing);
+		}
+		return listing;
+	}
+
+	private static String qualifiedName(String namespace, String methodName) {
+		if ((namespace == null) || (namespace.length() == 0))
+			return methodName;
+		return namespace + "." + methodName;
+	}
+
+	private static boolean isValidName(String name) {
+		for (int i = 0; i < name.length(); i++)
+			if (Character.isWhitespace(name.charAt(i)))
+				return false;
+		return true;
+	}
+
+
+	/**
+	 * @return the scheduler that runs every session's execs, sharing its workers fairly among client ids
+	 */
+	public FairScheduler getScheduler() {
+		return scheduler;
+	}
+
+	/**
+	 * @return the registry of background jobs started by the exec-async command
+	 */
+	public JobRegistry getJobRegistry() {
+		return jobs;
+	}
+
+
+	/**
+	 * @return the counters kept by this instance and its sessions
+	 */
+	public RemoteControlMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * @return the publish/subscribe hub used by publish() and the subscribe command
+	 */
+	public Broadcaster getBroadcaster() {
+		return broadcaster;
+	}
+
+	/**
+	 * Send 'message' to every session subscribed to 'topic', as "PUB topic message". Never blocks:
+	 * the message is encoded once per framing and queued for each subscriber that has room for it.
+	 * @return the number of sessions it was queued for
+	 */
+	public int publish(String topic, String message) {
+		return broadcaster.publish(topic, message);
+	}
+
+	HashedTimingWheel getTimers() {
+		return timers;
+	}
+
+	RemoteControlConfig getConfig() {
+		return rcc;
+	}
+
+
+	/**
+	 * Listen on 'transport' as well as on the transports named in the config. Call before run().
+	 */
+	public void addTransport(Transport transport) {
+		transports.add(transport);
+	}
+
 
 	public boolean validTime(long checkTime) {
 		return (Math.abs(System.currentTimeMillis() - checkTime) <= rcc.getMaxClockSkewMsec());
 	}
 
+	/**
+	 * Take a token from 'clientID's exec bucket. Cheap enough to call before anything else is done for the request.
+	 * @return true if the client may run a method now, false if it is over its limit
+	 */
+	public boolean allowExec(String clientID) {
+		return allowExec(clientID, 1);
+	}
+
+	/**
+	 * Take 'calls' tokens from 'clientID's exec bucket at once, for a batch; either all of them or none
+	 * @return true if the client may run all 'calls' methods now, false if it is over its limit
+	 */
+	public boolean allowExec(String clientID, int calls) {
+		if (execLimiter.tryAcquire(clientID, calls))
+			return true;
+		metrics.increment(RemoteControlMetrics.RATE_LIMITED_EXEC);
+		return false;
+	}
+
+	/**
+	 * Check, without taking a token, that 'source' has not used up its bucket of failed hash checks. Call before
+	 * validateHash(), so that a flood of guesses is turned away without computing a hash for each.
+	 * @param source from Connection.getSourceAddress(); null, for a local peer, is not limited
+	 * @return true if a hash from 'source' may be checked now
+	 */
+	public boolean allowAuthAttempt(String source) {
+		if ((source == null) || authLimiter.hasToken(source))
+			return true;
+		metrics.increment(RemoteControlMetrics.RATE_LIMITED_AUTH);
+		return false;
+	}
+
+	/**
+	 * A hash from 'source' did not validate: take a token from its bucket. Hashes that validate cost nothing, so
+	 * clients that log in correctly from one address, however many, are never turned away.
+	 */
+	public void authAttemptFailed(String source) {
+		if (source != null)
+			authLimiter.tryAcquire(source);
+	}
+
+	// full buckets are dropped now and then, so one-off source addresses do not pile up
+	private void scheduleLimiterPurge() {
+		timers.schedule(new Runnable() {
+			public void run() {
+				execLimiter.purgeIdle();
+				authLimiter.purgeIdle();
+				if (running || (! sessions.isEmpty()))
+					scheduleLimiterPurge();
+			}
+		}, rcc.getCacheCleaningIntervalSec() * 1000L);
+	}
+
 	public boolean validateHash(String id, String nonce, long time, String offeredHash) {
 		if ((id == null) || (nonce == null) || (offeredHash == null))
 			return false;
@@ -183,80 +487,207 @@ implements Runnable {
 
 
 
-	/// socket listener, and services...
+	/// listeners, and services...
+	/**
+	 * Open every transport and accept connections on all of them until shutdown(). Each transport gets its own
+	 * accepting thread; this method returns when they have all stopped.
+	 */
 	public void run() {
 		eventLogger.addEvent("RemoteControl: starting");
 		running = true;
+		// accepting threads for a transport that has more than one
+		HashMap <Transport,Integer> acceptorThreads = new HashMap<Transport,Integer>();
+		if (rcc.isTcp())
+			addTcpTransports(acceptorThreads);
+		if (rcc.getUnixSocket() != null)
+			transports.add(new UnixDomainTransport(rcc.getUnixSocket(), rcc.getUnixSocketPermissions(), eventLogger));
+
+		ArrayList <Thread> acceptors = new ArrayList<Thread>();
 		try {
-			ServerSocket listener = new ServerSocket(rcc.getPort());
-			listener.setSoTimeout(SOCKET_TIMEOUT_MSEC);
-
-			while (running) {
-				Socket connectedSocket = null;
+			for (Transport transport : transports) {
+				transport.open();
+				eventLogger.addEvent("RemoteControl: listening on "+transport.getName());
+			}
+			if (rcc.getWebSocketPort() > 0) {
+				WebSocketServer ws = new WebSocketServer(this, rcc, eventLogger);
+				ws.open();
+				webSocketServer = ws;
+				eventLogger.addEvent("RemoteControl: listening on "+ws.getName());
+				Thread t = new Thread(ws, "RemoteControl.websocket");
+				acceptors.add(t);
+				t.start();
+			}
+			if ((rcc.getFilePath() != null) && rcc.isWatchConfig()) {
 				try {
-					connectedSocket = listener.accept();
+					configWatcher = new ConfigWatcher(rcc, eventLogger);
 				}
-				catch (java.net.SocketTimeoutException ste) {
-					delay(250);
-					continue;
+				catch (IOException ioe) {
+					// the config as loaded still works; it just will not follow the file
+					eventLogger.addEvent("RemoteControl: cannot watch "+rcc.getFilePath()+" for changes: "+ioe.getMessage());
 				}
-				eventLogger.addEvent("Connection attempt on control port from:"+connectedSocket.getInetAddress().getHostAddress());
-				if (! rcc.isAllowedHost(connectedSocket.getInetAddress())) {
-					connectedSocket.close();
-					eventLogger.addEvent("Rejected connection from unauthorized host:"+connectedSocket.getInetAddress().getHostAddress());
-					continue;
+			}
+			// shutdown() may have been called while we were binding
+			if (! running)
+				closeTransports();
+			for (final Transport transport : transports) {
+				Integer threads = acceptorThreads.get(transport);
+				int n = (threads != null) ? threads : 1;
+				for (int i = 1; i <= n; i++) {
+					Thread t = new Thread(new Runnable() {
+						public void run() {
+							acceptLoop(transport);
+						}
+					}, "RemoteControl.accept."+transport.getName() + ((n > 1) ? "-"+i : ""));
+					acceptors.add(t);
+					t.start();
 				}
-				eventLogger.addEvent("Accepted connection from authorized host:"+connectedSocket.getInetAddress().getHostAddress());
-				CRLFServer server = new CRLFServer(connectedSocket,this,eventLogger);
-				Thread t = new Thread(serverThreads,server,"CRLFServer"+System.currentTimeMillis());
-				serverThreadList.put(server, t);
-				System.out.println(t.getName());
-				t.start();
 			}
-			//			eventLogger.addEvent("RemoteControl terminating.");
-			//			usedNonces.stopCleaner();
-			//			Enumeration <CRLFServer> serverKeys = serverThreadList.keys();
-			//			while (serverKeys.hasMoreElements()) {
-			//				CRLFServer server = serverKeys.nextElement();
-			//				Thread serverThread = serverThreadList.get(server);
-			//				eventLogger.addEvent("RemoteControl:shutting down CRLF child server:"+serverThread.getName());
-			//				server.shutdown();
-			//				try {
-			//					serverThread.join();
-			//				} 
-			//				catch (InterruptedException e) {
-			//				}
-			//			}
+		} 
+		catch (RemoteControlException rce) {
+			eventLogger.addEvent("RemoteControl: cannot start: " + rce.getMessage());
+			closeTransports();
 		} 
 		catch (IOException ioe) {
-			eventLogger.addEvent("RemoteControl: IOException on socket listen: " + ioe.getMessage());
+			eventLogger.addEvent("RemoteControl: IOException opening listener: " + ioe.getMessage());
+			closeTransports();
 		} 
+		for (Thread t : acceptors) {
+			try {
+				t.join();
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+		eventLogger.addEvent("RemoteControl: listener stopped");
 	}
 
 
+	/**
+	 * The TCP transports for the configured number of accepting threads: one shard per thread where the listener can be
+	 * sharded, otherwise one transport that all of them accept on
+	 * @param acceptorThreads where to note a transport that needs more than one thread
+	 */
+	private void addTcpTransports(Map <Transport,Integer> acceptorThreads) {
+		int n = rcc.getTcpAcceptors();
+		if ((n > 1) && TcpTransport.canShardListener()) {
+			for (int i = 1; i <= n; i++)
+				transports.add(new TcpTransport(rcc, eventLogger, i));
+			return;
+		}
+		TcpTransport tcp = new TcpTransport(rcc, eventLogger);
+		transports.add(tcp);
+		if (n > 1) {
+			eventLogger.addEvent("RemoteControl: SO_REUSEPORT listeners are not available here; "+n+" threads will accept on one listener");
+			acceptorThreads.put(tcp, n);
+		}
+	}
+
+	/**
+	 * Accept on 'transport' and start a session thread for each connection. Each accepting thread starts its sessions in
+	 * a thread group of its own, so that accepting threads do not queue for the shared group's lock.
+	 */
+	private void acceptLoop(Transport transport) {
+		ThreadGroup group = new ThreadGroup(serverThreads, Thread.currentThread().getName());
+		while (running) {
+			Connection connection;
+			try {
+				connection = transport.accept();
+			}
+			catch (IOException ioe) {
+				eventLogger.addEvent("RemoteControl: IOException on "+transport.getName()+": " + ioe.getMessage());
+				break;
+			}
+			// null once the transport is closed
+			if (connection == null)
+				break;
+			if (! running) {
+				connection.close();
+				break;
+			}
+			CRLFServer server = new CRLFServer(connection,this,eventLogger);
+			enlistServer(server);
+			new Thread(group,server,server.getName()).start();
+		}
+		transport.close();
+	}
+
+
+	private void closeTransports() {
+		for (Transport transport : transports)
+			transport.close();
+		WebSocketServer ws = webSocketServer;
+		if (ws != null)
+			ws.stopAccepting();
+	}
+
+
+	void enlistServer(CRLFServer server) {
+		metrics.increment(RemoteControlMetrics.SESSIONS_OPENED);
+		sessions.add(server);
+	}
+
 	public void delistServer(CRLFServer server) {
-		serverThreadList.remove(server);
+		sessions.remove(server);
 	}
 
 
+	/**
+	 * Stop accepting connections at once, then shut down all sessions and jobs in parallel.
+	 * Sessions stop reading commands but are allowed to finish the methods they are running, until the
+	 * configured drain timeout. Anything still running after that is closed forcibly.
+	 * <p>Safe to call from inside a remotely invoked method: the calling session is not waited for.</p>
+	 */
 	public void shutdown() {
 		running = false; // start no more instances
-
-		// TODO Experimental
 		eventLogger.addEvent("RemoteControl terminating.");
+		long deadline = System.currentTimeMillis() + rcc.getDrainTimeoutMsec();
+
+		closeTransports();
 		usedNonces.stopCleaner();
-		Enumeration <CRLFServer> serverKeys = serverThreadList.keys();
-		while (serverKeys.hasMoreElements()) {
-			CRLFServer server = serverKeys.nextElement();
-			Thread serverThread = serverThreadList.get(server);
-			eventLogger.addEvent("RemoteControl:shutting down CRLF child server:"+serverThread.getName());
+
+		// signal everyone before waiting for anyone
+		jobs.beginShutdown();
+		ArrayList <CRLFServer> open = new ArrayList<CRLFServer>(sessions);
+		for (CRLFServer server : open) {
+			eventLogger.addEvent("RemoteControl:shutting down CRLF child server:"+server.getName());
 			server.shutdown();
+		}
+
+		// one shared deadline, so the total wait is bounded no matter how many sessions there are
+		ArrayList <CRLFServer> stragglers = new ArrayList<CRLFServer>();
+		for (CRLFServer server : open) {
+			// a method calling shutdown() would otherwise wait for itself
+			if (server.isExecutingOn(Thread.currentThread()))
+				continue;
+			boolean ended = false;
 			try {
-				serverThread.join();
+				long remaining = deadline - System.currentTimeMillis();
+				ended = server.awaitClosed(Math.max(0L, remaining));
 			} 
-			catch (InterruptedException e) {
+			catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
 			}
+			if (! ended)
+				stragglers.add(server);
 		}
+		jobs.awaitShutdown(Math.max(0L, deadline - System.currentTimeMillis()));
+
+		for (CRLFServer server : stragglers) {
+			eventLogger.addEvent("RemoteControl: drain timeout passed, closing session forcibly");
+			metrics.increment(RemoteControlMetrics.SESSIONS_CLOSED_AT_SHUTDOWN);
+			server.forceClose();
+		}
+		scheduler.shutdown();
+		ConfigWatcher cw = configWatcher;
+		if (cw != null)
+			cw.close();
+		rcc.stopHostResolver();
+		WebSocketServer ws = webSocketServer;
+		if (ws != null)
+			ws.close();
+		timers.stop();
 	}
 
 
@@ -265,14 +696,138 @@ implements Runnable {
 
 	public void invokeMethod(String methodName, PrintStream ps, Object... args)
 	throws IllegalArgumentException, IllegalAccessException, InvocationTargetException, RemoteControlException {
-		Method m = methods.get(methodName);
-		if (m == null)  {
+		byte[] cached = getCachedResult(methodName, args);
+		if (cached != null) {
+			ps.print(new String(cached, StandardCharsets.UTF_8));
+			return;
+		}
+		invokeUncached(methodName, ps, args);
+	}
+
+	/**
+	 * invokeMethod() for callers that have already looked in the result cache
+	 */
+	void invokeUncached(String methodName, PrintStream ps, Object... args)
+	throws IllegalArgumentException, IllegalAccessException, InvocationTargetException, RemoteControlException {
+		RegisteredMethod rm = lookupMethod(methodName);
+		if (! rm.getOptions().isSingleFlight()) {
+			invocation(rm, args).invoke(ps);
+			return;
+		}
+		// callers that can wait without a thread (sessions) use joinSharedCall() instead
+		boolean shared = singleFlight.runOrWait(SingleFlight.key(methodName, args), ps, invocation(rm, args));
+		metrics.increment(shared ? RemoteControlMetrics.SINGLE_FLIGHT_SHARED : RemoteControlMetrics.SINGLE_FLIGHT_EXECUTED);
+	}
+
+	/**
+	 * @return true if 'methodName' was registered with single-flight set in its MethodOptions
+	 */
+	public boolean isSingleFlight(String methodName) {
+		RegisteredMethod rm = methods.get(methodName);
+		return (rm != null) && rm.getOptions().isSingleFlight();
+	}
+
+	/**
+	 * For a single-flight method: join the identical call that is already queued or running, or open a new one.
+	 * @param waiter called back with the output if an existing call was joined
+	 * @return the new call, which the caller must pass to invokeSharedCall() or abandonSharedCall(); null if 'waiter' joined one
+	 */
+	SingleFlight.Call joinSharedCall(String methodName, Object[] args, SingleFlight.Waiter waiter) {
+		SingleFlight.Call call = singleFlight.join(SingleFlight.key(methodName, args), waiter);
+		if (call == null)
+			metrics.increment(RemoteControlMetrics.SINGLE_FLIGHT_SHARED);
+		return call;
+	}
+
+	/**
+	 * Run a call opened by joinSharedCall(), writing its output to 'ps' and to everyone who joined it
+	 */
+	void invokeSharedCall(SingleFlight.Call call, String methodName, PrintStream ps, Object... args)
+	throws IllegalArgumentException, IllegalAccessException, InvocationTargetException, RemoteControlException {
+		RegisteredMethod rm;
+		try {
+			rm = lookupMethod(methodName);
+		}
+		catch (RemoteControlException e) {
+			// those who joined are owed an answer too
+			singleFlight.run(call, ps, failure(e));
+			return;
+		}
+		metrics.increment(RemoteControlMetrics.SINGLE_FLIGHT_EXECUTED);
+		singleFlight.run(call, ps, invocation(rm, args));
+	}
+
+	/**
+	 * @return the cached output of 'methodName' called with 'args', as UTF-8; null if the method is not cacheable
+	 * or the cache has no fresh output for these arguments
+	 */
+	public byte[] getCachedResult(String methodName, Object[] args) {
+		RegisteredMethod rm = methods.get(methodName);
+		if ((rm == null) || (rm.getOptions().getCacheTtlMsec() <= 0L))
+			return null;
+		return resultCache.get(SingleFlight.key(methodName, args));
+	}
+
+	public ResultCache getResultCache() {
+		return resultCache;
+	}
+
+	/**
+	 * The opener of 'call' will not run it; someone who joined it takes it over
+	 */
+	void abandonSharedCall(SingleFlight.Call call) {
+		singleFlight.abandon(call);
+	}
+
+	private RegisteredMethod lookupMethod(String methodName)
+	throws RemoteControlException {
+		RegisteredMethod rm = methods.get(methodName);
+		if (rm == null)  {
 			eventLogger.addEvent("Method "+methodName+" not found");
 			throw new RemoteControlException("Method "+methodName+" not found. Cannot invoke");
 		}
-		m.invoke(obj,ps,args);
+		return rm;
 	}
 
+	/**
+	 * @return a call of 'rm' that, if the method is cacheable, also stores the output in the result cache
+	 */
+	private SingleFlight.Invocation invocation(final RegisteredMethod rm, final Object[] args) {
+		final long ttlMsec = rm.getOptions().getCacheTtlMsec();
+		if (ttlMsec <= 0L) {
+			return new SingleFlight.Invocation() {
+				public void invoke(PrintStream ps)
+				throws IllegalAccessException, InvocationTargetException {
+					rm.invoke(ps,args);
+				}
+			};
+		}
+		return new SingleFlight.Invocation() {
+			public void invoke(PrintStream ps)
+			throws IllegalAccessException, InvocationTargetException {
+				ByteArrayOutputStream buf = new ByteArrayOutputStream();
+				PrintStream bps = new PrintStream(buf, false, StandardCharsets.UTF_8);
+				// output written before a failure still goes to the caller, but nothing is cached
+				try {
+					rm.invoke(bps,args);
+				}
+				finally {
+					bps.flush();
+					ps.print(new String(buf.toByteArray(), StandardCharsets.UTF_8));
+				}
+				resultCache.put(SingleFlight.key(rm.getName(), args), buf.toByteArray(), ttlMsec);
+			}
+		};
+	}
+
+	private static SingleFlight.Invocation failure(final RemoteControlException e) {
+		return new SingleFlight.Invocation() {
+			public void invoke(PrintStream ps)
+			throws RemoteControlException {
+				throw e;
+			}
+		};
+	}
 
 
 
@@ -283,13 +838,5 @@ implements Runnable {
 		shutdown();
 	}
 
-	private void delay(long msec) {
-		try {
-			Thread.sleep(msec);
-		} 
-		catch (InterruptedException e) {
-		}
-	}
-
 
 }
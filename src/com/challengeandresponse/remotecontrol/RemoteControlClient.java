@@ -2,14 +2,22 @@ package com.challengeandresponse.remotecontrol;
 
 import java.io.*;
 import java.net.InetSocketAddress;
-import java.net.Socket;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.SocketChannel;
 import java.security.SecureRandom;
+import java.nio.charset.Charset;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.InflaterInputStream;
 
 import com.challengeandresponse.configfilereader.ElementNotFoundException;
 
 /**
  * This can be used as a command line app to run one command, or interactively like Telnet session.
+ * Programs that call methods on a host should use AsyncRemoteControlClient instead.
  * 
  * <p>Command line:<br />
  * <pre>
@@ -19,6 +27,35 @@ import com.challengeandresponse.configfilereader.ElementNotFoundException;
  * </pre>
  * </p>
  * 
+ * <p>Profile: sample the host's running threads for a number of seconds, at hz samples per second (default 100), and print
+ * their stacks folded, one per line, as flame graph tools read them. See StackProfiler.<br />
+ * <pre>
+ * java com.challengeandresponse.remotecontrol.RemoteControlClient (/path/to/config.xml) (hostlabel) profile (seconds) [hz]<br />
+ * example:<br />
+ * java com.challengeandresponse.remotecontrol.RemoteControlClient RemoteControlClient.xml localhost profile 30 100 | flamegraph.pl &gt; profile.svg<br />
+ * </pre>
+ * </p>
+ * 
+ * <p>Fan-out: run one command on several remotes at once. The labels are a comma-separated list, each of which may be a glob
+ * using * and ?. Up to -parallel remotes (default 32) are worked on at a time, and each gets -timeout msec (default 30000)
+ * to connect, log in and run the command. Output is printed as each remote answers, prefixed with its label, then a summary.
+ * The exit status is 0 if every remote succeeded.<br />
+ * <pre>
+ * java com.challengeandresponse.remotecontrol.RemoteControlClient (/path/to/config.xml) -fanout (labels) [-parallel n] [-timeout msec] (command) (arg1) ... (argN)<br />
+ * example:<br />
+ * java com.challengeandresponse.remotecontrol.RemoteControlClient RemoteControlClient.xml -fanout 'web*,db1' -parallel 50 -timeout 5000 version<br />
+ * </pre>
+ * </p>
+ * 
+ * <p>Script: run the commands in a file (or '-' for stdin) over one session, pipelined. One method and its arguments per line;
+ * '#' starts a comment and '!' marks a barrier, which waits for everything before it. Each command's output is printed with its
+ * result and timing. With -stoponerror the first failure cancels the rest. The exit status is 0 if every command succeeded.
+ * See ScriptRunner.<br />
+ * <pre>
+ * java com.challengeandresponse.remotecontrol.RemoteControlClient (/path/to/config.xml) -script (file|-) (hostlabel) [-stoponerror]<br />
+ * </pre>
+ * </p>
+ * 
  * <p>Interactively:<br />
  * <pre>
  * java com.challengeandresponse.remotecontrol.RemoteControlClient (/path/to/config.xml)<br />
@@ -40,6 +77,8 @@ import com.challengeandresponse.configfilereader.ElementNotFoundException;
  *   &lt;id&gt;jim&lt;/id&gt;
  *   &lt;secret&gt;jim&lt;/secret&gt;
  * &lt;/remote&gt;
+ * &lt;!-- or, for a server on this host: &lt;unixsocket&gt;/path/to/remotecontrol.sock&lt;/unixsocket&gt; instead of host and port --&gt;
+ * &lt;!-- and, for a slow link: &lt;compress&gt;deflate&lt;/compress&gt; in the remote, to have its output compressed --&gt;
  * &lt;/com.challengeandresponse.remotecontrol.RemoteControlClient&gt;
  * &lt;/config&gt;
  * </pre>
@@ -58,15 +97,20 @@ public class RemoteControlClient {
 	private PrintWriter out;
 
 	// for the remote connection
-	private BufferedReader netIn;
+	private NetLineReader netIn;
 	private PrintWriter netOut;
 
 	private String remoteLabel;
 
 	private static final String NEWLINE = System.getProperty("line.separator");
 	private static final int NONCE_BYTE_LENGTH = 16;
-	private static final long LISTENER_THREAD_LOOP_DELAY_MSEC = 5;
-	private static final long COMMAND_LINE_POST_COMMAND_SLEEP_MSEC = 2000;
+	// the tag a command given on the command line is sent under, so its END says when it is done
+	private static final String COMMAND_LINE_TAG = "1";
+	private static final String FANOUT_OPTION = "-fanout";
+	private static final String PARALLEL_OPTION = "-parallel";
+	private static final String TIMEOUT_OPTION = "-timeout";
+	private static final String SCRIPT_OPTION = "-script";
+	private static final String STOP_ON_ERROR_OPTION = "-stoponerror";
 
 	private SecureRandom sr;
 	private Listener listener = null;
@@ -107,31 +151,51 @@ public class RemoteControlClient {
 			remoteLabel = inLine;
 		}
 		// configure the connection, and connect
-		InetSocketAddress socketAddress = new InetSocketAddress(config.getHost(remoteLabel),config.getPort(remoteLabel));
-		Socket sock = new Socket();
+		String unixSocket = config.getUnixSocket(remoteLabel);
+		ChannelConnection connection = null;
 		String sessionID = config.getID(remoteLabel);
 		String sessionNonce = generateNonce();
 		long sessionTime = System.currentTimeMillis();
 		String sessionHash = RemoteControlLib.generateSecureHash(RemoteControlLib.makeSignableString(sessionID, sessionNonce, sessionTime),config.getSecret(remoteLabel));
 		try {
 			try {
-				consolePrintln("Connecting to "+remoteLabel+" at "+config.getHost(remoteLabel).getHostAddress()+":"+config.getPort(remoteLabel));
-				sock.connect(socketAddress);
-				netIn = new BufferedReader (new InputStreamReader (sock.getInputStream()));
-				netOut = new PrintWriter(new OutputStreamWriter (sock.getOutputStream()));
+				if (unixSocket != null) {
+					consolePrintln("Connecting to "+remoteLabel+" at "+unixSocket);
+					connection = new ChannelConnection(SocketChannel.open(UnixDomainSocketAddress.of(unixSocket)), null, unixSocket);
+				}
+				else {
+					consolePrintln("Connecting to "+remoteLabel+" at "+config.getHost(remoteLabel).getHostAddress()+":"+config.getPort(remoteLabel));
+					SocketChannel channel = SocketChannel.open(new InetSocketAddress(config.getHost(remoteLabel),config.getPort(remoteLabel)));
+					TlsChannel tls = null;
+					if (config.isTls(remoteLabel))
+						// the shared context keeps the session cache, so later connections to this remote can resume
+						tls = new TlsChannel(channel, TlsSupport.newClientEngine(
+								TlsSupport.getClientContext(config.getTruststore(remoteLabel),config.getTruststorePassword(remoteLabel),config.getTruststoreType(remoteLabel)),
+								config.getHostName(remoteLabel), config.getPort(remoteLabel)));
+					connection = new ChannelConnection(channel, tls, config.getHost(remoteLabel).getHostAddress());
+				}
+				connection.open();
+				netIn = new NetLineReader(connection.getInputStream());
+				netOut = new PrintWriter(new OutputStreamWriter (connection.getOutputStream()));
 				listener = new Listener(out,netIn);
-				Thread t = new Thread(listener);
-				t.start();
+				readerThread = new Thread(listener);
+				readerThread.start();
 			} 
 			catch (IOException e) {
 				consolePrintln("Could not connect to server:"+e.getMessage());
 				System.exit(-1);
 			}
+			catch (RemoteControlException e) {
+				consolePrintln("Could not set up TLS:"+e.getMessage());
+				System.exit(-1);
+			}
 			consolePrintln("Connected. Authenticating.");
 			netPrintln(RemoteControlLib.CRLF_ID_COMMAND+" "+sessionID);
 			netPrintln(RemoteControlLib.CRLF_NONCE_COMMAND+" "+sessionNonce);
 			netPrintln(RemoteControlLib.CRLF_TIME_COMMAND+" "+sessionTime);
 			netPrintln(RemoteControlLib.CRLF_HASH_COMMAND+" "+sessionHash);
+			if (config.getCompress(remoteLabel) != null)
+				netPrintln(RemoteControlLib.CRLF_COMPRESS_COMMAND+" "+config.getCompress(remoteLabel));
 
 			// if a command to run was proffered (it will be args[1], the second item, run it with arguments and then exit
 			if (args.length >= 3) {
@@ -140,18 +204,21 @@ public class RemoteControlClient {
 				if (args.length > 3)
 					for (int i = 3; i < args.length; i++)
 						concatenatedArgs += args[i]+" ";
-				netPrintln(RemoteControlLib.CRLF_EXEC_COMMAND+" "+args[2]+" "+concatenatedArgs);
-				netPrintln(RemoteControlLib.CRLF_DISCONNECT_COMMAND);
+				// sent tagged (a method, or a server command such as profile), so that its END says it is done,
+				// however long it takes; the listener prints its output without the tags
+				listener.awaitEnd(COMMAND_LINE_TAG);
+				netPrintln(RemoteControlLib.CRLF_EXEC_TAGGED_COMMAND+" "+COMMAND_LINE_TAG+" "+args[2]+" "+concatenatedArgs);
 				try {
-					Thread.sleep(COMMAND_LINE_POST_COMMAND_SLEEP_MSEC);
-				} 
+					listener.waitForEnd();
+				}
 				catch (InterruptedException e) {
 				}
+				netPrintln(RemoteControlLib.CRLF_DISCONNECT_COMMAND);
 			}
 			// if a command was not presented, go to interactive mode and stay there until disconnect
 			else {
 				String consoleIn = "";
-				while (sock.isConnected() && (! consoleIn.equals(RemoteControlLib.CRLF_DISCONNECT_COMMAND))) {
+				while (connection.isOpen() && (! consoleIn.equals(RemoteControlLib.CRLF_DISCONNECT_COMMAND))) {
 					consolePrint("> ");
 					consoleIn = consoleReadLine();
 					netPrintln(consoleIn);
@@ -163,18 +230,99 @@ public class RemoteControlClient {
 			if (listener != null)
 				listener.shutdown();
 			try {
+				if (connection != null)
+					connection.close();
 				if (readerThread != null)
 					readerThread.join();
-				sock.close();
 			}
-			catch(IOException e) {
-			} 
 			catch (InterruptedException e) {
 			}
 		}
 		consolePrintln("exit RemoteControlClient");
 	}
 
+	/**
+	 * Fan-out mode: (config) -fanout (labels) [-parallel n] [-timeout msec] (command) (args...)
+	 * @return the number of remotes that did not succeed
+	 */
+	public int runFanout(String[] args)
+	throws RemoteControlException {
+		out = new PrintWriter (new OutputStreamWriter(System.out));
+		int parallel = FanOut.PARALLEL;
+		long timeoutMsec = FanOut.TIMEOUT_MSEC;
+		int i = 3;
+		try {
+			while ((i + 1 < args.length) && (args[i].equals(PARALLEL_OPTION) || args[i].equals(TIMEOUT_OPTION))) {
+				if (args[i].equals(PARALLEL_OPTION))
+					parallel = Integer.parseInt(args[i + 1]);
+				else
+					timeoutMsec = Long.parseLong(args[i + 1]);
+				i += 2;
+			}
+		}
+		catch (NumberFormatException e) {
+			throw new RemoteControlException("Not a number: "+e.getMessage());
+		}
+		if (i >= args.length)
+			throw new RemoteControlException(FANOUT_OPTION+" needs the labels to run on and a command to run");
+		List <String> labels = FanOut.matchLabels(config, args[2]);
+		if (labels.isEmpty())
+			throw new RemoteControlException("No remotes match "+args[2]);
+
+		AsyncRemoteControlClient client = new AsyncRemoteControlClient(config, ForkJoinPool.commonPool());
+		try {
+			return new FanOut(client, parallel, timeoutMsec).run(labels, args[i], Arrays.copyOfRange(args, i + 1, args.length), out);
+		}
+		catch (InterruptedException e) {
+			return labels.size();
+		}
+		finally {
+			client.close();
+		}
+	}
+
+	/**
+	 * Script mode: (config) -script (file|-) (label) [-stoponerror]
+	 * @return the number of commands that failed or were not run
+	 */
+	public int runScript(String[] args)
+	throws RemoteControlException {
+		out = new PrintWriter (new OutputStreamWriter(System.out));
+		if (args.length < 4)
+			throw new RemoteControlException(SCRIPT_OPTION+" needs the script file (or - for stdin) and the label of the remote");
+		boolean stopOnError = (args.length > 4) && args[4].equals(STOP_ON_ERROR_OPTION);
+		AsyncRemoteControlClient client = new AsyncRemoteControlClient(config, ForkJoinPool.commonPool());
+		BufferedReader script = null;
+		try {
+			script = new BufferedReader(args[2].equals("-") ? new InputStreamReader(System.in) : new FileReader(args[2]));
+			RemoteSession session = client.connect(args[3]).get();
+			try {
+				return new ScriptRunner(session, stopOnError, out).run(script);
+			}
+			finally {
+				session.close();
+			}
+		}
+		catch (IOException e) {
+			throw new RemoteControlException("Cannot run script "+args[2]+": "+e.getMessage());
+		}
+		catch (ExecutionException e) {
+			throw new RemoteControlException("Cannot connect to "+args[3]+": "+e.getCause().getMessage());
+		}
+		catch (InterruptedException e) {
+			return 1;
+		}
+		finally {
+			try {
+				if (script != null)
+					script.close();
+			}
+			catch (IOException e) {
+			}
+			client.close();
+		}
+	}
+
 	private String consoleReadLine() {
 		try {
 			return in.readLine();
@@ -211,33 +359,74 @@ public class RemoteControlClient {
 	implements Runnable {
 
 		private PrintWriter consoleOut;
-		private BufferedReader netIn;
+		private NetLineReader netIn;
 		private boolean running;
+		// a tagged exec whose output is printed untagged, and whose END is waited for
+		private volatile String dataPrefix = null;
+		private volatile String endPrefix = null;
+		private final CountDownLatch ended = new CountDownLatch(1);
 
-		public Listener(PrintWriter consoleOut, BufferedReader netIn) {
+		public Listener(PrintWriter consoleOut, NetLineReader netIn) {
 			this.consoleOut = consoleOut;
 			this.netIn = netIn;
 		}
 
 		public void run() {
 			running = true;
-			while (running) {
-				StringBuilder result = new StringBuilder();
-				String s = null;
-				try {
-					while ( netIn.ready() && ((s = netIn.readLine()) != null))
-						result.append(s+NEWLINE);
-					consoleOut.print(result.toString());
+			// blocks in readLine(); closing the socket ends the loop
+			String s = null;
+			try {
+				while (running && ((s = netIn.readLine()) != null)) {
+					if (s.equals(RemoteControlLib.CRLF_HEARTBEAT))
+						continue;
+					// whether we asked for it or the user typed the command, everything after this line is compressed
+					if (s.startsWith(RemoteControlLib.CRLF_COMPRESSED_RESPONSE+" "))
+						netIn.startInflating(s.substring(RemoteControlLib.CRLF_COMPRESSED_RESPONSE.length() + 1).trim());
+					if ((dataPrefix != null) && s.startsWith(dataPrefix)) {
+						s = s.substring(dataPrefix.length());
+					}
+					else if ((endPrefix != null) && s.startsWith(endPrefix)) {
+						// only an error is worth showing
+						String result = s.substring(endPrefix.length());
+						if (! result.equals(RemoteControlLib.CRLF_OK_RESPONSE)) {
+							consoleOut.print(result+NEWLINE);
+							consoleOut.flush();
+						}
+						ended.countDown();
+						continue;
+					}
+					consoleOut.print(s+NEWLINE);
 					consoleOut.flush();
-					Thread.sleep(LISTENER_THREAD_LOOP_DELAY_MSEC);
-				} 
-				catch (IOException e) {
-				}
-				catch (InterruptedException e) {
 				}
+			} 
+			catch (IOException e) {
+			}
+			catch (IllegalArgumentException e) {
+				consoleOut.print("Cannot decompress: "+e.getMessage()+NEWLINE);
+				consoleOut.flush();
+			}
+			finally {
+				// nothing more is coming
+				ended.countDown();
 			}
 		}
 
+		/**
+		 * Print the output of the tagged exec 'tag' without its tags, and have waitForEnd() wait for its END
+		 */
+		void awaitEnd(String tag) {
+			dataPrefix = RemoteControlLib.CRLF_DATA_RESPONSE+" "+tag+" ";
+			endPrefix = RemoteControlLib.CRLF_END_RESPONSE+" "+tag+" ";
+		}
+
+		/**
+		 * Wait for the END of the exec given to awaitEnd(), or for the connection to close
+		 */
+		void waitForEnd()
+		throws InterruptedException {
+			ended.await();
+		}
+
 		public void shutdown() {
 			this.running = false;
 			Thread.currentThread().interrupt();
@@ -248,6 +437,68 @@ public class RemoteControlClient {
 
 
 
+	/**
+	 * Reads lines from the host, and once told to, decompresses what follows. It reads ahead no further than one
+	 * read() brings in, and keeps what it has, so that compressed bytes that arrive with the COMPRESSED line are not lost.
+	 */
+	private static class NetLineReader {
+
+		private InputStream in;
+		private final byte[] buf = new byte[8192];
+		private int pos = 0;
+		private int limit = 0;
+		private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+		private final Charset charset = Charset.defaultCharset();
+
+		NetLineReader(InputStream in) {
+			this.in = in;
+		}
+
+		/**
+		 * @return the next line, without its line end, or null at the end of the stream
+		 */
+		String readLine()
+		throws IOException {
+			line.reset();
+			while (true) {
+				if (pos == limit) {
+					int n = in.read(buf, 0, buf.length);
+					if (n < 0)
+						return (line.size() > 0) ? text() : null;
+					pos = 0;
+					limit = n;
+				}
+				while (pos < limit) {
+					byte b = buf[pos++];
+					if (b == '\n')
+						return text();
+					line.write(b);
+				}
+			}
+		}
+
+		/**
+		 * Decompress everything after the line just read
+		 * @throws IllegalArgumentException if 'codec' is not one we know
+		 */
+		void startInflating(String codec)
+		throws IllegalArgumentException {
+			byte[] rest = Arrays.copyOfRange(buf, pos, limit);
+			in = new InflaterInputStream(new SequenceInputStream(new ByteArrayInputStream(rest), in), StreamCompression.newInflater(codec));
+			pos = 0;
+			limit = 0;
+		}
+
+		private String text() {
+			byte[] b = line.toByteArray();
+			int len = ((b.length > 0) && (b[b.length - 1] == '\r')) ? b.length - 1 : b.length;
+			return new String(b, 0, len, charset);
+		}
+	}
+
+
+
+
 	public static void main(String[] args) {
 		if (args.length < 1) {
 			System.out.println("Provide the path to the RemoteControlClient xml config file as an argument when starting RemoteControlClient. Cannot launch.");
@@ -255,6 +506,10 @@ public class RemoteControlClient {
 		}
 		try {
 			RemoteControlClient rcc = new RemoteControlClient(args[0]);
+			if ((args.length > 1) && args[1].equals(FANOUT_OPTION))
+				System.exit((rcc.runFanout(args) == 0) ? 0 : 1);
+			if ((args.length > 1) && args[1].equals(SCRIPT_OPTION))
+				System.exit((rcc.runScript(args) == 0) ? 0 : 1);
 			rcc.run(args);
 		}
 		catch (ElementNotFoundException e) {
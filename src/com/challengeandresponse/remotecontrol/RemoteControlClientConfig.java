@@ -25,6 +25,24 @@ import com.challengeandresponse.configfilereader.*;
  *   &lt;port&gt;5859&lt;/port&gt;
  *   &lt;id&gt;jim&lt;/id&gt;
  *   &lt;secret&gt;j3334323m&lt;/secret&gt;
+ *   &lt;!-- optional: connect with TLS, trusting the certificates in the truststore (or the JVM's defaults if none is given). The server's certificate must name the host as written in &lt;host&gt; --&gt;
+ *   &lt;tls&gt;true&lt;/tls&gt;
+ *   &lt;truststore&gt;/path/to/truststore.p12&lt;/truststore&gt;
+ *   &lt;truststorepassword&gt;changeit&lt;/truststorepassword&gt;
+ *   &lt;!-- optional, for RemoteSessionPool: at most this many sessions to this remote, closed after this long unused,
+ *        and checked with a round trip when idle this long --&gt;
+ *   &lt;poolmaxsize&gt;4&lt;/poolmaxsize&gt;
+ *   &lt;poolmaxidlemsec&gt;60000&lt;/poolmaxidlemsec&gt;
+ *   &lt;poolhealthcheckmsec&gt;15000&lt;/poolhealthcheckmsec&gt;
+ *   &lt;!-- optional: have the server compress its output (deflate | deflate-fast), for slow links --&gt;
+ *   &lt;compress&gt;deflate&lt;/compress&gt;
+ * &lt;/remote&gt;
+ *  &lt;remote&gt;
+ *   &lt;!-- a server on this host, over its Unix domain socket. host and port are not needed --&gt;
+ *   &lt;label&gt;local&lt;/label&gt;
+ *   &lt;unixsocket&gt;/var/run/myapp/remotecontrol.sock&lt;/unixsocket&gt;
+ *   &lt;id&gt;jim&lt;/id&gt;
+ *   &lt;secret&gt;j3334323m&lt;/secret&gt;
  * &lt;/remote&gt;
  * &lt;/com.challengeandresponse.remotecontrol.RemoteControlClient&gt;
  * &lt;/config&gt;
@@ -49,6 +67,21 @@ public class RemoteControlClientConfig {
 	public static final String	PORT_ELEMENT =		"port";
 	public static final String	ID_ELEMENT =		"id";
 	public static final String	SECRET_ELEMENT = 	"secret";
+	public static final String	UNIX_SOCKET_ELEMENT = "unixsocket";
+	public static final String	TLS_ELEMENT =		"tls";
+	public static final String	TRUSTSTORE_ELEMENT = "truststore";
+	public static final String	TRUSTSTORE_PASSWORD_ELEMENT = "truststorepassword";
+	public static final String	TRUSTSTORE_TYPE_ELEMENT = "truststoretype";
+
+	public static final String	POOL_MAX_SIZE_ELEMENT = "poolmaxsize";
+	public static final String	POOL_MAX_IDLE_MSEC_ELEMENT = "poolmaxidlemsec";
+	public static final String	POOL_HEALTH_CHECK_MSEC_ELEMENT = "poolhealthcheckmsec";
+	public static final String	COMPRESS_ELEMENT = "compress";
+
+	public static final String	TRUSTSTORE_TYPE = "PKCS12";
+	public static final int		POOL_MAX_SIZE = 4;
+	public static final long	POOL_MAX_IDLE_MSEC = 60000;	// 0 to keep idle sessions open
+	public static final long	POOL_HEALTH_CHECK_MSEC = 15000;	// 0 for no checks
 		
 	
 	////////////
@@ -75,16 +108,39 @@ public class RemoteControlClientConfig {
 			while (cfr.hasNext()) {
 				cfr.stepToNext();
 				ClientConfig cc = new ClientConfig();
-				String tempHost = cfr.getString(HOST_ELEMENT);
-				try {
-					cc.host = InetAddress.getByName(tempHost);
-				} 
-				catch (UnknownHostException e) {
-					throw new RemoteControlException("Unknown host in configuration file:"+tempHost);
+				cc.unixSocket = getOptionalString(cfr, UNIX_SOCKET_ELEMENT, null);
+				// host and port are only needed for TCP
+				String tempHost = (cc.unixSocket == null) ? cfr.getString(HOST_ELEMENT) : getOptionalString(cfr, HOST_ELEMENT, null);
+				if (tempHost != null) {
+					cc.hostName = tempHost;
+					try {
+						cc.host = InetAddress.getByName(tempHost);
+					} 
+					catch (UnknownHostException e) {
+						throw new RemoteControlException("Unknown host in configuration file:"+tempHost);
+					}
 				}
-				cc.port = cfr.getInt(PORT_ELEMENT);
+				if (cc.unixSocket == null)
+					cc.port = cfr.getInt(PORT_ELEMENT);
 				cc.id = cfr.getString(ID_ELEMENT);
 				cc.secret = cfr.getString(SECRET_ELEMENT);
+				cc.tls = Boolean.parseBoolean(getOptionalString(cfr, TLS_ELEMENT, "false"));
+				cc.truststore = getOptionalString(cfr, TRUSTSTORE_ELEMENT, null);
+				cc.truststorePassword = getOptionalString(cfr, TRUSTSTORE_PASSWORD_ELEMENT, null);
+				cc.truststoreType = getOptionalString(cfr, TRUSTSTORE_TYPE_ELEMENT, TRUSTSTORE_TYPE);
+				try {
+					cc.poolMaxSize = Integer.parseInt(getOptionalString(cfr, POOL_MAX_SIZE_ELEMENT, Integer.toString(POOL_MAX_SIZE)));
+					cc.poolMaxIdleMsec = Long.parseLong(getOptionalString(cfr, POOL_MAX_IDLE_MSEC_ELEMENT, Long.toString(POOL_MAX_IDLE_MSEC)));
+					cc.poolHealthCheckMsec = Long.parseLong(getOptionalString(cfr, POOL_HEALTH_CHECK_MSEC_ELEMENT, Long.toString(POOL_HEALTH_CHECK_MSEC)));
+				}
+				catch (NumberFormatException e) {
+					throw new RemoteControlException("Invalid pool setting in configuration file: "+e.getMessage());
+				}
+				if (cc.poolMaxSize < 1)
+					throw new RemoteControlException(POOL_MAX_SIZE_ELEMENT+" must be at least 1");
+				cc.compress = getOptionalString(cfr, COMPRESS_ELEMENT, null);
+				if ((cc.compress != null) && (! StreamCompression.isSupported(cc.compress)))
+					throw new RemoteControlException("Unknown "+COMPRESS_ELEMENT+" codec in configuration file:"+cc.compress+". Codecs: "+StreamCompression.CODECS);
 				String tempLabel = cfr.getString(LABEL_ELEMENT);
 				if (tempLabel.equals(RemoteControlLib.CRLF_DISCONNECT_COMMAND))
 					throw new RemoteControlException("Label cannot be '.' which is a reserved symbol");
@@ -112,6 +168,18 @@ public class RemoteControlClientConfig {
 		this(filePath, CONFIG_ROOT_ELEMENT);
 	}
 	
+	/**
+	 * Read an optional single-valued element
+	 * @return the element's value, or 'defaultValue' if the element is not present
+	 */
+	private static String getOptionalString(ConfigFileReader cfr, String element, String defaultValue)
+	throws ConfigFileReaderException {
+		List <String> values = cfr.getList(element);
+		if ((values == null) || values.isEmpty())
+			return defaultValue;
+		return values.get(0).trim();
+	}
+	
 	public boolean hasLabel(String label) {
 		return clientConfigs.containsKey(label);
 	}
@@ -123,6 +191,16 @@ public class RemoteControlClientConfig {
 		return cc.host;
 	}
 
+	/**
+	 * @return the host as it is written in the config file, which is the name a TLS server's certificate is checked against
+	 */
+	public String getHostName(String label) {
+		ClientConfig cc =clientConfigs.get(label);
+		if (cc == null)
+			return null;
+		return cc.hostName;
+	}
+
 	public int getPort(String label) {
 		ClientConfig cc =clientConfigs.get(label);
 		if (cc == null)
@@ -145,6 +223,87 @@ public class RemoteControlClientConfig {
 	}
 	
 	
+	/**
+	 * @return the path of the Unix domain socket to connect to for 'label', or null to use TCP
+	 */
+	public String getUnixSocket(String label) {
+		ClientConfig cc =clientConfigs.get(label);
+		if (cc == null)
+			return null;
+		return cc.unixSocket;
+	}
+	
+	public boolean isTls(String label) {
+		ClientConfig cc =clientConfigs.get(label);
+		if (cc == null)
+			return false;
+		return cc.tls;
+	}
+	
+	public String getTruststore(String label) {
+		ClientConfig cc =clientConfigs.get(label);
+		if (cc == null)
+			return null;
+		return cc.truststore;
+	}
+	
+	public String getTruststorePassword(String label) {
+		ClientConfig cc =clientConfigs.get(label);
+		if (cc == null)
+			return null;
+		return cc.truststorePassword;
+	}
+	
+	public String getTruststoreType(String label) {
+		ClientConfig cc =clientConfigs.get(label);
+		if (cc == null)
+			return null;
+		return cc.truststoreType;
+	}
+	
+	
+	/**
+	 * @return the most sessions RemoteSessionPool keeps open to 'label', in use or idle
+	 */
+	public int getPoolMaxSize(String label) {
+		ClientConfig cc =clientConfigs.get(label);
+		if (cc == null)
+			return POOL_MAX_SIZE;
+		return cc.poolMaxSize;
+	}
+	
+	/**
+	 * @return how long RemoteSessionPool keeps an unused session to 'label' open; 0 for no limit
+	 */
+	public long getPoolMaxIdleMsec(String label) {
+		ClientConfig cc =clientConfigs.get(label);
+		if (cc == null)
+			return POOL_MAX_IDLE_MSEC;
+		return cc.poolMaxIdleMsec;
+	}
+	
+	/**
+	 * @return how long a session to 'label' may sit idle in RemoteSessionPool before it is checked; 0 for no checks
+	 */
+	public long getPoolHealthCheckMsec(String label) {
+		ClientConfig cc =clientConfigs.get(label);
+		if (cc == null)
+			return POOL_HEALTH_CHECK_MSEC;
+		return cc.poolHealthCheckMsec;
+	}
+	
+	
+	/**
+	 * @return the codec to ask 'label' to compress its output with, or null for none
+	 */
+	public String getCompress(String label) {
+		ClientConfig cc =clientConfigs.get(label);
+		if (cc == null)
+			return null;
+		return cc.compress;
+	}
+	
+	
 	public List <String> getLabels() {
 		ArrayList <String> al = new ArrayList<String>();
 		Iterator <String> it = clientConfigs.keySet().iterator();
@@ -155,9 +314,19 @@ public class RemoteControlClientConfig {
 	
 	class ClientConfig {
 		InetAddress host;
+		String hostName;
 		int port;
+		String unixSocket;
 		String id;
 		String secret;
+		boolean tls;
+		String truststore;
+		String truststorePassword;
+		String truststoreType;
+		int poolMaxSize = POOL_MAX_SIZE;
+		long poolMaxIdleMsec = POOL_MAX_IDLE_MSEC;
+		long poolHealthCheckMsec = POOL_HEALTH_CHECK_MSEC;
+		String compress;
 	}
 	
 	
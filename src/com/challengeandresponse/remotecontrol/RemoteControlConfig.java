@@ -4,6 +4,7 @@ import java.io.File;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicReference;
 
 import com.challengeandresponse.configfilereader.*;
 
@@ -19,6 +20,47 @@ import com.challengeandresponse.configfilereader.*;
  *    &lt;port&gt;5859&lt;/port&gt;
  *    &lt;cachecleaningintervalsec&gt;180&lt;/cachecleaningintervalsec&gt;
  *    &lt;maxclockskewmsec&gt;10000&lt;/maxclockskewmsec&gt;
+ *    &lt;execthreads&gt;4&lt;/execthreads&gt;
+ *    &lt;jobthreads&gt;2&lt;/jobthreads&gt;
+ *    &lt;jobqueuesize&gt;16&lt;/jobqueuesize&gt;
+ *    &lt;joboutputbytes&gt;65536&lt;/joboutputbytes&gt;
+ *    &lt;jobretentionsec&gt;3600&lt;/jobretentionsec&gt;
+ *    &lt;jobretained&gt;256&lt;/jobretained&gt; &lt;!-- finished jobs kept at most; the oldest go first --&gt;
+ *    &lt;jobadmin&gt;jim&lt;/jobadmin&gt; &lt;!-- may list, tail and cancel every client's jobs; others see only their own --&gt;
+ *    &lt;authtimeoutmsec&gt;30000&lt;/authtimeoutmsec&gt;
+ *    &lt;idletimeoutmsec&gt;900000&lt;/idletimeoutmsec&gt;
+ *    &lt;heartbeatintervalmsec&gt;0&lt;/heartbeatintervalmsec&gt;
+ *    &lt;outqueuebytes&gt;262144&lt;/outqueuebytes&gt;
+ *    &lt;outqueuepolicy&gt;block&lt;/outqueuepolicy&gt; &lt;!-- block | dropoldest | dropnewest | disconnect --&gt;
+ *    &lt;outqueueblockmsec&gt;2000&lt;/outqueueblockmsec&gt;
+ *    &lt;draintimeoutmsec&gt;5000&lt;/draintimeoutmsec&gt;
+ *    &lt;resultcachebytes&gt;4194304&lt;/resultcachebytes&gt;
+ *    &lt;compression&gt;true&lt;/compression&gt; &lt;!-- let sessions turn on compressed output (compress deflate | deflate-fast) --&gt;
+ *    &lt;profiling&gt;true&lt;/profiling&gt; &lt;!-- let clients sample the host's thread stacks (profile seconds [hz]) --&gt;
+ * 
+ *    &lt;tcp&gt;true&lt;/tcp&gt; &lt;!-- false to listen only on the unix socket --&gt;
+ *    &lt;tcpacceptors&gt;1&lt;/tcpacceptors&gt; &lt;!-- accepting threads; on Linux each has its own listening socket (SO_REUSEPORT) --&gt;
+ *    &lt;tcpbacklog&gt;1024&lt;/tcpbacklog&gt; &lt;!-- connections the kernel holds for each listener until they are accepted --&gt;
+ *    &lt;unixsocket&gt;/var/run/myapp/remotecontrol.sock&lt;/unixsocket&gt;
+ *    &lt;unixsocketpermissions&gt;rw-rw----&lt;/unixsocketpermissions&gt;
+ *    &lt;websocketport&gt;5860&lt;/websocketport&gt; &lt;!-- 0 for no WebSocket endpoint --&gt;
+ *    &lt;websocketpath&gt;/remotecontrol&lt;/websocketpath&gt;
+ *    &lt;websocketmaxmessagebytes&gt;65536&lt;/websocketmaxmessagebytes&gt;
+ * 
+ *    &lt;tls&gt;true&lt;/tls&gt;
+ *    &lt;tlskeystore&gt;/path/to/remotecontrol.p12&lt;/tlskeystore&gt;
+ *    &lt;tlskeystorepassword&gt;changeit&lt;/tlskeystorepassword&gt;
+ *    &lt;tlskeystoretype&gt;PKCS12&lt;/tlskeystoretype&gt;
+ *    &lt;tlssessioncachesize&gt;1000&lt;/tlssessioncachesize&gt;
+ *    &lt;tlssessiontimeoutsec&gt;86400&lt;/tlssessiontimeoutsec&gt;
+ * 
+ *    &lt;execratelimit&gt;50,100&lt;/execratelimit&gt; &lt;!-- per client id: requests per second, burst. 0 for no limit --&gt;
+ *    &lt;authratelimit&gt;1,10&lt;/authratelimit&gt; &lt;!-- failed hash checks per source address (not unix socket peers): per second, burst --&gt;
+ *    &lt;clientexecratelimit id="client2"&gt;5,10&lt;/clientexecratelimit&gt;
+ *    &lt;clientexecweight id="jim"&gt;4&lt;/clientexecweight&gt; &lt;!-- share of the exec threads; default 1 --&gt;
+ * 
+ *    &lt;watchconfig&gt;true&lt;/watchconfig&gt; &lt;!-- reload clients and allowhosts when this file changes --&gt;
+ *    &lt;hostresolvettlsec&gt;300&lt;/hostresolvettlsec&gt; &lt;!-- look allowhost names up again this often --&gt;
  * 
  *    &lt;allowhost&gt;127.0.0.1&lt;/allowhost&gt;
  *    &lt;allowhost&gt;0:0:0:0:0:0:0:1&lt;/allowhost&gt;
@@ -29,7 +71,16 @@ import com.challengeandresponse.configfilereader.*;
  * &lt;/config&gt;
  * </pre>
  * 
+ * <p>The client secrets and allowed hosts are kept in an immutable ConfigSnapshot behind an AtomicReference, so the
+ * session and accept threads that read them never lock. setSecret() and addAllowedHost() publish a new snapshot, and so
+ * does reload(), which re-reads the clients and allowhosts from the config file (RemoteControl calls it when the file
+ * changes, if watchconfig is on). Secrets and hosts added through the setters are kept across reloads. Nothing else
+ * is reloaded: the other settings are taken when RemoteControl starts. Sessions already logged in are not affected by a reload.</p>
  * 
+ * <p>Allowhost names are never looked up on the caller's thread. A HostResolver looks them up in parallel in the background,
+ * and again every hostresolvettlsec, publishing a new snapshot when their addresses change; address literals are allowed at
+ * once. So loading a config with many names, or slow DNS, does not hold up startup, and a host is admitted from the moment
+ * its name resolves. awaitHostsResolved() waits for the lookups, for apps that would rather wait.</p>
  * 
  * @author jim
  */
@@ -48,6 +99,98 @@ public class RemoteControlConfig {
 	public static final int		CACHE_CLEANING_INTERVAL_SEC = 180;
 	public static final long	MAX_CLOCK_SKEW_MSEC = 10000;
 
+	/**
+	 * Threads that run exec commands for all sessions, shared between client ids by weight (see FairScheduler)
+	 */
+	public static final int		EXEC_THREADS = 4;
+	public static final int		CLIENT_EXEC_WEIGHT = 1;
+
+	/**
+	 * Background jobs (exec-async): pool size, max queued jobs, per-job output buffer, and how long and how many finished
+	 * jobs are kept. A job's buffer grows as it writes, up to the cap.
+	 */
+	public static final int		JOB_THREADS = 2;
+	public static final int		JOB_QUEUE_SIZE = 16;
+	public static final int		JOB_OUTPUT_BYTES = 65536;
+	public static final int		JOB_RETENTION_SEC = 3600;
+	public static final int		JOB_RETAINED = 256;
+
+	/**
+	 * Session timeouts. A session that has not authenticated this long after CONNECTED is closed, as is any
+	 * session that sends nothing for the idle timeout, unless it is running a method or subscribed to a topic.
+	 * Heartbeats are off by default. 0 disables any of them.
+	 */
+	public static final long	AUTH_TIMEOUT_MSEC = 30000;
+	public static final long	IDLE_TIMEOUT_MSEC = 900000;
+	public static final long	HEARTBEAT_INTERVAL_MSEC = 0;
+
+	/**
+	 * Per-session outbound queue: size in bytes, what to do when it fills, and how long BLOCK may wait
+	 */
+	public static final int		OUT_QUEUE_BYTES = 262144;
+	public static final SessionOutputQueue.Policy OUT_QUEUE_POLICY = SessionOutputQueue.Policy.BLOCK;
+	public static final long	OUT_QUEUE_BLOCK_MSEC = 2000;
+
+	/**
+	 * How long shutdown waits for running methods to finish before closing sessions forcibly
+	 */
+	public static final long	DRAIN_TIMEOUT_MSEC = 5000;
+
+	/**
+	 * Bound on the output kept for methods registered as cacheable
+	 */
+	public static final long	RESULT_CACHE_BYTES = 4194304;
+
+	/**
+	 * Transports. TCP on 'port' is on unless turned off. A Unix domain socket is added if a path is given for it,
+	 * and its socket file is readable and writable by the owner only unless other permissions are given.
+	 */
+	public static final boolean	TCP = true;
+	/**
+	 * Accepting threads for TCP, for hosts that see reconnect storms. The backlog is capped by the kernel (net.core.somaxconn on Linux).
+	 */
+	public static final int		TCP_ACCEPTORS = 1;
+	public static final int		TCP_BACKLOG = 1024;
+	public static final String	UNIX_SOCKET_PERMISSIONS = "rw-------";
+
+	/**
+	 * WebSocket endpoint for browser dashboards. Off unless a port is given.
+	 */
+	public static final int		WEBSOCKET_PORT = 0;
+	public static final String	WEBSOCKET_PATH = "/";
+	public static final int		WEBSOCKET_MAX_MESSAGE_BYTES = 65536;
+
+	/**
+	 * TLS is off unless turned on. The session cache is what makes resumed (abbreviated) handshakes possible.
+	 */
+	public static final boolean	TLS = false;
+	public static final String	TLS_KEYSTORE_TYPE = "PKCS12";
+	public static final int		TLS_SESSION_CACHE_SIZE = 1000;
+	public static final int		TLS_SESSION_TIMEOUT_SEC = 86400;
+
+	/**
+	 * Rate limits, as "requests per second,burst". Exec requests are limited per client id, and can be limited
+	 * differently for particular clients; failed hash checks are limited per source address.
+	 */
+	public static final String	EXEC_RATE_LIMIT = "50,100";
+	public static final String	AUTH_RATE_LIMIT = "1,10";
+	/**
+	 * Sessions may ask for their output to be compressed. It costs the server CPU per session that asks.
+	 */
+	public static final boolean	COMPRESSION = true;
+	/**
+	 * Clients may profile the host with the profile command. A profile shows the host's class and method names.
+	 */
+	public static final boolean	PROFILING = true;
+	/**
+	 * Reload the clients and allowed hosts when the config file changes
+	 */
+	public static final boolean	WATCH_CONFIG = true;
+	/**
+	 * How often allowhost names are looked up again, to follow hosts whose addresses change
+	 */
+	public static final int		HOST_RESOLVE_TTL_SEC = 300;
+
 	
 	
 	//////////////////////////////////////////////
@@ -61,7 +204,53 @@ public class RemoteControlConfig {
 	public static final String 	MAX_CLOCK_SKEW_MSEC_ELEMENT =	"maxclockskewmsec";
 	
 	public static final String	CACHE_CLEANING_INTERVAL_SEC_ELEMENT = "cachecleaningintervalsec";
+
+	public static final String	EXEC_THREADS_ELEMENT =			"execthreads";
+	public static final String	CLIENT_EXEC_WEIGHT_ELEMENT =	"clientexecweight";
+	public static final String	JOB_THREADS_ELEMENT =			"jobthreads";
+	public static final String	JOB_QUEUE_SIZE_ELEMENT =		"jobqueuesize";
+	public static final String	JOB_OUTPUT_BYTES_ELEMENT =		"joboutputbytes";
+	public static final String	JOB_RETENTION_SEC_ELEMENT =		"jobretentionsec";
+	public static final String	JOB_RETAINED_ELEMENT =			"jobretained";
+	public static final String	JOB_ADMIN_ELEMENT =				"jobadmin";
+
+	public static final String	AUTH_TIMEOUT_MSEC_ELEMENT =		"authtimeoutmsec";
+	public static final String	IDLE_TIMEOUT_MSEC_ELEMENT =		"idletimeoutmsec";
+	public static final String	HEARTBEAT_INTERVAL_MSEC_ELEMENT = "heartbeatintervalmsec";
+
+	public static final String	OUT_QUEUE_BYTES_ELEMENT =		"outqueuebytes";
+	public static final String	OUT_QUEUE_POLICY_ELEMENT =		"outqueuepolicy";
+	public static final String	OUT_QUEUE_BLOCK_MSEC_ELEMENT =	"outqueueblockmsec";
+
+	public static final String	DRAIN_TIMEOUT_MSEC_ELEMENT =	"draintimeoutmsec";
+	public static final String	RESULT_CACHE_BYTES_ELEMENT =	"resultcachebytes";
+
+	public static final String	COMPRESSION_ELEMENT =			"compression";
+	public static final String	PROFILING_ELEMENT =				"profiling";
+
+	public static final String	TCP_ELEMENT =					"tcp";
+	public static final String	TCP_ACCEPTORS_ELEMENT =			"tcpacceptors";
+	public static final String	TCP_BACKLOG_ELEMENT =			"tcpbacklog";
+	public static final String	UNIX_SOCKET_ELEMENT =			"unixsocket";
+	public static final String	UNIX_SOCKET_PERMISSIONS_ELEMENT = "unixsocketpermissions";
+	public static final String	WEBSOCKET_PORT_ELEMENT =		"websocketport";
+	public static final String	WEBSOCKET_PATH_ELEMENT =		"websocketpath";
+	public static final String	WEBSOCKET_MAX_MESSAGE_BYTES_ELEMENT = "websocketmaxmessagebytes";
+
+	public static final String	TLS_ELEMENT =					"tls";
+	public static final String	TLS_KEYSTORE_ELEMENT =			"tlskeystore";
+	public static final String	TLS_KEYSTORE_PASSWORD_ELEMENT =	"tlskeystorepassword";
+	public static final String	TLS_KEYSTORE_TYPE_ELEMENT =		"tlskeystoretype";
+	public static final String	TLS_SESSION_CACHE_SIZE_ELEMENT = "tlssessioncachesize";
+	public static final String	TLS_SESSION_TIMEOUT_SEC_ELEMENT = "tlssessiontimeoutsec";
 	
+	public static final String	EXEC_RATE_LIMIT_ELEMENT =		"execratelimit";
+	public static final String	AUTH_RATE_LIMIT_ELEMENT =		"authratelimit";
+	public static final String	CLIENT_EXEC_RATE_LIMIT_ELEMENT = "clientexecratelimit";
+
+	public static final String	WATCH_CONFIG_ELEMENT =			"watchconfig";
+	public static final String	HOST_RESOLVE_TTL_SEC_ELEMENT =	"hostresolvettlsec";
+
 	public static final String	ALLOW_HOST_ELEMENT = "allowhost";
 	
 	public static final String	CLIENT_SECRET_ELEMENT =		"client";
@@ -73,9 +262,57 @@ public class RemoteControlConfig {
 	private int port;
 	private long maxClockSkewMsec;
 	private int cacheCleaningIntervalSec;
+	private int execThreads;
+	private int jobThreads;
+	private int jobQueueSize;
+	private int jobOutputBytes;
+	private int jobRetentionSec;
+	private int jobRetained;
+	private Set <String> jobAdmins;
+	private long authTimeoutMsec;
+	private long idleTimeoutMsec;
+	private long heartbeatIntervalMsec;
+	private int outQueueBytes;
+	private SessionOutputQueue.Policy outQueuePolicy;
+	private long outQueueBlockMsec;
+	private long drainTimeoutMsec;
+	private long resultCacheBytes;
+	private boolean tcp;
+	private int tcpAcceptors;
+	private int tcpBacklog;
+	private String unixSocket;
+	private String unixSocketPermissions;
+	private int webSocketPort;
+	private String webSocketPath;
+	private int webSocketMaxMessageBytes;
+	private boolean tls;
+	private String tlsKeystore;
+	private String tlsKeystorePassword;
+	private String tlsKeystoreType;
+	private int tlsSessionCacheSize;
+	private int tlsSessionTimeoutSec;
+	private RateLimiter.Limit execRateLimit;
+	private RateLimiter.Limit authRateLimit;
+	private HashMap <String, RateLimiter.Limit> clientExecRateLimits;
+	private HashMap <String, Integer> clientExecWeights;
 	
-	private ArrayList <InetAddress> allowedHosts;
-	private HashMap <String, String> namesToSecrets;
+	private boolean compression;
+	private boolean profiling;
+	private boolean watchConfig;
+	private String filePath;			// null if not loaded from a file
+	private String configRootElement;
+
+	// what readers see: the file's clients and hosts with those added through the setters on top
+	private final AtomicReference <ConfigSnapshot> snapshot;
+	// the two layers it is made from; guarded by 'this'
+	private Map <String, String> fileSecrets;
+	private List <String> fileHostNames;
+	private HashMap <String, String> addedSecrets;
+	private HashSet <InetAddress> addedHosts;
+	private LinkedHashSet <String> addedHostNames;
+	// keeps the host names of both layers resolved, in the background
+	private final HostResolver hostResolver;
+	private int hostResolveTtlSec;
 
 
 	public RemoteControlConfig() {
@@ -83,8 +320,58 @@ public class RemoteControlConfig {
 		port = PORT;
 		cacheCleaningIntervalSec = CACHE_CLEANING_INTERVAL_SEC;
 		maxClockSkewMsec = MAX_CLOCK_SKEW_MSEC;
-		allowedHosts = new ArrayList<InetAddress>();
-		namesToSecrets = new HashMap<String,String> ();
+		execThreads = EXEC_THREADS;
+		jobThreads = JOB_THREADS;
+		jobQueueSize = JOB_QUEUE_SIZE;
+		jobOutputBytes = JOB_OUTPUT_BYTES;
+		jobRetentionSec = JOB_RETENTION_SEC;
+		jobRetained = JOB_RETAINED;
+		jobAdmins = Collections.synchronizedSet(new HashSet<String>());
+		authTimeoutMsec = AUTH_TIMEOUT_MSEC;
+		idleTimeoutMsec = IDLE_TIMEOUT_MSEC;
+		heartbeatIntervalMsec = HEARTBEAT_INTERVAL_MSEC;
+		outQueueBytes = OUT_QUEUE_BYTES;
+		outQueuePolicy = OUT_QUEUE_POLICY;
+		outQueueBlockMsec = OUT_QUEUE_BLOCK_MSEC;
+		drainTimeoutMsec = DRAIN_TIMEOUT_MSEC;
+		resultCacheBytes = RESULT_CACHE_BYTES;
+		tcp = TCP;
+		tcpAcceptors = TCP_ACCEPTORS;
+		tcpBacklog = TCP_BACKLOG;
+		unixSocket = null;
+		unixSocketPermissions = UNIX_SOCKET_PERMISSIONS;
+		webSocketPort = WEBSOCKET_PORT;
+		webSocketPath = WEBSOCKET_PATH;
+		webSocketMaxMessageBytes = WEBSOCKET_MAX_MESSAGE_BYTES;
+		tls = TLS;
+		tlsKeystore = null;
+		tlsKeystorePassword = null;
+		tlsKeystoreType = TLS_KEYSTORE_TYPE;
+		tlsSessionCacheSize = TLS_SESSION_CACHE_SIZE;
+		tlsSessionTimeoutSec = TLS_SESSION_TIMEOUT_SEC;
+		execRateLimit = RateLimiter.Limit.parse(EXEC_RATE_LIMIT);
+		authRateLimit = RateLimiter.Limit.parse(AUTH_RATE_LIMIT);
+		clientExecRateLimits = new HashMap<String,RateLimiter.Limit>();
+		clientExecWeights = new HashMap<String,Integer>();
+		compression = COMPRESSION;
+		profiling = PROFILING;
+		watchConfig = WATCH_CONFIG;
+		filePath = null;
+		configRootElement = CONFIG_ROOT_ELEMENT;
+		hostResolveTtlSec = HOST_RESOLVE_TTL_SEC;
+		fileSecrets = new HashMap<String,String>();
+		fileHostNames = new ArrayList<String>();
+		addedSecrets = new HashMap<String,String>();
+		addedHosts = new HashSet<InetAddress>();
+		addedHostNames = new LinkedHashSet<String>();
+		snapshot = new AtomicReference<ConfigSnapshot>(ConfigSnapshot.empty());
+		hostResolver = new HostResolver(hostResolveTtlSec * 1000L, new Runnable() {
+			public void run() {
+				synchronized (RemoteControlConfig.this) {
+					publish();
+				}
+			}
+		});
 	}
 	
 	/**
@@ -96,6 +383,9 @@ public class RemoteControlConfig {
 	 */
 	public RemoteControlConfig(String filePath, String configRootElement)
 	throws RemoteControlException, ElementNotFoundException {
+		this();
+		this.filePath = filePath;
+		this.configRootElement = configRootElement;
 		File cfile = new File(filePath);
 		try {
 			ConfigFileReader cfr = new ConfigFileReader(cfile,configRootElement);
@@ -103,11 +393,66 @@ public class RemoteControlConfig {
 			port = cfr.getInt(PORT,true,PORT_ELEMENT);
 			maxClockSkewMsec = cfr.getLong(MAX_CLOCK_SKEW_MSEC,true,MAX_CLOCK_SKEW_MSEC_ELEMENT);
 			cacheCleaningIntervalSec = cfr.getInt(CACHE_CLEANING_INTERVAL_SEC,true,CACHE_CLEANING_INTERVAL_SEC_ELEMENT);
-			List <String> tempAllowedHosts = cfr.getList(ALLOW_HOST_ELEMENT);
-			allowedHosts = new ArrayList <InetAddress>();
-			for (String host : tempAllowedHosts) 
-				allowedHosts.add(InetAddress.getByName(host));
-			namesToSecrets = cfr.getMap(CLIENT_SECRET_ELEMENT, CLIENT_SECRET_ELEMENT_ID_ATTRIBUTE, false);
+			execThreads = cfr.getInt(EXEC_THREADS,true,EXEC_THREADS_ELEMENT);
+			jobThreads = cfr.getInt(JOB_THREADS,true,JOB_THREADS_ELEMENT);
+			jobQueueSize = cfr.getInt(JOB_QUEUE_SIZE,true,JOB_QUEUE_SIZE_ELEMENT);
+			jobOutputBytes = cfr.getInt(JOB_OUTPUT_BYTES,true,JOB_OUTPUT_BYTES_ELEMENT);
+			jobRetentionSec = cfr.getInt(JOB_RETENTION_SEC,true,JOB_RETENTION_SEC_ELEMENT);
+			jobRetained = cfr.getInt(JOB_RETAINED,true,JOB_RETAINED_ELEMENT);
+			for (String admin : cfr.getList(JOB_ADMIN_ELEMENT))
+				jobAdmins.add(admin.trim());
+			authTimeoutMsec = cfr.getLong(AUTH_TIMEOUT_MSEC,true,AUTH_TIMEOUT_MSEC_ELEMENT);
+			idleTimeoutMsec = cfr.getLong(IDLE_TIMEOUT_MSEC,true,IDLE_TIMEOUT_MSEC_ELEMENT);
+			heartbeatIntervalMsec = cfr.getLong(HEARTBEAT_INTERVAL_MSEC,true,HEARTBEAT_INTERVAL_MSEC_ELEMENT);
+			outQueueBytes = cfr.getInt(OUT_QUEUE_BYTES,true,OUT_QUEUE_BYTES_ELEMENT);
+			outQueueBlockMsec = cfr.getLong(OUT_QUEUE_BLOCK_MSEC,true,OUT_QUEUE_BLOCK_MSEC_ELEMENT);
+			drainTimeoutMsec = cfr.getLong(DRAIN_TIMEOUT_MSEC,true,DRAIN_TIMEOUT_MSEC_ELEMENT);
+			resultCacheBytes = cfr.getLong(RESULT_CACHE_BYTES,true,RESULT_CACHE_BYTES_ELEMENT);
+			tcp = Boolean.parseBoolean(getOptionalString(cfr, TCP_ELEMENT, Boolean.toString(TCP)));
+			tcpAcceptors = cfr.getInt(TCP_ACCEPTORS,true,TCP_ACCEPTORS_ELEMENT);
+			if (tcpAcceptors < 1)
+				throw new RemoteControlException(TCP_ACCEPTORS_ELEMENT+" must be at least 1");
+			tcpBacklog = cfr.getInt(TCP_BACKLOG,true,TCP_BACKLOG_ELEMENT);
+			unixSocket = getOptionalString(cfr, UNIX_SOCKET_ELEMENT, null);
+			unixSocketPermissions = getOptionalString(cfr, UNIX_SOCKET_PERMISSIONS_ELEMENT, UNIX_SOCKET_PERMISSIONS);
+			webSocketPort = cfr.getInt(WEBSOCKET_PORT,true,WEBSOCKET_PORT_ELEMENT);
+			webSocketPath = getOptionalString(cfr, WEBSOCKET_PATH_ELEMENT, WEBSOCKET_PATH);
+			webSocketMaxMessageBytes = cfr.getInt(WEBSOCKET_MAX_MESSAGE_BYTES,true,WEBSOCKET_MAX_MESSAGE_BYTES_ELEMENT);
+			if ((! tcp) && (unixSocket == null) && (webSocketPort <= 0))
+				throw new RemoteControlException(TCP_ELEMENT+" is off and there is no "+UNIX_SOCKET_ELEMENT+" or "+WEBSOCKET_PORT_ELEMENT+", so there is nothing to listen on");
+			tls = Boolean.parseBoolean(getOptionalString(cfr, TLS_ELEMENT, Boolean.toString(TLS)));
+			tlsKeystore = getOptionalString(cfr, TLS_KEYSTORE_ELEMENT, null);
+			tlsKeystorePassword = getOptionalString(cfr, TLS_KEYSTORE_PASSWORD_ELEMENT, null);
+			tlsKeystoreType = getOptionalString(cfr, TLS_KEYSTORE_TYPE_ELEMENT, TLS_KEYSTORE_TYPE);
+			tlsSessionCacheSize = cfr.getInt(TLS_SESSION_CACHE_SIZE,true,TLS_SESSION_CACHE_SIZE_ELEMENT);
+			tlsSessionTimeoutSec = cfr.getInt(TLS_SESSION_TIMEOUT_SEC,true,TLS_SESSION_TIMEOUT_SEC_ELEMENT);
+			if (tls && (tlsKeystore == null))
+				throw new RemoteControlException(TLS_ELEMENT+" is on but "+TLS_KEYSTORE_ELEMENT+" is missing from the configuration file");
+			String tempPolicy = getOptionalString(cfr, OUT_QUEUE_POLICY_ELEMENT, OUT_QUEUE_POLICY.name());
+			outQueuePolicy = SessionOutputQueue.parsePolicy(tempPolicy);
+			if (outQueuePolicy == null)
+				throw new RemoteControlException("Unknown "+OUT_QUEUE_POLICY_ELEMENT+" in configuration file:"+tempPolicy);
+			compression = Boolean.parseBoolean(getOptionalString(cfr, COMPRESSION_ELEMENT, Boolean.toString(COMPRESSION)));
+			profiling = Boolean.parseBoolean(getOptionalString(cfr, PROFILING_ELEMENT, Boolean.toString(PROFILING)));
+			watchConfig = Boolean.parseBoolean(getOptionalString(cfr, WATCH_CONFIG_ELEMENT, Boolean.toString(WATCH_CONFIG)));
+			setHostResolveTtlSec(cfr.getInt(HOST_RESOLVE_TTL_SEC,true,HOST_RESOLVE_TTL_SEC_ELEMENT));
+			readAccess(cfr);
+			execRateLimit = parseLimit(EXEC_RATE_LIMIT_ELEMENT, getOptionalString(cfr, EXEC_RATE_LIMIT_ELEMENT, EXEC_RATE_LIMIT));
+			authRateLimit = parseLimit(AUTH_RATE_LIMIT_ELEMENT, getOptionalString(cfr, AUTH_RATE_LIMIT_ELEMENT, AUTH_RATE_LIMIT));
+			clientExecRateLimits = new HashMap<String,RateLimiter.Limit>();
+			HashMap <String,String> tempClientLimits = cfr.getMap(CLIENT_EXEC_RATE_LIMIT_ELEMENT, CLIENT_SECRET_ELEMENT_ID_ATTRIBUTE, false);
+			for (Map.Entry <String,String> entry : tempClientLimits.entrySet())
+				clientExecRateLimits.put(entry.getKey(), parseLimit(CLIENT_EXEC_RATE_LIMIT_ELEMENT, entry.getValue()));
+			clientExecWeights = new HashMap<String,Integer>();
+			HashMap <String,String> tempWeights = cfr.getMap(CLIENT_EXEC_WEIGHT_ELEMENT, CLIENT_SECRET_ELEMENT_ID_ATTRIBUTE, false);
+			for (Map.Entry <String,String> entry : tempWeights.entrySet()) {
+				try {
+					clientExecWeights.put(entry.getKey(), Integer.valueOf(entry.getValue().trim()));
+				}
+				catch (NumberFormatException e) {
+					throw new RemoteControlException("Invalid "+CLIENT_EXEC_WEIGHT_ELEMENT+" in configuration file for id "+entry.getKey()+":"+entry.getValue());
+				}
+			}
 		}
 		catch (ElementNotFoundException e) {
 			throw e;
@@ -140,6 +485,95 @@ public class RemoteControlConfig {
 	
 	
 	
+	/**
+	 * Re-read the clients and allowed hosts from the config file this was loaded from, and publish them in a new snapshot.
+	 * Host names already known keep their addresses; new ones are looked up in the background and added to the snapshot
+	 * as they resolve. If the file cannot be read, the current snapshot is kept.
+	 * @return the new snapshot
+	 * @throws RemoteControlException if this config was not loaded from a file, or the file cannot be read
+	 */
+	public ConfigSnapshot reload()
+	throws RemoteControlException, ElementNotFoundException {
+		if (filePath == null)
+			throw new RemoteControlException("This configuration was not loaded from a file, so it cannot be reloaded");
+		try {
+			return readAccess(new ConfigFileReader(new File(filePath),configRootElement));
+		}
+		catch (ElementNotFoundException e) {
+			throw e;
+		}
+		catch (ConfigFileReaderException e) {
+			throw new RemoteControlException(e);
+		}
+		catch (IOException e) {
+			throw new RemoteControlException(e);
+		}
+	}
+
+	/**
+	 * Take the clients and allowhost names from the config file, and publish them. Makes no lookups.
+	 */
+	private ConfigSnapshot readAccess(ConfigFileReader cfr)
+	throws ConfigFileReaderException {
+		HashMap <String,String> secrets = cfr.getMap(CLIENT_SECRET_ELEMENT, CLIENT_SECRET_ELEMENT_ID_ATTRIBUTE, false);
+		ArrayList <String> hostNames = new ArrayList<String>();
+		for (String host : cfr.getList(ALLOW_HOST_ELEMENT))
+			hostNames.add(host.trim());
+		synchronized (this) {
+			fileSecrets = secrets;
+			fileHostNames = hostNames;
+			resolveHostNames();
+			return publish();
+		}
+	}
+
+	/**
+	 * Hand every allowhost name to the resolver. Caller holds the lock.
+	 */
+	private void resolveHostNames() {
+		LinkedHashSet <String> all = new LinkedHashSet<String>(fileHostNames);
+		all.addAll(addedHostNames);
+		hostResolver.setNames(all);
+	}
+
+	/**
+	 * Make and publish the snapshot of the file's entries with the added ones on top, and the host names as resolved so far.
+	 * Caller holds the lock.
+	 */
+	private ConfigSnapshot publish() {
+		HashMap <String,String> secrets = new HashMap<String,String>(fileSecrets);
+		secrets.putAll(addedSecrets);
+		Set <InetAddress> hosts = hostResolver.getAddresses();
+		hosts.addAll(addedHosts);
+		ConfigSnapshot next = new ConfigSnapshot(secrets, hosts);
+		snapshot.set(next);
+		return next;
+	}
+	
+	/**
+	 * Read an optional single-valued element
+	 * @return the element's value, or 'defaultValue' if the element is not in the config file
+	 */
+	private static String getOptionalString(ConfigFileReader cfr, String element, String defaultValue)
+	throws ConfigFileReaderException {
+		List <String> values = cfr.getList(element);
+		if ((values == null) || values.isEmpty())
+			return defaultValue;
+		return values.get(0).trim();
+	}
+	
+	
+	
+	private static RateLimiter.Limit parseLimit(String element, String value)
+	throws RemoteControlException {
+		RateLimiter.Limit limit = RateLimiter.Limit.parse(value);
+		if (limit == null)
+			throw new RemoteControlException("Invalid "+element+" in configuration file:"+value+" (expected requests per second, optionally followed by ,burst)");
+		return limit;
+	}
+	
+	
+	
 	//// Getters and Setters
 	
 	public int getMaxConnections() {
@@ -174,12 +608,395 @@ public class RemoteControlConfig {
 		this.cacheCleaningIntervalSec = cacheCleaningIntervalSec;
 	}
 
-	public void addAllowedHost(InetAddress ia) {
-		this.allowedHosts.add(ia);
+	public int getExecThreads() {
+		return execThreads;
+	}
+
+	public void setExecThreads(int execThreads) {
+		this.execThreads = execThreads;
+	}
+
+	/**
+	 * @return the weight of 'clientID' in sharing the exec threads, CLIENT_EXEC_WEIGHT unless set for that client
+	 */
+	public int getClientExecWeight(String clientID) {
+		Integer w = clientExecWeights.get(clientID);
+		return (w == null) ? CLIENT_EXEC_WEIGHT : w.intValue();
+	}
+
+	public void setClientExecWeight(String clientID, int weight) {
+		clientExecWeights.put(clientID, weight);
+	}
+
+	public int getJobThreads() {
+		return jobThreads;
+	}
+
+	public void setJobThreads(int jobThreads) {
+		this.jobThreads = jobThreads;
+	}
+
+	public int getJobQueueSize() {
+		return jobQueueSize;
+	}
+
+	public void setJobQueueSize(int jobQueueSize) {
+		this.jobQueueSize = jobQueueSize;
+	}
+
+	public int getJobOutputBytes() {
+		return jobOutputBytes;
+	}
+
+	public void setJobOutputBytes(int jobOutputBytes) {
+		this.jobOutputBytes = jobOutputBytes;
+	}
+
+	public int getJobRetentionSec() {
+		return jobRetentionSec;
+	}
+
+	public void setJobRetentionSec(int jobRetentionSec) {
+		this.jobRetentionSec = jobRetentionSec;
+	}
+
+	/**
+	 * @return the most finished jobs kept; past this the oldest are dropped, however recent
+	 */
+	public int getJobRetained() {
+		return jobRetained;
+	}
+
+	public void setJobRetained(int jobRetained) {
+		this.jobRetained = jobRetained;
+	}
+
+	/**
+	 * @return true if the client 'id' may see and cancel every client's jobs, not only its own
+	 */
+	public boolean isJobAdmin(String id) {
+		return (id != null) && jobAdmins.contains(id);
+	}
+
+	public void addJobAdmin(String id) {
+		jobAdmins.add(id);
+	}
+
+	public long getAuthTimeoutMsec() {
+		return authTimeoutMsec;
+	}
+
+	public void setAuthTimeoutMsec(long authTimeoutMsec) {
+		this.authTimeoutMsec = authTimeoutMsec;
+	}
+
+	public long getIdleTimeoutMsec() {
+		return idleTimeoutMsec;
+	}
+
+	public void setIdleTimeoutMsec(long idleTimeoutMsec) {
+		this.idleTimeoutMsec = idleTimeoutMsec;
+	}
+
+	public long getHeartbeatIntervalMsec() {
+		return heartbeatIntervalMsec;
+	}
+
+	public void setHeartbeatIntervalMsec(long heartbeatIntervalMsec) {
+		this.heartbeatIntervalMsec = heartbeatIntervalMsec;
+	}
+
+	public int getOutQueueBytes() {
+		return outQueueBytes;
+	}
+
+	public void setOutQueueBytes(int outQueueBytes) {
+		this.outQueueBytes = outQueueBytes;
+	}
+
+	public SessionOutputQueue.Policy getOutQueuePolicy() {
+		return outQueuePolicy;
+	}
+
+	public void setOutQueuePolicy(SessionOutputQueue.Policy outQueuePolicy) {
+		this.outQueuePolicy = outQueuePolicy;
+	}
+
+	public long getOutQueueBlockMsec() {
+		return outQueueBlockMsec;
+	}
+
+	public void setOutQueueBlockMsec(long outQueueBlockMsec) {
+		this.outQueueBlockMsec = outQueueBlockMsec;
+	}
+
+	public long getDrainTimeoutMsec() {
+		return drainTimeoutMsec;
+	}
+
+	public void setDrainTimeoutMsec(long drainTimeoutMsec) {
+		this.drainTimeoutMsec = drainTimeoutMsec;
+	}
+
+	public long getResultCacheBytes() {
+		return resultCacheBytes;
+	}
+
+	public void setResultCacheBytes(long resultCacheBytes) {
+		this.resultCacheBytes = resultCacheBytes;
+	}
+
+	public boolean isTcp() {
+		return tcp;
+	}
+
+	public void setTcp(boolean tcp) {
+		this.tcp = tcp;
+	}
+
+	/**
+	 * @return the number of threads accepting TCP connections
+	 */
+	public int getTcpAcceptors() {
+		return tcpAcceptors;
+	}
+
+	public void setTcpAcceptors(int tcpAcceptors) {
+		this.tcpAcceptors = Math.max(1, tcpAcceptors);
+	}
+
+	/**
+	 * @return the listen backlog of each TCP listening socket; 0 or less for the JVM's default
+	 */
+	public int getTcpBacklog() {
+		return tcpBacklog;
+	}
+
+	public void setTcpBacklog(int tcpBacklog) {
+		this.tcpBacklog = tcpBacklog;
+	}
+
+	/**
+	 * @return path of the Unix domain socket to listen on, or null for none
+	 */
+	public String getUnixSocket() {
+		return unixSocket;
+	}
+
+	public void setUnixSocket(String unixSocket) {
+		this.unixSocket = unixSocket;
+	}
+
+	public String getUnixSocketPermissions() {
+		return unixSocketPermissions;
+	}
+
+	public void setUnixSocketPermissions(String unixSocketPermissions) {
+		this.unixSocketPermissions = unixSocketPermissions;
+	}
+
+	/**
+	 * @return the port for the WebSocket endpoint, or 0 if there is none
+	 */
+	public int getWebSocketPort() {
+		return webSocketPort;
+	}
+
+	public void setWebSocketPort(int webSocketPort) {
+		this.webSocketPort = webSocketPort;
+	}
+
+	public String getWebSocketPath() {
+		return webSocketPath;
+	}
+
+	public void setWebSocketPath(String webSocketPath) {
+		this.webSocketPath = webSocketPath;
+	}
+
+	public int getWebSocketMaxMessageBytes() {
+		return webSocketMaxMessageBytes;
+	}
+
+	public void setWebSocketMaxMessageBytes(int webSocketMaxMessageBytes) {
+		this.webSocketMaxMessageBytes = webSocketMaxMessageBytes;
+	}
+
+	public boolean isTls() {
+		return tls;
+	}
+
+	public void setTls(boolean tls) {
+		this.tls = tls;
+	}
+
+	public String getTlsKeystore() {
+		return tlsKeystore;
+	}
+
+	public void setTlsKeystore(String tlsKeystore) {
+		this.tlsKeystore = tlsKeystore;
+	}
+
+	public String getTlsKeystorePassword() {
+		return tlsKeystorePassword;
+	}
+
+	public void setTlsKeystorePassword(String tlsKeystorePassword) {
+		this.tlsKeystorePassword = tlsKeystorePassword;
+	}
+
+	public String getTlsKeystoreType() {
+		return tlsKeystoreType;
+	}
+
+	public void setTlsKeystoreType(String tlsKeystoreType) {
+		this.tlsKeystoreType = tlsKeystoreType;
+	}
+
+	public int getTlsSessionCacheSize() {
+		return tlsSessionCacheSize;
+	}
+
+	public void setTlsSessionCacheSize(int tlsSessionCacheSize) {
+		this.tlsSessionCacheSize = tlsSessionCacheSize;
+	}
+
+	public int getTlsSessionTimeoutSec() {
+		return tlsSessionTimeoutSec;
+	}
+
+	public void setTlsSessionTimeoutSec(int tlsSessionTimeoutSec) {
+		this.tlsSessionTimeoutSec = tlsSessionTimeoutSec;
+	}
+
+	/**
+	 * @return the exec rate limit for each client id that has no limit of its own
+	 */
+	public RateLimiter.Limit getExecRateLimit() {
+		return execRateLimit;
+	}
+
+	public void setExecRateLimit(RateLimiter.Limit execRateLimit) {
+		this.execRateLimit = execRateLimit;
+	}
+
+	/**
+	 * @return the limit on failed hash checks from each source address
+	 */
+	public RateLimiter.Limit getAuthRateLimit() {
+		return authRateLimit;
+	}
+
+	public void setAuthRateLimit(RateLimiter.Limit authRateLimit) {
+		this.authRateLimit = authRateLimit;
+	}
+
+	/**
+	 * @return exec rate limits for client ids that do not use the default, keyed by client id
+	 */
+	public Map <String, RateLimiter.Limit> getClientExecRateLimits() {
+		return Collections.unmodifiableMap(clientExecRateLimits);
+	}
+
+	public void setClientExecRateLimit(String clientID, RateLimiter.Limit limit) {
+		clientExecRateLimits.put(clientID, limit);
+	}
+
+	/**
+	 * @return true if sessions may turn on compressed output with the compress command
+	 */
+	public boolean isCompression() {
+		return compression;
+	}
+
+	public void setCompression(boolean compression) {
+		this.compression = compression;
+	}
+
+	/**
+	 * @return true if clients may profile the host with the profile command
+	 */
+	public boolean isProfiling() {
+		return profiling;
+	}
+
+	public void setProfiling(boolean profiling) {
+		this.profiling = profiling;
+	}
+
+	public boolean isWatchConfig() {
+		return watchConfig;
+	}
+
+	public void setWatchConfig(boolean watchConfig) {
+		this.watchConfig = watchConfig;
+	}
+
+	/**
+	 * @return the config file this was loaded from, or null if it was not
+	 */
+	public String getFilePath() {
+		return filePath;
+	}
+
+	/**
+	 * @return the current clients and allowed hosts. Consult one snapshot for a whole check, so that a reload cannot land in the middle of it.
+	 */
+	public ConfigSnapshot getSnapshot() {
+		return snapshot.get();
+	}
+
+	public int getHostResolveTtlSec() {
+		return hostResolveTtlSec;
+	}
+
+	/**
+	 * Takes effect when the resolver next starts its threads (the first lookup after construction, or after stopHostResolver())
+	 */
+	public void setHostResolveTtlSec(int hostResolveTtlSec) {
+		this.hostResolveTtlSec = hostResolveTtlSec;
+		hostResolver.setTtlMsec(hostResolveTtlSec * 1000L);
+	}
+
+	/**
+	 * Wait for the allowhost names queued for lookup to resolve (or fail). For apps that want every allowed host
+	 * admitted from the moment they start listening, at the cost of waiting for DNS.
+	 * @return true if the lookups all finished within 'timeoutMsec'
+	 */
+	public boolean awaitHostsResolved(long timeoutMsec)
+	throws InterruptedException {
+		return hostResolver.awaitResolved(timeoutMsec);
+	}
+
+	/**
+	 * Stop looking allowhost names up again. The addresses found so far stay allowed.
+	 */
+	public void stopHostResolver() {
+		hostResolver.shutdown();
+	}
+
+	HostResolver getHostResolver() {
+		return hostResolver;
+	}
+
+	public synchronized void addAllowedHost(InetAddress ia) {
+		addedHosts.add(ia);
+		publish();
+	}
+
+	/**
+	 * Allow a host by name or address literal. A name is looked up in the background, and again every hostresolvettlsec,
+	 * so this does not wait for DNS; the host is admitted once its name has resolved.
+	 */
+	public synchronized void addAllowedHost(String host) {
+		addedHostNames.add(host.trim());
+		resolveHostNames();
+		publish();
 	}
 	
 	public boolean isAllowedHost(InetAddress ia) {
-		return this.allowedHosts.contains(ia);
+		return snapshot.get().isAllowedHost(ia);
 	}
 	
 	
@@ -188,11 +1005,12 @@ public class RemoteControlConfig {
 	 * @param clientID
 	 */
 	public String getSecret(String clientID) {
-		return namesToSecrets.get(clientID);
+		return snapshot.get().getSecret(clientID);
 	}
 	
-	public void setSecret(String clientID, String secret) {
-		namesToSecrets.put(clientID,secret);
+	public synchronized void setSecret(String clientID, String secret) {
+		addedSecrets.put(clientID,secret);
+		publish();
 	}
 	
 	
@@ -16,6 +16,26 @@ public class RemoteControlLib {
 	public static final String CRLF_DISCONNECT_COMMAND = "."; // close connection and disconnect
 	public static final String CRLF_LIST_COMMANDS_COMMAND = "?"; // list all commands
 	public static final String CRLF_EXEC_COMMAND = "#"; // if received, process all the values sent, authenticate, and call the method
+	public static final String CRLF_EXEC_ASYNC_COMMAND = "&"; // like exec, but run the method as a background job and respond with the job id
+	public static final String CRLF_EXEC_TAGGED_COMMAND = "@"; // @ (tag) (method) (args) -- like exec, but each output line comes back as "DATA tag line", then "END tag OK" or "END tag ERROR message". "@ tag" alone answers "END tag OK" once authenticated
+	public static final String CRLF_BATCH_COMMAND = "batch"; // batch (tag) (seq | par) (method) (args) ; (method) (args) ; ... -- several calls in one request, answered like a tagged exec with a RESULT line after each call's output
+	public static final String CRLF_STATS_COMMAND = "stats"; // list the server's counters
+	public static final String CRLF_CANCEL_COMMAND = "cancel"; // stop this session's running and queued execs and discard their unsent output
+	public static final String CRLF_JOB_COMMAND = "job"; // job (list | status id | tail id [lines] | cancel id)
+	public static final String CRLF_SUBSCRIBE_COMMAND = "subscribe"; // subscribe (topic) -- receive "PUB topic message" for everything the app publishes to topic
+	public static final String CRLF_UNSUBSCRIBE_COMMAND = "unsubscribe"; // unsubscribe (topic)
+	public static final String CRLF_PROFILE_COMMAND = "profile"; // profile (seconds) [hz] -- sample the host's running threads and answer with their stacks, folded for flame graph tools. See StackProfiler
+	public static final String CRLF_COMPRESS_COMMAND = "compress"; // compress (deflate | deflate-fast) -- everything the server sends after "COMPRESSED codec" is compressed. See StreamCompression
+	
+	public static final String CRLF_BATCH_SEQUENTIAL = "seq"; // one call after another, stopping at the first that fails
+	public static final String CRLF_BATCH_PARALLEL = "par"; // the calls are independent: run them side by side, and all of them
+	public static final String CRLF_BATCH_SEPARATOR = ";";
+
+	public static final String CRLF_JOB_LIST = "list";
+	public static final String CRLF_JOB_STATUS = "status";
+	public static final String CRLF_JOB_TAIL = "tail";
+	public static final String CRLF_JOB_CANCEL = "cancel";
+	public static final int CRLF_JOB_TAIL_DEFAULT_LINES = 20;
 	
 	public static final String CRLF_ID_COMMAND = "id";
 	public static final String CRLF_NONCE_COMMAND = "nonce";
@@ -23,6 +43,18 @@ public class RemoteControlLib {
 	public static final String CRLF_TIME_COMMAND = "time";
 	
 	public static final String CRLF_ERROR_RESPONSE = "ERROR";
+	public static final String CRLF_JOB_RESPONSE = "JOB";
+	public static final String CRLF_STAT_RESPONSE = "STAT";
+	public static final String CRLF_CANCELLED_RESPONSE = "CANCELLED";
+	public static final String CRLF_SUBSCRIBED_RESPONSE = "SUBSCRIBED";
+	public static final String CRLF_UNSUBSCRIBED_RESPONSE = "UNSUBSCRIBED";
+	public static final String CRLF_DATA_RESPONSE = "DATA"; // DATA tag line -- a line of output from a tagged exec
+	public static final String CRLF_END_RESPONSE = "END"; // END tag OK | END tag ERROR message -- a tagged exec is done
+	public static final String CRLF_RESULT_RESPONSE = "RESULT"; // RESULT tag n OK | RESULT tag n ERROR message -- call n (from 1) of a batch is done; its output is the DATA lines before it
+	public static final String CRLF_OK_RESPONSE = "OK";
+	public static final String CRLF_PUBLISH_RESPONSE = "PUB"; // PUB topic message
+	public static final String CRLF_COMPRESSED_RESPONSE = "COMPRESSED"; // COMPRESSED codec -- the last uncompressed line
+	public static final String CRLF_HEARTBEAT = "HEARTBEAT"; // sent by the server to idle sessions to detect dead peers. Clients ignore it.
 	
 	private static final String DELIM = " ";
 
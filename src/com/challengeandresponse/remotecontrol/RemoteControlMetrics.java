@@ -0,0 +1,95 @@
+package com.challengeandresponse.remotecontrol;
+
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Named counters kept by a RemoteControl instance, readable by the host app through
+ * RemoteControl.getMetrics() and by clients through the 'stats' command.
+ * Counters are created on first use, so components can add their own names freely.
+ * 
+ * @author jim
+ *
+ */
+public class RemoteControlMetrics {
+
+	public static final String SESSIONS_OPENED = 			"sessions.opened";
+	public static final String SESSIONS_REAPED_IDLE = 		"sessions.reaped.idle";
+	public static final String SESSIONS_REAPED_AUTH = 		"sessions.reaped.authtimeout";
+	public static final String SESSIONS_REAPED_DEAD_PEER = 	"sessions.reaped.deadpeer";
+	public static final String SESSIONS_CLOSED_SLOW_CLIENT = "sessions.closed.slowclient";
+	public static final String SESSIONS_CLOSED_AT_SHUTDOWN = "sessions.closed.shutdown";
+	public static final String TLS_HANDSHAKES = 			"tls.handshakes";
+	public static final String TLS_HANDSHAKE_FAILURES = 	"tls.handshakes.failed";
+	public static final String HEARTBEATS_SENT = 			"heartbeats.sent";
+	public static final String OUT_QUEUE_DROPPED_CHUNKS = 	"outqueue.dropped.chunks";
+	public static final String OUT_QUEUE_DROPPED_BYTES = 	"outqueue.dropped.bytes";
+	public static final String BROADCASTS_PUBLISHED = 		"broadcasts.published";
+	public static final String BROADCASTS_DELIVERED = 		"broadcasts.delivered";
+	public static final String BROADCASTS_DROPPED = 		"broadcasts.dropped";
+	public static final String WEBSOCKET_HANDSHAKES = 		"websocket.handshakes";
+	public static final String WEBSOCKET_HANDSHAKE_FAILURES = "websocket.handshakes.failed";
+	public static final String RATE_LIMITED_EXEC = 		"ratelimit.exec.rejected";
+	public static final String RATE_LIMITED_AUTH = 		"ratelimit.auth.rejected";
+	public static final String SINGLE_FLIGHT_EXECUTED = 	"singleflight.executed";
+	public static final String SINGLE_FLIGHT_SHARED = 		"singleflight.shared";
+	public static final String RESULT_CACHE_HITS = 		"resultcache.hits";
+	public static final String RESULT_CACHE_MISSES = 		"resultcache.misses";
+	public static final String RESULT_CACHE_EVICTIONS = 	"resultcache.evictions";
+	public static final String RESULT_CACHE_EXPIRED = 		"resultcache.expired";
+	public static final String COMPRESSED_SESSIONS = 		"compress.sessions";
+	public static final String COMPRESS_BYTES_IN = 		"compress.bytes.in";
+	public static final String COMPRESS_BYTES_OUT = 		"compress.bytes.out";
+	public static final String COMPRESS_CPU_USEC = 		"compress.cpu.usec";
+	public static final String PROFILES_RUN = 				"profile.runs";
+	public static final String PROFILE_SAMPLES = 			"profile.samples";
+	public static final String PROFILE_CPU_USEC = 			"profile.cpu.usec";
+
+	private final ConcurrentHashMap <String,AtomicLong> counters;
+
+	public RemoteControlMetrics() {
+		counters = new ConcurrentHashMap<String,AtomicLong>();
+	}
+
+
+	private AtomicLong counter(String name) {
+		AtomicLong al = counters.get(name);
+		if (al == null) {
+			AtomicLong fresh = new AtomicLong();
+			al = counters.putIfAbsent(name, fresh);
+			if (al == null)
+				al = fresh;
+		}
+		return al;
+	}
+
+	public long increment(String name) {
+		return counter(name).incrementAndGet();
+	}
+
+	public long add(String name, long delta) {
+		return counter(name).addAndGet(delta);
+	}
+
+	/**
+	 * @return the value of counter 'name', or 0 if it has never been touched
+	 */
+	public long get(String name) {
+		AtomicLong al = counters.get(name);
+		return (al == null) ? 0L : al.get();
+	}
+
+	/**
+	 * @return a point-in-time copy of all counters, sorted by name
+	 */
+	public SortedMap <String,Long> snapshot() {
+		TreeMap <String,Long> tm = new TreeMap<String,Long>();
+		for (Map.Entry<String,AtomicLong> e : counters.entrySet())
+			tm.put(e.getKey(), e.getValue().get());
+		return tm;
+	}
+
+}
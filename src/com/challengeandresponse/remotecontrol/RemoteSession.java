@@ -0,0 +1,829 @@
+package com.challengeandresponse.remotecontrol;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * An authenticated connection to one RemoteControl host, opened by AsyncRemoteControlClient.connect().
+ *
+ * <p>Each call is sent as a tagged exec (@ tag method args). The host answers with "DATA tag line" for each line of output
+ * and "END tag OK" or "END tag ERROR message" at the end, and the tag is how the answer finds its way back to the call's
+ * future or subscriber. Other lines from the host (heartbeats, broadcasts) are ignored.</p>
+ *
+ * <p>batch() sends several calls as one batch command, which the host answers the same way with a "RESULT tag n ..."
+ * line after each call's output, so that a run of small calls costs one round trip instead of one each.</p>
+ *
+ * <p>If the remote's config asks for compression, it is turned on as part of logging in, and everything after the host's
+ * "COMPRESSED codec" line is decompressed as it is read.</p>
+ *
+ * <p>call(), batch() and ping() fail with a TimeoutException if the host has not answered in DEFAULT_CALL_TIMEOUT_MSEC,
+ * or whatever setCallTimeout() sets. The call is only forgotten, not cancelled at the host. stream() has no timeout.</p>
+ *
+ * <p>call() and stream() may be used from any thread. The socket is only touched by the client's I/O thread.</p>
+ *
+ * @author jim
+ *
+ */
+public class RemoteSession {
+
+	private static final int READ_BUFFER_BYTES = 8192;
+	private static final String LINE_END = "\r\n";
+
+	public static final long DEFAULT_CALL_TIMEOUT_MSEC = 60000L;
+
+	private final AsyncRemoteControlClient client;
+	private final String label;
+	private final SocketChannel channel;
+	private final TlsChannel tls;
+	private final ByteChannel io;
+	private final Charset charset = Charset.defaultCharset();
+	private SelectionKey key;
+
+	// calls waiting for their END, by tag
+	private final ConcurrentHashMap <String,Pending> calls = new ConcurrentHashMap<String,Pending>();
+	private final AtomicLong tagCount = new AtomicLong(0L);
+	private final CompletableFuture<RemoteSession> connected;
+	private volatile boolean closed = false;
+	private volatile long callTimeoutMsec = DEFAULT_CALL_TIMEOUT_MSEC;
+
+	// output from callers, moved to pendingOut by the I/O thread
+	private final ConcurrentLinkedQueue <ByteBuffer> outbox = new ConcurrentLinkedQueue<ByteBuffer>();
+	private final AtomicBoolean writeScheduled = new AtomicBoolean(false);
+
+	// I/O thread only
+	private final ArrayDeque <ByteBuffer> pendingOut = new ArrayDeque<ByteBuffer>();
+	private final ByteBuffer in = ByteBuffer.allocate(READ_BUFFER_BYTES);	// fill mode
+	private final ByteArrayOutputStream line = new ByteArrayOutputStream();	// the line being read, so far
+	private Inflater inflater = null;	// once the host compresses its output
+	private byte[] inflated = null;
+
+	private final Runnable flushTask = new Runnable() {
+		public void run() {
+			try {
+				flushOutput();
+			}
+			catch (IOException e) {
+				closeNow(e);
+			}
+		}
+	};
+
+
+	RemoteSession(AsyncRemoteControlClient client, String label, SocketChannel channel, TlsChannel tls, CompletableFuture<RemoteSession> connected) {
+		this.client = client;
+		this.label = label;
+		this.channel = channel;
+		this.tls = tls;
+		this.io = (tls != null) ? tls : channel;
+		this.connected = connected;
+	}
+
+
+	/**
+	 * Call 'method' on the host
+	 * @param args the arguments, each sent as String.valueOf(arg). They may not contain whitespace.
+	 * @return a future that completes with the method's Response, or exceptionally with an IOException if the session is lost first,
+	 * or a TimeoutException if the call timeout passes first
+	 */
+	public CompletableFuture<Response> call(String method, Object... args) {
+		CompletableFuture<Response> f = new CompletableFuture<Response>();
+		String command;
+		try {
+			command = commandLine(method, args);
+		}
+		catch (IllegalArgumentException e) {
+			f.completeExceptionally(e);
+			return f;
+		}
+		startTimed(new CallPending(method, f), RemoteControlLib.CRLF_EXEC_TAGGED_COMMAND, command);
+		return f;
+	}
+
+	/**
+	 * Call 'method' on the host, and have its output delivered line by line as it arrives. The call is made when a subscriber
+	 * subscribes, once for each subscriber. A method that fails ends its stream with onError(RemoteControlException).
+	 * Lines are held for the subscriber until it requests them; cancelling stops delivery, but the method runs on at the host.
+	 * @param args the arguments, each sent as String.valueOf(arg). They may not contain whitespace.
+	 * @throws IllegalArgumentException if the method name or an argument cannot be sent
+	 */
+	public Flow.Publisher<String> stream(String method, Object... args)
+	throws IllegalArgumentException {
+		final String command = commandLine(method, args);
+		return new Flow.Publisher<String>() {
+			public void subscribe(Flow.Subscriber<? super String> subscriber) {
+				new LineSubscription(subscriber, command).drain();
+			}
+		};
+	}
+
+	/**
+	 * Make several calls in one round trip
+	 * @param independent true to have the host run the calls side by side, and all of them; false to run them in order,
+	 * stopping at the first that fails, after which the rest are answered with the error "not run"
+	 * @param calls each a method name followed by its arguments. Names and arguments may not contain whitespace or ';'.
+	 * @return a future that completes with a Response for each call, in order; or exceptionally with a RemoteControlException
+	 * if the host refused the batch, or an IOException if the session is lost first
+	 */
+	public CompletableFuture<List<Response>> batch(boolean independent, List <Object[]> calls) {
+		CompletableFuture<List<Response>> f = new CompletableFuture<List<Response>>();
+		ArrayList <String> methods = new ArrayList<String>();
+		StringBuilder sb = new StringBuilder(independent ? RemoteControlLib.CRLF_BATCH_PARALLEL : RemoteControlLib.CRLF_BATCH_SEQUENTIAL);
+		try {
+			if (calls.isEmpty())
+				throw new IllegalArgumentException("a batch must have at least one call");
+			for (Object[] call : calls) {
+				if (call.length < 1)
+					throw new IllegalArgumentException("each call in a batch must start with the method name");
+				String method = String.valueOf(call[0]);
+				Object[] args = new Object[call.length - 1];
+				System.arraycopy(call, 1, args, 0, args.length);
+				String command = commandLine(method, args);
+				if (command.contains(RemoteControlLib.CRLF_BATCH_SEPARATOR))
+					throw new IllegalArgumentException("method names and arguments in a batch may not contain '"+RemoteControlLib.CRLF_BATCH_SEPARATOR+"': "+command);
+				if (! methods.isEmpty())
+					sb.append(' ').append(RemoteControlLib.CRLF_BATCH_SEPARATOR);
+				sb.append(' ').append(command);
+				methods.add(method);
+			}
+		}
+		catch (IllegalArgumentException e) {
+			f.completeExceptionally(e);
+			return f;
+		}
+		startTimed(new BatchPending(methods, f), RemoteControlLib.CRLF_BATCH_COMMAND, sb.toString());
+		return f;
+	}
+
+	/**
+	 * Check that the host is still answering on this session: a round trip that runs no method
+	 * @return a future that completes with an OK Response, or exceptionally with an IOException if the session is lost first
+	 */
+	public CompletableFuture<Response> ping() {
+		CompletableFuture<Response> f = new CompletableFuture<Response>();
+		startTimed(new CallPending(RemoteControlLib.CRLF_EXEC_TAGGED_COMMAND, f), RemoteControlLib.CRLF_EXEC_TAGGED_COMMAND, null);
+		return f;
+	}
+
+	/**
+	 * Ask the host to cancel this session's running and queued calls. Each one that had not finished ends with an error
+	 * Response, "cancelled"; calls made after this are not affected.
+	 */
+	public void cancelAll() {
+		send(RemoteControlLib.CRLF_CANCEL_COMMAND);
+	}
+
+	/**
+	 * Disconnect. Calls still outstanding fail with an IOException.
+	 */
+	public void close() {
+		if (closed)
+			return;
+		send(RemoteControlLib.CRLF_DISCONNECT_COMMAND);
+		client.runOnSelector(new Runnable() {
+			public void run() {
+				try {
+					flushOutput();
+				}
+				catch (IOException e) {
+				}
+				closeNow(new IOException("session closed"));
+			}
+		});
+	}
+
+	public boolean isOpen() {
+		return (! closed);
+	}
+
+	/**
+	 * @return the label of the remote in the client config
+	 */
+	public String getLabel() {
+		return label;
+	}
+
+	/**
+	 * @param msec how long call(), batch() and ping() wait for the host's answer before failing with a TimeoutException;
+	 * 0 to wait for as long as the session lasts. Applies to calls made after this.
+	 */
+	public void setCallTimeout(long msec) {
+		this.callTimeoutMsec = Math.max(0L, msec);
+	}
+
+	public long getCallTimeout() {
+		return callTimeoutMsec;
+	}
+
+	/**
+	 * @return the number of calls sent and not yet answered
+	 */
+	public int getOutstandingCalls() {
+		return calls.size();
+	}
+
+	public String toString() {
+		return "RemoteSession:"+label+(closed ? " (closed)" : "");
+	}
+
+
+	private static String commandLine(String method, Object[] args)
+	throws IllegalArgumentException {
+		StringBuilder sb = new StringBuilder(token(method));
+		for (Object arg : args)
+			sb.append(' ').append(token(String.valueOf(arg)));
+		return sb.toString();
+	}
+
+	/**
+	 * The protocol splits lines on whitespace, so there is no way to send a token that contains any
+	 */
+	private static String token(String s)
+	throws IllegalArgumentException {
+		if ((s == null) || s.isEmpty())
+			throw new IllegalArgumentException("method names and arguments may not be empty");
+		for (int i = 0; i < s.length(); i++)
+			if (Character.isWhitespace(s.charAt(i)))
+				throw new IllegalArgumentException("method names and arguments may not contain whitespace: '"+s+"'");
+		return s;
+	}
+
+	/**
+	 * Register 'p' under a new tag and send the tagged exec for it
+	 * @param command the method and its arguments, or null for a check that only waits for END
+	 * @return the tag
+	 */
+	private String start(Pending p, String command) {
+		return start(p, RemoteControlLib.CRLF_EXEC_TAGGED_COMMAND, command);
+	}
+
+	/**
+	 * @param verb the tagged command to send: a tagged exec or a batch
+	 */
+	private String start(Pending p, String verb, String command) {
+		String tag = Long.toString(tagCount.incrementAndGet());
+		calls.put(tag, p);
+		String s = verb+" "+tag + ((command != null) ? " "+command : "");
+		if ((! send(s)) && (calls.remove(tag) != null))
+			p.fail(new IOException("session is closed"));
+		return tag;
+	}
+
+	/**
+	 * As start(p, verb, command), then fail 'p' with a TimeoutException if it has had no END when the call timeout is up
+	 */
+	private void startTimed(final Pending p, String verb, String command) {
+		final String tag = start(p, verb, command);
+		final long timeout = callTimeoutMsec;
+		if (timeout <= 0L)
+			return;
+		CompletableFuture.delayedExecutor(timeout, TimeUnit.MILLISECONDS).execute(new Runnable() {
+			public void run() {
+				// whichever of this and the END removes the call is the one that completes it
+				if (calls.remove(tag, p))
+					p.fail(new TimeoutException("no answer from "+label+" in "+timeout+" msec"));
+			}
+		});
+	}
+
+	/**
+	 * Queue a line for the host
+	 * @return false if the session is closed
+	 */
+	private boolean send(String s) {
+		if (closed)
+			return false;
+		outbox.add(ByteBuffer.wrap((s + LINE_END).getBytes(charset)));
+		if (writeScheduled.compareAndSet(false, true))
+			client.runOnSelector(flushTask);
+		return true;
+	}
+
+
+	//// I/O thread from here on
+
+	void setKey(SelectionKey key) {
+		this.key = key;
+	}
+
+	/**
+	 * Queue the credentials, then an empty tagged exec, whose END tells us whether the host accepted them
+	 */
+	void authenticate(String id, String nonce, String secret) {
+		long time = System.currentTimeMillis();
+		send(RemoteControlLib.CRLF_ID_COMMAND+" "+id);
+		send(RemoteControlLib.CRLF_NONCE_COMMAND+" "+nonce);
+		send(RemoteControlLib.CRLF_TIME_COMMAND+" "+time);
+		send(RemoteControlLib.CRLF_HASH_COMMAND+" "+RemoteControlLib.generateSecureHash(RemoteControlLib.makeSignableString(id, nonce, time), secret));
+		// a host that will not compress says so with an untagged ERROR, which is ignored, and carries on uncompressed
+		String codec = client.getConfig().getCompress(label);
+		if (codec != null)
+			send(RemoteControlLib.CRLF_COMPRESS_COMMAND+" "+codec);
+		start(new Pending() {
+			void line(String s) {
+			}
+			void end(final String error) {
+				if (error != null) {
+					RemoteControlException e = new RemoteControlException("Authentication failed: "+error);
+					fail(e);
+					closeNow(e);
+					return;
+				}
+				client.callback(new Runnable() {
+					public void run() {
+						connected.complete(RemoteSession.this);
+					}
+				});
+			}
+			void fail(final Throwable t) {
+				client.callback(new Runnable() {
+					public void run() {
+						connected.completeExceptionally(t);
+					}
+				});
+			}
+		}, null);
+	}
+
+	void onConnectable()
+	throws IOException {
+		if (! channel.finishConnect())
+			return;
+		key.interestOps(SelectionKey.OP_READ);
+		flushOutput();
+	}
+
+	void onReadable()
+	throws IOException {
+		boolean handshaking = (tls != null) && (! tls.isHandshakeDone());
+		while (! closed) {
+			int n = io.read(in);
+			if (n < 0) {
+				closeNow(new EOFException("connection to "+label+" closed by the host"));
+				return;
+			}
+			if (n == 0)
+				break;
+			readLines();
+		}
+		// a TLS handshake may have left records to send, or finished here with our lines still waiting for it
+		if ((tls != null) && (tls.hasPendingOutput() || (handshaking && tls.isHandshakeDone())))
+			flushOutput();
+	}
+
+	/**
+	 * Take every complete line out of what was read into 'in', decompressing it first if the host compresses
+	 */
+	private void readLines() {
+		in.flip();
+		if (inflater == null)
+			readLines(in.array(), in.position(), in.limit(), false);
+		else
+			inflate(in.array(), in.position(), in.limit());
+		in.clear();
+	}
+
+	/**
+	 * Hand each complete line in buf[start..end) to onLine(), and keep the start of any partial one in 'line'
+	 * @param compressed true if these bytes have been decompressed already
+	 */
+	private void readLines(byte[] buf, int start, int end, boolean compressed) {
+		for (int i = start; i < end; i++) {
+			if (buf[i] != '\n')
+				continue;
+			line.write(buf, start, i - start);
+			byte[] b = line.toByteArray();
+			line.reset();
+			int len = ((b.length > 0) && (b[b.length - 1] == '\r')) ? b.length - 1 : b.length;
+			onLine(new String(b, 0, len, charset));
+			start = i + 1;
+			if (closed)
+				return;
+			if ((! compressed) && (inflater != null)) {
+				// that was the COMPRESSED line; the rest of this read is compressed
+				inflate(buf, start, end);
+				return;
+			}
+		}
+		// keep a partial line for the next read
+		line.write(buf, start, end - start);
+	}
+
+	/**
+	 * Decompress buf[start..end) and take the lines out of it. All of it is used up before this returns, so the buffer can be reused.
+	 */
+	private void inflate(byte[] buf, int start, int end) {
+		inflater.setInput(buf, start, end - start);
+		try {
+			while (! closed) {
+				int n = inflater.inflate(inflated);
+				if (n > 0)
+					readLines(inflated, 0, n, true);
+				else if (inflater.needsInput() || inflater.finished() || inflater.needsDictionary())
+					break;
+			}
+		}
+		catch (DataFormatException e) {
+			closeNow(new IOException("output from "+label+" could not be decompressed: "+e.getMessage()));
+		}
+	}
+
+	private void onLine(String s) {
+		// everything we act on is "WORD tag ..."
+		int sp = s.indexOf(' ');
+		if (sp < 0)
+			return;
+		String word = s.substring(0, sp);
+		String rest = s.substring(sp + 1);
+		int sp2 = rest.indexOf(' ');
+		String tag = (sp2 < 0) ? rest : rest.substring(0, sp2);
+		String text = (sp2 < 0) ? "" : rest.substring(sp2 + 1);
+		if (RemoteControlLib.CRLF_DATA_RESPONSE.equals(word)) {
+			Pending p = calls.get(tag);
+			if (p != null)
+				p.line(text);
+		}
+		else if (RemoteControlLib.CRLF_RESULT_RESPONSE.equals(word)) {
+			Pending p = calls.get(tag);
+			// after the call's number
+			int sp3 = text.indexOf(' ');
+			if (p != null)
+				p.result(error((sp3 < 0) ? "" : text.substring(sp3 + 1)));
+		}
+		else if (RemoteControlLib.CRLF_END_RESPONSE.equals(word)) {
+			Pending p = calls.remove(tag);
+			if (p != null)
+				p.end(error(text));
+		}
+		else if (RemoteControlLib.CRLF_COMPRESSED_RESPONSE.equals(word) && (inflater == null)) {
+			try {
+				inflater = StreamCompression.newInflater(tag);
+				inflated = new byte[READ_BUFFER_BYTES * 4];
+			}
+			catch (IllegalArgumentException e) {
+				closeNow(new IOException(label+" compresses with "+tag+", which this client cannot decompress"));
+			}
+		}
+	}
+
+	/**
+	 * @param text "OK" or "ERROR message"
+	 * @return null for OK, otherwise the error
+	 */
+	private static String error(String text) {
+		if (text.startsWith(RemoteControlLib.CRLF_OK_RESPONSE))
+			return null;
+		if (text.startsWith(RemoteControlLib.CRLF_ERROR_RESPONSE+" "))
+			return text.substring(RemoteControlLib.CRLF_ERROR_RESPONSE.length() + 1);
+		return text;
+	}
+
+
+	/**
+	 * Write as much queued output as the socket will take, and ask for OP_WRITE if some is left
+	 */
+	void flushOutput()
+	throws IOException {
+		writeScheduled.set(false);
+		if (closed || (! channel.isConnected()))
+			return;
+		if ((tls != null) && (! tls.isHandshakeDone())) {
+			if (! tls.handshake()) {
+				setWriteInterest(tls.hasPendingOutput());
+				return;
+			}
+		}
+		if ((tls != null) && (! tls.flush())) {
+			setWriteInterest(true);
+			return;
+		}
+		ByteBuffer b;
+		while ((b = outbox.poll()) != null)
+			pendingOut.add(b);
+		while (! pendingOut.isEmpty()) {
+			if (tls != null) {
+				b = pendingOut.peek();
+				tls.write(b);
+				if (b.hasRemaining() || tls.hasPendingOutput()) {
+					setWriteInterest(true);
+					return;
+				}
+				pendingOut.poll();
+			}
+			else {
+				channel.write(pendingOut.toArray(new ByteBuffer[pendingOut.size()]));
+				while ((! pendingOut.isEmpty()) && (! pendingOut.peek().hasRemaining()))
+					pendingOut.poll();
+				if (! pendingOut.isEmpty()) {
+					setWriteInterest(true);
+					return;
+				}
+			}
+		}
+		setWriteInterest(false);
+	}
+
+	private void setWriteInterest(boolean on) {
+		if (! key.isValid())
+			return;
+		int ops = key.interestOps();
+		key.interestOps(on ? (ops | SelectionKey.OP_WRITE) : (ops & ~SelectionKey.OP_WRITE));
+	}
+
+	/**
+	 * Close the connection and fail everything outstanding with 'why'
+	 */
+	void closeNow(Throwable why) {
+		if (closed)
+			return;
+		closed = true;
+		if (key != null)
+			key.cancel();
+		try {
+			if (tls != null)
+				tls.close();
+			channel.close();
+		}
+		catch (IOException e) {
+		}
+		for (String tag : calls.keySet()) {
+			Pending p = calls.remove(tag);
+			if (p != null)
+				p.fail(why);
+		}
+		outbox.clear();
+		pendingOut.clear();
+		if (inflater != null)
+			inflater.end();
+	}
+
+
+
+	/**
+	 * A call waiting for its END. Its methods are called on the I/O thread.
+	 */
+	private abstract static class Pending {
+		abstract void line(String s);
+
+		/**
+		 * @param error null if the call succeeded
+		 */
+		abstract void end(String error);
+
+		abstract void fail(Throwable t);
+
+		/**
+		 * One call of a batch is done. Only batches get these.
+		 * @param error null if the call succeeded
+		 */
+		void result(String error) {
+		}
+	}
+
+	/**
+	 * Collects a call's output for its Response
+	 */
+	private class CallPending
+	extends Pending {
+
+		private final String method;
+		private final CompletableFuture<Response> f;
+		private final ArrayList <String> lines = new ArrayList<String>();
+
+		CallPending(String method, CompletableFuture<Response> f) {
+			this.method = method;
+			this.f = f;
+		}
+
+		void line(String s) {
+			lines.add(s);
+		}
+
+		void end(String error) {
+			final Response r = new Response(method, lines, error);
+			client.callback(new Runnable() {
+				public void run() {
+					f.complete(r);
+				}
+			});
+		}
+
+		void fail(final Throwable t) {
+			client.callback(new Runnable() {
+				public void run() {
+					f.completeExceptionally(t);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Collects a batch's output, a Response for each call
+	 */
+	private class BatchPending
+	extends Pending {
+
+		private final List <String> methods;
+		private final CompletableFuture<List<Response>> f;
+		private final ArrayList <Response> responses = new ArrayList<Response>();
+		private ArrayList <String> lines = new ArrayList<String>();
+
+		BatchPending(List <String> methods, CompletableFuture<List<Response>> f) {
+			this.methods = methods;
+			this.f = f;
+		}
+
+		void line(String s) {
+			lines.add(s);
+		}
+
+		void result(String error) {
+			if (responses.size() >= methods.size())
+				return;
+			responses.add(new Response(methods.get(responses.size()), lines, error));
+			lines = new ArrayList<String>();
+		}
+
+		void end(String error) {
+			// refused or cancelled before every call was answered
+			if (responses.size() < methods.size()) {
+				fail(new RemoteControlException((error != null) ? error : "batch ended before all its calls were answered"));
+				return;
+			}
+			final List <Response> r = Collections.unmodifiableList(responses);
+			client.callback(new Runnable() {
+				public void run() {
+					f.complete(r);
+				}
+			});
+		}
+
+		void fail(final Throwable t) {
+			client.callback(new Runnable() {
+				public void run() {
+					f.completeExceptionally(t);
+				}
+			});
+		}
+	}
+
+	/**
+	 * One subscriber's call. Lines are queued as they arrive and handed over, as the subscriber requests them,
+	 * by a drain that runs on the callback executor, one drain at a time.
+	 */
+	private class LineSubscription
+	extends Pending
+	implements Flow.Subscription, Runnable {
+
+		private final Flow.Subscriber<? super String> subscriber;
+		private final String command;
+		private final AtomicInteger wip = new AtomicInteger(0);
+
+		// guarded by 'this'
+		private final ArrayDeque <String> queue = new ArrayDeque<String>();
+		private long demand = 0L;
+		private boolean finished = false;
+		private Throwable failure = null;
+
+		// drain only
+		private boolean subscribed = false;
+		private boolean terminated = false;
+		private volatile boolean cancelled = false;
+		private volatile String tag = null;
+
+		LineSubscription(Flow.Subscriber<? super String> subscriber, String command) {
+			this.subscriber = subscriber;
+			this.command = command;
+		}
+
+
+		//// Flow.Subscription
+
+		public void request(long n) {
+			if (n <= 0L) {
+				// no more lines for this subscriber, only the error
+				String t = tag;
+				if (t != null)
+					calls.remove(t, this);
+			}
+			synchronized (this) {
+				if (n <= 0L) {
+					finished = true;
+					failure = new IllegalArgumentException("request() must be given a positive number, not "+n);
+					queue.clear();
+				}
+				else {
+					demand += n;
+					if (demand < 0L)
+						demand = Long.MAX_VALUE;
+				}
+			}
+			drain();
+		}
+
+		public void cancel() {
+			cancelled = true;
+			String t = tag;
+			if (t != null)
+				calls.remove(t, this);
+			synchronized (this) {
+				queue.clear();
+			}
+		}
+
+
+		//// Pending, on the I/O thread
+
+		void line(String s) {
+			synchronized (this) {
+				queue.add(s);
+			}
+			drain();
+		}
+
+		void end(String error) {
+			synchronized (this) {
+				finished = true;
+				if (error != null)
+					failure = new RemoteControlException(error);
+			}
+			drain();
+		}
+
+		void fail(Throwable t) {
+			synchronized (this) {
+				finished = true;
+				failure = t;
+			}
+			drain();
+		}
+
+
+		void drain() {
+			if (wip.getAndIncrement() == 0)
+				client.callback(this);
+		}
+
+		public void run() {
+			int missed = 1;
+			do {
+				if (! subscribed) {
+					subscribed = true;
+					subscriber.onSubscribe(this);
+					if (! cancelled)
+						tag = start(this, command);
+				}
+				while ((! cancelled) && (! terminated)) {
+					String s = null;
+					boolean done = false;
+					Throwable t = null;
+					synchronized (this) {
+						if ((demand > 0L) && (! queue.isEmpty())) {
+							s = queue.poll();
+							demand--;
+						}
+						else if (finished && queue.isEmpty()) {
+							done = true;
+							t = failure;
+						}
+					}
+					if (s != null) {
+						subscriber.onNext(s);
+					}
+					else {
+						if (done) {
+							terminated = true;
+							if (t != null)
+								subscriber.onError(t);
+							else
+								subscriber.onComplete();
+						}
+						break;
+					}
+				}
+				missed = wip.addAndGet(-missed);
+			} while (missed != 0);
+		}
+	}
+
+}
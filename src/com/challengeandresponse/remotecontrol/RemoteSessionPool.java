@@ -0,0 +1,333 @@
+package com.challengeandresponse.remotecontrol;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+/**
+ * Keeps authenticated RemoteSessions open for reuse, per remote label, so that a call costs only its own round trip
+ * and not a connect, a TLS handshake and a login.
+ *
+ * <p>acquire() hands out an idle session to the remote if there is one, opens a new one if fewer than the remote's
+ * poolmaxsize are open, and otherwise waits for one to be released. A session is used by one borrower at a time;
+ * since the host runs a session's calls one after another, this is what lets calls to one remote run side by side.
+ * call() does the acquire, the call and the release in one go.</p>
+ *
+ * <p>A maintenance thread closes sessions that have been idle longer than poolmaxidlemsec, and checks sessions idle
+ * longer than poolhealthcheckmsec with a round trip (RemoteSession.ping()), closing any that do not answer. Sessions
+ * the host has closed are dropped as soon as the client sees the connection go. The settings come from each remote's
+ * entry in RemoteControlClientConfig.</p>
+ *
+ * @author jim
+ *
+ */
+public class RemoteSessionPool {
+
+	static final long MAINTENANCE_MSEC = 1000;
+	private static final AtomicInteger threadCount = new AtomicInteger(0);
+
+	private final AsyncRemoteControlClient client;
+	private final RemoteControlClientConfig config;
+	private final ConcurrentHashMap <String,Remote> remotes = new ConcurrentHashMap<String,Remote>();
+	private final ScheduledThreadPoolExecutor maintenance;
+	private volatile boolean closed = false;
+
+
+	/**
+	 * @param client opens the sessions. Closing the pool does not close the client.
+	 */
+	public RemoteSessionPool(AsyncRemoteControlClient client) {
+		this.client = client;
+		this.config = client.getConfig();
+		maintenance = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "RemoteControlClient.pool-"+threadCount.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		maintenance.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				for (Remote r : remotes.values())
+					maintain(r);
+			}
+		}, MAINTENANCE_MSEC, MAINTENANCE_MSEC, TimeUnit.MILLISECONDS);
+	}
+
+
+	/**
+	 * Borrow a session to 'label'. Give it back with release() when done with it. No timeout is applied to the wait
+	 * for a free session; use the future's orTimeout() for one.
+	 * @return a future that completes with an authenticated session, or exceptionally if a new one could not be opened
+	 */
+	public CompletableFuture<RemoteSession> acquire(String label) {
+		CompletableFuture<RemoteSession> f = new CompletableFuture<RemoteSession>();
+		if (closed) {
+			f.completeExceptionally(new IOException("pool is closed"));
+			return f;
+		}
+		if (! config.hasLabel(label)) {
+			f.completeExceptionally(new RemoteControlException("No remote labelled "+label+" in the config"));
+			return f;
+		}
+		Remote r = remotes.get(label);
+		if (r == null) {
+			Remote created = new Remote(label);
+			r = remotes.putIfAbsent(label, created);
+			if (r == null)
+				r = created;
+		}
+		synchronized (r) {
+			r.waiters.add(f);
+		}
+		dispatch(r);
+		return f;
+	}
+
+	/**
+	 * Give back a session from acquire(). A session that has been closed, or that still has calls outstanding, is
+	 * closed and dropped, and its place can be taken by a new one; its late answers would otherwise reach the next borrower.
+	 */
+	public void release(RemoteSession session) {
+		Remote r = remotes.get(session.getLabel());
+		if (r == null) {
+			session.close();
+			return;
+		}
+		if (closed || (! session.isOpen()) || (session.getOutstandingCalls() > 0)) {
+			discard(session);
+			return;
+		}
+		synchronized (r) {
+			// most recently used first, so that the rest go idle long enough to be closed
+			r.idle.addFirst(new Idle(session, System.currentTimeMillis()));
+		}
+		dispatch(r);
+	}
+
+	/**
+	 * Close a session on loan from the pool, rather than giving it back, and free its place.
+	 * close() finishes on the selector thread, so the session may still look open for a moment; it must not be pooled.
+	 */
+	private void discard(RemoteSession session) {
+		session.close();
+		Remote r = remotes.get(session.getLabel());
+		if (r == null)
+			return;
+		synchronized (r) {
+			r.open--;
+		}
+		dispatch(r);
+	}
+
+	/**
+	 * Call 'method' on 'label' over a pooled session. If the call fails (times out, say) the session is not pooled
+	 * again, since the host may still be running the call: it is asked to cancel it, and closed.
+	 * @return a future that completes with the method's Response, or exceptionally if no session could be had or it was lost
+	 */
+	public CompletableFuture<Response> call(String label, final String method, final Object... args) {
+		return acquire(label).thenCompose(new Function<RemoteSession,CompletionStage<Response>>() {
+			public CompletionStage<Response> apply(final RemoteSession session) {
+				return session.call(method, args).whenComplete(new BiConsumer<Response,Throwable>() {
+					public void accept(Response r, Throwable t) {
+						if (t != null) {
+							session.cancelAll();
+							discard(session);
+						}
+						else {
+							release(session);
+						}
+					}
+				});
+			}
+		});
+	}
+
+	/**
+	 * @return the sessions to 'label' that are open or opening, in use or idle
+	 */
+	public int getOpenCount(String label) {
+		Remote r = remotes.get(label);
+		if (r == null)
+			return 0;
+		synchronized (r) {
+			return r.open;
+		}
+	}
+
+	/**
+	 * @return the sessions to 'label' waiting in the pool to be borrowed
+	 */
+	public int getIdleCount(String label) {
+		Remote r = remotes.get(label);
+		if (r == null)
+			return 0;
+		synchronized (r) {
+			return r.idle.size();
+		}
+	}
+
+	/**
+	 * Close the idle sessions and fail any acquire() still waiting. Sessions on loan are closed when they are released.
+	 */
+	public void close() {
+		closed = true;
+		maintenance.shutdownNow();
+		for (Remote r : remotes.values()) {
+			ArrayList <RemoteSession> sessions = new ArrayList<RemoteSession>();
+			ArrayList <CompletableFuture<RemoteSession>> waiting;
+			synchronized (r) {
+				for (Idle i : r.idle)
+					sessions.add(i.session);
+				r.open -= r.idle.size();
+				r.idle.clear();
+				waiting = new ArrayList<CompletableFuture<RemoteSession>>(r.waiters);
+				r.waiters.clear();
+			}
+			for (RemoteSession s : sessions)
+				s.close();
+			for (CompletableFuture<RemoteSession> f : waiting)
+				f.completeExceptionally(new IOException("pool is closed"));
+		}
+	}
+
+
+	/**
+	 * Match waiting borrowers with idle sessions, or with new sessions while there is room for them
+	 */
+	private void dispatch(Remote r) {
+		while (! closed) {
+			CompletableFuture<RemoteSession> waiter;
+			RemoteSession session = null;
+			synchronized (r) {
+				// given up on (timed out or cancelled) while they waited
+				while ((! r.waiters.isEmpty()) && r.waiters.peek().isDone())
+					r.waiters.poll();
+				if (r.waiters.isEmpty())
+					return;
+				Idle i;
+				while (((i = r.idle.pollFirst()) != null) && (! i.session.isOpen()))
+					r.open--;
+				if (i != null)
+					session = i.session;
+				else if (r.open < config.getPoolMaxSize(r.label))
+					r.open++;
+				else
+					return;
+				waiter = r.waiters.poll();
+			}
+			if (session == null)
+				open(r, waiter);
+			else if (! waiter.complete(session))
+				release(session);
+		}
+	}
+
+	/**
+	 * Open a new session for 'waiter'. Its place in r.open is already taken.
+	 */
+	private void open(final Remote r, final CompletableFuture<RemoteSession> waiter) {
+		client.connect(r.label).whenComplete(new BiConsumer<RemoteSession,Throwable>() {
+			public void accept(RemoteSession session, Throwable t) {
+				if (t != null) {
+					synchronized (r) {
+						r.open--;
+					}
+					waiter.completeExceptionally(t);
+					dispatch(r);
+				}
+				else if (! waiter.complete(session)) {
+					release(session);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Close sessions idle too long, and check those idle long enough to need it. Runs on the maintenance thread.
+	 */
+	private void maintain(final Remote r) {
+		long now = System.currentTimeMillis();
+		long maxIdleMsec = config.getPoolMaxIdleMsec(r.label);
+		long healthCheckMsec = config.getPoolHealthCheckMsec(r.label);
+		ArrayList <RemoteSession> expired = new ArrayList<RemoteSession>();
+		ArrayList <Idle> toCheck = new ArrayList<Idle>();
+		synchronized (r) {
+			Iterator <Idle> it = r.idle.iterator();
+			while (it.hasNext()) {
+				Idle i = it.next();
+				if ((! i.session.isOpen()) || ((maxIdleMsec > 0L) && (now - i.since >= maxIdleMsec))) {
+					it.remove();
+					r.open--;
+					expired.add(i.session);
+				}
+				else if ((healthCheckMsec > 0L) && (now - i.checked >= healthCheckMsec)) {
+					// out of the pool while it is checked, so that nobody borrows it meanwhile
+					it.remove();
+					toCheck.add(i);
+				}
+			}
+		}
+		for (RemoteSession s : expired)
+			s.close();
+		for (final Idle i : toCheck) {
+			i.session.ping().whenComplete(new BiConsumer<Response,Throwable>() {
+				public void accept(Response response, Throwable t) {
+					boolean ok = (t == null) && response.isOk() && (! closed);
+					synchronized (r) {
+						if (ok) {
+							i.checked = System.currentTimeMillis();
+							r.idle.addLast(i);
+						}
+						else {
+							r.open--;
+						}
+					}
+					if (! ok)
+						i.session.close();
+					dispatch(r);
+				}
+			});
+		}
+	}
+
+
+
+	/**
+	 * The pool for one remote label
+	 */
+	private static class Remote {
+		final String label;
+		// guarded by the Remote
+		final ArrayDeque <Idle> idle = new ArrayDeque<Idle>();
+		final ArrayDeque <CompletableFuture<RemoteSession>> waiters = new ArrayDeque<CompletableFuture<RemoteSession>>();
+		int open = 0;	// sessions open or opening, on loan or idle
+
+		Remote(String label) {
+			this.label = label;
+		}
+	}
+
+	private static class Idle {
+		final RemoteSession session;
+		final long since;
+		long checked;
+
+		Idle(RemoteSession session, long since) {
+			this.session = session;
+			this.since = since;
+			this.checked = since;
+		}
+	}
+
+}
@@ -0,0 +1,68 @@
+package com.challengeandresponse.remotecontrol;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * What a method called through RemoteSession.call() sent back: its output lines, and whether it succeeded.
+ * A method that failed may still have written some output before it did.
+ *
+ * @author jim
+ *
+ */
+public class Response {
+
+	private final String method;
+	private final List <String> lines;
+	private final String error;
+
+	Response(String method, List <String> lines, String error) {
+		this.method = method;
+		this.lines = Collections.unmodifiableList(lines);
+		this.error = error;
+	}
+
+
+	/**
+	 * @return the method that was called
+	 */
+	public String getMethod() {
+		return method;
+	}
+
+	/**
+	 * @return the lines of output, without line ends
+	 */
+	public List <String> getLines() {
+		return lines;
+	}
+
+	/**
+	 * @return the output as one string, a newline after each line
+	 */
+	public String getOutput() {
+		StringBuilder sb = new StringBuilder();
+		for (String s : lines)
+			sb.append(s).append('\n');
+		return sb.toString();
+	}
+
+	/**
+	 * @return true if the method ran and returned normally
+	 */
+	public boolean isOk() {
+		return (error == null);
+	}
+
+	/**
+	 * @return why the call failed (the method threw, or the server refused it), or null if it succeeded
+	 */
+	public String getError() {
+		return error;
+	}
+
+	public String toString() {
+		return method+": "+(isOk() ? RemoteControlLib.CRLF_OK_RESPONSE : RemoteControlLib.CRLF_ERROR_RESPONSE+" "+error)+", "+lines.size()+" lines";
+	}
+
+}
@@ -0,0 +1,124 @@
+package com.challengeandresponse.remotecontrol;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Output of cacheable methods (see MethodOptions.setCacheTtlMsec()), kept as encoded (UTF-8) bytes keyed by method
+ * name and arguments, so a hit is written straight to the session without calling the host object.
+ *
+ * <p>The cache is bounded by bytes, not entries, and evicts the least recently used entry when full.
+ * An entry is never served after its TTL; expired entries are dropped when next looked up, or evicted in LRU order.
+ * Hits, misses, evictions and expiries are counted in RemoteControlMetrics.</p>
+ *
+ * @author jim
+ *
+ */
+public class ResultCache {
+
+	// rough per-entry cost of the map entry, the Entry and the key's object headers
+	private static final int ENTRY_OVERHEAD_BYTES = 96;
+
+	private final long maxBytes;
+	private final RemoteControlMetrics metrics;
+	private final LinkedHashMap <String,Entry> entries;	// in access order, eldest first; guarded by 'this'
+	private long bytes = 0L;
+
+	/**
+	 * @param maxBytes the most the cached output (plus bookkeeping) may take. 0 for no cache.
+	 */
+	ResultCache(long maxBytes, RemoteControlMetrics metrics) {
+		this.maxBytes = maxBytes;
+		this.metrics = metrics;
+		entries = new LinkedHashMap<String,Entry>(64, 0.75f, true);
+	}
+
+
+	/**
+	 * @return the cached output for 'key', or null on a miss
+	 */
+	public byte[] get(String key) {
+		Entry e;
+		synchronized (this) {
+			e = entries.get(key);
+			if ((e != null) && (e.expiresAt - System.nanoTime() <= 0L)) {
+				entries.remove(key);
+				bytes -= e.size;
+				e = null;
+				metrics.increment(RemoteControlMetrics.RESULT_CACHE_EXPIRED);
+			}
+		}
+		metrics.increment((e != null) ? RemoteControlMetrics.RESULT_CACHE_HITS : RemoteControlMetrics.RESULT_CACHE_MISSES);
+		return (e != null) ? e.value : null;
+	}
+
+	/**
+	 * Cache 'value' under 'key' for 'ttlMsec', evicting least recently used entries to make room.
+	 * A value too big for the whole cache is not stored.
+	 */
+	public void put(String key, byte[] value, long ttlMsec) {
+		long size = value.length + (2L * key.length()) + ENTRY_OVERHEAD_BYTES;
+		if ((ttlMsec <= 0L) || (size > maxBytes))
+			return;
+		int evicted = 0;
+		synchronized (this) {
+			Entry old = entries.remove(key);
+			if (old != null)
+				bytes -= old.size;
+			entries.put(key, new Entry(value, size, System.nanoTime() + (ttlMsec * 1000000L)));
+			bytes += size;
+			Iterator <Entry> it = entries.values().iterator();
+			while ((bytes > maxBytes) && it.hasNext()) {
+				Entry e = it.next();
+				it.remove();
+				bytes -= e.size;
+				evicted++;
+			}
+		}
+		if (evicted > 0)
+			metrics.add(RemoteControlMetrics.RESULT_CACHE_EVICTIONS, evicted);
+	}
+
+	/**
+	 * Drop every entry whose key starts with 'keyPrefix', e.g. all the cached calls of one method
+	 */
+	public synchronized void invalidate(String keyPrefix) {
+		Iterator <Map.Entry<String,Entry>> it = entries.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry <String,Entry> me = it.next();
+			if (me.getKey().startsWith(keyPrefix)) {
+				bytes -= me.getValue().size;
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * @return the current size and bound, keyed "resultcache.&lt;name&gt;"
+	 */
+	public synchronized SortedMap <String,Long> snapshot() {
+		TreeMap <String,Long> tm = new TreeMap<String,Long>();
+		tm.put("resultcache.entries", (long) entries.size());
+		tm.put("resultcache.bytes", bytes);
+		tm.put("resultcache.maxbytes", maxBytes);
+		return tm;
+	}
+
+
+
+	private static class Entry {
+		final byte[] value;
+		final long size;
+		final long expiresAt;	// System.nanoTime()
+
+		Entry(byte[] value, long size, long expiresAt) {
+			this.value = value;
+			this.size = size;
+			this.expiresAt = expiresAt;
+		}
+	}
+
+}
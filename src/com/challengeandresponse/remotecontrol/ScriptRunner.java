@@ -0,0 +1,227 @@
+package com.challengeandresponse.remotecontrol;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.StringTokenizer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.BiConsumer;
+
+/**
+ * Runs a script of commands over one session, for RemoteControlClient's script mode.
+ *
+ * <p>Each line of the script is a method and its arguments. Blank lines and lines starting with '#' are skipped.
+ * Commands are sent as they are read, without waiting for the ones before them to answer; the host runs them in order, so a
+ * runbook costs about one round trip plus the time the methods take. A line starting with '!' is a barrier: everything
+ * before it must have finished before it is sent, and it must finish before anything after it is sent. A '!' on its own
+ * just waits.</p>
+ *
+ * <p>Each command's output is printed as it finishes, in script order, with its result and timings: 'total' from sending it
+ * to its end, and 'ran' from when the host could start it (the end of the command before, or its sending, whichever was
+ * later) to its end. With stopOnError the first failure cancels everything still queued at the host and nothing further
+ * is sent.</p>
+ *
+ * @author jim
+ *
+ */
+public class ScriptRunner {
+
+	public static final String COMMENT = "#";
+	public static final String BARRIER = "!";
+
+	private final RemoteSession session;
+	private final boolean stopOnError;
+	private final PrintWriter out;
+
+	private volatile boolean stopped = false;
+	private final LinkedBlockingQueue <Entry> toPrint = new LinkedBlockingQueue<Entry>();
+	private static final Entry END_OF_SCRIPT = new Entry(0, null, null, 0L);
+
+	// written by the printer thread, read after it has finished
+	private int ok = 0;
+	private int failed = 0;
+	private int notRun = 0;
+
+
+	public ScriptRunner(RemoteSession session, boolean stopOnError, PrintWriter out) {
+		this.session = session;
+		this.stopOnError = stopOnError;
+		this.out = out;
+	}
+
+
+	/**
+	 * Read and run the script in 'script' until it ends
+	 * @return the number of commands that failed or were not run
+	 */
+	public int run(BufferedReader script)
+	throws IOException, InterruptedException {
+		long started = System.nanoTime();
+		Thread printer = new Thread(new Runnable() {
+			public void run() {
+				print();
+			}
+		}, "RemoteControlClient.script");
+		printer.setDaemon(true);
+		printer.start();
+
+		int lineNumber = 0;
+		Entry last = null;
+		String line;
+		try {
+			while ((line = script.readLine()) != null) {
+				lineNumber++;
+				line = line.trim();
+				if (line.isEmpty() || line.startsWith(COMMENT))
+					continue;
+				boolean barrier = line.startsWith(BARRIER);
+				if (barrier) {
+					line = line.substring(BARRIER.length()).trim();
+					waitFor(last);
+				}
+				if (line.isEmpty())
+					continue;
+				if (stopped) {
+					toPrint.add(new Entry(lineNumber, line, null, 0L));
+					continue;
+				}
+				last = send(lineNumber, line);
+				if (barrier)
+					waitFor(last);
+			}
+		}
+		finally {
+			toPrint.add(END_OF_SCRIPT);
+			printer.join();
+		}
+
+		out.println("script: "+(ok + failed + notRun)+" commands, "+ok+" ok, "+failed+" failed, "+notRun+" not run, "+
+				((System.nanoTime() - started) / 1000000L)+" msec");
+		out.flush();
+		return failed + notRun;
+	}
+
+	private Entry send(int lineNumber, String line) {
+		StringTokenizer st = new StringTokenizer(line);
+		String method = st.nextToken();
+		ArrayList <String> args = new ArrayList<String>();
+		while (st.hasMoreTokens())
+			args.add(st.nextToken());
+		final Entry e = new Entry(lineNumber, line, null, System.nanoTime());
+		e.response = session.call(method, args.toArray()).whenComplete(new BiConsumer<Response,Throwable>() {
+			public void accept(Response r, Throwable t) {
+				e.ended = System.nanoTime();
+			}
+		});
+		toPrint.add(e);
+		return e;
+	}
+
+	/**
+	 * Wait until 'e', and so everything sent before it, has finished
+	 */
+	private void waitFor(Entry e)
+	throws InterruptedException {
+		if ((e == null) || (e.response == null))
+			return;
+		try {
+			e.response.get();
+		}
+		catch (ExecutionException ex) {
+			// reported by the printer
+		}
+	}
+
+
+	/**
+	 * The printer thread: wait for each command in turn and print how it went
+	 */
+	private void print() {
+		long previousEnd = 0L;
+		while (true) {
+			Entry e;
+			try {
+				e = toPrint.take();
+			}
+			catch (InterruptedException ex) {
+				return;
+			}
+			if (e == END_OF_SCRIPT)
+				return;
+			if (e.response == null) {
+				notRun++;
+				println("> "+e.line+"    (line "+e.lineNumber+")");
+				println("< not run");
+				continue;
+			}
+			Response r = null;
+			String error;
+			try {
+				r = e.response.get();
+				error = r.getError();
+			}
+			catch (ExecutionException ex) {
+				error = String.valueOf(ex.getCause().getMessage());
+			}
+			catch (InterruptedException ex) {
+				return;
+			}
+			long end = e.ended;
+			long ranFrom = Math.max(e.sent, previousEnd);
+			previousEnd = end;
+
+			List <String> lines = (r != null) ? r.getLines() : new ArrayList<String>();
+			StringBuilder sb = new StringBuilder();
+			sb.append("> ").append(e.line).append("    (line ").append(e.lineNumber).append(")\n");
+			for (String s : lines)
+				sb.append(s).append('\n');
+			sb.append("< ").append((error == null) ? RemoteControlLib.CRLF_OK_RESPONSE : RemoteControlLib.CRLF_ERROR_RESPONSE+" "+error);
+			sb.append(String.format("    total %.1f msec, ran %.1f msec", (end - e.sent) / 1e6, (end - ranFrom) / 1e6));
+			println(sb.toString());
+
+			if (error == null) {
+				ok++;
+			}
+			else if (stopped) {
+				// cancelled along with the rest after an earlier failure
+				notRun++;
+			}
+			else {
+				failed++;
+				if (stopOnError) {
+					stopped = true;
+					session.cancelAll();
+				}
+			}
+		}
+	}
+
+	private void println(String s) {
+		synchronized (out) {
+			out.println(s);
+			out.flush();
+		}
+	}
+
+
+
+	private static class Entry {
+		final int lineNumber;
+		final String line;
+		final long sent;
+		CompletableFuture<Response> response;	// null if the command was not sent
+		volatile long ended;
+
+		Entry(int lineNumber, String line, CompletableFuture<Response> response, long sent) {
+			this.lineNumber = lineNumber;
+			this.line = line;
+			this.response = response;
+			this.sent = sent;
+		}
+	}
+
+}
@@ -0,0 +1,557 @@
+package com.challengeandresponse.remotecontrol;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded queue of outbound bytes for one session. Everything a session sends, including the output of
+ * methods, is written into this queue and a separate writer thread drains it to the socket, so a method
+ * that writes faster than the client reads never blocks on the socket. What happens when the queue is
+ * full is decided by the Policy.
+ *
+ * <p>There are two lanes. Control output (responses to commands such as disconnect, cancel and stats)
+ * is always written ahead of bulk output (method output), and is never held up or dropped because the
+ * bulk lane is full. The control lane has its own small cap and never blocks.</p>
+ *
+ * <p>The lines that end a response on the bulk lane (a tagged exec's END, a batch call's RESULT) go through the end
+ * stream. They queue behind the output they end, like any bulk write, but are never blocked or dropped, whatever the
+ * policy: a client waiting on one would otherwise wait forever. They are short, one per response.</p>
+ *
+ * <p>Sessions with no writer thread of their own (WebSocket sessions, which are driven by a selector)
+ * set a ready listener instead, and poll() the queue when it fires.</p>
+ *
+ * @author jim
+ *
+ */
+public class SessionOutputQueue {
+
+	/**
+	 * What to do with a write that does not fit in the queue
+	 * <br />BLOCK - wait up to the block deadline for room, then drop the write
+	 * <br />DROP_OLDEST - discard queued writes, oldest first, until the new one fits
+	 * <br />DROP_NEWEST - discard the new write
+	 * <br />DISCONNECT - discard the new write and close the session
+	 */
+	public enum Policy { BLOCK, DROP_OLDEST, DROP_NEWEST, DISCONNECT }
+
+	private final int capacityBytes;
+	private final Policy policy;
+	private final long blockMsec;
+	private final Runnable overflowHandler;
+
+	private final ReentrantLock lock;
+	private final Condition notEmpty;
+	private final Condition notFull;
+	private final Condition drained;
+	private final ArrayDeque <byte[]> chunks; // bulk lane
+	private final Set <byte[]> ends; // chunks in the bulk lane that end a response, by identity
+	private int queuedBytes = 0;
+	private final ArrayDeque <byte[]> controlChunks;
+	private int controlBytes = 0;
+	private boolean closed = false;
+
+	// counters, guarded by lock
+	private long enqueuedBytes = 0L;
+	private long droppedChunks = 0L;
+	private long droppedBytes = 0L;
+	private int highWaterBytes = 0;
+
+	private final OutputStream outputStream;
+	private final OutputStream controlOutputStream;
+	private final OutputStream endOutputStream;
+	private volatile Runnable readyListener = null;
+
+	private static final int CONTROL_CAPACITY_BYTES = 65536;
+
+	/**
+	 * @param capacityBytes max bytes held in the queue. A single write larger than this is still accepted into an empty queue.
+	 * @param policy what to do when the queue is full
+	 * @param blockMsec how long a write may wait for room under the BLOCK policy
+	 * @param overflowHandler called (on the writing thread) when the DISCONNECT policy trips. May be null.
+	 */
+	public SessionOutputQueue(int capacityBytes, Policy policy, long blockMsec, Runnable overflowHandler) {
+		this.capacityBytes = Math.max(1, capacityBytes);
+		this.policy = policy;
+		this.blockMsec = blockMsec;
+		this.overflowHandler = overflowHandler;
+		lock = new ReentrantLock();
+		notEmpty = lock.newCondition();
+		notFull = lock.newCondition();
+		drained = lock.newCondition();
+		chunks = new ArrayDeque<byte[]>();
+		ends = Collections.newSetFromMap(new IdentityHashMap<byte[],Boolean>());
+		controlChunks = new ArrayDeque<byte[]>();
+		outputStream = new QueueOutputStream(false, false);
+		controlOutputStream = new QueueOutputStream(true, false);
+		endOutputStream = new QueueOutputStream(false, true);
+	}
+
+
+	/**
+	 * @return an OutputStream whose writes are copied into the bulk lane of this queue. Writes after close() throw IOException.
+	 */
+	public OutputStream getOutputStream() {
+		return outputStream;
+	}
+
+	/**
+	 * @return an OutputStream whose writes are copied into the control lane of this queue. Writes after close() throw IOException.
+	 */
+	public OutputStream getControlOutputStream() {
+		return controlOutputStream;
+	}
+
+	/**
+	 * @return an OutputStream for the lines that end a response: its writes go into the bulk lane through offerEnd()
+	 */
+	public OutputStream getEndOutputStream() {
+		return endOutputStream;
+	}
+
+
+	/**
+	 * @param listener called, without the queue's lock held, after a chunk is queued and after close(). Must not block.
+	 */
+	public void setReadyListener(Runnable listener) {
+		this.readyListener = listener;
+	}
+
+	private void fireReady() {
+		Runnable listener = readyListener;
+		if (listener != null)
+			listener.run();
+	}
+
+
+	/**
+	 * Add a chunk to the control lane. Never blocks; if the control lane is full the chunk is dropped.
+	 * The queue keeps a reference to 'chunk', so the caller must not modify it afterwards.
+	 * @return true if the chunk was queued, false if it was dropped
+	 * @throws IOException if the queue has been closed
+	 */
+	public boolean offerControl(byte[] chunk)
+	throws IOException {
+		lock.lock();
+		try {
+			if (closed)
+				throw new IOException("Session output is closed");
+			if ((controlBytes > 0) && (controlBytes + chunk.length > CONTROL_CAPACITY_BYTES)) {
+				droppedChunks++;
+				droppedBytes += chunk.length;
+				return false;
+			}
+			controlChunks.addLast(chunk);
+			controlBytes += chunk.length;
+			enqueuedBytes += chunk.length;
+			notEmpty.signal();
+		}
+		finally {
+			lock.unlock();
+		}
+		fireReady();
+		return true;
+	}
+
+
+	/**
+	 * Add a chunk that ends a response to the bulk lane, behind what is already queued, even if the lane is full.
+	 * Never blocks, and the chunk is never dropped, not even by DROP_OLDEST or clearBulk().
+	 * @throws IOException if the queue has been closed
+	 */
+	public void offerEnd(byte[] chunk)
+	throws IOException {
+		lock.lock();
+		try {
+			if (closed)
+				throw new IOException("Session output is closed");
+			chunks.addLast(chunk);
+			ends.add(chunk);
+			queuedBytes += chunk.length;
+			enqueuedBytes += chunk.length;
+			highWaterBytes = Math.max(highWaterBytes, queuedBytes);
+			notEmpty.signal();
+		}
+		finally {
+			lock.unlock();
+		}
+		fireReady();
+	}
+
+
+	/**
+	 * Add a chunk to the bulk lane, applying the overflow policy if it does not fit.
+	 * The queue keeps a reference to 'chunk', so the caller must not modify it afterwards.
+	 * @return true if the chunk was queued, false if it was dropped
+	 * @throws IOException if the queue has been closed
+	 */
+	public boolean offer(byte[] chunk)
+	throws IOException {
+		return offer(chunk, true);
+	}
+
+	/**
+	 * As offer(chunk), but if 'mayBlock' is false the BLOCK policy drops the chunk instead of waiting.
+	 * Broadcasts use this, so that one slow subscriber cannot hold up the publisher.
+	 */
+	public boolean offer(byte[] chunk, boolean mayBlock)
+	throws IOException {
+		boolean disconnect = false;
+		boolean queued = false;
+		lock.lock();
+		try {
+			if (closed)
+				throw new IOException("Session output is closed");
+			if (! fits(chunk.length)) {
+				if ((policy == Policy.BLOCK) && mayBlock) {
+					long nanos = TimeUnit.MILLISECONDS.toNanos(blockMsec);
+					try {
+						while ((! closed) && (! fits(chunk.length)) && (nanos > 0L))
+							nanos = notFull.awaitNanos(nanos);
+					}
+					catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+					if (closed)
+						throw new IOException("Session output is closed");
+				}
+				else if (policy == Policy.DROP_OLDEST) {
+					dropBulk(chunk.length);
+				}
+				else if (policy == Policy.DISCONNECT) {
+					disconnect = true;
+				}
+			}
+			if ((! disconnect) && fits(chunk.length)) {
+				chunks.addLast(chunk);
+				queuedBytes += chunk.length;
+				enqueuedBytes += chunk.length;
+				highWaterBytes = Math.max(highWaterBytes, queuedBytes);
+				notEmpty.signal();
+				queued = true;
+			}
+			else {
+				droppedChunks++;
+				droppedBytes += chunk.length;
+			}
+		}
+		finally {
+			lock.unlock();
+		}
+		// call out without holding the lock
+		if (queued)
+			fireReady();
+		if (disconnect && (overflowHandler != null))
+			overflowHandler.run();
+		return queued;
+	}
+
+	/**
+	 * Drop queued bulk chunks, oldest first, until 'len' more bytes fit or only the ends of responses are left.
+	 * The ends stay, in order. 'len' of -1 drops all that may be dropped.
+	 */
+	private void dropBulk(int len) {
+		ArrayDeque <byte[]> kept = new ArrayDeque<byte[]>();
+		while ((! chunks.isEmpty()) && ((len < 0) || (! fits(len)))) {
+			byte[] old = chunks.removeFirst();
+			if (ends.contains(old)) {
+				kept.addLast(old);
+				continue;
+			}
+			queuedBytes -= old.length;
+			droppedChunks++;
+			droppedBytes += old.length;
+		}
+		while (! kept.isEmpty())
+			chunks.addFirst(kept.removeLast());
+	}
+
+	private boolean fits(int len) {
+		return (queuedBytes == 0) || (queuedBytes + len <= capacityBytes);
+	}
+
+
+	/**
+	 * Wait for the next chunk
+	 * @return the next chunk, or null once the queue is closed and empty
+	 */
+	public byte[] take()
+	throws InterruptedException {
+		lock.lock();
+		try {
+			while (chunks.isEmpty() && controlChunks.isEmpty() && (! closed))
+				notEmpty.await();
+			return removeFirst();
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return the next chunk, or null if there is none queued right now
+	 */
+	public byte[] poll() {
+		lock.lock();
+		try {
+			return removeFirst();
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	private byte[] removeFirst() {
+		byte[] chunk = controlChunks.pollFirst();
+		if (chunk != null)
+			controlBytes -= chunk.length;
+		else {
+			chunk = chunks.pollFirst();
+			if (chunk != null) {
+				queuedBytes -= chunk.length;
+				if (! ends.isEmpty())
+					ends.remove(chunk);
+				notFull.signalAll();
+			}
+		}
+		if (chunks.isEmpty() && controlChunks.isEmpty())
+			drained.signalAll();
+		return chunk;
+	}
+
+
+	/**
+	 * Wait until everything queued has been taken, for sessions that drain the queue without a writer thread
+	 * @return true if the queue is empty
+	 */
+	public boolean awaitDrained(long timeoutMsec)
+	throws InterruptedException {
+		lock.lock();
+		try {
+			long nanos = TimeUnit.MILLISECONDS.toNanos(timeoutMsec);
+			while ((! (chunks.isEmpty() && controlChunks.isEmpty())) && (nanos > 0L))
+				nanos = drained.awaitNanos(nanos);
+			return chunks.isEmpty() && controlChunks.isEmpty();
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+
+	/**
+	 * Write queued chunks to 'out' until the queue is closed and empty, flushing whenever the queue runs dry.
+	 * This is the body of a session's writer thread.
+	 */
+	public void drainTo(OutputStream out)
+	throws IOException, InterruptedException {
+		byte[] chunk;
+		while ((chunk = take()) != null) {
+			out.write(chunk);
+			if (isEmpty())
+				out.flush();
+		}
+		out.flush();
+	}
+
+
+	/**
+	 * Stop accepting writes. Chunks already queued can still be taken. Blocked writers are released.
+	 */
+	public void close() {
+		lock.lock();
+		try {
+			closed = true;
+			notEmpty.signalAll();
+			notFull.signalAll();
+		}
+		finally {
+			lock.unlock();
+		}
+		fireReady();
+	}
+
+	public boolean isClosed() {
+		lock.lock();
+		try {
+			return closed;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Discard all bulk output that is queued but not yet written. Control output, and the ends of responses, are kept.
+	 * @return the number of bytes discarded
+	 */
+	public int clearBulk() {
+		lock.lock();
+		try {
+			long before = droppedBytes;
+			dropBulk(-1);
+			int cleared = (int) (droppedBytes - before);
+			notFull.signalAll();
+			if (controlChunks.isEmpty())
+				drained.signalAll();
+			return cleared;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+
+	//// stats
+
+	public boolean isEmpty() {
+		lock.lock();
+		try {
+			return chunks.isEmpty() && controlChunks.isEmpty();
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	public int getDepthBytes() {
+		lock.lock();
+		try {
+			return queuedBytes;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	public int getControlDepthBytes() {
+		lock.lock();
+		try {
+			return controlBytes;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	public int getDepthChunks() {
+		lock.lock();
+		try {
+			return chunks.size();
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	public int getHighWaterBytes() {
+		lock.lock();
+		try {
+			return highWaterBytes;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	public long getEnqueuedBytes() {
+		lock.lock();
+		try {
+			return enqueuedBytes;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	public long getDroppedChunks() {
+		lock.lock();
+		try {
+			return droppedChunks;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	public long getDroppedBytes() {
+		lock.lock();
+		try {
+			return droppedBytes;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	public Policy getPolicy() {
+		return policy;
+	}
+
+
+	/**
+	 * Parse a policy name from a config file: block, dropoldest, dropnewest or disconnect (case and underscores ignored)
+	 * @return the Policy, or null if the name is not recognized
+	 */
+	public static Policy parsePolicy(String name) {
+		if (name == null)
+			return null;
+		String n = name.trim().replace("_","").replace("-","");
+		for (Policy p : Policy.values())
+			if (p.name().replace("_","").equalsIgnoreCase(n))
+				return p;
+		return null;
+	}
+
+
+
+	private class QueueOutputStream
+	extends OutputStream {
+
+		private final boolean control;
+		private final boolean end;
+
+		QueueOutputStream(boolean control, boolean end) {
+			this.control = control;
+			this.end = end;
+		}
+
+		private void enqueue(byte[] chunk)
+		throws IOException {
+			if (control)
+				offerControl(chunk);
+			else if (end)
+				offerEnd(chunk);
+			else
+				offer(chunk);
+		}
+
+		@Override
+		public void write(int b)
+		throws IOException {
+			enqueue(new byte[] { (byte) b });
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len)
+		throws IOException {
+			if (len == 0)
+				return;
+			byte[] chunk = new byte[len];
+			System.arraycopy(b, off, chunk, 0, len);
+			enqueue(chunk);
+		}
+
+		@Override
+		public void close() {
+			SessionOutputQueue.this.close();
+		}
+	}
+
+}
@@ -0,0 +1,278 @@
+package com.challengeandresponse.remotecontrol;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Coalesces concurrent identical invocations of single-flight methods (see MethodOptions.setSingleFlight()).
+ *
+ * <p>The first caller for a key becomes the leader of a Call and runs the method into a buffer. Callers that join
+ * the Call while it is queued or running wait for it as Waiters, without holding a thread, and each is handed the
+ * same output (and failure) when it finishes. The key is dropped as soon as the call finishes, so nothing is served
+ * after that. If a leader gives up its Call (its exec was cancelled, or its session closed), the first Waiter is
+ * made leader in its place: at once if the Call had not started, or when the abandoned run returns if it had,
+ * so that one session cancelling does not hand a failure to everyone else.</p>
+ *
+ * @author jim
+ *
+ */
+class SingleFlight {
+
+	/**
+	 * The method call to share
+	 */
+	interface Invocation {
+		void invoke(PrintStream ps)
+		throws IllegalAccessException, InvocationTargetException, RemoteControlException;
+	}
+
+	/**
+	 * A caller waiting on another's Call
+	 */
+	interface Waiter {
+		/**
+		 * The Call finished; 'failure' is null if it succeeded. Called on the leader's thread, so should be quick.
+		 */
+		void done(String output, Throwable failure);
+
+		/**
+		 * The leader gave up the Call before starting it; the Waiter now leads it and must run() or abandon() it
+		 */
+		void lead(Call call);
+	}
+
+	private final HashMap <String,Call> calls;	// guarded by 'this'
+
+	SingleFlight() {
+		calls = new HashMap<String,Call>();
+	}
+
+
+	/**
+	 * @return a key that is equal for calls to 'methodName' with equal arguments. Each argument goes in behind its
+	 * length, so no argument, whatever characters it holds, can pass for two (or two for one).
+	 */
+	static String key(String methodName, Object[] args) {
+		StringBuilder sb = new StringBuilder(methodName);
+		for (Object arg : args) {
+			String s = String.valueOf(arg);
+			sb.append('\0').append(s.length()).append(':').append(s);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * @return what every key() for 'methodName' with arguments starts with
+	 */
+	static String keyPrefix(String methodName) {
+		return methodName + '\0';
+	}
+
+	/**
+	 * Join the Call for 'key' if there is one, as 'waiter'; otherwise open one with the caller as its leader
+	 * @return the new Call, which the caller must run() or abandon(); or null if 'waiter' joined an existing one
+	 */
+	synchronized Call join(String key, Waiter waiter) {
+		Call call = calls.get(key);
+		if (call != null) {
+			call.waiters.add(waiter);
+			return null;
+		}
+		call = new Call(key);
+		calls.put(key, call);
+		return call;
+	}
+
+	/**
+	 * Run 'call' as its leader, writing the output to 'ps' and handing a copy to every Waiter.
+	 * A failure is thrown to the leader after its output, and passed to every Waiter.
+	 */
+	void run(Call call, PrintStream ps, Invocation invocation)
+	throws IllegalAccessException, InvocationTargetException, RemoteControlException {
+		synchronized (this) {
+			call.started = true;
+		}
+		ByteArrayOutputStream buf = new ByteArrayOutputStream();
+		PrintStream bps = new PrintStream(buf, false, StandardCharsets.UTF_8);
+		Throwable failure = null;
+		try {
+			invocation.invoke(bps);
+		}
+		catch (Throwable t) {
+			failure = t;
+			throw t;
+		}
+		finally {
+			bps.flush();
+			String output = new String(buf.toByteArray(), StandardCharsets.UTF_8);
+			List <Waiter> waiters = null;
+			Waiter heir = null;
+			Call next = null;
+			synchronized (this) {
+				calls.remove(call.key);
+				if (call.abandoned && (! call.waiters.isEmpty())) {
+					heir = call.waiters.remove(0);
+					next = new Call(call.key);
+					next.waiters.addAll(call.waiters);
+					calls.put(call.key, next);
+				}
+				else {
+					waiters = new ArrayList<Waiter>(call.waiters);
+				}
+			}
+			ps.print(output);
+			if (heir != null) {
+				heir.lead(next);
+			}
+			else {
+				for (Waiter w : waiters)
+					w.done(output, failure);
+			}
+		}
+	}
+
+	/**
+	 * The leader of 'call' will not run it after all, or no longer wants the result of the run it started.
+	 * Its first Waiter is made leader (when the run returns, if there is one), or the Call is dropped if it has none.
+	 * Does nothing if 'call' has finished.
+	 */
+	void abandon(Call call) {
+		Waiter heir;
+		Call next;
+		synchronized (this) {
+			if (calls.get(call.key) != call)
+				return;
+			if (call.started) {
+				call.abandoned = true;
+				return;
+			}
+			call.started = true;
+			calls.remove(call.key);
+			if (call.waiters.isEmpty())
+				return;
+			heir = call.waiters.remove(0);
+			next = new Call(call.key);
+			next.waiters.addAll(call.waiters);
+			calls.put(call.key, next);
+		}
+		heir.lead(next);
+	}
+
+	/**
+	 * Run 'invocation', or wait for the identical call already queued or running, blocking the calling thread
+	 * @return true if the output came from another caller's execution
+	 */
+	boolean runOrWait(String key, PrintStream ps, Invocation invocation)
+	throws IllegalAccessException, InvocationTargetException, RemoteControlException {
+		BlockingWaiter waiter = new BlockingWaiter();
+		Call call = join(key, waiter);
+		if (call == null) {
+			waiter.await();
+			if (waiter.leadCall == null) {
+				ps.print(waiter.output);
+				rethrow(waiter.failure);
+				return true;
+			}
+			call = waiter.leadCall;
+		}
+		run(call, ps, invocation);
+		return false;
+	}
+
+	/**
+	 * @return the number of calls queued or running now
+	 */
+	synchronized int size() {
+		return calls.size();
+	}
+
+
+	static void rethrow(Throwable failure)
+	throws IllegalAccessException, InvocationTargetException, RemoteControlException {
+		if (failure == null)
+			return;
+		if (failure instanceof InvocationTargetException)
+			throw (InvocationTargetException) failure;
+		if (failure instanceof IllegalAccessException)
+			throw (IllegalAccessException) failure;
+		if (failure instanceof RemoteControlException)
+			throw (RemoteControlException) failure;
+		if (failure instanceof RuntimeException)
+			throw (RuntimeException) failure;
+		if (failure instanceof Error)
+			throw (Error) failure;
+		throw new RemoteControlException(failure.getMessage());
+	}
+
+
+
+	/**
+	 * One shared execution, from when its leader opens it until it finishes
+	 */
+	static class Call {
+		private final String key;
+		private final ArrayList <Waiter> waiters = new ArrayList<Waiter>();	// guarded by the SingleFlight
+		private boolean started = false;
+		private boolean abandoned = false;
+
+		private Call(String key) {
+			this.key = key;
+		}
+	}
+
+	/**
+	 * A thread blocked in runOrWait()
+	 */
+	private class BlockingWaiter
+	implements Waiter {
+		private final CountDownLatch latch = new CountDownLatch(1);
+		// written before the latch counts down, read after awaiting it
+		private String output = "";
+		private Throwable failure = null;
+		private Call leadCall = null;
+		private boolean gaveUp = false;	// guarded by 'this'
+
+		public void done(String output, Throwable failure) {
+			this.output = output;
+			this.failure = failure;
+			latch.countDown();
+		}
+
+		public void lead(Call call) {
+			synchronized (this) {
+				if (! gaveUp) {
+					leadCall = call;
+					latch.countDown();
+					return;
+				}
+			}
+			abandon(call);
+		}
+
+		void await()
+		throws RemoteControlException {
+			try {
+				latch.await();
+			}
+			catch (InterruptedException e) {
+				Call orphan;
+				synchronized (this) {
+					gaveUp = true;
+					orphan = leadCall;
+				}
+				// a Call handed to us just now must not be left without a leader
+				if (orphan != null)
+					abandon(orphan);
+				Thread.currentThread().interrupt();
+				throw new RemoteControlException("interrupted while waiting for a shared call to finish");
+			}
+		}
+	}
+
+}
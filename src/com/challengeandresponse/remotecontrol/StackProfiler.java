@@ -0,0 +1,342 @@
+package com.challengeandresponse.remotecontrol;
+
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Samples the host JVM's thread stacks, for the profile command, and writes them out as folded stacks: one line per
+ * distinct stack, its frames from the root down separated by ';', then a space and the number of samples that caught
+ * it. That is the input flame graph tools (flamegraph.pl, speedscope, and the like) take.
+ *
+ * <p>The sampling runs on a thread of its own, at a fixed rate; a tick that comes late is skipped rather than made up
+ * for, so a stalled JVM is not sampled in a burst afterwards. Each tick reads every thread's state, which is cheap, and
+ * then takes the stacks of just the threads that are running, cut at MAX_DEPTH frames, and counts them; a host with
+ * hundreds of idle threads pays for its busy ones only. Threads that are parked, waiting or blocked are left out, and so
+ * are threads sitting in a native socket or file channel call, or the JVM's reference handler waiting for work, which
+ * the JVM reports as running while they wait in the kernel. A thread dump can only be taken at a safepoint, so time
+ * spent in a hot loop is charged to the nearest point the compiled code stops at, often the calling method.</p>
+ *
+ * <p>Counting is done in place as the samples come in. Each frame is interned once, as 'class.method', and a stack is
+ * an array of frame numbers, so a stack seen again costs a lookup and an increment. Memory is bounded: after
+ * MAX_STACKS distinct stacks, samples of new ones are counted under '[other]'; after MAX_FRAMES distinct frames, new
+ * frames are written as '[other]'; and a stack deeper than MAX_DEPTH starts with '[truncated]'.</p>
+ *
+ * <p>Only one profile runs at a time in a JVM, so that several clients cannot multiply the cost. At 100 Hz the cost is
+ * a thread dump every 10 msec, which is small for a host with tens or a few hundred threads; the sampling thread's CPU
+ * time is kept so it can be checked.</p>
+ *
+ * @author jim
+ *
+ */
+public class StackProfiler {
+
+	public static final int DEFAULT_HZ = 100;
+	public static final int MAX_HZ = 1000;
+	public static final int MAX_SECONDS = 600;
+	public static final int MAX_DEPTH = 128;
+	public static final int MAX_STACKS = 20000;
+	public static final int MAX_FRAMES = 50000;
+
+	public static final String OTHER = "[other]";
+	public static final String TRUNCATED = "[truncated]";
+
+	private static final String THREAD_NAME = "RemoteControl.profiler";
+	private static final AtomicBoolean busy = new AtomicBoolean(false);
+
+	private final int seconds;
+	private final int hz;
+
+	// written by the sampling thread only; read once it has finished
+	private final HashMap <StackTraceElement,Integer> frameIds = new HashMap<StackTraceElement,Integer>();
+	private final HashMap <String,Integer> nameIds = new HashMap<String,Integer>();
+	private final ArrayList <String> frameNames = new ArrayList<String>();
+	private final HashMap <Stack,Stack> stacks = new HashMap<Stack,Stack>();
+	private long otherSamples = 0L;
+	private long samples = 0L;
+	private long ticks = 0L;
+	private long missedTicks = 0L;
+	private long cpuNanos = 0L;
+
+	private volatile boolean stopped = false;
+
+
+	/**
+	 * @param seconds how long to sample, 1 to MAX_SECONDS
+	 * @param hz samples per second, 1 to MAX_HZ
+	 * @throws IllegalArgumentException if either is out of range
+	 */
+	public StackProfiler(int seconds, int hz)
+	throws IllegalArgumentException {
+		if ((seconds < 1) || (seconds > MAX_SECONDS))
+			throw new IllegalArgumentException("seconds must be from 1 to "+MAX_SECONDS);
+		if ((hz < 1) || (hz > MAX_HZ))
+			throw new IllegalArgumentException("hz must be from 1 to "+MAX_HZ);
+		this.seconds = seconds;
+		this.hz = hz;
+	}
+
+
+	/**
+	 * Sample for the whole time on the sampling thread, waiting for it here, then write the folded stacks to 'out',
+	 * most often seen first
+	 * @throws RemoteControlException if another profile is running
+	 * @throws InterruptedException if this thread is interrupted first. The sampling stops and nothing is written.
+	 */
+	public void run(PrintStream out)
+	throws RemoteControlException, InterruptedException {
+		if (! busy.compareAndSet(false, true))
+			throw new RemoteControlException("a profile is already running");
+		Thread sampler = new Thread(new Runnable() {
+			public void run() {
+				try {
+					sample();
+				}
+				finally {
+					busy.set(false);
+				}
+			}
+		}, THREAD_NAME);
+		sampler.setDaemon(true);
+		try {
+			sampler.start();
+		}
+		catch (RuntimeException e) {
+			busy.set(false);
+			throw e;
+		}
+		try {
+			sampler.join();
+		}
+		catch (InterruptedException e) {
+			stopped = true;
+			sampler.interrupt();
+			throw e;
+		}
+		write(out);
+	}
+
+	private void sample() {
+		ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+		boolean cpuTimed = mx.isCurrentThreadCpuTimeSupported();
+		long cpuStart = cpuTimed ? mx.getCurrentThreadCpuTime() : 0L;
+		long self = Thread.currentThread().getId();
+		long period = 1000000000L / hz;
+		long next = System.nanoTime();
+		long end = next + (seconds * 1000000000L);
+		Stack probe = new Stack(new int[MAX_DEPTH + 1], 0);
+		ThreadGroup root = Thread.currentThread().getThreadGroup();
+		while (root.getParent() != null)
+			root = root.getParent();
+		Thread[] threads = new Thread[64];
+		long[] running = new long[64];
+
+		while (! stopped) {
+			long now = System.nanoTime();
+			if (now - end >= 0)
+				break;
+			if (now - next < 0) {
+				LockSupport.parkNanos(next - now);
+				continue;
+			}
+			long late = (now - next) / period;
+			missedTicks += late;
+			next += (late + 1) * period;
+			ticks++;
+			int n;
+			while ((n = root.enumerate(threads, true)) == threads.length)
+				threads = new Thread[threads.length * 2];
+			if (running.length < n)
+				running = new long[threads.length];
+			int r = 0;
+			for (int i = 0; i < n; i++) {
+				if ((threads[i].getState() == Thread.State.RUNNABLE) && (threads[i].getId() != self))
+					running[r++] = threads[i].getId();
+				threads[i] = null;
+			}
+			if (r == 0)
+				continue;
+			for (ThreadInfo ti : mx.getThreadInfo(Arrays.copyOf(running, r), MAX_DEPTH)) {
+				// one that stopped running since its state was read is left out too
+				if ((ti == null) || (ti.getThreadState() != Thread.State.RUNNABLE))
+					continue;
+				StackTraceElement[] trace = ti.getStackTrace();
+				if ((trace.length == 0) || waiting(trace[0]))
+					continue;
+				count(trace, probe);
+			}
+		}
+		if (cpuTimed)
+			cpuNanos = mx.getCurrentThreadCpuTime() - cpuStart;
+	}
+
+	/**
+	 * @return true if 'top' is a native call that waits in the kernel, for a socket or file or for the garbage collector
+	 */
+	private static boolean waiting(StackTraceElement top) {
+		if (! top.isNativeMethod())
+			return false;
+		String c = top.getClassName();
+		return c.startsWith("sun.nio.ch.") || c.startsWith("java.net.") || c.startsWith("sun.nio.fs.") || c.equals("java.lang.ref.Reference");
+	}
+
+	/**
+	 * Count one sample of 'trace', innermost frame first as the JVM gives it. 'probe' is reused for the lookup, so a stack
+	 * already seen costs no allocation.
+	 */
+	private void count(StackTraceElement[] trace, Stack probe) {
+		int depth = 0;
+		if (trace.length >= MAX_DEPTH)
+			probe.frames[depth++] = nameId(TRUNCATED);
+		for (int i = trace.length - 1; i >= 0; i--)
+			probe.frames[depth++] = frameId(trace[i]);
+		probe.reset(depth);
+		samples++;
+		Stack s = stacks.get(probe);
+		if (s == null) {
+			if (stacks.size() >= MAX_STACKS) {
+				otherSamples++;
+				return;
+			}
+			s = new Stack(Arrays.copyOf(probe.frames, depth), depth);
+			stacks.put(s, s);
+		}
+		s.count++;
+	}
+
+	private int frameId(StackTraceElement e) {
+		Integer id = frameIds.get(e);
+		if (id != null)
+			return id;
+		int i = nameId(e.getClassName()+"."+e.getMethodName());
+		// different lines of one method are the same frame; remember each, up to the limit, to skip building the name
+		if (frameIds.size() < MAX_FRAMES)
+			frameIds.put(e, i);
+		return i;
+	}
+
+	private int nameId(String name) {
+		Integer id = nameIds.get(name);
+		if (id != null)
+			return id;
+		if ((frameNames.size() >= MAX_FRAMES) && (! OTHER.equals(name)))
+			return nameId(OTHER);
+		int i = frameNames.size();
+		frameNames.add(name);
+		nameIds.put(name, i);
+		return i;
+	}
+
+	private void write(PrintStream out) {
+		ArrayList <Stack> sorted = new ArrayList<Stack>(stacks.keySet());
+		Collections.sort(sorted, new Comparator<Stack>() {
+			public int compare(Stack a, Stack b) {
+				return Long.compare(b.count, a.count);
+			}
+		});
+		StringBuilder sb = new StringBuilder();
+		for (Stack s : sorted) {
+			sb.setLength(0);
+			for (int i = 0; i < s.length; i++) {
+				if (i > 0)
+					sb.append(';');
+				sb.append(frameNames.get(s.frames[i]));
+			}
+			sb.append(' ').append(s.count);
+			out.println(sb);
+		}
+		if (otherSamples > 0L)
+			out.println(OTHER+" "+otherSamples);
+		out.flush();
+	}
+
+
+	/**
+	 * @return thread stacks counted
+	 */
+	public long getSamples() {
+		return samples;
+	}
+
+	/**
+	 * @return thread dumps taken
+	 */
+	public long getTicks() {
+		return ticks;
+	}
+
+	/**
+	 * @return ticks skipped because the one before them ran late
+	 */
+	public long getMissedTicks() {
+		return missedTicks;
+	}
+
+	/**
+	 * @return distinct stacks seen, not counting those under '[other]'
+	 */
+	public int getStackCount() {
+		return stacks.size();
+	}
+
+	/**
+	 * @return CPU time of the sampling thread, or 0 if the JVM does not measure it
+	 */
+	public long getCpuNanos() {
+		return cpuNanos;
+	}
+
+	public int getSeconds() {
+		return seconds;
+	}
+
+	public int getHz() {
+		return hz;
+	}
+
+
+
+	/**
+	 * A stack as frame numbers, root first, with the number of samples that caught it
+	 */
+	private static class Stack {
+
+		final int[] frames;
+		int length;
+		int hash;
+		long count = 0L;
+
+		Stack(int[] frames, int length) {
+			this.frames = frames;
+			reset(length);
+		}
+
+		void reset(int length) {
+			this.length = length;
+			int h = 1;
+			for (int i = 0; i < length; i++)
+				h = 31 * h + frames[i];
+			this.hash = h;
+		}
+
+		public int hashCode() {
+			return hash;
+		}
+
+		public boolean equals(Object o) {
+			if (! (o instanceof Stack))
+				return false;
+			Stack s = (Stack) o;
+			return (s.hash == hash) && Arrays.equals(frames, 0, length, s.frames, 0, s.length);
+		}
+	}
+
+}
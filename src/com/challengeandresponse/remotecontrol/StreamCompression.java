@@ -0,0 +1,156 @@
+package com.challengeandresponse.remotecontrol;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The codecs a session can turn on with the compress command, and the stream that compresses its output.
+ *
+ * <p>Both codecs are raw deflate (no zlib header or checksum; the connection is already checked). 'deflate' uses the
+ * default level; 'deflate-fast' uses the fastest level, which is plain LZ77 matching with little searching, for hosts that
+ * are short of CPU rather than bandwidth. One compressor serves the whole session, so its window carries over from one
+ * response to the next and repeated output (the same keys, the same layout) compresses better as the session goes on.
+ * At each flush the compressor does a sync flush, so everything sent so far can be decoded at once.</p>
+ *
+ * @author jim
+ *
+ */
+public class StreamCompression {
+
+	public static final String DEFLATE = "deflate";
+	public static final String DEFLATE_FAST = "deflate-fast";
+	public static final String CODECS = DEFLATE+" | "+DEFLATE_FAST;
+
+	private static final int BUFFER_BYTES = 8192;
+
+
+	/**
+	 * @return true if 'codec' is one of the codec names
+	 */
+	public static boolean isSupported(String codec) {
+		return DEFLATE.equals(codec) || DEFLATE_FAST.equals(codec);
+	}
+
+	/**
+	 * @return a compressor for 'codec'
+	 * @throws IllegalArgumentException if 'codec' is not supported
+	 */
+	public static Deflater newDeflater(String codec)
+	throws IllegalArgumentException {
+		if (DEFLATE.equals(codec))
+			return new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+		if (DEFLATE_FAST.equals(codec))
+			return new Deflater(Deflater.BEST_SPEED, true);
+		throw new IllegalArgumentException("unknown codec: "+codec);
+	}
+
+	/**
+	 * @return a decompressor for output compressed with 'codec'
+	 * @throws IllegalArgumentException if 'codec' is not supported
+	 */
+	public static Inflater newInflater(String codec)
+	throws IllegalArgumentException {
+		if (! isSupported(codec))
+			throw new IllegalArgumentException("unknown codec: "+codec);
+		return new Inflater(true);
+	}
+
+
+
+	/**
+	 * Compresses everything written to it onto 'out', with a sync flush at each flush(). Counts bytes in and out and
+	 * the time spent compressing. Not thread safe: a session's writer is its only user.
+	 */
+	public static class DeflatingOutputStream
+	extends OutputStream {
+
+		private final OutputStream out;
+		private final Deflater deflater;
+		private final byte[] buf = new byte[BUFFER_BYTES];
+		private final byte[] one = new byte[1];
+
+		// written by the user, read by anyone
+		private volatile long bytesIn = 0L;
+		private volatile long bytesOut = 0L;
+		private volatile long deflateNanos = 0L;
+
+		/**
+		 * @param out where the compressed bytes go. Buffer it; the compressor writes in pieces of up to 8k.
+		 */
+		public DeflatingOutputStream(OutputStream out, String codec)
+		throws IllegalArgumentException {
+			this.out = out;
+			this.deflater = newDeflater(codec);
+		}
+
+		public void write(int b)
+		throws IOException {
+			one[0] = (byte) b;
+			write(one, 0, 1);
+		}
+
+		public void write(byte[] b, int off, int len)
+		throws IOException {
+			if (len <= 0)
+				return;
+			deflater.setInput(b, off, len);
+			bytesIn += len;
+			while (! deflater.needsInput())
+				deflate(Deflater.NO_FLUSH);
+		}
+
+		/**
+		 * Compress and send everything written so far, ending on a byte boundary so the reader can decode all of it now
+		 */
+		public void flush()
+		throws IOException {
+			// a full buffer means there may be more to come
+			while (deflate(Deflater.SYNC_FLUSH) == buf.length)
+				;
+			out.flush();
+		}
+
+		/**
+		 * Free the compressor's native memory. Does not close 'out'.
+		 */
+		public void end() {
+			deflater.end();
+		}
+
+		private int deflate(int flush)
+		throws IOException {
+			long start = System.nanoTime();
+			int n = deflater.deflate(buf, 0, buf.length, flush);
+			deflateNanos += System.nanoTime() - start;
+			if (n > 0) {
+				out.write(buf, 0, n);
+				bytesOut += n;
+			}
+			return n;
+		}
+
+		/**
+		 * @return bytes written to this stream, before compression
+		 */
+		public long getBytesIn() {
+			return bytesIn;
+		}
+
+		/**
+		 * @return compressed bytes passed on
+		 */
+		public long getBytesOut() {
+			return bytesOut;
+		}
+
+		/**
+		 * @return time spent in the compressor, in nanoseconds. The compressor does not block, so this is close to its CPU time.
+		 */
+		public long getDeflateNanos() {
+			return deflateNanos;
+		}
+	}
+
+}
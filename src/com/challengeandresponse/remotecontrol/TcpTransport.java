@@ -0,0 +1,186 @@
+package com.challengeandresponse.remotecontrol;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+import javax.net.ssl.SSLContext;
+
+import com.challengeandresponse.eventlogger.EventLoggerI;
+
+/**
+ * The TCP transport: listens on the configured port, admits only hosts on the allowhost list,
+ * and wraps each connection in TLS if TLS is turned on.
+ *
+ * <p>For more than one accepting thread on Linux, RemoteControl opens one TcpTransport per thread, each a shard with a
+ * listening socket of its own bound to the same port with SO_REUSEPORT. The kernel spreads incoming connections over the
+ * shards, each with its own backlog, so the accepting threads never contend for one socket. Only sockets of the same
+ * user can join the port. Elsewhere one TcpTransport is shared by all the accepting threads.</p>
+ *
+ * @author jim
+ *
+ */
+public class TcpTransport
+implements Transport {
+
+	// after accept() fails with the listener still open (e.g. out of file descriptors), wait this long before trying again
+	static final long ACCEPT_RETRY_MSEC = 100;
+
+	private final RemoteControlConfig rcc;
+	private final EventLoggerI eventLogger;
+	private final int shard;	// 0 for the only listener on the port, otherwise 1..n
+	private SSLContext sslContext = null;
+	private volatile ServerSocketChannel listener = null;
+	private volatile boolean closed = false;
+
+	public TcpTransport(RemoteControlConfig rcc, EventLoggerI el) {
+		this(rcc, el, 0);
+	}
+
+	/**
+	 * @param shard 1..n for one of n listeners sharing the port with SO_REUSEPORT; see canShardListener(). 0 for the only listener.
+	 */
+	public TcpTransport(RemoteControlConfig rcc, EventLoggerI el, int shard) {
+		this.rcc = rcc;
+		this.eventLogger = el;
+		this.shard = shard;
+	}
+
+
+	/**
+	 * @return true if several listening sockets can share a port and have the kernel spread connections over them. That is
+	 * SO_REUSEPORT on Linux; other systems either lack the option or do not spread TCP connections with it.
+	 */
+	public static boolean canShardListener() {
+		if (! System.getProperty("os.name", "").toLowerCase().startsWith("linux"))
+			return false;
+		ServerSocketChannel ssc = null;
+		try {
+			ssc = ServerSocketChannel.open();
+			return ssc.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+		}
+		catch (IOException e) {
+			return false;
+		}
+		finally {
+			try {
+				if (ssc != null)
+					ssc.close();
+			}
+			catch (IOException e) {
+			}
+		}
+	}
+
+
+	public void open()
+	throws IOException, RemoteControlException {
+		if (rcc.isTls())
+			sslContext = TlsSupport.getServerContext(rcc);
+		// SO_REUSEADDR so that a restarted instance can bind the port at once, despite connections left in TIME_WAIT
+		ServerSocketChannel ssc = ServerSocketChannel.open();
+		ssc.socket().setReuseAddress(true);
+		if (shard > 0)
+			ssc.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+		ssc.bind(new InetSocketAddress(rcc.getPort()), rcc.getTcpBacklog());
+		listener = ssc;
+		// close() may have been called while we were binding
+		if (closed)
+			ssc.close();
+	}
+
+
+	public Connection accept()
+	throws IOException {
+		while (true) {
+			ServerSocketChannel ssc = listener;
+			if (closed || (ssc == null))
+				return null;
+			SocketChannel ch;
+			try {
+				ch = ssc.accept();
+			}
+			catch (ClosedChannelException e) {
+				// close() closes the listener to break out of accept()
+				return null;
+			}
+			catch (IOException e) {
+				if (closed || (! ssc.isOpen()))
+					return null;
+				// the listener is still good; this one attempt failed
+				eventLogger.addEvent("IOException accepting on "+getName()+": "+e.getMessage());
+				pause();
+				continue;
+			}
+			try {
+				Connection connection = admit(ch);
+				if (connection != null)
+					return connection;
+			}
+			catch (IOException e) {
+				// e.g. a peer that reset before we got to it. Only this connection is lost.
+				eventLogger.addEvent("Dropped a connection on "+getName()+" that failed while being accepted: "+e.getMessage());
+				try {
+					ch.close();
+				}
+				catch (IOException ce) {
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the connection for 'ch', or null if its host is not allowed, in which case 'ch' has been closed
+	 * @throws IOException if setting up 'ch' fails
+	 */
+	private Connection admit(SocketChannel ch)
+	throws IOException {
+		InetAddress peer = ((InetSocketAddress) ch.getRemoteAddress()).getAddress();
+		eventLogger.addEvent("Connection attempt on control port from:"+peer.getHostAddress());
+		if (! rcc.isAllowedHost(peer)) {
+			ch.close();
+			eventLogger.addEvent("Rejected connection from unauthorized host:"+peer.getHostAddress());
+			return null;
+		}
+		eventLogger.addEvent("Accepted connection from authorized host:"+peer.getHostAddress());
+		// the writer thread already sends whatever is queued in one write, so Nagle would only hold back the last line of a response
+		ch.setOption(StandardSocketOptions.TCP_NODELAY, true);
+		// the handshake happens in Connection.open(), on the session's own thread, so a slow client cannot hold up accept()
+		TlsChannel tls = (sslContext != null) ? new TlsChannel(ch, TlsSupport.newServerEngine(sslContext)) : null;
+		return new ChannelConnection(ch, tls, peer.getHostAddress());
+	}
+
+	/**
+	 * Wait before accepting again, so that a failure that repeats (e.g. no file descriptors left) does not spin
+	 */
+	static void pause() {
+		try {
+			Thread.sleep(ACCEPT_RETRY_MSEC);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+
+	public void close() {
+		closed = true;
+		ServerSocketChannel ssc = listener;
+		if (ssc != null) {
+			try {
+				ssc.close();
+			}
+			catch (IOException e) {
+			}
+		}
+	}
+
+	public String getName() {
+		return "tcp:"+rcc.getPort() + ((rcc.isTls()) ? "/tls" : "") + ((shard > 0) ? "#"+shard : "");
+	}
+
+}
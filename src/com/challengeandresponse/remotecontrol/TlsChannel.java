@@ -0,0 +1,450 @@
+package com.challengeandresponse.remotecontrol;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSession;
+
+/**
+ * TLS over a SocketChannel, built on SSLEngine. Works with the channel in either blocking or
+ * non-blocking mode: in non-blocking mode read() and write() return 0 instead of waiting, and
+ * handshake() returns false until the handshake has made it all the way through.
+ *
+ * <p>One thread may read while another writes (as CRLFServer's reader and writer threads do).
+ * Reads and writes have separate locks; the handshake takes both. close() does not wait for either: it sends close_notify
+ * only if no write or handshake is under way, and otherwise just closes the socket, which is what unblocks them.</p>
+ *
+ * @author jim
+ *
+ */
+public class TlsChannel
+implements ByteChannel {
+
+	private final SocketChannel channel;
+	private final SSLEngine engine;
+
+	private final Object readLock = new Object();
+	private final ReentrantLock writeLock = new ReentrantLock();
+
+	private ByteBuffer netIn;	// encrypted, from the network. Kept ready for filling.
+	private ByteBuffer appIn;	// decrypted, not yet handed to the caller. Kept ready for draining.
+	private ByteBuffer netOut;	// encrypted, not yet written to the network. Kept ready for draining.
+
+	private volatile boolean handshakeDone = false;
+	private boolean inboundDone = false;
+
+	private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+	/**
+	 * @param channel a connected channel
+	 * @param engine an engine already set to client or server mode
+	 */
+	public TlsChannel(SocketChannel channel, SSLEngine engine)
+	throws SSLException {
+		this.channel = channel;
+		this.engine = engine;
+		SSLSession session = engine.getSession();
+		netIn = ByteBuffer.allocate(session.getPacketBufferSize());
+		appIn = ByteBuffer.allocate(session.getApplicationBufferSize());
+		appIn.flip();
+		netOut = ByteBuffer.allocate(session.getPacketBufferSize());
+		netOut.flip();
+		engine.beginHandshake();
+	}
+
+
+	public SocketChannel getSocketChannel() {
+		return channel;
+	}
+
+	public SSLEngine getEngine() {
+		return engine;
+	}
+
+	public boolean isHandshakeDone() {
+		return handshakeDone;
+	}
+
+
+	/**
+	 * Drive the handshake as far as the channel allows.
+	 * @return true once the handshake is complete. On a blocking channel this only returns when it is.
+	 * @throws IOException if the handshake fails or the peer goes away
+	 */
+	public boolean handshake()
+	throws IOException {
+		if (handshakeDone)
+			return true;
+		synchronized (readLock) {
+			writeLock.lock();
+			try {
+				while (! handshakeDone) {
+					switch (engine.getHandshakeStatus()) {
+					case NEED_TASK:
+						runTasks();
+						break;
+					case NEED_WRAP:
+						// messages of one flight are collected in netOut and sent together
+						wrap(EMPTY);
+						break;
+					case NEED_UNWRAP:
+					case NEED_UNWRAP_AGAIN:
+						SSLEngineResult r = unwrap();
+						if (r.getStatus() == SSLEngineResult.Status.CLOSED)
+							throw new EOFException("TLS peer closed during handshake");
+						if (r.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW) {
+							// our flight has to be out before waiting on the peer's
+							if (! flushNet())
+								return false;
+							int n = channel.read(netIn);
+							if (n < 0)
+								throw new EOFException("TLS peer closed during handshake");
+							if (n == 0)
+								return false;
+						}
+						break;
+					default:
+						// FINISHED or NOT_HANDSHAKING
+						handshakeDone = true;
+						break;
+					}
+				}
+				return flushNet();
+			}
+			finally {
+				writeLock.unlock();
+			}
+		}
+	}
+
+
+	/**
+	 * Read decrypted bytes into 'dst'
+	 * @return bytes read, 0 if none are available yet (non-blocking only), or -1 at end of stream
+	 */
+	public int read(ByteBuffer dst)
+	throws IOException {
+		if ((! handshakeDone) && (! handshake()))
+			return 0;
+		synchronized (readLock) {
+			while (true) {
+				if (appIn.hasRemaining())
+					return transfer(appIn, dst);
+				if (inboundDone)
+					return -1;
+				SSLEngineResult r = unwrap();
+				if (r.getStatus() == SSLEngineResult.Status.CLOSED) {
+					inboundDone = true;
+					continue;
+				}
+				servicePostHandshake();
+				if (appIn.hasRemaining())
+					continue;
+				if ((r.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW) || (r.bytesConsumed() == 0)) {
+					int n = channel.read(netIn);
+					if (n < 0) {
+						inboundDone = true;
+						try {
+							engine.closeInbound();
+						}
+						catch (SSLException e) {
+							// peer closed without close_notify. Treat as end of stream.
+						}
+						continue;
+					}
+					if (n == 0)
+						return 0;
+				}
+			}
+		}
+	}
+
+
+	/**
+	 * Encrypt and send 'src'
+	 * @return bytes of 'src' consumed. On a non-blocking channel, some of them may still be buffered; call flush() when writable.
+	 */
+	public int write(ByteBuffer src)
+	throws IOException {
+		if ((! handshakeDone) && (! handshake()))
+			return 0;
+		writeLock.lock();
+		try {
+			if (! flushNet())
+				return 0;
+			int consumed = 0;
+			while (src.hasRemaining()) {
+				SSLEngineResult r = wrap(src);
+				if (r.getStatus() == SSLEngineResult.Status.CLOSED)
+					throw new ClosedChannelException();
+				consumed += r.bytesConsumed();
+				if (engine.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_TASK)
+					runTasks();
+				if (! flushNet())
+					break;
+			}
+			return consumed;
+		}
+		finally {
+			writeLock.unlock();
+		}
+	}
+
+
+	/**
+	 * Write out any encrypted bytes still buffered
+	 * @return true if nothing is left buffered
+	 */
+	public boolean flush()
+	throws IOException {
+		writeLock.lock();
+		try {
+			return flushNet();
+		}
+		finally {
+			writeLock.unlock();
+		}
+	}
+
+	/**
+	 * @return true if input has been read from the network and not yet handed to the caller. The selector will not
+	 * report it, so a caller that stops reading early must come back for it.
+	 */
+	public boolean hasBufferedInput() {
+		synchronized (readLock) {
+			return appIn.hasRemaining() || (netIn.position() > 0);
+		}
+	}
+
+	/**
+	 * @return true if there are encrypted bytes waiting to be written
+	 */
+	public boolean hasPendingOutput() {
+		writeLock.lock();
+		try {
+			return netOut.hasRemaining();
+		}
+		finally {
+			writeLock.unlock();
+		}
+	}
+
+
+	public boolean isOpen() {
+		return channel.isOpen();
+	}
+
+	/**
+	 * Send close_notify if possible, then close the channel. Never waits for the write lock: a thread that holds it may
+	 * be blocked on the peer (a handshake waiting for a client that sends nothing, a write to a client that reads nothing),
+	 * and closing the channel is what gets it out. close_notify is skipped then.
+	 */
+	public void close()
+	throws IOException {
+		if (! writeLock.tryLock()) {
+			channel.close();
+			return;
+		}
+		try {
+			engine.closeOutbound();
+			if (channel.isOpen() && channel.isBlocking()) {
+				while (! engine.isOutboundDone()) {
+					SSLEngineResult r = wrap(EMPTY);
+					if (r.bytesProduced() == 0)
+						break;
+				}
+				flushNet();
+			}
+		}
+		catch (IOException e) {
+			// closing anyway
+		}
+		finally {
+			writeLock.unlock();
+			channel.close();
+		}
+	}
+
+
+	/**
+	 * @return a blocking stream of decrypted input. available() reports bytes already decrypted.
+	 */
+	public InputStream getInputStream() {
+		return new InputStream() {
+			public int read()
+			throws IOException {
+				byte[] b = new byte[1];
+				int n;
+				while ((n = read(b, 0, 1)) == 0)
+					;
+				return (n < 0) ? -1 : (b[0] & 0xff);
+			}
+
+			public int read(byte[] b, int off, int len)
+			throws IOException {
+				if (len == 0)
+					return 0;
+				return TlsChannel.this.read(ByteBuffer.wrap(b, off, len));
+			}
+
+			public int available() {
+				synchronized (readLock) {
+					return appIn.remaining();
+				}
+			}
+
+			public void close()
+			throws IOException {
+				TlsChannel.this.close();
+			}
+		};
+	}
+
+	/**
+	 * @return a blocking stream that encrypts onto the channel
+	 */
+	public OutputStream getOutputStream() {
+		return new OutputStream() {
+			public void write(int b)
+			throws IOException {
+				write(new byte[] { (byte) b }, 0, 1);
+			}
+
+			public void write(byte[] b, int off, int len)
+			throws IOException {
+				ByteBuffer bb = ByteBuffer.wrap(b, off, len);
+				while (bb.hasRemaining())
+					TlsChannel.this.write(bb);
+			}
+
+			public void close()
+			throws IOException {
+				TlsChannel.this.close();
+			}
+		};
+	}
+
+
+
+	//// engine plumbing. Callers hold the appropriate lock.
+
+	private SSLEngineResult unwrap()
+	throws IOException {
+		while (true) {
+			netIn.flip();
+			appIn.compact();
+			SSLEngineResult r;
+			try {
+				r = engine.unwrap(netIn, appIn);
+			}
+			finally {
+				appIn.flip();
+				netIn.compact();
+			}
+			if (r.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+				appIn = enlarge(appIn, engine.getSession().getApplicationBufferSize(), true);
+				continue;
+			}
+			if ((r.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW) && (! netIn.hasRemaining()))
+				netIn = enlarge(netIn, engine.getSession().getPacketBufferSize(), false);
+			return r;
+		}
+	}
+
+	private SSLEngineResult wrap(ByteBuffer src)
+	throws IOException {
+		while (true) {
+			netOut.compact();
+			SSLEngineResult r;
+			try {
+				r = engine.wrap(src, netOut);
+			}
+			finally {
+				netOut.flip();
+			}
+			if (r.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+				netOut = enlarge(netOut, engine.getSession().getPacketBufferSize(), true);
+				continue;
+			}
+			return r;
+		}
+	}
+
+	/**
+	 * @return false if the channel would not take all of it (non-blocking only)
+	 */
+	private boolean flushNet()
+	throws IOException {
+		while (netOut.hasRemaining())
+			if (channel.write(netOut) == 0)
+				return false;
+		return true;
+	}
+
+	private void runTasks() {
+		Runnable task;
+		while ((task = engine.getDelegatedTask()) != null)
+			task.run();
+	}
+
+	/**
+	 * After the initial handshake the engine can still ask for work, e.g. TLS 1.3 session tickets and key updates
+	 */
+	private void servicePostHandshake()
+	throws IOException {
+		SSLEngineResult.HandshakeStatus hs = engine.getHandshakeStatus();
+		if (hs == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+			runTasks();
+			hs = engine.getHandshakeStatus();
+		}
+		if (hs == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+			writeLock.lock();
+			try {
+				while (engine.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_WRAP)
+					if (wrap(EMPTY).bytesProduced() == 0)
+						break;
+				flushNet();
+			}
+			finally {
+				writeLock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Make room in 'buf', preserving its contents
+	 * @param readMode true if 'buf' is kept ready for draining, false if ready for filling
+	 */
+	private static ByteBuffer enlarge(ByteBuffer buf, int minFree, boolean readMode) {
+		ByteBuffer bigger = ByteBuffer.allocate(buf.capacity() + minFree);
+		if (readMode) {
+			bigger.put(buf);
+			bigger.flip();
+		}
+		else {
+			buf.flip();
+			bigger.put(buf);
+		}
+		return bigger;
+	}
+
+	private static int transfer(ByteBuffer from, ByteBuffer to) {
+		int n = Math.min(from.remaining(), to.remaining());
+		ByteBuffer slice = from.duplicate();
+		slice.limit(slice.position() + n);
+		to.put(slice);
+		from.position(from.position() + n);
+		return n;
+	}
+
+}
@@ -0,0 +1,152 @@
+package com.challengeandresponse.remotecontrol;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.TrustManagerFactory;
+
+/**
+ * Builds and caches the SSLContexts used by RemoteControl and its clients.
+ * A context is built once per keystore (or truststore) and then shared by every connection that uses it,
+ * because the session cache lives in the context: sharing it is what lets a returning client resume its
+ * session with an abbreviated handshake instead of doing the full key exchange again.
+ *
+ * @author jim
+ *
+ */
+public class TlsSupport {
+
+	public static final String PROTOCOL = "TLS";
+	// check the server's certificate names the host we meant to reach
+	private static final String ENDPOINT_IDENTIFICATION = "HTTPS";
+
+	private static final ConcurrentHashMap <String,SSLContext> contexts = new ConcurrentHashMap<String,SSLContext>();
+
+	private TlsSupport() {
+	}
+
+
+	/**
+	 * @return the server context for the keystore named in 'rcc', built on first use
+	 * @throws RemoteControlException if the keystore cannot be loaded
+	 */
+	public static SSLContext getServerContext(RemoteControlConfig rcc)
+	throws RemoteControlException {
+		String key = "server|"+rcc.getTlsKeystore()+"|"+rcc.getTlsKeystoreType();
+		SSLContext ctx = contexts.get(key);
+		if (ctx != null)
+			return ctx;
+		ctx = newServerContext(rcc.getTlsKeystore(), rcc.getTlsKeystorePassword(), rcc.getTlsKeystoreType());
+		SSLSessionContext sessions = ctx.getServerSessionContext();
+		sessions.setSessionCacheSize(rcc.getTlsSessionCacheSize());
+		sessions.setSessionTimeout(rcc.getTlsSessionTimeoutSec());
+		SSLContext existing = contexts.putIfAbsent(key, ctx);
+		return (existing != null) ? existing : ctx;
+	}
+
+	/**
+	 * @param truststore path to a truststore holding the server's certificate or its CA, or null to use the JVM's default trust
+	 * @return the client context for 'truststore', built on first use
+	 * @throws RemoteControlException if the truststore cannot be loaded
+	 */
+	public static SSLContext getClientContext(String truststore, String password, String type)
+	throws RemoteControlException {
+		String key = "client|"+truststore+"|"+type;
+		SSLContext ctx = contexts.get(key);
+		if (ctx != null)
+			return ctx;
+		ctx = newClientContext(truststore, password, type);
+		SSLContext existing = contexts.putIfAbsent(key, ctx);
+		return (existing != null) ? existing : ctx;
+	}
+
+
+	/**
+	 * Build a new, uncached server context. Most callers want getServerContext().
+	 */
+	public static SSLContext newServerContext(String keystore, String password, String type)
+	throws RemoteControlException {
+		if (keystore == null)
+			throw new RemoteControlException("TLS is enabled but no keystore is configured");
+		try {
+			KeyStore ks = loadKeyStore(keystore, password, type);
+			KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+			kmf.init(ks, (password == null) ? null : password.toCharArray());
+			SSLContext ctx = SSLContext.getInstance(PROTOCOL);
+			ctx.init(kmf.getKeyManagers(), null, null);
+			return ctx;
+		}
+		catch (GeneralSecurityException e) {
+			throw new RemoteControlException("Cannot set up TLS from keystore "+keystore+": "+e.getMessage(), e);
+		}
+		catch (IOException e) {
+			throw new RemoteControlException("Cannot read keystore "+keystore+": "+e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Build a new, uncached client context. Most callers want getClientContext().
+	 */
+	public static SSLContext newClientContext(String truststore, String password, String type)
+	throws RemoteControlException {
+		try {
+			TrustManagerFactory tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+			tmf.init((truststore == null) ? null : loadKeyStore(truststore, password, type));
+			SSLContext ctx = SSLContext.getInstance(PROTOCOL);
+			ctx.init(null, tmf.getTrustManagers(), null);
+			return ctx;
+		}
+		catch (GeneralSecurityException e) {
+			throw new RemoteControlException("Cannot set up TLS from truststore "+truststore+": "+e.getMessage(), e);
+		}
+		catch (IOException e) {
+			throw new RemoteControlException("Cannot read truststore "+truststore+": "+e.getMessage(), e);
+		}
+	}
+
+
+	public static SSLEngine newServerEngine(SSLContext ctx) {
+		SSLEngine engine = ctx.createSSLEngine();
+		engine.setUseClientMode(false);
+		return engine;
+	}
+
+	/**
+	 * The engine checks that the server's certificate is for 'host' (by its DNS or IP subject alternative names, as HTTPS
+	 * does), not just that it chains to a trusted CA. The peer's host and port are also the key for the client-side
+	 * session cache, so pass the same ones every time to get resumption.
+	 * @param host the host name as configured, not the address it resolved to
+	 */
+	public static SSLEngine newClientEngine(SSLContext ctx, String host, int port) {
+		SSLEngine engine = ctx.createSSLEngine(host, port);
+		engine.setUseClientMode(true);
+		SSLParameters params = engine.getSSLParameters();
+		params.setEndpointIdentificationAlgorithm(ENDPOINT_IDENTIFICATION);
+		engine.setSSLParameters(params);
+		return engine;
+	}
+
+
+	private static KeyStore loadKeyStore(String path, String password, String type)
+	throws GeneralSecurityException, IOException {
+		KeyStore ks = KeyStore.getInstance(type);
+		InputStream in = new FileInputStream(path);
+		try {
+			ks.load(in, (password == null) ? null : password.toCharArray());
+		}
+		finally {
+			in.close();
+		}
+		return ks;
+	}
+
+}
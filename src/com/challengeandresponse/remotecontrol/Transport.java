@@ -0,0 +1,44 @@
+package com.challengeandresponse.remotecontrol;
+
+import java.io.IOException;
+
+/**
+ * A source of Connections for RemoteControl: a TCP port, a Unix domain socket, or anything else.
+ * RemoteControl runs one accepting thread per Transport, so several can be used side by side.
+ *
+ * <p>A Transport decides for itself who may connect. TcpTransport checks the allowhost list;
+ * UnixDomainTransport relies on the permissions of its socket file.</p>
+ *
+ * @author jim
+ *
+ */
+public interface Transport {
+
+	/**
+	 * Bind and start listening
+	 * @throws IOException if the address cannot be bound
+	 * @throws RemoteControlException if the transport is misconfigured
+	 */
+	public void open()
+	throws IOException, RemoteControlException;
+
+	/**
+	 * Wait for the next admitted connection. Connections the transport refuses are closed here and never returned, and
+	 * so are connections that fail while being set up: one bad peer must not stop the listener.
+	 * @return the connection, or null once the transport has been closed
+	 * @throws IOException if the transport cannot accept any more
+	 */
+	public Connection accept()
+	throws IOException;
+
+	/**
+	 * Stop listening. A thread blocked in accept() returns null.
+	 */
+	public void close();
+
+	/**
+	 * @return a short name for logging, e.g. "tcp:5859" or "unix:/var/run/app.sock"
+	 */
+	public String getName();
+
+}
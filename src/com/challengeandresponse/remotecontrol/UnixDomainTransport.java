@@ -0,0 +1,157 @@
+package com.challengeandresponse.remotecontrol;
+
+import java.io.IOException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Set;
+
+import com.challengeandresponse.eventlogger.EventLoggerI;
+
+/**
+ * A transport for agents on the same host: listens on a Unix domain socket, so traffic skips the TCP/IP stack.
+ * There is no allowhost check. Who may connect is decided by the permissions on the socket file. So that nobody can
+ * connect in the moment before they are set, the socket is bound in a new directory only we can enter, given its
+ * permissions there, and then moved into place. Clients still authenticate with id/nonce/time/hash as over TCP.
+ *
+ * @author jim
+ *
+ */
+public class UnixDomainTransport
+implements Transport {
+
+	private static final String PRIVATE_DIR_PREFIX = ".rcsock";
+	private static final String PRIVATE_DIR_PERMISSIONS = "rwx------";
+
+	private final Path path;
+	private final String permissions;
+	private final EventLoggerI eventLogger;
+	private volatile ServerSocketChannel listener = null;
+	private volatile boolean closed = false;
+
+	/**
+	 * @param path where to create the socket file. A file left there by an earlier run is removed.
+	 * @param permissions permissions for the socket file in the form "rw-rw----", or null to leave them to the umask
+	 * @param el an EventLogger to post interesting events to
+	 */
+	public UnixDomainTransport(String path, String permissions, EventLoggerI el) {
+		this.path = Paths.get(path);
+		this.permissions = permissions;
+		this.eventLogger = el;
+	}
+
+
+	public void open()
+	throws IOException, RemoteControlException {
+		Set <PosixFilePermission> perms = null;
+		if (permissions != null) {
+			try {
+				perms = PosixFilePermissions.fromString(permissions);
+			}
+			catch (IllegalArgumentException e) {
+				throw new RemoteControlException("Unix socket permissions are not valid:"+permissions);
+			}
+		}
+		// a socket file from an earlier run would make bind() fail
+		Files.deleteIfExists(path);
+		ServerSocketChannel ssc = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+		if (perms == null) {
+			ssc.bind(UnixDomainSocketAddress.of(path));
+		}
+		else {
+			String failure = null;
+			try {
+				bindPrivately(ssc, perms);
+			}
+			catch (IOException e) {
+				failure = e.toString();
+			}
+			catch (UnsupportedOperationException e) {
+				failure = "the file system does not support permissions";
+			}
+			if (failure != null) {
+				ssc.close();
+				throw new RemoteControlException("Could not create unix socket "+path+" with permissions "+permissions+": "+failure);
+			}
+		}
+		listener = ssc;
+		if (closed)
+			close();
+	}
+
+
+	/**
+	 * Bind 'ssc' in a new directory beside 'path' that only we can enter, set 'perms' on the socket file there, then
+	 * rename it to 'path'. The file is never reachable with looser permissions than 'perms'.
+	 */
+	private void bindPrivately(ServerSocketChannel ssc, Set <PosixFilePermission> perms)
+	throws IOException {
+		Path parent = path.toAbsolutePath().getParent();
+		Path dir = Files.createTempDirectory(parent, PRIVATE_DIR_PREFIX,
+			PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString(PRIVATE_DIR_PERMISSIONS)));
+		Path staged = dir.resolve(path.getFileName());
+		try {
+			ssc.bind(UnixDomainSocketAddress.of(staged));
+			Files.setPosixFilePermissions(staged, perms);
+			Files.move(staged, path, StandardCopyOption.ATOMIC_MOVE);
+		}
+		finally {
+			Files.deleteIfExists(staged);
+			Files.deleteIfExists(dir);
+		}
+	}
+
+
+	public Connection accept()
+	throws IOException {
+		while (true) {
+			ServerSocketChannel ssc = listener;
+			if (closed || (ssc == null))
+				return null;
+			SocketChannel ch;
+			try {
+				ch = ssc.accept();
+			}
+			catch (ClosedChannelException e) {
+				return null;
+			}
+			catch (IOException e) {
+				if (closed || (! ssc.isOpen()))
+					return null;
+				// the listener is still good; this one attempt failed
+				eventLogger.addEvent("IOException accepting on "+getName()+": "+e.getMessage());
+				TcpTransport.pause();
+				continue;
+			}
+			eventLogger.addEvent("Accepted connection on unix socket:"+path);
+			return new ChannelConnection(ch, null, "unix:"+path);
+		}
+	}
+
+
+	public void close() {
+		closed = true;
+		ServerSocketChannel ssc = listener;
+		if (ssc != null) {
+			try {
+				ssc.close();
+				Files.deleteIfExists(path);
+			}
+			catch (IOException e) {
+			}
+		}
+	}
+
+	public String getName() {
+		return "unix:"+path;
+	}
+
+}
@@ -0,0 +1,162 @@
+package com.challengeandresponse.remotecontrol;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+
+/**
+ * The bits of RFC 6455 that WebSocketServer needs: the accept key for the opening handshake,
+ * and encoding of the (unmasked) frames a server sends. Decoding of client frames is in WebSocketServer.
+ *
+ * @author jim
+ *
+ */
+public class WebSocketCodec {
+
+	public static final int OPCODE_CONTINUATION = 0x0;
+	public static final int OPCODE_TEXT = 0x1;
+	public static final int OPCODE_BINARY = 0x2;
+	public static final int OPCODE_CLOSE = 0x8;
+	public static final int OPCODE_PING = 0x9;
+	public static final int OPCODE_PONG = 0xA;
+
+	public static final int CLOSE_NORMAL = 1000;
+	public static final int CLOSE_GOING_AWAY = 1001;
+	public static final int CLOSE_PROTOCOL_ERROR = 1002;
+	public static final int CLOSE_TOO_BIG = 1009;
+
+	private static final String ACCEPT_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+
+	private WebSocketCodec() {
+	}
+
+
+	/**
+	 * @return the Sec-WebSocket-Accept value for a client's Sec-WebSocket-Key
+	 */
+	public static String acceptKey(String clientKey) {
+		try {
+			MessageDigest md = MessageDigest.getInstance("SHA-1");
+			byte[] digest = md.digest((clientKey.trim() + ACCEPT_GUID).getBytes(StandardCharsets.US_ASCII));
+			return Base64.getEncoder().encodeToString(digest);
+		}
+		catch (NoSuchAlgorithmException e) {
+			// every JVM has SHA-1
+			throw new IllegalStateException(e);
+		}
+	}
+
+
+	/**
+	 * @return 'line' as a complete text frame
+	 */
+	public static byte[] textFrame(String line) {
+		return frame(OPCODE_TEXT, line.getBytes(StandardCharsets.UTF_8), 0, -1);
+	}
+
+	/**
+	 * @return a close frame carrying 'status'
+	 */
+	public static byte[] closeFrame(int status) {
+		byte[] payload = new byte[] { (byte) (status >> 8), (byte) status };
+		return frame(OPCODE_CLOSE, payload, 0, payload.length);
+	}
+
+	/**
+	 * Encode a single final (FIN) frame, as a server sends it: unmasked
+	 * @param len bytes of 'payload' to use starting at 'off', or -1 for all of it
+	 */
+	public static byte[] frame(int opcode, byte[] payload, int off, int len) {
+		if (len < 0)
+			len = payload.length - off;
+		int header = (len < 126) ? 2 : ((len <= 0xFFFF) ? 4 : 10);
+		byte[] f = new byte[header + len];
+		f[0] = (byte) (0x80 | opcode);
+		if (len < 126) {
+			f[1] = (byte) len;
+		}
+		else if (len <= 0xFFFF) {
+			f[1] = 126;
+			f[2] = (byte) (len >> 8);
+			f[3] = (byte) len;
+		}
+		else {
+			f[1] = 127;
+			long l = len;
+			for (int i = 0; i < 8; i++)
+				f[2 + i] = (byte) (l >> (56 - (8 * i)));
+		}
+		System.arraycopy(payload, off, f, header, len);
+		return f;
+	}
+
+
+	/**
+	 * An OutputStream that turns each line written to it into one text frame on 'out'.
+	 * A partial line is sent as a frame of its own when the stream is flushed.
+	 * CRLFServer wraps its output lanes in these for WebSocket sessions, so methods write lines as usual.
+	 */
+	public static class LineFramingOutputStream
+	extends OutputStream {
+
+		private final OutputStream out;
+		private final ByteArrayOutputStream line = new ByteArrayOutputStream(128);
+
+		public LineFramingOutputStream(OutputStream out) {
+			this.out = out;
+		}
+
+		@Override
+		public void write(int b)
+		throws IOException {
+			if (b == '\n')
+				emit();
+			else
+				line.write(b);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len)
+		throws IOException {
+			int end = off + len;
+			int start = off;
+			for (int i = off; i < end; i++) {
+				if (b[i] == '\n') {
+					line.write(b, start, i - start);
+					emit();
+					start = i + 1;
+				}
+			}
+			line.write(b, start, end - start);
+		}
+
+		@Override
+		public void flush()
+		throws IOException {
+			if (line.size() > 0)
+				emit();
+			out.flush();
+		}
+
+		@Override
+		public void close()
+		throws IOException {
+			out.close();
+		}
+
+		private void emit()
+		throws IOException {
+			byte[] bytes = line.toByteArray();
+			int len = bytes.length;
+			if ((len > 0) && (bytes[len - 1] == '\r'))
+				len--;
+			line.reset();
+			out.write(frame(OPCODE_TEXT, bytes, 0, len));
+		}
+	}
+
+}
@@ -0,0 +1,751 @@
+package com.challengeandresponse.remotecontrol;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.SSLContext;
+
+import com.challengeandresponse.eventlogger.EventLoggerI;
+
+/**
+ * WebSocket endpoint for browser dashboards. Speaks the same command set as the CRLF protocol, one command per
+ * text message, and sends every response and output line as a text message of its own. Authentication is the
+ * same id/nonce/time/hash exchange, checked by the same CRLFServer code.
+ *
+ * <p>All connections are served by one selector thread; there is no thread per connection. Each connection drives
+ * an event-driven CRLFServer: complete messages are fed to CRLFServer.processLine(), and the session's output queue
+ * is drained whenever the socket can take more. Only exec runs off the selector thread (on the session's exec worker),
+ * and sessions are wound up on a small, fixed pool of closer threads because that may wait for running methods. When
+ * many sessions close at once their wind-ups wait their turn for a closer, rather than each taking a thread.</p>
+ *
+ * <p>Not a Transport, because it drives its sessions itself instead of handing over a stream Connection.
+ * The allowhost list applies, as for TCP. If TLS is on, the endpoint is wss:, on the same keystore.</p>
+ *
+ * @author jim
+ *
+ */
+public class WebSocketServer
+implements Runnable {
+
+	private final RemoteControl rc;
+	private final RemoteControlConfig rcc;
+	private final EventLoggerI eventLogger;
+
+	private Selector selector;
+	private ServerSocketChannel listener;
+	private SSLContext sslContext = null;
+	private final ConcurrentLinkedQueue <Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+	private final ExecutorService closer;
+	private volatile boolean running = false;
+
+	private static final int HTTP_REQUEST_MAX_BYTES = 8192;
+	private static final int READ_BUFFER_BYTES = 8192;
+	// per readiness event, so that one busy client cannot keep the selector from the others
+	private static final int MAX_READS_PER_EVENT = 16;
+	private static final int MAX_READ_BYTES_PER_EVENT = 65536;
+	private static final int WRITE_BATCH_CHUNKS = 64;
+	private static final int CLOSER_THREADS = 4;
+
+	public WebSocketServer(RemoteControl rc, RemoteControlConfig rcc, EventLoggerI el) {
+		this.rc = rc;
+		this.rcc = rcc;
+		this.eventLogger = el;
+		final AtomicLong threadCount = new AtomicLong(0L);
+		ThreadPoolExecutor pool = new ThreadPoolExecutor(CLOSER_THREADS, CLOSER_THREADS, 60L, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(),
+				new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "RemoteControl.websocket.closer-"+threadCount.incrementAndGet());
+						t.setDaemon(true);
+						return t;
+					}
+				});
+		pool.allowCoreThreadTimeOut(true);
+		closer = pool;
+	}
+
+
+	/**
+	 * Bind the port. Call before run().
+	 */
+	public void open()
+	throws IOException, RemoteControlException {
+		if (rcc.isTls())
+			sslContext = TlsSupport.getServerContext(rcc);
+		selector = Selector.open();
+		listener = ServerSocketChannel.open();
+		listener.socket().setReuseAddress(true);
+		listener.bind(new InetSocketAddress(rcc.getWebSocketPort()));
+		listener.configureBlocking(false);
+		listener.register(selector, SelectionKey.OP_ACCEPT);
+		running = true;
+	}
+
+	public String getName() {
+		return "websocket:"+rcc.getWebSocketPort()+rcc.getWebSocketPath() + ((sslContext != null) ? "/tls" : "");
+	}
+
+
+	/**
+	 * The selector loop. Returns after close().
+	 */
+	public void run() {
+		while (running) {
+			try {
+				selector.select();
+			}
+			catch (IOException e) {
+				eventLogger.addEvent("WebSocketServer: select failed: "+e.getMessage());
+				break;
+			}
+			Runnable task;
+			while ((task = tasks.poll()) != null)
+				task.run();
+			Iterator <SelectionKey> it = selector.selectedKeys().iterator();
+			while (it.hasNext()) {
+				SelectionKey key = it.next();
+				it.remove();
+				if (! key.isValid())
+					continue;
+				if (key.isAcceptable()) {
+					acceptAll();
+					continue;
+				}
+				WsConnection conn = (WsConnection) key.attachment();
+				try {
+					if (key.isReadable())
+						conn.onReadable();
+					if (key.isValid() && key.isWritable())
+						conn.flushOutput();
+				}
+				catch (IOException e) {
+					conn.failed(e);
+				}
+				catch (CancelledKeyException e) {
+					conn.closeNow();
+				}
+			}
+		}
+		// close whatever is left
+		for (SelectionKey key : selector.keys()) {
+			if (key.attachment() instanceof WsConnection)
+				((WsConnection) key.attachment()).closeNow();
+		}
+		try {
+			selector.close();
+		}
+		catch (IOException e) {
+		}
+		closer.shutdown();
+		eventLogger.addEvent("WebSocketServer: stopped");
+	}
+
+
+	private void acceptAll() {
+		while (true) {
+			SocketChannel ch;
+			try {
+				ch = listener.accept();
+			}
+			catch (IOException e) {
+				if (listener.isOpen())
+					eventLogger.addEvent("WebSocketServer: accept failed: "+e.getMessage());
+				return;
+			}
+			if (ch == null)
+				return;
+			try {
+				InetAddress peer = ((InetSocketAddress) ch.getRemoteAddress()).getAddress();
+				if (! rcc.isAllowedHost(peer)) {
+					ch.close();
+					eventLogger.addEvent("Rejected WebSocket connection from unauthorized host:"+peer.getHostAddress());
+					continue;
+				}
+				eventLogger.addEvent("Accepted WebSocket connection from authorized host:"+peer.getHostAddress());
+				ch.configureBlocking(false);
+				ch.setOption(StandardSocketOptions.TCP_NODELAY, true);
+				TlsChannel tls = (sslContext != null) ? new TlsChannel(ch, TlsSupport.newServerEngine(sslContext)) : null;
+				WsConnection conn = new WsConnection(ch, tls, peer.getHostAddress());
+				conn.key = ch.register(selector, SelectionKey.OP_READ, conn);
+			}
+			catch (IOException e) {
+				eventLogger.addEvent("WebSocketServer: could not set up connection: "+e.getMessage());
+				try {
+					ch.close();
+				}
+				catch (IOException e2) {
+				}
+			}
+		}
+	}
+
+
+	/**
+	 * Stop accepting new connections. Sessions already open carry on until they end or close() is called.
+	 */
+	public void stopAccepting() {
+		runOnSelector(new Runnable() {
+			public void run() {
+				try {
+					listener.close();
+				}
+				catch (IOException e) {
+				}
+			}
+		});
+	}
+
+	/**
+	 * Stop the selector loop and close every connection
+	 */
+	public void close() {
+		running = false;
+		Selector sel = selector;
+		if (sel != null)
+			sel.wakeup();
+		try {
+			if (listener != null)
+				listener.close();
+		}
+		catch (IOException e) {
+		}
+	}
+
+
+	private void runOnSelector(Runnable task) {
+		tasks.add(task);
+		selector.wakeup();
+	}
+
+
+
+	/**
+	 * One WebSocket connection. Apart from the Connection methods, which may be called from any thread and
+	 * hand their work to the selector thread, everything here runs on the selector thread.
+	 */
+	private class WsConnection
+	implements Connection {
+
+		private final SocketChannel channel;
+		private final TlsChannel tls;
+		private final ByteChannel io;
+		private final String peer;
+		SelectionKey key;
+
+		private ByteBuffer in = ByteBuffer.allocate(READ_BUFFER_BYTES); // fill mode
+		private final ArrayDeque <ByteBuffer> pendingOut = new ArrayDeque<ByteBuffer>();
+		private final AtomicBoolean writeScheduled = new AtomicBoolean(false);
+
+		private CRLFServer session = null;
+		private boolean tlsCounted = false;
+		private boolean upgraded = false;
+		private boolean ending = false;		// input is finished and the session is being wound up
+		private boolean closeAfterFlush = false;
+		private boolean closeFrameSent = false;
+		private boolean closed = false;
+
+		// a message that arrives in fragments
+		private final ByteArrayOutputStream message = new ByteArrayOutputStream();
+		private boolean inMessage = false;
+
+		WsConnection(SocketChannel channel, TlsChannel tls, String peer) {
+			this.channel = channel;
+			this.tls = tls;
+			this.io = (tls != null) ? tls : channel;
+			this.peer = peer;
+		}
+
+
+		//// Connection, callable from any thread
+
+		public void open() {
+		}
+
+		public InputStream getInputStream()
+		throws IOException {
+			throw new IOException("WebSocket sessions are driven by WebSocketServer and have no input stream");
+		}
+
+		public OutputStream getOutputStream()
+		throws IOException {
+			throw new IOException("WebSocket sessions are driven by WebSocketServer and have no output stream");
+		}
+
+		public boolean isSecure() {
+			return (tls != null);
+		}
+
+		public String getPeerDescription() {
+			return "websocket:"+peer;
+		}
+
+		public String getSourceAddress() {
+			return peer;
+		}
+
+		public void setKeepAlive(boolean on) {
+			try {
+				channel.setOption(StandardSocketOptions.SO_KEEPALIVE, on);
+			}
+			catch (IOException e) {
+			}
+		}
+
+		public void shutdownInput() {
+			runOnSelector(new Runnable() {
+				public void run() {
+					endInput();
+				}
+			});
+		}
+
+		public void close() {
+			runOnSelector(new Runnable() {
+				public void run() {
+					closeNow();
+				}
+			});
+		}
+
+		/**
+		 * The session's output queue calls this whenever it has something to send
+		 */
+		void outputReady() {
+			if (writeScheduled.compareAndSet(false, true))
+				runOnSelector(new Runnable() {
+					public void run() {
+						try {
+							flushOutput();
+						}
+						catch (IOException e) {
+							failed(e);
+						}
+					}
+				});
+		}
+
+
+		//// selector thread from here on
+
+		/**
+		 * Read what the client has sent, up to MAX_READS_PER_EVENT reads or MAX_READ_BYTES_PER_EVENT bytes; the next
+		 * select() brings us back for the rest
+		 */
+		void onReadable()
+		throws IOException {
+			int reads = 0;
+			int bytes = 0;
+			while (! ending) {
+				if ((reads >= MAX_READS_PER_EVENT) || (bytes >= MAX_READ_BYTES_PER_EVENT)) {
+					// input TLS has already taken off the socket will not show up in select(), so come back for it
+					if ((tls != null) && tls.hasBufferedInput())
+						readLater();
+					break;
+				}
+				int n;
+				try {
+					n = io.read(in);
+				}
+				catch (IOException e) {
+					if ((tls != null) && (! tls.isHandshakeDone()))
+						rc.getMetrics().increment(RemoteControlMetrics.TLS_HANDSHAKE_FAILURES);
+					throw e;
+				}
+				countTlsHandshake();
+				if (n < 0) {
+					endInput();
+					return;
+				}
+				if (n == 0)
+					break;
+				reads++;
+				bytes += n;
+				if (upgraded)
+					readFrames();
+				else
+					readUpgradeRequest();
+				if (closed)
+					return;
+			}
+			// a TLS handshake may have left records to send
+			if ((tls != null) && tls.hasPendingOutput())
+				flushOutput();
+		}
+
+		private void readLater() {
+			runOnSelector(new Runnable() {
+				public void run() {
+					if (closed)
+						return;
+					try {
+						onReadable();
+					}
+					catch (IOException e) {
+						failed(e);
+					}
+				}
+			});
+		}
+
+		private void countTlsHandshake() {
+			if ((tls != null) && (! tlsCounted) && tls.isHandshakeDone()) {
+				tlsCounted = true;
+				rc.getMetrics().increment(RemoteControlMetrics.TLS_HANDSHAKES);
+			}
+		}
+
+
+		/**
+		 * Wait for a complete HTTP request, check it is a WebSocket upgrade for our path, and answer it
+		 */
+		private void readUpgradeRequest() {
+			byte[] buf = in.array();
+			int end = -1;
+			for (int i = 3; i < in.position(); i++) {
+				if ((buf[i-3] == '\r') && (buf[i-2] == '\n') && (buf[i-1] == '\r') && (buf[i] == '\n')) {
+					end = i + 1;
+					break;
+				}
+			}
+			if (end < 0) {
+				if (in.position() >= HTTP_REQUEST_MAX_BYTES)
+					refuse("431 Request Header Fields Too Large");
+				return;
+			}
+			String request = new String(buf, 0, end, StandardCharsets.ISO_8859_1);
+			in.flip();
+			in.position(end);
+			in.compact();
+
+			String[] lines = request.split("\r\n");
+			String[] requestLine = lines[0].split(" ");
+			HashMap <String,String> headers = new HashMap<String,String>();
+			for (int i = 1; i < lines.length; i++) {
+				int colon = lines[i].indexOf(':');
+				if (colon > 0)
+					headers.put(lines[i].substring(0, colon).trim().toLowerCase(), lines[i].substring(colon + 1).trim());
+			}
+			String path = (requestLine.length > 1) ? requestLine[1] : "";
+			int query = path.indexOf('?');
+			if (query >= 0)
+				path = path.substring(0, query);
+			String key = headers.get("sec-websocket-key");
+			if ((! "GET".equals(requestLine[0])) || (! path.equals(rcc.getWebSocketPath()))) {
+				refuse("404 Not Found");
+				return;
+			}
+			if ((key == null) || (! "websocket".equalsIgnoreCase(headers.get("upgrade"))) || (! "13".equals(headers.get("sec-websocket-version")))) {
+				refuse("400 Bad Request");
+				return;
+			}
+
+			String response = "HTTP/1.1 101 Switching Protocols\r\n" +
+					"Upgrade: websocket\r\n" +
+					"Connection: Upgrade\r\n" +
+					"Sec-WebSocket-Accept: " + WebSocketCodec.acceptKey(key) + "\r\n\r\n";
+			pendingOut.add(ByteBuffer.wrap(response.getBytes(StandardCharsets.ISO_8859_1)));
+			upgraded = true;
+			rc.getMetrics().increment(RemoteControlMetrics.WEBSOCKET_HANDSHAKES);
+
+			session = new CRLFServer(this, MessageFraming.WEBSOCKET, rc, eventLogger);
+			rc.enlistServer(session);
+			session.startDriven(new Runnable() {
+				public void run() {
+					outputReady();
+				}
+			});
+			// anything that came in behind the request
+			readFrames();
+		}
+
+		private void refuse(String status) {
+			rc.getMetrics().increment(RemoteControlMetrics.WEBSOCKET_HANDSHAKE_FAILURES);
+			eventLogger.addEvent("WebSocketServer: refused upgrade from "+peer+": "+status);
+			String response = "HTTP/1.1 " + status + "\r\nConnection: close\r\nContent-Length: 0\r\n\r\n";
+			pendingOut.add(ByteBuffer.wrap(response.getBytes(StandardCharsets.ISO_8859_1)));
+			ending = true;
+			closeAfterFlush = true;
+			outputReady();
+		}
+
+
+		/**
+		 * Take every complete frame out of 'in'. Client frames are always masked.
+		 */
+		private void readFrames() {
+			in.flip();
+			try {
+				while ((! ending) && (in.remaining() >= 2)) {
+					int start = in.position();
+					int b0 = in.get(start) & 0xff;
+					int b1 = in.get(start + 1) & 0xff;
+					boolean fin = (b0 & 0x80) != 0;
+					int opcode = b0 & 0x0f;
+					if ((b1 & 0x80) == 0) {
+						protocolError(WebSocketCodec.CLOSE_PROTOCOL_ERROR, "unmasked frame");
+						return;
+					}
+					long len = b1 & 0x7f;
+					int header = 2;
+					if (len == 126) {
+						if (in.remaining() < 4)
+							break;
+						len = in.getShort(start + 2) & 0xffff;
+						header = 4;
+					}
+					else if (len == 127) {
+						if (in.remaining() < 10)
+							break;
+						len = in.getLong(start + 2);
+						header = 10;
+					}
+					if ((len < 0) || (message.size() + len > rcc.getWebSocketMaxMessageBytes())) {
+						protocolError(WebSocketCodec.CLOSE_TOO_BIG, "message too big");
+						return;
+					}
+					int frameLen = header + 4 + (int) len;
+					if (in.remaining() < frameLen) {
+						// wait for the rest, growing the buffer if the frame cannot fit
+						if (frameLen > in.capacity()) {
+							ByteBuffer bigger = ByteBuffer.allocate(frameLen);
+							bigger.put(in);
+							bigger.flip();
+							in = bigger;
+						}
+						break;
+					}
+					byte[] mask = new byte[4];
+					for (int i = 0; i < 4; i++)
+						mask[i] = in.get(start + header + i);
+					byte[] payload = new byte[(int) len];
+					int p = start + header + 4;
+					for (int i = 0; i < payload.length; i++)
+						payload[i] = (byte) (in.get(p + i) ^ mask[i & 3]);
+					in.position(start + frameLen);
+					onFrame(fin, opcode, payload);
+				}
+			}
+			finally {
+				in.compact();
+			}
+		}
+
+		private void onFrame(boolean fin, int opcode, byte[] payload) {
+			switch (opcode) {
+			case WebSocketCodec.OPCODE_TEXT:
+			case WebSocketCodec.OPCODE_BINARY:
+			case WebSocketCodec.OPCODE_CONTINUATION:
+				if ((opcode == WebSocketCodec.OPCODE_CONTINUATION) != inMessage) {
+					protocolError(WebSocketCodec.CLOSE_PROTOCOL_ERROR, "unexpected continuation");
+					return;
+				}
+				message.write(payload, 0, payload.length);
+				inMessage = ! fin;
+				if (fin) {
+					String text = new String(message.toByteArray(), StandardCharsets.UTF_8);
+					message.reset();
+					onMessage(text);
+				}
+				break;
+			case WebSocketCodec.OPCODE_PING:
+				if (session != null)
+					session.touch();
+				sendControl(WebSocketCodec.frame(WebSocketCodec.OPCODE_PONG, payload, 0, payload.length));
+				break;
+			case WebSocketCodec.OPCODE_PONG:
+				if (session != null)
+					session.touch();
+				break;
+			case WebSocketCodec.OPCODE_CLOSE:
+				// echo the status, then wind up
+				closeFrameSent = true;
+				sendControl(WebSocketCodec.frame(WebSocketCodec.OPCODE_CLOSE, payload, 0, Math.min(2, payload.length)));
+				endInput();
+				break;
+			default:
+				protocolError(WebSocketCodec.CLOSE_PROTOCOL_ERROR, "unknown opcode "+opcode);
+			}
+		}
+
+		/**
+		 * Each line of a message is one command, as if it had arrived over the CRLF protocol
+		 */
+		private void onMessage(String text) {
+			for (String line : text.split("\n")) {
+				if (ending)
+					return;
+				if (line.endsWith("\r"))
+					line = line.substring(0, line.length() - 1);
+				session.processLine(line);
+				if (! session.isRunning())
+					endInput();
+			}
+		}
+
+		private void sendControl(byte[] frame) {
+			try {
+				session.getOutputQueue().offerControl(frame);
+			}
+			catch (IOException e) {
+				// session output is already closed
+			}
+		}
+
+		private void protocolError(int status, String reason) {
+			eventLogger.addEvent("WebSocketServer: closing "+peer+": "+reason);
+			closeFrameSent = true;
+			sendControl(WebSocketCodec.closeFrame(status));
+			endInput();
+		}
+
+
+		/**
+		 * Stop reading and wind the session up on a closer thread. Queued output is still sent.
+		 */
+		void endInput() {
+			if (ending)
+				return;
+			ending = true;
+			if (key.isValid())
+				key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+			if (session == null) {
+				closeNow();
+				return;
+			}
+			final CRLFServer s = session;
+			try {
+				closer.execute(new Runnable() {
+					public void run() {
+						s.endDriven();
+					}
+				});
+			}
+			catch (RejectedExecutionException e) {
+				closeNow();
+			}
+		}
+
+
+		/**
+		 * Write as much queued output as the socket will take, and ask for OP_WRITE if some is left
+		 */
+		void flushOutput()
+		throws IOException {
+			writeScheduled.set(false);
+			if (closed)
+				return;
+			if ((tls != null) && (! tls.isHandshakeDone())) {
+				if (! tls.handshake()) {
+					setWriteInterest(tls.hasPendingOutput());
+					return;
+				}
+				countTlsHandshake();
+			}
+			if ((tls != null) && (! tls.flush())) {
+				setWriteInterest(true);
+				return;
+			}
+			SessionOutputQueue q = (session != null) ? session.getOutputQueue() : null;
+			while (true) {
+				while ((pendingOut.size() < WRITE_BATCH_CHUNKS) && (q != null)) {
+					byte[] chunk = q.poll();
+					if (chunk == null)
+						break;
+					pendingOut.add(ByteBuffer.wrap(chunk));
+				}
+				if (pendingOut.isEmpty())
+					break;
+				if (tls != null) {
+					ByteBuffer b = pendingOut.peek();
+					tls.write(b);
+					if (b.hasRemaining() || tls.hasPendingOutput()) {
+						setWriteInterest(true);
+						return;
+					}
+					pendingOut.poll();
+				}
+				else {
+					// one gathering write for the whole batch
+					channel.write(pendingOut.toArray(new ByteBuffer[pendingOut.size()]));
+					while ((! pendingOut.isEmpty()) && (! pendingOut.peek().hasRemaining()))
+						pendingOut.poll();
+					if (! pendingOut.isEmpty()) {
+						setWriteInterest(true);
+						return;
+					}
+				}
+			}
+			setWriteInterest(false);
+			if (closeAfterFlush)
+				closeNow();
+		}
+
+		private void setWriteInterest(boolean on) {
+			if (! key.isValid())
+				return;
+			int ops = key.interestOps();
+			key.interestOps(on ? (ops | SelectionKey.OP_WRITE) : (ops & ~SelectionKey.OP_WRITE));
+		}
+
+
+		void failed(IOException e) {
+			eventLogger.addEvent("WebSocketServer: connection from "+peer+" failed: "+e.getMessage());
+			closeNow();
+		}
+
+		/**
+		 * Send what can be sent without waiting, then close. If the session has not been wound up yet, start that too.
+		 */
+		void closeNow() {
+			if (closed)
+				return;
+			if (session != null) {
+				// a last try at anything still queued, then a close frame if there is room
+				try {
+					flushOutput();
+					if (pendingOut.isEmpty() && (tls == null) && (! closeFrameSent))
+						channel.write(ByteBuffer.wrap(WebSocketCodec.closeFrame(WebSocketCodec.CLOSE_GOING_AWAY)));
+				}
+				catch (IOException e) {
+				}
+			}
+			closed = true;
+			key.cancel();
+			try {
+				if (tls != null)
+					tls.close();
+				channel.close();
+			}
+			catch (IOException e) {
+			}
+			if (! ending) {
+				ending = true;
+				if (session != null) {
+					final CRLFServer s = session;
+					try {
+						closer.execute(new Runnable() {
+							public void run() {
+								s.endDriven();
+							}
+						});
+					}
+					catch (RejectedExecutionException e) {
+					}
+				}
+			}
+		}
+	}
+
+}
@@ -10,6 +10,7 @@ public class Test
 implements Runnable {
 
 	private boolean running;
+	private RemoteControl rc = null; // for publishing status to subscribers
 
 	public Test() {
 	}
@@ -29,6 +30,20 @@ implements Runnable {
 		running = false;
 	}
 
+	// long-running; try it with the exec-async command
+	public void countSlowly(PrintStream ps, Object[] args) {
+		for (int i = 0; i < 60; i++) {
+			ps.println("count:"+i);
+			try {
+				Thread.sleep(1000);
+			} 
+			catch (InterruptedException e) {
+				ps.println("interrupted");
+				return;
+			}
+		}
+	}
+
 	public void sayHello(PrintStream ps, Object[] args) {
 		ps.println("Hello");
 		ps.flush();
@@ -44,6 +59,9 @@ implements Runnable {
 			catch (InterruptedException e) {
 			}
 			System.out.println("Test running");
+			// try it with: subscribe status
+			if (rc != null)
+				rc.publish("status", "Test running "+System.currentTimeMillis());
 		}
 	}
 
@@ -63,6 +81,8 @@ implements Runnable {
 		rc.registerMethod("sayHello");
 		rc.registerMethod("shutdown");
 		rc.registerMethod("streamText");
+		rc.registerMethod("countSlowly");
+		t.rc = rc;
 
 		String[] s = new String[1];
 		s[0]="jim";
@@ -0,0 +1,99 @@
+package com.challengeandresponse.remotecontrol.test;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+import javax.net.ssl.SSLContext;
+
+import com.challengeandresponse.remotecontrol.*;
+
+/**
+ * Measures TLS handshake rates against a loopback server: full handshakes (a new client context, so
+ * nothing to resume, per connection) versus resumed handshakes (one shared client context, as
+ * RemoteControlClient uses).
+ * Each connection does one line round trip after the handshake so that the client receives its session ticket.
+ *
+ * <pre>
+ * keytool -genkeypair -alias rc -keyalg EC -keystore /tmp/rc.p12 -storetype PKCS12 -storepass changeit -dname CN=localhost
+ * java com.challengeandresponse.remotecontrol.test.TlsBenchmark /tmp/rc.p12 changeit [connections]
+ * </pre>
+ */
+public class TlsBenchmark {
+
+	public static void main(String[] args)
+	throws Exception {
+		if (args.length < 2) {
+			System.out.println("usage: TlsBenchmark (keystore.p12) (password) [connections]");
+			System.exit(-1);
+		}
+		final String keystore = args[0];
+		final String password = args[1];
+		int connections = (args.length > 2) ? Integer.parseInt(args[2]) : 500;
+
+		final SSLContext serverContext = TlsSupport.newServerContext(keystore, password, "PKCS12");
+		serverContext.getServerSessionContext().setSessionCacheSize(RemoteControlConfig.TLS_SESSION_CACHE_SIZE);
+		final ServerSocketChannel ssc = ServerSocketChannel.open();
+		ssc.bind(new InetSocketAddress("127.0.0.1", 0));
+		final int port = ssc.socket().getLocalPort();
+
+		Thread server = new Thread(new Runnable() {
+			public void run() {
+				while (true) {
+					try {
+						SocketChannel ch = ssc.accept();
+						TlsChannel tls = new TlsChannel(ch, TlsSupport.newServerEngine(serverContext));
+						BufferedReader in = new BufferedReader(new InputStreamReader(tls.getInputStream()));
+						PrintStream out = new PrintStream(tls.getOutputStream(), true);
+						String line = in.readLine();
+						out.println(line);
+						tls.close();
+					}
+					catch (IOException e) {
+						if (! ssc.isOpen())
+							return;
+					}
+				}
+			}
+		});
+		server.setDaemon(true);
+		server.start();
+
+		// warm up both paths
+		run(keystore, password, port, 100, false);
+		run(keystore, password, port, 100, true);
+
+		double full = run(keystore, password, port, connections, false);
+		double resumed = run(keystore, password, port, connections, true);
+		System.out.println("connections per run:  "+connections);
+		System.out.printf("full handshakes:      %.0f/sec%n", full);
+		System.out.printf("resumed handshakes:   %.0f/sec%n", resumed);
+		System.out.printf("speedup:              %.2fx%n", resumed / full);
+		ssc.close();
+	}
+
+
+	/**
+	 * @return connections per second
+	 */
+	private static double run(String truststore, String password, int port, int connections, boolean shareContext)
+	throws Exception {
+		SSLContext shared = TlsSupport.newClientContext(truststore, password, "PKCS12");
+		long start = System.nanoTime();
+		for (int i = 0; i < connections; i++) {
+			SSLContext ctx = shareContext ? shared : TlsSupport.newClientContext(truststore, password, "PKCS12");
+			SocketChannel ch = SocketChannel.open(new InetSocketAddress("127.0.0.1", port));
+			TlsChannel tls = new TlsChannel(ch, TlsSupport.newClientEngine(ctx, "127.0.0.1", port));
+			tls.handshake();
+			PrintStream out = new PrintStream(tls.getOutputStream(), true);
+			BufferedReader in = new BufferedReader(new InputStreamReader(tls.getInputStream()));
+			out.println("ping");
+			in.readLine();
+			tls.close();
+		}
+		double seconds = (System.nanoTime() - start) / 1e9;
+		return connections / seconds;
+	}
+
+}